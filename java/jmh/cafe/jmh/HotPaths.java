@@ -0,0 +1,68 @@
+package cafe.jmh;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the data access hot paths of Cafe against a live
+ * database loaded from data/*.csv.  They run the same operations as the bench
+ * command, one per value of the benchmark parameter, through
+ * CafeBenchmark.open.
+ *
+ * The database, port and user are taken from the cafe.db, cafe.port and
+ * cafe.user system properties, or as the scripts do from $USER and $PGPORT.
+ * The order placement benchmark writes orders; they are deleted when the
+ * trial ends.  Run it against a test database.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class HotPaths {
+
+   @Param({"returnResult", "printResult", "login", "menuPrice", "placeOrder", "orderHistory"})
+   public String benchmark;
+
+   private Callable<Void> _operation;
+
+   @Setup(Level.Trial)
+   @SuppressWarnings("unchecked")
+   public void setUp () throws Exception {
+      String user = System.getProperty ("cafe.user", System.getenv ("USER"));
+      String dbname = System.getProperty ("cafe.db", user + "_DB");
+      String dbport = System.getProperty ("cafe.port", System.getenv ("PGPORT"));
+      this._operation = (Callable<Void>) Class.forName ("CafeBenchmark")
+         .getMethod ("open", String.class, String.class, String.class, String.class)
+         .invoke (null, dbname, dbport, user, this.benchmark);
+   }//end setUp
+
+   @Benchmark
+   public void call () throws Exception {
+      this._operation.call ();
+   }//end call
+
+   @TearDown(Level.Trial)
+   public void tearDown () throws Exception {
+      if (this._operation != null)
+         ((Closeable) this._operation).close ();
+   }//end tearDown
+
+}//end HotPaths
@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#run the benchmarks against a database loaded from data/*.csv
+#Pass benchmark names to run only those, e.g. ./bench.sh login menuPrice
+#Iteration counts and the JSON file can be set with -Dcafe.bench.* options in CAFE_OPTS
+java $CAFE_OPTS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Cafe $USER"_DB" $PGPORT $USER bench "$@"
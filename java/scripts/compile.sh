@@ -5,9 +5,10 @@ export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
 export PATH=$JAVA_HOME/bin:$PATH
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Cafe.java
+javac -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Cafe $USER"_DB" $PGPORT $USER
+#Pool and cache settings can be passed as -Dcafe.* options in CAFE_OPTS
+java $CAFE_OPTS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Cafe $USER"_DB" $PGPORT $USER
 
@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# JMH and Maven need Java 8 or later, so the JDK on the PATH is used
+# build the program with the JMH benchmarks into target/benchmarks.jar
+mvn -B -q -f $DIR/../pom.xml -Pjmh package || exit 1
+
+#run the JMH benchmarks against a database loaded from data/*.csv
+#JMH options are passed on, e.g. ./jmh.sh -p benchmark=login,menuPrice -f 2
+#The database, port and user default to $USER"_DB", $PGPORT and $USER; set them with
+#-Dcafe.db, -Dcafe.port and -Dcafe.user in CAFE_OPTS, which JMH passes on to its forked JVMs
+java $CAFE_OPTS -cp $DIR/../target/benchmarks.jar:$DIR/../lib/pg73jdbc3.jar org.openjdk.jmh.Main \
+   -rf json -rff jmh-results.json "$@"
@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#kill a process writing journaled orders in the middle of a flush, replay its journal and
+#check that every confirmed order reached the database once; exits 1 on failure
+#Orders per round and flush batch size are set with -Dcafe.check.journal* options in CAFE_OPTS
+java $CAFE_OPTS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Cafe $USER"_DB" $PGPORT $USER check-journal "$@"
@@ -0,0 +1,15 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#run simulated users against a database loaded from data/*.csv
+#Users, duration, rate, mix and trace file are set with -Dcafe.loadgen.* options in CAFE_OPTS,
+#e.g. CAFE_OPTS="-Dcafe.loadgen.users=32 -Dcafe.loadgen.rate=200 -Dcafe.loadgen.trace=vu0.trace"
+#Pass "replay <trace> [speed]" to replay a recorded trace instead
+if [ $# -eq 0 ]; then set -- loadgen; fi
+java $CAFE_OPTS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Cafe $USER"_DB" $PGPORT $USER "$@"
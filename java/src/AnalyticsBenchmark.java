@@ -0,0 +1,160 @@
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * This class compares the sales reports read from the rollup tables with
+ * the same reports computed by scanning Orders and ItemStatus.  It adds a
+ * number of orders spread over the last month for a user of its own, runs
+ * every report a number of times each way and checks that both ways give
+ * the same rows; then it times a full rebuild of the rollups with one
+ * chunk at a time and with the configured parallelism.
+ *
+ * The orders and the user it makes are deleted at the end.  The rebuild
+ * locks Orders and ItemStatus against writes while it runs, so the
+ * benchmark is meant for a test database only.
+ *
+ */
+public class AnalyticsBenchmark {
+
+   // the windows the reports are run over, in hours, and the number of top
+   // customers.
+   private static final int[] WINDOWS = { 24, 24 * 7, 24 * 30 };
+   private static final int TOP_CUSTOMERS = 10;
+   private static final int ITEMS_PER_ORDER = 3;
+
+   private final Cafe _esql;
+   private final SalesAnalytics _analytics;
+   private final int _orders;
+   private final int _reads;
+
+   /**
+    * Creates a new benchmark
+    *
+    * @param esql the test database
+    * @param analytics the reports compared
+    * @param orders orders added over the last month
+    * @param reads reads of each report, each way
+    */
+   public AnalyticsBenchmark(Cafe esql, SalesAnalytics analytics, int orders, int reads) {
+      this._esql = esql;
+      this._analytics = analytics;
+      this._orders = Math.max(0, orders);
+      this._reads = Math.max(1, reads);
+   }//end AnalyticsBenchmark
+
+   /**
+    * Runs the benchmark and prints the results.
+    *
+    * @return true if every report gave the same rows both ways
+    */
+   public boolean run () throws SQLException {
+      List<MenuCatalog.Item> menu = this._esql.getMenuCatalog ().items ();
+      if (menu.isEmpty ())
+         throw new SQLException("The benchmark needs rows in Menu");
+      String login = "salesbench" + Long.toString (System.currentTimeMillis (), 36);
+      int perOrder = Math.min(ITEMS_PER_ORDER, menu.size ());
+
+      this._esql.createUser (login, "salesbench", null);
+      try{
+         System.out.println ("Adding " + this._orders + " orders over the last 30 days for " + login);
+         // each order takes the items after a rotating start in the menu;
+         // the triggers add them to the rollups as they are inserted.
+         this._esql.executeUpdate (
+            "INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total) "
+            + "SELECT nextval('" + OrderIdAllocator.SEQUENCE + "'), ?, g % 3 <> 0, "
+            + "now() - (g % (30 * 24 * 60)) * interval '1 minute', 0 FROM generate_series(1, ?) g",
+            login, this._orders);
+         for (int i = 0; i < perOrder; ++i)
+            this._esql.executeUpdate (
+               "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) "
+               + "SELECT o.orderid, m.itemName, o.timeStampRecieved, ?, '' FROM Orders o "
+               + "JOIN (SELECT itemName, row_number() OVER (ORDER BY itemName) - 1 AS n FROM Menu) m "
+               + "ON m.n = (o.orderid + ?) % ? WHERE o.login = ?",
+               Cafe.STATUS_RECEIVED, i, menu.size (), login);
+         this._esql.executeUpdate ("UPDATE Orders o SET total = (SELECT COALESCE(SUM(m.price), 0) "
+            + "FROM ItemStatus i JOIN Menu m ON m.itemName = i.itemName WHERE i.orderid = o.orderid) "
+            + "WHERE o.login = ?", login);
+         this._esql.executeUpdate ("ANALYZE Orders");
+         this._esql.executeUpdate ("ANALYZE ItemStatus");
+
+         boolean ok = true;
+         StringBuilder report = new StringBuilder();
+         report.append (String.format ("%-22s %12s %12s %10s %8s%n",
+            "report", "rollup p50", "scan p50", "speedup", "same"));
+         for (SalesAnalytics.Report r : SalesAnalytics.REPORTS) {
+            if (r == SalesAnalytics.TOP_CUSTOMERS)
+               ok &= compare (report, r, TOP_CUSTOMERS, "top " + TOP_CUSTOMERS);
+            else
+               for (int hours : WINDOWS)
+                  ok &= compare (report, r, hours, hours + " h");
+         }//end for
+
+         report.append (String.format ("%nrebuild: %.3f s with 1 chunk at a time, ", rebuild (1)));
+         report.append (String.format ("%.3f s in parallel%n", rebuild (0)));
+         System.out.println ();
+         System.out.print (report);
+         System.out.println (ok ? "PASS: the rollups give the same reports as the scans"
+                                : "FAIL: run rebuild-analytics if the rollups predate the data");
+         return ok;
+      }finally{
+         this._esql.executeUpdate ("DELETE FROM ItemStatus WHERE orderid IN "
+            + "(SELECT orderid FROM Orders WHERE login = ?)", login);
+         this._esql.executeUpdate ("DELETE FROM Orders WHERE login = ?", login);
+         this._esql.executeUpdate ("DELETE FROM SalesByCustomer WHERE login = ?", login);
+         this._esql.executeUpdate ("DELETE FROM USERS WHERE login = ?", login);
+      }//end try
+   }//end run
+
+   // times one report both ways and checks they agree.
+   private boolean compare (StringBuilder report, SalesAnalytics.Report r, int arg, String label)
+         throws SQLException {
+      LatencyHistogram rollup = new LatencyHistogram();
+      LatencyHistogram scan = new LatencyHistogram();
+      ResultTable fromRollup = null, fromScan = null;
+      for (int i = 0; i < this._reads; ++i) {
+         long start = System.nanoTime ();
+         fromRollup = this._analytics.report (r, arg);
+         rollup.recordSince (start);
+         start = System.nanoTime ();
+         fromScan = this._analytics.scan (r, arg);
+         scan.recordSince (start);
+      }//end for
+      boolean same = same (fromRollup, fromScan);
+      double rollupMs = rollup.percentileNanos (0.5) / 1e6;
+      double scanMs = scan.percentileNanos (0.5) / 1e6;
+      report.append (String.format ("%-22s %12.3f %12.3f %9.1fx %8s%n", r.name + " " + label,
+         rollupMs, scanMs, scanMs / Math.max(rollupMs, 1e-6), same ? "yes" : "NO"));
+      return same;
+   }//end compare
+
+   // the same rows, with sums allowed to differ in the last cent.
+   private static boolean same (ResultTable a, ResultTable b) {
+      if (a.size () != b.size () || a.getColumnCount () != b.getColumnCount ())
+         return false;
+      for (int row = 0; row < a.size (); ++row) {
+         for (int col = 0; col < a.getColumnCount (); ++col) {
+            String x = a.getString (row, col), y = b.getString (row, col);
+            if (x == null ? y == null : x.equals (y))
+               continue;
+            try{
+               if (x != null && y != null && Math.abs (Double.parseDouble (x) - Double.parseDouble (y)) <= 0.011)
+                  continue;
+            }catch (NumberFormatException e){
+               // not a number; different.
+            }//end try
+            return false;
+         }//end for
+      }//end for
+      return true;
+   }//end same
+
+   // seconds taken by a full rebuild; parallelism 0 means the configured.
+   private double rebuild (int parallelism) throws SQLException {
+      SalesAnalytics analytics = parallelism == 0 ? this._analytics
+         : new SalesAnalytics(this._esql, parallelism, this._analytics.chunkHours ());
+      long start = System.nanoTime ();
+      analytics.rebuild ();
+      return (System.nanoTime () - start) / 1e9;
+   }//end rebuild
+
+}//end AnalyticsBenchmark
@@ -0,0 +1,335 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.sql.BatchUpdateException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class runs the changes the manager and staff menus make from a
+ * command file instead of the prompts.  Each line is one command and its
+ * fields, separated by ';' and escaped as in the data files:
+ *
+ *    add-item;itemName;type;price;description;imageURL
+ *    set-price;itemName;price
+ *    set-description;itemName;description
+ *    set-type;itemName;type
+ *    set-image;itemName;imageURL
+ *    delete-item;itemName
+ *    pay-order;orderid
+ *    set-user-type;login;Manager|Employee|Customer
+ *
+ * Blank lines and lines starting with '#' are skipped.
+ *
+ * Commands are committed in groups of a given size, one transaction per
+ * group, and each run of the same command within a group is sent as one
+ * JDBC batch, so the commands still take effect in file order.  A group
+ * that fails is rolled back whole.  By default the run stops at the first
+ * bad line or failed group, keeping the groups committed before it; it can
+ * instead report them and go on.
+ *
+ * A run of pay-order pays its orders in one statement, the set form of
+ * the one Cafe.payOrder runs, which returns each order paid for the first
+ * time; after the group commits those are fed to the live order figures
+ * as payOrder does.  Every command is reported to the
+ * query statistics, one row at a time.
+ *
+ */
+public class BatchRunner {
+
+   /**
+    * One kind of command: its fields, their types and its statement.
+    */
+   private static final class Command {
+      final String name;
+      final String usage;
+      // one letter per field: s text, d number, i integer, u user type.
+      final String types;
+      final String sql;
+      // the field bound to each '?' of the statement, in order.
+      final int[] paramFields;
+      final boolean changesMenu;
+
+      Command(String name, String usage, String types, String sql, boolean changesMenu, int... paramFields) {
+         this.name = name;
+         this.usage = usage;
+         this.types = types;
+         this.sql = sql;
+         this.changesMenu = changesMenu;
+         this.paramFields = paramFields;
+      }
+   }//end Command
+
+   /**
+    * One parsed line of the command file.
+    */
+   private static final class Line {
+      final int lineNo;
+      final Command command;
+      final Object[] params;
+
+      Line(int lineNo, Command command, Object[] params) {
+         this.lineNo = lineNo;
+         this.command = command;
+         this.params = params;
+      }
+   }//end Line
+
+   // pays the orders of an int[] literal, locked in id order, and returns
+   // each with its login, total and old paid flag.
+   private static final String PAY_ORDERS = "UPDATE Orders o SET paid = true "
+      + "FROM (SELECT orderid, paid FROM Orders WHERE orderid = ANY(CAST(? AS int[])) "
+      + "ORDER BY orderid FOR UPDATE) old "
+      + "WHERE o.orderid = old.orderid RETURNING o.orderid, o.login, o.total, old.paid";
+
+   static final Map<String, Command> COMMANDS = new LinkedHashMap<String, Command>();
+   static {
+      add (new Command("add-item", "itemName;type;price;description;imageURL", "ssdss",
+         "INSERT INTO Menu (itemName, type, price, description, imageURL) VALUES (?, ?, ?, ?, ?)",
+         true, 0, 1, 2, 3, 4));
+      add (new Command("set-price", "itemName;price", "sd",
+         "UPDATE MENU SET price = ? WHERE itemName = ?", true, 1, 0));
+      add (new Command("set-description", "itemName;description", "ss",
+         "UPDATE MENU SET description = ? WHERE itemName = ?", true, 1, 0));
+      add (new Command("set-type", "itemName;type", "ss",
+         "UPDATE MENU SET type = ? WHERE itemName = ?", true, 1, 0));
+      add (new Command("set-image", "itemName;imageURL", "ss",
+         "UPDATE MENU SET imageURL = ? WHERE itemName = ?", true, 1, 0));
+      add (new Command("delete-item", "itemName", "s",
+         "DELETE FROM Menu WHERE itemName=?", true, 0));
+      add (new Command("pay-order", "orderid", "i", PAY_ORDERS, false, 0));
+      add (new Command("set-user-type", "login;Manager|Employee|Customer", "su",
+         "UPDATE USERS SET type = ? WHERE login = ?", false, 1, 0));
+   }
+
+   // paid orders are also taken out of the in-memory unpaid orders and
+   // counted in the live figures.
+   private static final Command PAY_ORDER = COMMANDS.get ("pay-order");
+
+   private static void add (Command command) {
+      COMMANDS.put (command.name, command);
+   }
+
+   private final Cafe _esql;
+   private final int _groupSize;
+   private final boolean _continueOnError;
+
+   private int _commands = 0;
+   private int _transactions = 0;
+   private int _badLines = 0;
+   private int _failedCommands = 0;
+   private int _unchanged = 0;
+
+   /**
+    * Creates a new batch runner
+    *
+    * @param esql the database
+    * @param groupSize commands per transaction
+    * @param continueOnError true to skip bad lines and failed groups and go
+    *        on; false to stop at the first one
+    */
+   public BatchRunner(Cafe esql, int groupSize, boolean continueOnError) {
+      this._esql = esql;
+      this._groupSize = Math.max(1, groupSize);
+      this._continueOnError = continueOnError;
+   }//end BatchRunner
+
+   /**
+    * Runs every command read from a command file and prints a summary.
+    *
+    * @param in the command file
+    * @param source the name of the file, for messages
+    * @return true if every command was committed
+    */
+   public boolean run (BufferedReader in, String source) throws IOException, SQLException {
+      long start = System.nanoTime ();
+      List<Line> group = new ArrayList<Line>(this._groupSize);
+      boolean ok = true;
+      try{
+         String text;
+         int lineNo = 0;
+         while ((text = in.readLine ()) != null) {
+            ++lineNo;
+            if (text.trim ().length () == 0 || text.trim ().startsWith ("#"))
+               continue;
+            Line line;
+            try{
+               line = parse (lineNo, text);
+            }catch (IllegalArgumentException e){
+               ++this._badLines;
+               ok = false;
+               System.out.println (source + ":" + lineNo + ": " + e.getMessage ());
+               if (this._continueOnError)
+                  continue;
+               break;
+            }//end try
+            group.add (line);
+            if (group.size () == this._groupSize) {
+               ok &= execute (group, source);
+               group.clear ();
+            }//end if
+         }//end while
+         if (!group.isEmpty () && (ok || this._continueOnError))
+            ok &= execute (group, source);
+      }catch (SQLException e){
+         ok = false;
+         System.out.println ("Stopped: " + e.getMessage ());
+      }//end try
+
+      double seconds = (System.nanoTime () - start) / 1e9;
+      System.out.println (String.format (
+         "%d commands committed in %d transactions in %.3f s (%.1f commands/s), "
+         + "%d changed no rows, %d bad lines, %d commands rolled back",
+         this._commands, this._transactions, seconds, this._commands / Math.max(seconds, 1e-9),
+         this._unchanged, this._badLines, this._failedCommands));
+      return ok;
+   }//end run
+
+   // parses one line into its command and statement parameters.
+   private static Line parse (int lineNo, String text) {
+      int semi = text.indexOf (';');
+      String name = (semi < 0 ? text : text.substring (0, semi)).trim ();
+      Command command = COMMANDS.get (name);
+      if (command == null)
+         throw new IllegalArgumentException("unknown command " + name + ", expected one of " + COMMANDS.keySet ());
+      String[] fields = semi < 0 ? new String[0]
+                                 : DataLoader.parseLine (text.substring (semi + 1), command.types.length ());
+      if (fields == null || fields.length != command.types.length ())
+         throw new IllegalArgumentException("usage: " + command.name + ";" + command.usage);
+
+      Object[] values = new Object[fields.length];
+      for (int f = 0; f < fields.length; ++f) {
+         String field = fields[f];
+         try{
+            switch (command.types.charAt (f)) {
+               case 'd': values[f] = field == null ? null : Double.valueOf (field.trim ()); break;
+               case 'i': values[f] = field == null ? null : Integer.valueOf (field.trim ()); break;
+               case 'u':
+                  if (!Arrays.asList ("Manager", "Employee", "Customer").contains (field))
+                     throw new IllegalArgumentException("user type must be Manager, Employee or Customer, not " + field);
+                  values[f] = field;
+                  break;
+               default: values[f] = field; break;
+            }//end switch
+         }catch (NumberFormatException e){
+            throw new IllegalArgumentException("field " + (f + 1) + " is not a number: " + field);
+         }//end try
+      }//end for
+
+      Object[] params = new Object[command.paramFields.length];
+      for (int p = 0; p < params.length; ++p)
+         params[p] = values[command.paramFields[p]];
+      return new Line(lineNo, command, params);
+   }//end parse
+
+   // runs one group in one transaction; returns false if it was rolled back.
+   private boolean execute (List<Line> group, String source) throws SQLException {
+      boolean changesMenu = false;
+      // the login and total of each order paid for the first time.
+      List<Object[]> payments = new ArrayList<Object[]>();
+      for (Line line : group)
+         if (line.command == PAY_ORDER) {
+            // journaled orders are only in Orders once flushed.
+            this._esql.awaitOrders ();
+            break;
+         }//end if
+      PooledConnection pc = this._esql.borrowConnection ();
+      try{
+         pc.getConnection ().setAutoCommit (false);
+         int from = 0;
+         while (from < group.size ()) {
+            Command command = group.get (from).command;
+            int to = from;
+            while (to < group.size () && group.get (to).command == command)
+               ++to;
+            long start = System.nanoTime ();
+            List<Object[]> rows = new ArrayList<Object[]>(to - from);
+            for (int i = from; i < to; ++i)
+               rows.add (group.get (i).params);
+            PreparedStatement stmt = pc.prepare (command.sql);
+            int[] counts = command == PAY_ORDER ? pay (stmt, rows, payments) : batch (stmt, rows);
+            this._esql.executedBatch (command.sql, rows, start);
+            for (int i = 0; i < counts.length; ++i) {
+               if (counts[i] == 0) {
+                  ++this._unchanged;
+                  System.out.println (source + ":" + group.get (from + i).lineNo + ": " + command.name
+                     + " changed no rows");
+               }//end if
+            }//end for
+            changesMenu |= command.changesMenu;
+            from = to;
+         }//end while
+         pc.getConnection ().commit ();
+         for (Line line : group)
+            if (line.command == PAY_ORDER)
+               this._esql.getUnpaidOrders ().removed ((Integer) line.params[0]);
+         for (Object[] payment : payments)
+            this._esql.getOrderSketches ().paid ((String) payment[0], (Double) payment[1]);
+         this._commands += group.size ();
+         ++this._transactions;
+         return true;
+      }catch (SQLException e){
+         this._failedCommands += group.size ();
+         // the driver gives the cause of a failed batch as the next exception.
+         SQLException cause = e instanceof BatchUpdateException && e.getNextException () != null
+                              ? e.getNextException () : e;
+         String message = String.format ("%s:%d-%d: rolled back %d commands: %s", source,
+            group.get (0).lineNo, group.get (group.size () - 1).lineNo, group.size (), cause.getMessage ());
+         if (!this._continueOnError)
+            throw new SQLException(message, e);
+         System.out.println (message);
+         return false;
+      }finally{
+         // rolls back anything left uncommitted.
+         this._esql.releaseConnection (pc);
+         if (changesMenu)
+            this._esql.getMenuCatalog ().invalidate ();
+      }//end try
+   }//end execute
+
+   // runs the rows as one JDBC batch and returns the rows each changed.
+   private static int[] batch (PreparedStatement stmt, List<Object[]> rows) throws SQLException {
+      try{
+         for (Object[] params : rows) {
+            Cafe.bind (stmt, params);
+            stmt.addBatch ();
+         }//end for
+         return stmt.executeBatch ();
+      }finally{
+         stmt.clearBatch ();
+      }//end try
+   }//end batch
+
+   // pays the orders in one statement, adding the first payments to
+   // payments, and returns the orders each changed.
+   private static int[] pay (PreparedStatement stmt, List<Object[]> rows, List<Object[]> payments) throws SQLException {
+      // the bundled driver cannot bind arrays, so the ids go as a literal.
+      StringBuilder ids = new StringBuilder("{");
+      for (int i = 0; i < rows.size (); ++i)
+         ids.append (i == 0 ? "" : ",").append (rows.get (i)[0]);
+      Cafe.bind (stmt, ids.append ('}').toString ());
+      Set<Integer> paid = new HashSet<Integer>();
+      ResultSet rs = stmt.executeQuery ();
+      try{
+         while (rs.next ()) {
+            paid.add (rs.getInt (1));
+            if (!rs.getBoolean (4))
+               payments.add (new Object[] { rs.getString (2).trim (), rs.getDouble (3) });
+         }//end while
+      }finally{
+         rs.close ();
+      }//end try
+      int[] counts = new int[rows.size ()];
+      for (int i = 0; i < counts.length; ++i)
+         counts[i] = paid.contains (rows.get (i)[0]) ? 1 : 0;
+      return counts;
+   }//end pay
+
+}//end BatchRunner
@@ -11,19 +11,30 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.List;
 import java.util.Iterator; 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -35,14 +46,95 @@ import java.util.ArrayList;
 
 public class Cafe {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections, each with its own
+   // prepared statement cache.
+   private ConnectionPool _pool = null;
+
+   // the connection results are printed page by page from, opened on
+   // first use; it waits on the user, so it is kept out of the pool.
+   private Connection _pager = null;
+
+   // order ids reserved in blocks from the Orders sequence.
+   private OrderIdAllocator _orderIds = null;
+
+   // in-memory copy of the Menu table.
+   private MenuCatalog _menu = null;
+
+   // the unpaid orders of the last 24 hours, for the staff order list.
+   private UnpaidOrders _unpaid = null;
+
+   // tells sessions when their ordered items change status.
+   private ItemStatusEvents _itemEvents = null;
+
+   // the ordered items the kitchen has still to make.
+   private KitchenQueue _kitchen = null;
+
+   // the sales reports, read from rollup tables.
+   private SalesAnalytics _analytics = null;
+
+   // counts and times every statement by shape and logs the slow ones.
+   private QueryStats _queryStats = null;
+
+   // orders confirmed from a local journal and written behind, when
+   // cafe.journal names its directory.
+   private OrderJournal _journal = null;
+
+   // approximate live figures of the orders placed and paid lately; a
+   // check may put sketches of its own in their place.
+   private volatile OrderSketches _sketches = null;
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
                                 new InputStreamReader(System.in));
 
+   // buffered writer for query results printed to standard out.
+   static Writer out = new BufferedWriter(
+                          new OutputStreamWriter(System.out), 1 << 16);
+
+   // rows fetched from the server per cursor round trip, and rows printed
+   // per page, when printing query results.
+   static final int PRINT_FETCH_SIZE = Integer.getInteger("cafe.print.fetchSize", 500);
+   static final int PRINT_PAGE_SIZE = Integer.getInteger("cafe.print.pageSize", 25);
+
+   // orders per page when browsing order history.
+   static final int HISTORY_PAGE_SIZE = Integer.getInteger("cafe.history.pageSize", 5);
+
+   // items an employee claims at a time from the kitchen queue.
+   static final int KITCHEN_BATCH_SIZE = Integer.getInteger("cafe.kitchen.batchSize", 5);
+
+   // status of an item that was ordered but not yet worked on.
+   static final String STATUS_RECEIVED = "Order recieved";
+
+   // how long paying an order waits for the order journal to catch up, and
+   // how long closing waits for it to drain.
+   static final long JOURNAL_WAIT_MILLIS = Long.getLong("cafe.journal.waitMs", 10000L);
+
+   // the order lookups of the menus, shared with the benchmarks and the
+   // load generator so they measure the same statements.
+   static final String UNPAID_ORDERS_QUERY =
+      "SELECT * FROM Orders WHERE paid = 'false' AND timeStampRecieved > now() - interval '24 hours'";
+   static final String ORDER_QUERY = "SELECT * FROM Orders WHERE orderid=?";
+   static final String ORDER_ITEMS_QUERY = "SELECT * FROM ItemStatus WHERE orderid=?";
+
+   // delete an unpaid order, its items first.
+   private static final String DELETE_ORDER_ITEMS = "DELETE FROM ItemStatus WHERE orderid = ? AND orderid IN "
+      + "(SELECT orderid FROM Orders WHERE orderid = ? AND paid = false FOR UPDATE)";
+   private static final String DELETE_ORDER = "DELETE FROM Orders WHERE orderid = ? AND paid = false";
+
+   // pays an order and returns its login, total and old paid flag; the old
+   // flag tells a first payment from a repeated one, which the live figures
+   // must not count twice.
+   private static final String PAY_ORDER = "UPDATE Orders o SET paid = true "
+      + "FROM (SELECT orderid, paid FROM Orders WHERE orderid = ? FOR UPDATE) old "
+      + "WHERE o.orderid = old.orderid RETURNING o.login, o.total, old.paid";
+
+   private static final String ITEM_STATUS_INSERT =
+      "INSERT INTO ItemStatus (orderid, itemName, status, comments) VALUES (?, ?, ?, ?)";
+
+   // told about every statement run through this object.
+   private final List<QueryListener> _listeners = new CopyOnWriteArrayList<QueryListener>();
+
    /**
     * Creates a new instance of Cafe
     *
@@ -60,168 +152,802 @@ public class Cafe {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // open the connection pool; sizes and timeouts can be tuned with
+         // -Dcafe.pool.* system properties.
+         this._pool = new ConnectionPool(url, user, passwd,
+            Integer.getInteger("cafe.pool.minSize", 1),
+            Integer.getInteger("cafe.pool.maxSize", 8),
+            Long.getLong("cafe.pool.idleTimeoutMs", 60000L),
+            Long.getLong("cafe.pool.borrowTimeoutMs", 5000L),
+            Long.getLong("cafe.pool.validateAfterMs", 30000L),
+            Integer.getInteger("cafe.statementCache.size", 64));
+         this._orderIds = new OrderIdAllocator(this,
+            Integer.getInteger("cafe.orderId.blockSize", 20));
+         this._menu = new MenuCatalog(this,
+            Long.getLong("cafe.menu.checkIntervalMs", 2000L));
+         this._unpaid = new UnpaidOrders(this,
+            Long.getLong("cafe.unpaid.resyncMs", 60000L));
+         this._itemEvents = new ItemStatusEvents(this,
+            Long.getLong("cafe.notify.pollMs", 50L));
+         this._kitchen = new KitchenQueue(this,
+            Long.getLong("cafe.kitchen.claimTimeoutMs", 10 * 60 * 1000L));
+         this._analytics = new SalesAnalytics(this,
+            Integer.getInteger("cafe.analytics.parallelism", 4),
+            Integer.getInteger("cafe.analytics.chunkHours", 24));
+         this._queryStats = new QueryStats(this,
+            Long.getLong("cafe.slowQueryMs", 200L),
+            System.getProperty("cafe.slowQueryLog", "slow-queries.log"));
+         this._queryStats.register ();
+         addQueryListener (this._queryStats);
+         this._sketches = new OrderSketches(
+            Long.getLong("cafe.sketch.windowMinutes", 60L) * 60 * 1000L,
+            Integer.getInteger("cafe.sketch.slices", 12),
+            Integer.getInteger("cafe.sketch.precision", 12),
+            Double.parseDouble(System.getProperty("cafe.sketch.accuracy", "0.01")),
+            Double.parseDouble(System.getProperty("cafe.sketch.epsilon", "0.002")),
+            Double.parseDouble(System.getProperty("cafe.sketch.delta", "0.01")),
+            System.getProperty("cafe.sketch.file") == null ? null
+               : new File(System.getProperty("cafe.sketch.file")));
+         this._sketches.startSnapshots (Long.getLong("cafe.sketch.snapshotMs", 60000L));
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
          System.exit(-1);
       }//end catch
+
+      String journalDir = System.getProperty("cafe.journal");
+      if (journalDir != null) {
+         try{
+            this._journal = new OrderJournal(this, new File(journalDir),
+               Integer.getInteger("cafe.journal.segmentMB", 64) << 20,
+               System.getProperty("cafe.journal.fsync", OrderJournal.FSYNC_INTERVAL),
+               Long.getLong("cafe.journal.fsyncMs", 100L),
+               Integer.getInteger("cafe.journal.batchSize", 500),
+               Long.getLong("cafe.journal.flushMs", 20L));
+            String haltAt = System.getProperty("cafe.journal.haltAt");
+            if (haltAt != null)
+               this._journal.haltAt (haltAt);
+            this._journal.start ();
+         }catch (Exception e){
+            System.err.println("Error - Unable to open the order journal in " + journalDir + ": " + e.getMessage() );
+            System.exit(-1);
+         }//end catch
+      }//end if
    }//end Cafe
 
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
-    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.  The statement is
+    * prepared once per connection and reused from the statement cache;
+    * values are passed as parameters for the '?' markers in the SQL text.
     *
     * @param sql the input SQL string
+    * @param params the values bound to the statement parameters
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rowCount = -1;
+      SQLException error = null;
+      PooledConnection pc = borrowConnection ();
+      try{
+         // fetches the cached statement object
+         PreparedStatement stmt = pc.prepare (sql);
 
-      // close the instruction
-      stmt.close ();
+         // issues the update instruction
+         bind (stmt, params);
+         rowCount = stmt.executeUpdate ();
+         return rowCount;
+      }catch (SQLException e){
+         error = e;
+         throw e;
+      }finally{
+         releaseConnection (pc);
+         executed (sql, params, true, start, rowCount, error);
+      }//end try
    }//end executeUpdate
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * standard out, one page at a time.
     *
     * @param query the input query string
+    * @param params the values bound to the query parameters
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      return executeQueryAndPrintResult (out, PRINT_PAGE_SIZE, query, params);
+   }//end executeQueryAndPrintResult
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
-   }//end executeQuery
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * stream the results to a writer.  Without pages the rows are read
+    * through a cursor declared for the query, PRINT_FETCH_SIZE rows at a
+    * time, and formatted into one reusable buffer, so memory use does not
+    * grow with the size of the result.  With pages the cursor is declared
+    * WITH HOLD on a connection of its own, outside the pool, and a page is
+    * fetched at a time, so nothing is held from the pool, and no
+    * transaction is open, while the user decides whether to see the next
+    * one.
+    *
+    * @param writer where the rows are written; flushed before returning
+    * @param pageSize rows per page; after each full page the user is asked
+    *        whether to continue.  Zero prints everything without pausing.
+    * @param query the input query string
+    * @param params the values bound to the query parameters
+    * @return the number of rows written
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (Writer writer, int pageSize, String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rowCount = -1;
+      SQLException error = null;
+      try{
+         rowCount = pageSize > 0 ? printPages (writer, pageSize, query, params)
+                                 : printResult (writer, query, params);
+         return rowCount;
+      }catch (SQLException e){
+         error = e;
+         throw e;
+      }catch (IOException e){
+         error = new SQLException("Unable to write query result: " + e.getMessage ());
+         throw error;
+      }finally{
+         executed (query, params, false, start, rowCount, error);
+      }//end try
+   }//end executeQueryAndPrintResult
+
+   // every row, through a cursor in a transaction of its own; drivers that
+   // ignore setFetchSize would otherwise read the whole result at once.
+   private int printResult (Writer writer, String query, Object... params) throws SQLException, IOException {
+      PooledConnection pc = borrowConnection ();
+      try{
+         Connection connection = pc.getConnection ();
+         connection.setAutoCommit (false);
+         PreparedStatement declare = pc.prepare ("DECLARE print_rows NO SCROLL CURSOR FOR " + query);
+         bind (declare, params);
+         declare.execute ();
+         Statement stmt = connection.createStatement ();
+         try{
+            StringBuilder line = new StringBuilder(256);
+            int rowCount = 0;
+            int fetched;
+            do {
+               fetched = 0;
+               ResultSet rs = stmt.executeQuery ("FETCH FORWARD " + PRINT_FETCH_SIZE + " FROM print_rows");
+               try{
+                  ResultSetMetaData rsmd = rs.getMetaData ();
+                  int numCol = rsmd.getColumnCount ();
+                  while (rs.next ()) {
+                     if (rowCount == 0)
+                        writer.write (header (rsmd));
+                     line.setLength (0);
+                     for (int i=1; i<=numCol; ++i)
+                        line.append (rs.getString (i)).append ('\t');
+                     line.append ('\n');
+                     writer.append (line);
+                     ++rowCount;
+                     ++fetched;
+                  }//end while
+               }finally{
+                  rs.close ();
+               }//end try
+            } while (fetched == PRINT_FETCH_SIZE);
+            stmt.execute ("CLOSE print_rows");
+            connection.commit ();
+            writer.flush ();
+            return rowCount;
+         }finally{
+            stmt.close ();
+         }//end try
+      }finally{
+         releaseConnection (pc);
+      }//end try
+   }//end printResult
+
+   // one page at a time through a cursor declared WITH HOLD on the pager
+   // connection, a page and one row fetched at a time to know whether
+   // another follows.  The declaring transaction commits at once, so no
+   // transaction is open, and no pooled connection held, while the user is
+   // asked for the next page.
+   private synchronized int printPages (Writer writer, int pageSize, String query, Object... params) throws SQLException, IOException {
+      if (this._pager == null)
+         this._pager = this._pool.openUnpooled ();
+      Connection connection = this._pager;
+      boolean ok = false;
+      try{
+         connection.setAutoCommit (false);
+         PreparedStatement declare = connection.prepareStatement ("DECLARE print_page NO SCROLL CURSOR WITH HOLD FOR " + query);
+         try{
+            bind (declare, params);
+            declare.execute ();
+         }finally{
+            declare.close ();
+         }//end try
+         connection.commit ();
+         connection.setAutoCommit (true);
+
+         Statement stmt = connection.createStatement ();
+         try{
+            StringBuilder page = new StringBuilder(256);
+            StringBuilder line = new StringBuilder(256);
+            // the row fetched past the last page, the first of the next.
+            String carried = null;
+            int rowCount = 0;
+            while (true) {
+               page.setLength (0);
+               int rows = 0;
+               if (carried != null) {
+                  page.append (carried);
+                  carried = null;
+                  ++rows;
+               }//end if
+               ResultSet rs = stmt.executeQuery ("FETCH FORWARD " + (pageSize + 1 - rows) + " FROM print_page");
+               String header;
+               try{
+                  ResultSetMetaData rsmd = rs.getMetaData ();
+                  header = header (rsmd);
+                  int numCol = rsmd.getColumnCount ();
+                  while (rs.next ()) {
+                     line.setLength (0);
+                     for (int i=1; i<=numCol; ++i)
+                        line.append (rs.getString (i)).append ('\t');
+                     line.append ('\n');
+                     if (rows < pageSize) {
+                        page.append (line);
+                        ++rows;
+                     }else {
+                        carried = line.toString ();
+                     }//end if
+                  }//end while
+               }finally{
+                  rs.close ();
+               }//end try
+               if (rows == 0)
+                  break;
+               writer.write (header);
+               writer.append (page);
+               rowCount += rows;
+               if (carried == null || !nextPage (writer, rowCount))
+                  break;
+            }//end while
+            stmt.execute ("CLOSE print_page");
+            writer.flush ();
+            ok = true;
+            return rowCount;
+         }finally{
+            stmt.close ();
+         }//end try
+      }finally{
+         // a connection left in an unknown state is opened afresh next time.
+         if (!ok) {
+            this._pager = null;
+            try{
+               connection.close ();
+            }catch (SQLException e){
+               // ignored.
+            }//end try
+         }//end if
+      }//end try
+   }//end printPages
+
+   // the column names, printed at the top of every page.
+   private static String header (ResultSetMetaData rsmd) throws SQLException {
+      StringBuilder header = new StringBuilder(256);
+      for (int i = 1; i <= rsmd.getColumnCount (); i++)
+         header.append (rsmd.getColumnName (i)).append ('\t');
+      return header.append ('\n').toString ();
+   }//end header
+
+   /*
+    * Asks whether to print the next page of a result
+    * @return false if the user stopped the listing
+    **/
+   private static boolean nextPage (Writer writer, int rowCount) throws IOException {
+      writer.write ("-- " + rowCount + " rows shown, press Enter for more or q to stop --");
+      writer.flush ();
+      String answer = in.readLine ();
+      return answer == null || !answer.trim ().equalsIgnoreCase ("q");
+   }//end nextPage
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
-    * a list of records. Each record in turn is a list of attribute values
+    * a table of typed columns.
     *
     * @param query the input query string
-    * @return the query result as a list of records
+    * @param params the values bound to the query parameters
+    * @return the query result as a table
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public ResultTable executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rowCount = -1;
+      SQLException error = null;
+      PooledConnection pc = borrowConnection ();
+      try{
+         ResultTable result = returnResult (pc, query, params);
+         rowCount = result.size ();
+         return result;
+      }catch (SQLException e){
+         error = e;
+         throw e;
+      }finally{
+         releaseConnection (pc);
+         executed (query, params, false, start, rowCount, error);
+      }//end try
+   }//end executeQueryAndReturnResult
+
+   private static ResultTable returnResult (PooledConnection pc, String query, Object... params) throws SQLException {
+      // fetches the cached statement object
+      PreparedStatement stmt = pc.prepare (query);
 
       // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
-   }//end executeQueryAndReturnResult
+      bind (stmt, params);
+      ResultSet rs = stmt.executeQuery ();
+      try{
+         // reads the rows into primitive column arrays.
+         return ResultTable.from (rs);
+      }finally{
+         rs.close ();
+      }//end try
+   }//end returnResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
     *
     * @param query the input query string
+    * @param params the values bound to the query parameters
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-
+   public int executeQuery (String query, Object... params) throws SQLException {
+       long start = System.nanoTime ();
        int rowCount = 0;
-
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+       SQLException error = null;
+       PooledConnection pc = borrowConnection ();
+       try{
+          // fetches the cached statement object
+          PreparedStatement stmt = pc.prepare (query);
+
+          // issues the query instruction
+          bind (stmt, params);
+          ResultSet rs = stmt.executeQuery ();
+
+          // iterates through the result set and count nuber of results.
+          while (rs.next()){
+             rowCount++;
+          }//end while
+          rs.close ();
+          return rowCount;
+       }catch (SQLException e){
+          error = e;
+          throw e;
+       }finally{
+          releaseConnection (pc);
+          executed (query, params, false, start, error == null ? rowCount : -1, error);
+       }//end try
    }
 
    /**
-    * Method to fetch the last value from sequence. This
-    * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * Method to reserve values from a sequence.  This method issues one
+    * query that calls nextval once per value, so the values are reserved
+    * for the caller alone whatever other sessions do with the sequence.
     *
-    * @param sequence name of the DB sequence
-    * @return current value of a sequence
+    * @param sequence name of the DB sequence; a name from the schema, never
+    *        user input, as it becomes part of the SQL text
+    * @param count number of values to reserve
+    * @return the reserved values in ascending order
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+   public int[] reserveSequenceValues (String sequence, int count) throws SQLException {
+      ResultTable res = executeQueryAndReturnResult (
+         "SELECT nextval('" + sequence + "') FROM generate_series(1, ?)", count);
+      int[] values = new int[res.size ()];
+      for (int i = 0; i < values.length; ++i)
+         values[i] = res.getInt (i, 0);
+      Arrays.sort (values);
+      return values;
+   }//end reserveSequenceValues
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
-   }
+   /**
+    * Returns an unused order id from the block allocator.
+    *
+    * @return the next order id
+    * @throws java.sql.SQLException when a new block of ids cannot be reserved
+    */
+   public int nextOrderId () throws SQLException {
+      return this._orderIds.next ();
+   }//end nextOrderId
 
    /**
-    * Method to close the physical connection if it is open.
+    * Places an order for the items in a cart.  The Orders row and all its
+    * ItemStatus rows are written in one transaction, the item rows as one
+    * JDBC batch, and the total is summed from the Menu prices by the
+    * database.  With an order journal the order is journaled instead and
+    * written to the database behind.
+    *
+    * @param login the login of the customer
+    * @param cart the items to order; must not be empty
+    * @return the new order
+    * @throws java.sql.SQLException when the order could not be written; no
+    *         part of it is kept
     */
-   public void cleanup(){
+   public Order placeOrder (String login, Cart cart) throws SQLException {
+      if (this._journal != null) {
+         Order order = this._journal.place (login, cart);
+         this._unpaid.placed (order);
+         this._sketches.placed (order, cart.itemNames ());
+         return order;
+      }//end if
+      if (cart.isEmpty ())
+         throw new SQLException("Cannot place an order without items");
+      int orderid = nextOrderId ();
+      List<String> items = cart.itemNames ();
+
+      // one statement shape per cart size, so the statement cache keeps
+      // each of them prepared.
+      StringBuilder insertOrder = new StringBuilder(
+         "INSERT INTO Orders (orderid, login, paid, total) "
+         + "SELECT ?, ?, false, COALESCE(SUM(price), 0) FROM Menu WHERE itemName IN (");
+      Object[] params = new Object[items.size () + 2];
+      params[0] = orderid;
+      params[1] = login;
+      for (int i = 0; i < items.size (); ++i) {
+         insertOrder.append (i == 0 ? "?" : ", ?");
+         params[i + 2] = items.get (i);
+      }//end for
+      insertOrder.append (") RETURNING total, timeStampRecieved");
+
+      PooledConnection pc = borrowConnection ();
       try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
+         pc.getConnection ().setAutoCommit (false);
+         long start = System.nanoTime ();
+         ResultTable placed = returnResult (pc, insertOrder.toString (), params);
+         executed (insertOrder.toString (), params, false, start, placed.size (), null);
+
+         PreparedStatement stmt = pc.prepare (ITEM_STATUS_INSERT);
+         List<Object[]> rows = new ArrayList<Object[]>(items.size ());
+         try{
+            for (Map.Entry<String, String> item : cart.entries ()) {
+               Object[] row = { orderid, item.getKey (), STATUS_RECEIVED, item.getValue () };
+               bind (stmt, row);
+               stmt.addBatch ();
+               rows.add (row);
+            }//end for
+            start = System.nanoTime ();
+            stmt.executeBatch ();
+            executedBatch (ITEM_STATUS_INSERT, rows, start);
+         }finally{
+            stmt.clearBatch ();
+         }//end try
+
+         pc.getConnection ().commit ();
+         Order order = new Order(orderid, login, false, placed.getTimestamp (0, 1), placed.getDouble (0, 0));
+         this._unpaid.placed (order);
+         this._sketches.placed (order, items);
+         return order;
+      }finally{
+         // rolls back anything left uncommitted.
+         releaseConnection (pc);
+      }//end try
+   }//end placeOrder
+
+   /**
+    * Creates a customer account with no favorite items.
+    *
+    * @param login the new login
+    * @param password the password
+    * @param phone the phone number, or null
+    * @throws java.sql.SQLException when the user could not be created, e.g.
+    *         the login or phone number is taken
+    */
+   public void createUser (String login, String password, String phone) throws SQLException {
+      executeUpdate ("INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES (?,?,?,?,?)",
+         phone, login, password, "", "Customer");
+   }//end createUser
+
+   /**
+    * Sets the status of an ordered item; the ItemStatus trigger tells the
+    * listeners of ItemStatusEvents.
+    *
+    * @param orderid the order
+    * @param itemName the item
+    * @param status the new status, e.g. "Ready"
+    * @return false if the order has no such item
+    * @throws java.sql.SQLException when failed to execute the update
+    */
+   public boolean setItemStatus (int orderid, String itemName, String status) throws SQLException {
+      return executeUpdate ("UPDATE ItemStatus SET status = ?, lastUpdated = now() "
+         + "WHERE orderid = ? AND itemName = ?", status, orderid, itemName) > 0;
+   }//end setItemStatus
+
+   /**
+    * Waits until the orders placed through the journal so far are in the
+    * database, so an order can be read or changed by id right after it was
+    * placed.  Returns at once without a journal.
+    *
+    * @throws java.sql.SQLException if they are not written in time
+    */
+   public void awaitOrders () throws SQLException {
+      if (this._journal != null)
+         this._journal.awaitFlushed (JOURNAL_WAIT_MILLIS);
+   }//end awaitOrders
+
+   /**
+    * Marks an order as paid.  Journaled orders are written to the database
+    * first, so a just placed order can be paid.
+    *
+    * @param orderid the order
+    * @return false if there is no such order
+    * @throws java.sql.SQLException when failed to execute the update
+    */
+   public boolean payOrder (int orderid) throws SQLException {
+      awaitOrders ();
+      ResultTable paid = executeQueryAndReturnResult (PAY_ORDER, orderid);
+      this._unpaid.removed (orderid);
+      if (paid.isEmpty ())
+         return false;
+      if (!paid.getBoolean (0, 2))
+         this._sketches.paid (paid.getString (0, 0), paid.getDouble (0, 1));
+      return true;
+   }//end payOrder
+
+   /**
+    * Deletes an unpaid order and its items in one transaction.  Journaled
+    * orders are written to the database first.
+    *
+    * @param orderid the order
+    * @return false if there is no such unpaid order
+    * @throws java.sql.SQLException when failed to execute the deletes
+    */
+   public boolean deleteOrder (int orderid) throws SQLException {
+      awaitOrders ();
+      long start = System.nanoTime ();
+      int rowCount = -1;
+      SQLException error = null;
+      PooledConnection pc = borrowConnection ();
+      try{
+         pc.getConnection ().setAutoCommit (false);
+         // the items go first, for the foreign key; the order row is locked
+         // so it cannot be paid in between.
+         PreparedStatement items = pc.prepare (DELETE_ORDER_ITEMS);
+         bind (items, orderid, orderid);
+         items.executeUpdate ();
+         PreparedStatement order = pc.prepare (DELETE_ORDER);
+         bind (order, orderid);
+         rowCount = order.executeUpdate ();
+         pc.getConnection ().commit ();
       }catch (SQLException e){
-         // ignored.
+         error = e;
+         throw e;
+      }finally{
+         // rolls back anything left uncommitted.
+         releaseConnection (pc);
+         executed (DELETE_ORDER, new Object[] { orderid }, true, start, rowCount, error);
       }//end try
+      if (rowCount > 0)
+         this._unpaid.removed (orderid);
+      return rowCount > 0;
+   }//end deleteOrder
+
+   /**
+    * Registers a listener that is told about every statement run through
+    * the execute methods and placeOrder, after it ran, on the thread that
+    * ran it.  Listeners must be quick and must not throw.
+    */
+   public void addQueryListener (QueryListener listener) {
+      this._listeners.add (listener);
+   }//end addQueryListener
+
+   public void removeQueryListener (QueryListener listener) {
+      this._listeners.remove (listener);
+   }//end removeQueryListener
+
+   private void executed (String sql, Object[] params, boolean update, long startNanos, int rows, SQLException error) {
+      if (this._listeners.isEmpty ())
+         return;
+      long elapsed = System.nanoTime () - startNanos;
+      for (QueryListener listener : this._listeners)
+         listener.queryExecuted (sql, params, update, startNanos, elapsed, rows, error);
+   }//end executed
+
+   // a batch is reported once per row, each row with an equal share of
+   // the batch time.
+   void executedBatch (String sql, List<Object[]> rows, long startNanos) {
+      if (this._listeners.isEmpty () || rows.isEmpty ())
+         return;
+      long share = (System.nanoTime () - startNanos) / rows.size ();
+      for (int i = 0; i < rows.size (); ++i)
+         for (QueryListener listener : this._listeners)
+            listener.queryExecuted (sql, rows.get (i), true, startNanos + i * share, share, 1, null);
+   }//end executedBatch
+
+   /**
+    * Returns the in-memory copy of the Menu table.  Code that changes the
+    * Menu table must invalidate it.
+    */
+   public MenuCatalog getMenuCatalog () {
+      return this._menu;
+   }//end getMenuCatalog
+
+   /**
+    * Returns the in-memory list of unpaid orders of the last 24 hours.
+    * Code that pays or deletes orders must tell it which.
+    */
+   public UnpaidOrders getUnpaidOrders () {
+      return this._unpaid;
+   }//end getUnpaidOrders
+
+   /**
+    * Returns the listener for item status changes; it starts listening on
+    * the first subscription.
+    */
+   public ItemStatusEvents getItemStatusEvents () {
+      return this._itemEvents;
+   }//end getItemStatusEvents
+
+   /**
+    * Returns the sales reports.
+    */
+   public SalesAnalytics getSalesAnalytics () {
+      return this._analytics;
+   }//end getSalesAnalytics
+
+   /**
+    * Returns the order journal, or null when orders are written directly.
+    */
+   public OrderJournal getOrderJournal () {
+      return this._journal;
+   }//end getOrderJournal
+
+   /**
+    * Returns the approximate figures of the orders placed and paid lately.
+    */
+   public OrderSketches getOrderSketches () {
+      return this._sketches;
+   }//end getOrderSketches
+
+   /**
+    * Feeds the orders placed and paid from now on to other sketches.
+    *
+    * @param sketches the sketches to feed
+    * @return the sketches fed until now
+    */
+   public OrderSketches swapOrderSketches (OrderSketches sketches) {
+      OrderSketches old = this._sketches;
+      this._sketches = sketches;
+      return old;
+   }//end swapOrderSketches
+
+   /**
+    * Returns the per statement shape counts and latencies.
+    */
+   public QueryStats getQueryStats () {
+      return this._queryStats;
+   }//end getQueryStats
+
+   /**
+    * Returns the kitchen's queue of ordered items still to be made.
+    */
+   public KitchenQueue getKitchenQueue () {
+      return this._kitchen;
+   }//end getKitchenQueue
+
+   /**
+    * Opens a connection outside the pool, for work that holds one for a
+    * long time; the caller closes it.
+    */
+   public Connection openConnection () throws SQLException {
+      return this._pool.openUnpooled ();
+   }//end openConnection
+
+   /**
+    * Borrows a connection from the pool for a unit of work that needs to run
+    * several statements on the same session, such as a transaction.  It must
+    * be handed back with releaseConnection.
+    *
+    * @return a pooled connection in autocommit mode
+    * @throws java.sql.SQLException when no connection became free in time
+    */
+   public PooledConnection borrowConnection () throws SQLException {
+      return this._pool.borrow ();
+   }//end borrowConnection
+
+   /**
+    * Returns a borrowed connection to the pool, rolling back any transaction
+    * left open on it.
+    *
+    * @param pc the borrowed connection
+    */
+   public void releaseConnection (PooledConnection pc) {
+      this._pool.release (pc);
+   }//end releaseConnection
+
+   /**
+    * Binds the parameter values to the '?' markers of a prepared statement,
+    * in order.  A null value is bound as a SQL NULL.
+    *
+    * @param stmt the prepared statement
+    * @param params the parameter values
+    * @throws java.sql.SQLException when a value cannot be bound
+    */
+   static void bind (PreparedStatement stmt, Object... params) throws SQLException {
+      for (int i = 0; i < params.length; ++i) {
+         Object value = params[i];
+         int index = i + 1;
+         if (value == null)
+            stmt.setNull (index, Types.VARCHAR);
+         else if (value instanceof String)
+            stmt.setString (index, (String) value);
+         else if (value instanceof Integer)
+            stmt.setInt (index, ((Integer) value).intValue ());
+         else if (value instanceof Long)
+            stmt.setLong (index, ((Long) value).longValue ());
+         else if (value instanceof Double)
+            stmt.setDouble (index, ((Double) value).doubleValue ());
+         else if (value instanceof Float)
+            stmt.setFloat (index, ((Float) value).floatValue ());
+         else if (value instanceof Boolean)
+            stmt.setBoolean (index, ((Boolean) value).booleanValue ());
+         else if (value instanceof Timestamp)
+            stmt.setTimestamp (index, (Timestamp) value);
+         else
+            stmt.setObject (index, value);
+      }//end for
+   }//end bind
+
+   /**
+    * Returns the prepared statement cache counters, summed over every
+    * pooled connection, as a printable line.
+    */
+   public String statementCacheStats () {
+      long[] totals = this._pool.statementCacheTotals ();
+      return String.format ("statement cache: %d hits, %d misses, %d evictions, %d open",
+         totals[0], totals[1], totals[2], totals[3]);
+   }//end statementCacheStats
+
+   /**
+    * Returns the connection pool counters as a printable line.
+    */
+   public String connectionPoolStats () {
+      return this._pool.stats ();
+   }//end connectionPoolStats
+
+   /**
+    * Method to close the pooled physical connections if they are open.
+    */
+   public void cleanup(){
+      if (this._journal != null){
+         this._journal.close (JOURNAL_WAIT_MILLIS);
+      }//end if
+      if (this._itemEvents != null){
+         this._itemEvents.stop ();
+      }//end if
+      if (this._sketches != null){
+         this._sketches.close ();
+      }//end if
+      if (this._queryStats != null){
+         removeQueryListener (this._queryStats);
+         this._queryStats.close (System.getProperty("cafe.queryStats.file", "query-stats.json"));
+      }//end if
+      synchronized (this){
+         if (this._pager != null){
+            try{
+               this._pager.close ();
+            }catch (SQLException e){
+               // ignored.
+            }//end try
+         }//end if
+      }//end synchronized
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -230,16 +956,11 @@ public class Cafe {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
-         System.err.println (
-            "Usage: " +
-            "java [-classpath <classpath>] " +
-            Cafe.class.getName () +
-            " <dbname> <port> <user>");
+      if (args.length < 3) {
+         printUsage ();
          return;
       }//end if
 
-      Greeting();
       Cafe esql = null;
       try{
          // use postgres JDBC driver.
@@ -251,6 +972,21 @@ public class Cafe {
          String user = args[2];
          esql = new Cafe (dbname, dbport, user, "");
 
+         // a command after the connection arguments runs without the menus.
+         if (args.length > 3) {
+            runCommand (esql, Arrays.copyOfRange (args, 0, 3), Arrays.copyOfRange (args, 3, args.length));
+            return;
+         }//end if
+
+         // the staff list of unpaid orders is served from memory; read it
+         // now rather than on the first lookup.
+         try{
+            esql.getUnpaidOrders().reload();
+         }catch (SQLException e){
+            System.err.println("Unpaid orders not loaded: " + e.getMessage());
+         }//end try
+
+         Greeting();
          boolean keepon = true;
          while(keepon) {
             // These are sample SQL statements
@@ -259,32 +995,55 @@ public class Cafe {
             System.out.println("1. Create user");
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
-            String authorisedUser = null;
+            Session session = null;
             switch (readChoice()){
                case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
+               case 2: session = LogIn(esql); break;
                case 9: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
-            if (authorisedUser != null) {
-              boolean usermenu = true;
-              while(usermenu) {
-                System.out.println("MAIN MENU");
-                System.out.println("---------");
-                System.out.println("1. View Food Menu");
-                System.out.println("2. Update Profile");
-                System.out.println("3. Place a Order");
-                System.out.println("4. Update a Order");
-                System.out.println(".........................");
-                System.out.println("9. Log out");
-                switch (readChoice()){
-                   case 1: Menu(esql, authorisedUser); break;
-                   case 2: UpdateProfile(esql); break;
-                   case 3: PlaceOrder(esql, authorisedUser); break;
-                   case 4: UpdateOrder(esql, authorisedUser); break;
-                   case 9: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
-                }
+            if (session != null) {
+              // the user's items (every item, for staff) that changed
+              // status are queued by the listener as they change, and
+              // told before each prompt.
+              final BlockingQueue<ItemStatusEvents.Event> notices =
+                 new LinkedBlockingQueue<ItemStatusEvents.Event>();
+              ItemStatusEvents.Subscriber subscriber = new ItemStatusEvents.Subscriber() {
+                 public void itemStatusChanged(ItemStatusEvents.Event event) {
+                    notices.offer(event);
+                 }
+              };
+              ItemStatusEvents events = esql.getItemStatusEvents();
+              events.subscribe(session, subscriber);
+              try{
+                 boolean usermenu = true;
+                 while(usermenu) {
+                   ItemStatusEvents.Event notice;
+                   while ((notice = notices.poll()) != null)
+                      System.out.println("** " + notice);
+                   System.out.println("MAIN MENU");
+                   System.out.println("---------");
+                   System.out.println("1. View Food Menu");
+                   System.out.println("2. Update Profile");
+                   System.out.println("3. Place a Order");
+                   System.out.println("4. Update a Order");
+                   System.out.println("5. [Manager/Employee] Kitchen queue");
+                   System.out.println("6. [Manager] Sales reports");
+                   System.out.println(".........................");
+                   System.out.println("9. Log out");
+                   switch (readChoice()){
+                      case 1: Menu(esql, session); break;
+                      case 2: UpdateProfile(esql, session); break;
+                      case 3: PlaceOrder(esql, session); break;
+                      case 4: UpdateOrder(esql, session); break;
+                      case 5: Kitchen(esql, session); break;
+                      case 6: SalesReports(esql, session); break;
+                      case 9: usermenu = false; break;
+                      default : System.out.println("Unrecognized choice!"); break;
+                   }
+                 }
+              }finally{
+                 events.unsubscribe(subscriber);
               }
             }
          }//end while
@@ -294,6 +1053,8 @@ public class Cafe {
          // make sure to cleanup the created table and close the connection.
          try{
             if(esql != null) {
+               System.out.println(esql.statementCacheStats ());
+               System.out.println(esql.connectionPoolStats ());
                System.out.print("Disconnecting from database...");
                esql.cleanup ();
                System.out.println("Done\n\nBye !");
@@ -304,6 +1065,230 @@ public class Cafe {
       }//end try
    }//end main
 
+   public static void printUsage(){
+      System.err.println (
+         "Usage: " +
+         "java [-classpath <classpath>] " +
+         Cafe.class.getName () +
+         " <dbname> <port> <user> [command]\n" +
+         "Without a command the interactive menus are started.  Commands:\n" +
+         "  load [dir]    load the ';' delimited files in dir (default data)\n" +
+         "  generate [dir] write users, menu, orders and item statuses at any scale\n" +
+         "                into dir (default generated) for load; set with\n" +
+         "                -Dcafe.gen.* options, e.g. cafe.gen.orders and cafe.gen.seed\n" +
+         "  export [dir] [table ...]\n" +
+         "                write tables to ';' delimited files in dir (default export)\n" +
+         "                that load reads; -Dcafe.export.incremental=true writes only\n" +
+         "                the orders and items newer than the last export, less\n" +
+         "                the last -Dcafe.export.lagSeconds (default 300)\n" +
+         "  bench-indexes [current|minimal|covering|none ...]\n" +
+         "                compare order workload cost across index profiles\n" +
+         "  bench-notify  compare item status notification latency and database\n" +
+         "                load with polling every cafe.bench.pollIntervals ms\n" +
+         "  bench-kitchen claim the kitchen queue from many employees at once;\n" +
+         "                fails if an item is claimed twice\n" +
+         "  bench-history compare keyset and OFFSET order history pages, page 1 to\n" +
+         "                cafe.bench.historyPages (default 10000)\n" +
+         "  bench [name ...]\n" +
+         "                benchmark the data access hot paths, results as JSON\n" +
+         "  loadgen       run concurrent simulated users through the menu flows;\n" +
+         "                set with -Dcafe.loadgen.* options\n" +
+         "  replay <trace> [speed]\n" +
+         "                replay a SQL trace recorded by loadgen\n" +
+         "  serve [port]  serve the ordering flows as an HTTP/JSON API (default 8080)\n" +
+         "  batch [file]  run menu, order and user changes from a command file or\n" +
+         "                standard input, e.g. set-price;Latte;3.50\n" +
+         "  bench-analytics\n" +
+         "                compare the sales reports read from the rollups with scans\n" +
+         "                of Orders and ItemStatus, and time a full rebuild\n" +
+         "  rebuild-analytics\n" +
+         "                recompute the sales rollups from Orders and ItemStatus\n" +
+         "  report <item|type|hour|customers|basket> [hours|count]\n" +
+         "                print a sales report for the last hours (default 24), or\n" +
+         "                the top count customers (default 10)\n" +
+         "  live-stats [minutes]\n" +
+         "                print the approximate order figures of the last minutes\n" +
+         "                (default the whole window, cafe.sketch.windowMinutes);\n" +
+         "                -Dcafe.sketch.file keeps them across restarts, one file\n" +
+         "                per process\n" +
+         "  check-sketches\n" +
+         "                place and pay orders for many customers and check the\n" +
+         "                order sketches against exact SQL counts and percentiles\n" +
+         "  check-unpaid  compare the in-memory unpaid orders with the database\n" +
+         "  check-orderids\n" +
+         "                take order ids on many threads across several Cafe\n" +
+         "                instances at once; fails if an id is handed out twice\n" +
+         "  check-journal kill a process writing journaled orders in the middle of\n" +
+         "                a batch, replay its journal and check every confirmed\n" +
+         "                order is in the database once\n" +
+         "  journal-fill <login> <orders> [items]\n" +
+         "                place orders through the journal (-Dcafe.journal=<dir>)\n");
+   }//end printUsage
+
+   /*
+    * Runs one of the non-interactive commands given after the connection
+    * arguments
+    **/
+   public static void runCommand(Cafe esql, String[] connection, String[] command) throws Exception {
+      String name = command[0];
+      if (name.equals("load")) {
+         File dataDir = new File(command.length > 1 ? command[1] : "data");
+         new DataLoader(esql, dataDir,
+            Integer.getInteger("cafe.load.chunkRows", 50000),
+            Integer.getInteger("cafe.load.rowsPerInsert", 500)).load();
+      }else if (name.equals("generate")) {
+         new DataGenerator(new File(System.getProperty("cafe.gen.dataDir", "data")),
+            new File(command.length > 1 ? command[1] : "generated"),
+            Long.getLong("cafe.gen.orders", 1000000L),
+            Integer.getInteger("cafe.gen.users", 0),
+            Long.getLong("cafe.gen.seed", 166L),
+            Integer.getInteger("cafe.gen.threads", Runtime.getRuntime().availableProcessors()),
+            Integer.getInteger("cafe.gen.days", 365),
+            System.getProperty("cafe.gen.endDate", "2020-01-01"),
+            Integer.getInteger("cafe.gen.maxItems", 4)).generate();
+      }else if (name.equals("export")) {
+         File outDir = new File(command.length > 1 ? command[1] : "export");
+         new DataExporter(esql, outDir,
+            Long.getLong("cafe.export.splitMB", 0L) << 20,
+            Integer.getInteger("cafe.export.parallelism", 4),
+            Integer.getInteger("cafe.export.fetchRows", 10000),
+            !"false".equals(System.getProperty("cafe.export.copy")),
+            Long.getLong("cafe.export.lagSeconds", 300L))
+            .export(Arrays.asList(command).subList(Math.min(2, command.length), command.length),
+                    new File(System.getProperty("cafe.export.watermarks", "export-watermarks.properties")),
+                    Boolean.getBoolean("cafe.export.incremental"));
+      }else if (name.equals("bench-indexes")) {
+         new IndexBenchmark(esql,
+            new File(System.getProperty("cafe.bench.sqlDir", "sql/src")),
+            Integer.getInteger("cafe.bench.orders", 2000),
+            Integer.getInteger("cafe.bench.lookups", 2000))
+            .run(Arrays.asList(command).subList(1, command.length));
+      }else if (name.equals("bench-history")) {
+         new HistoryBenchmark(esql, HISTORY_PAGE_SIZE,
+            Integer.getInteger("cafe.bench.historyPages", 10000),
+            Integer.getInteger("cafe.bench.historyReads", 200)).run();
+      }else if (name.equals("bench")) {
+         new CafeBenchmark(esql,
+            Integer.getInteger("cafe.bench.warmupIterations", 3),
+            Integer.getInteger("cafe.bench.iterations", 5),
+            Long.getLong("cafe.bench.iterationMs", 2000L))
+            .run(Arrays.asList(command).subList(1, command.length),
+                 System.getProperty("cafe.bench.json", "bench-results.json"));
+      }else if (name.equals("loadgen")) {
+         new LoadGenerator(esql,
+            Integer.getInteger("cafe.loadgen.users", 8),
+            Long.getLong("cafe.loadgen.seconds", 30L) * 1000L,
+            Double.parseDouble(System.getProperty("cafe.loadgen.rate", "0")),
+            System.getProperty("cafe.loadgen.mix", LoadGenerator.DEFAULT_MIX),
+            Integer.getInteger("cafe.loadgen.items", 3),
+            Long.getLong("cafe.loadgen.seed", 166L),
+            System.getProperty("cafe.loadgen.trace"))
+            .run(System.getProperty("cafe.loadgen.json", "loadgen-results.json"));
+      }else if (name.equals("replay") && command.length > 1) {
+         SqlTrace.replay(esql, command[1],
+            command.length > 2 ? Double.parseDouble(command[2]) : 1.0);
+      }else if (name.equals("batch")) {
+         boolean stdin = command.length < 2 || command[1].equals("-");
+         BufferedReader script = stdin ? in : new BufferedReader(new FileReader(command[1]));
+         try{
+            new BatchRunner(esql,
+               Integer.getInteger("cafe.batch.size", 500),
+               Boolean.getBoolean("cafe.batch.continueOnError"))
+               .run(script, stdin ? "stdin" : command[1]);
+         }finally{
+            if (!stdin)
+               script.close();
+         }//end try
+      }else if (name.equals("serve")) {
+         final CafeServer server = new CafeServer(esql,
+            command.length > 1 ? Integer.parseInt(command[1]) : Integer.getInteger("cafe.http.port", 8080),
+            Integer.getInteger("cafe.http.backlog", 0),
+            Long.getLong("cafe.http.sessionTimeoutMs", 30 * 60 * 1000L));
+         final Cafe db = esql;
+         // serves until the process is stopped.
+         Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+               server.stop(2);
+               System.out.println(db.statementCacheStats ());
+               System.out.println(db.connectionPoolStats ());
+               db.cleanup();
+            }
+         });
+         server.start();
+         Thread.sleep(Long.MAX_VALUE);
+      }else if (name.equals("bench-notify")) {
+         new NotifyBenchmark(esql, Integer.getInteger("cafe.bench.notifyRounds", 100),
+            NotifyBenchmark.parseIntervals(System.getProperty("cafe.bench.pollIntervals", "10,50,250"))).run();
+      }else if (name.equals("bench-kitchen")) {
+         // also checks that no item is claimed twice.
+         boolean ok = new KitchenBenchmark(esql,
+            Integer.getInteger("cafe.bench.kitchenEmployees", 8),
+            Integer.getInteger("cafe.bench.kitchenOrders", 2000),
+            Integer.getInteger("cafe.bench.kitchenItems", 3),
+            KITCHEN_BATCH_SIZE).run();
+         if (!ok)
+            System.exit(1);
+      }else if (name.equals("check-journal")) {
+         boolean ok = new JournalCheck(esql, connection,
+            Integer.getInteger("cafe.check.journalOrders", 2000),
+            Integer.getInteger("cafe.check.journalBatchSize", 100)).run();
+         if (!ok)
+            System.exit(1);
+      }else if (name.equals("journal-fill") && command.length > 2) {
+         JournalCheck.fill(esql, command[1], Integer.parseInt(command[2]),
+            command.length > 3 ? Integer.parseInt(command[3]) : 3);
+      }else if (name.equals("bench-analytics")) {
+         // also checks the rollups against the scans.
+         boolean ok = new AnalyticsBenchmark(esql, esql.getSalesAnalytics(),
+            Integer.getInteger("cafe.bench.analyticsOrders", 100000),
+            Integer.getInteger("cafe.bench.analyticsReads", 20)).run();
+         if (!ok)
+            System.exit(1);
+      }else if (name.equals("rebuild-analytics")) {
+         long start = System.nanoTime();
+         int rows = esql.getSalesAnalytics().rebuild();
+         System.out.println(String.format("Rebuilt %d rollup rows in %.2f s",
+            rows, (System.nanoTime() - start) / 1e9));
+      }else if (name.equals("report") && command.length > 1
+                && SalesAnalytics.find(command[1]) != null) {
+         SalesAnalytics.Report report = SalesAnalytics.find(command[1]);
+         int arg = command.length > 2 ? Integer.parseInt(command[2])
+            : report == SalesAnalytics.TOP_CUSTOMERS ? 10 : 24;
+         esql.getSalesAnalytics().print(report, arg);
+      }else if (name.equals("live-stats")) {
+         OrderSketches sketches = esql.getOrderSketches();
+         long millis = command.length > 1 ? Long.parseLong(command[1]) * 60 * 1000L : sketches.windowMillis();
+         List<String> itemNames = new ArrayList<String>();
+         for (MenuCatalog.Item item : esql.getMenuCatalog().items())
+            itemNames.add(item.itemName);
+         System.out.println(sketches.toJson(millis, itemNames, 10));
+      }else if (name.equals("check-sketches")) {
+         boolean ok = new SketchCheck(esql,
+            Integer.getInteger("cafe.check.sketchOrders", 5000),
+            Integer.getInteger("cafe.check.sketchCustomers", 2000),
+            Integer.getInteger("cafe.sketch.precision", 12),
+            Double.parseDouble(System.getProperty("cafe.sketch.accuracy", "0.01")),
+            Double.parseDouble(System.getProperty("cafe.sketch.epsilon", "0.002")),
+            Double.parseDouble(System.getProperty("cafe.sketch.delta", "0.01"))).run();
+         if (!ok)
+            System.exit(1);
+      }else if (name.equals("check-orderids")) {
+         boolean ok = new OrderIdCheck(connection,
+            Integer.getInteger("cafe.check.orderIdInstances", 3),
+            Integer.getInteger("cafe.check.orderIdThreads", 8),
+            Integer.getInteger("cafe.check.orderIds", 1000)).run();
+         if (!ok)
+            System.exit(1);
+      }else if (name.equals("check-unpaid")) {
+         // compares the in-memory unpaid orders with the SQL lookup.
+         if (!esql.getUnpaidOrders().verify())
+            System.exit(1);
+      }else {
+         System.err.println("Unknown command: " + name);
+         printUsage();
+      }//end if
+   }//end runCommand
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -343,12 +1328,7 @@ public class Cafe {
          System.out.print("\tEnter user phone: ");
          String phone = in.readLine();
          
-	    String type="Customer";
-	    String favItems="";
-
-				 String query = String.format("INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES ('%s','%s','%s','%s','%s')", phone, login, password, favItems, type);
-
-         esql.executeUpdate(query);
+         esql.createUser(login, password, phone);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -358,20 +1338,16 @@ public class Cafe {
 
    /*
     * Check log in credentials for an existing user
-    * @return User login or null is the user does not exist
+    * @return Session of the user or null is the user does not exist
     **/
-   public static String LogIn(Cafe esql){
+   public static Session LogIn(Cafe esql){
       try{
          System.out.print("\tEnter user login: ");
          String login = in.readLine();
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
-		return login;
-         return null;
+         return Session.open(esql, login, password);
       }catch(Exception e){
          System.err.println (e.getMessage ());
          return null;
@@ -387,11 +1363,13 @@ public class Cafe {
 	while(menuSearch) {
 		System.out.println("1. Item Name to search: ");
 		System.out.println("2. Item Type to search: ");
+		System.out.println("3. Search names, types and descriptions: ");
 		System.out.println("9. Go back.");
 		
 		switch(readChoice()) {
 		case 1: ItemNameSearch(esql); break;
 		case 2: ItemTypeSearch(esql); break;
+		case 3: MenuSearch(esql); break;
 		case 9: menuSearch = false; break;
 		default: System.out.println("Invalid Input"); break;
 		}
@@ -405,8 +1383,11 @@ public class Cafe {
     try {
 	System.out.println("Name of Item: ");
 	String itemname = in.readLine();
-	String nameQuery = String.format("SELECT * FROM Menu WHERE itemName = '%s'", itemname);
-	esql.executeQueryAndPrintResult(nameQuery);
+	MenuCatalog.Item item = esql.getMenuCatalog().find(itemname);
+	List<MenuCatalog.Item> found = new ArrayList<MenuCatalog.Item>();
+	if (item != null)
+		found.add(item);
+	MenuCatalog.print(out, found);
 	}catch(Exception e){
 		System.err.println(e.getMessage ());
 	    }
@@ -416,19 +1397,35 @@ public class Cafe {
     try{
 	System.out.println("Name of Type: ");        
         String itemType = in.readLine();
-        String typeQuery = String.format("SELECT * FROM Menu WHERE type = '%s'", itemType);
-        esql.executeQueryAndPrintResult(typeQuery);
+        MenuCatalog.print(out, esql.getMenuCatalog().ofType(itemType));
         }catch(Exception e){
                 System.err.println(e.getMessage ());
          }
          return; 
 }
 
+  public static void MenuSearch(Cafe esql) {
+    try{
+	System.out.println("Words to search for (typing errors are allowed): ");
+        String words = in.readLine();
+	System.out.println("Only items of type (Enter for all types): ");
+        String itemType = in.readLine();
+        MenuSearch.Result result = esql.getMenuCatalog().search(words,
+           itemType.trim().length() == 0 ? null : itemType, true, PRINT_PAGE_SIZE);
+        List<MenuCatalog.Item> found = new ArrayList<MenuCatalog.Item>();
+        for (MenuSearch.Hit hit : result.hits)
+           found.add(hit.item);
+        MenuCatalog.print(out, found);
+        System.out.println("Matches by type: " + result.facets);
+        }catch(Exception e){
+                System.err.println(e.getMessage ());
+         }
+}
+
  public static void PrintFullMenu(Cafe esql){
      try{
         System.out.print("========\n FULL MENU \n======"); 
-        String query = "SELECT * FROM Menu"; 
-        int status = esql.executeQueryAndPrintResult(query); 
+        int status = MenuCatalog.print(out, esql.getMenuCatalog().items()); 
         System.out.print("\n\n"); 
      } catch(Exception e){
         System.err.println(e.getMessage()); 
@@ -454,37 +1451,38 @@ public static void ChangeItem(Cafe esql) {
 		switch(readChoice()) {
 			case 1: System.out.print("\tType the updated item name.");
 			String itemName2 = in.readLine();
-			String updateNamequery = String.format("UPDATE MENU SET itemName = '%s' WHERE itemName = '%s'", itemName2, name);
-			esql.executeUpdate(updateNamequery);
+			String updateNamequery = "UPDATE MENU SET itemName = ? WHERE itemName = ?";
+			esql.executeUpdate(updateNamequery, itemName2, name);
 			break;
 
 			case 2: System.out.print("\tType the updated item description.");
 			String itemDesc2 = in.readLine();
-			String updateDescquery = String.format("UPDATE MENU SET description = '%s' WHERE itemName = '%s'", itemDesc2, name);
-			esql.executeUpdate(updateDescquery);
+			String updateDescquery = "UPDATE MENU SET description = ? WHERE itemName = ?";
+			esql.executeUpdate(updateDescquery, itemDesc2, name);
 			break;
 
 			case 3: System.out.print("\tType the updated item price.");
                         String itemPrice2 = in.readLine();
-                        String updatePricequery = String.format("UPDATE MENU SET price = '%s' WHERE itemName = '%s'", itemPrice2, name);
-                        esql.executeUpdate(updatePricequery);
+                        String updatePricequery = "UPDATE MENU SET price = ? WHERE itemName = ?";
+                        esql.executeUpdate(updatePricequery, Double.parseDouble(itemPrice2), name);
 			break;
 
 			case 4: System.out.print("\tType the updated item type.");
                         String itemType2 = in.readLine();
-                        String updateTypequery = String.format("UPDATE MENU SET type = '%s' WHERE itemName = '%s'", itemType2, name);
-                        esql.executeUpdate(updateTypequery);
+                        String updateTypequery = "UPDATE MENU SET type = ? WHERE itemName = ?";
+                        esql.executeUpdate(updateTypequery, itemType2, name);
 			break;
 
 			case 5: System.out.print("\tType the updated Image URL of the item.");
                         String itemURL2 = in.readLine();
-                        String updateURLquery = String.format("UPDATE MENU SET imageURL = '%s' WHERE itemName = '%s'", itemURL2, name);
-                        esql.executeUpdate(updateURLquery);
+                        String updateURLquery = "UPDATE MENU SET imageURL = ? WHERE itemName = ?";
+                        esql.executeUpdate(updateURLquery, itemURL2, name);
 			break;
 
 			case 9: changeMenuItem = false; break;
 			default: System.out.println("Invalid input"); break;
 		  }
+		esql.getMenuCatalog().invalidate();
 		}
 	 }catch(Exception e){
        System.err.println (e.getMessage ());
@@ -511,20 +1509,16 @@ public static void ChangeItem(Cafe esql) {
 }
 */
 		
-public static void Menu(Cafe esql, String authorisedUser){
+public static void Menu(Cafe esql, Session session){
     try {
 	PrintFullMenu(esql);
 
-	  String userType = null;
      String name = ""; 
- 	  String query = String.format("SELECT type FROM Users WHERE login='%s'", authorisedUser);
- 	  List<List<String>> result = esql.executeQueryAndReturnResult(query);
- 	  userType = result.get(0).get(0);
 	boolean menu1 = true;
 
 
 	while(menu1) {
-	    if(userType.equals("Customer")) {
+	    if(!session.isManager()) {
 		//System.out.println("Cafe Menu:");
 		System.out.println("1. View Full Menu ");
 		System.out.println("2. Item Search");
@@ -542,7 +1536,7 @@ public static void Menu(Cafe esql, String authorisedUser){
 		 default: System.out.println("Unrecognized choice!"); break;
 		}
 	 }
-		if (userType.equals("Manager")) {
+		else {
 		//	boolean changeMenu = true; //EDIT HERE
 		//	while (changeMenu) {
 				System.out.println("1. View Items");
@@ -566,17 +1560,19 @@ public static void Menu(Cafe esql, String authorisedUser){
 					String itemType = in.readLine();
 					System.out.print("\t Add the image URL of the item.");
 					String itemURL = in.readLine();
-					String itemQuery = String.format("INSERT INTO Menu (itemName, description, price, type, imageURL) VALUES ('%s', '%s', '%s', '%s', '%s')", name, itemDesc, itemPrice, itemType, itemURL);
-					esql.executeUpdate(itemQuery);
+					String itemQuery = "INSERT INTO Menu (itemName, description, price, type, imageURL) VALUES (?, ?, ?, ?, ?)";
+					esql.executeUpdate(itemQuery, name, itemDesc, Double.parseDouble(itemPrice), itemType, itemURL);
+					esql.getMenuCatalog().invalidate();
 					System.out.println("The item has been added.");
 				break;
 				case 5: System.out.print("Type the item name which you want to delete.");
 					name = in.readLine();
-					String deleteQuery = String.format("DELETE FROM Menu WHERE itemName='%s'", name);
-					esql.executeUpdate(deleteQuery);
+					String deleteQuery = "DELETE FROM Menu WHERE itemName=?";
+					esql.executeUpdate(deleteQuery, name);
+					esql.getMenuCatalog().invalidate();
 				break;
 				case 6: ChangeItem(esql); break;
-				case 9: break;
+				case 9: menu1 = false; break;
 				default: System.out.println("Invalid input\n"); break;
 				}
 			}
@@ -592,12 +1588,8 @@ public static void Menu(Cafe esql, String authorisedUser){
 
 
  
-  public static void UpdateProfile(Cafe esql){
+  public static void UpdateProfile(Cafe esql, Session session){
      try{
-	System.out.print("\tEnter user login again: ");
-	String login = in.readLine();
-	System.out.print("\tEnter user password again: ");
-	String password = in.readLine();
 	boolean updateProf = true;
 	
 	while(updateProf) {
@@ -611,34 +1603,34 @@ public static void Menu(Cafe esql, String authorisedUser){
 		switch (readChoice()) {
 		   case 1: System.out.print("\tEnter your new login: ");
                            String newlogin = in.readLine();
-                           String query1 = String.format("UPDATE USERS SET login = '%s' WHERE login = '%s' AND password = '%s'", newlogin, login, password);
-                           esql.executeUpdate(query1);
+                           String query1 = "UPDATE USERS SET login = ? WHERE login = ?";
+                           esql.executeUpdate(query1, newlogin, session.getLogin());
+                           session.renamed(esql, newlogin);
                            System.out.println ("Your login has been updated.");
                            break;
                    case 2: System.out.print("\tEnter your new phone number: ");
                            String newPhoneNum = in.readLine();
-                           String query2 = String.format("UPDATE USERS SET phoneNum = '%s' WHERE login = '%s' AND password = '%s'", newPhoneNum, login, password);
-                           esql.executeUpdate(query2);
+                           String query2 = "UPDATE USERS SET phoneNum = ? WHERE login = ?";
+                           esql.executeUpdate(query2, newPhoneNum, session.getLogin());
+                           session.refresh(esql);
                            System.out.println ("Your phone number has been updated.");
                            break;
                    case 3: System.out.print("\tEnter your new password: ");
                            String newPassword = in.readLine();
-                           String query3 = String.format("UPDATE USERS SET password = '%s' WHERE login = '%s' AND password = '%s'", newPassword, login, password);
-                           esql.executeUpdate(query3);
+                           String query3 = "UPDATE USERS SET password = ? WHERE login = ?";
+                           esql.executeUpdate(query3, newPassword, session.getLogin());
                            System.out.println ("Your password has been updated.");
                            break;
                    case 4: System.out.print("\tEnter your new favorite items: ");
                            String newFavItem = in.readLine();
-                           String query4 = String.format("UPDATE USERS SET favItems = '%s' WHERE login = '%s' AND password = '%s'", newFavItem, login, password);
-                           esql.executeUpdate(query4);
+                           String query4 = "UPDATE USERS SET favItems = ? WHERE login = ?";
+                           esql.executeUpdate(query4, newFavItem, session.getLogin());
+                           session.refresh(esql);
                            System.out.println ("Your favorite items have been updated.");
                            break;
-                   case 5: String type="Manager";
-                           String query5 = String.format("SELECT * FROM USERS WHERE login = '%s' AND password = '%s' AND type = '%s'", login, password, type);
-		           int typeNum = esql.executeQuery(query5);
-		           if (typeNum > 0) {
+                   case 5: if (session.isManager()) {
 				String usertype = "";
-                           	System.out.print("\tEnter your login: ");
+                           	System.out.print("\tEnter the login of the user to update: ");
 			   	String userlogin = in.readLine();
 				System.out.println("Choose the user type to update to.");
                               	System.out.println("1. Manager");
@@ -650,15 +1642,18 @@ public static void Menu(Cafe esql, String authorisedUser){
 					case 3: usertype = "Customer"; break;
 				default : System.out.println("Unrecognized choice!"); break;
 				}
-			String query6 = String.format("UPDATE USERS SET type = '%s' WHERE login = '%s'", usertype, userlogin);
-			esql.executeUpdate(query6);
-			System.out.println("The user type has been updated.");
+			if (usertype.length() > 0) {
+				String query6 = "UPDATE USERS SET type = ? WHERE login = ?";
+				esql.executeUpdate(query6, usertype, userlogin);
+				if (userlogin.equals(session.getLogin()))
+					session.refresh(esql);
+				System.out.println("The user type has been updated.");
+			}
 		}
 			else {
             System.out.println("Not a manager, cannot change user type");
-			   break;
-
          }
+			   break;
 
 		case 9: updateProf = false; break;
                    default : System.out.println("Unrecognized choice!"); break;
@@ -667,59 +1662,17 @@ public static void Menu(Cafe esql, String authorisedUser){
 
 	}catch(Exception e){
          System.err.println (e.getMessage ());
-        // return null;
       }
    }//end
 		
   
-  public static int getNextOrderID(Cafe esql){
-   try {
-      String query = "SELECT MAX(orderid) FROM Orders;"; 
-     List<List<String>> res = esql.executeQueryAndReturnResult(query); 
-     String currId = res.get(0).get(0); 
-     int nextId = Integer.parseInt(currId)+1;
-     
-     return nextId; 
-   }catch(Exception e){
-       System.err.println(e.getMessage () ); 
-   }
-   return 0; //edit 
-
-  }
-
-  public static Double getItemPrice(Cafe esql, String itName){
-      try{ 
-      
-         String query = String.format("SELECT price FROM Menu WHERE itemName='%s'", itName); 
-         List<List<String>> res = esql.executeQueryAndReturnResult(query); 
-         return Double.parseDouble(res.get(0).get(0)); 
-      }catch(Exception e){
-         System.err.println(e.getMessage () ); 
-      }
-    return 0.00; //edit
-
-  }
-
-
-   public static void PlaceOrder(Cafe esql, String authorisedUser){
+   public static void PlaceOrder(Cafe esql, Session session){
        
        try{
           boolean it = true;
-          boolean paid = false;  
-          int orderid = getNextOrderID(esql); 
-          Double price = 0.0; 
-          String stat = "Order recieved";
-          boolean auth = false;  
-
-          String userType = null;
- 	       String query = String.format("SELECT type FROM Users WHERE login='%s'", authorisedUser);
- 	       List<List<String>> result = esql.executeQueryAndReturnResult(query);
- 	       userType = result.get(0).get(0);
-          if (userType=="Employee" || userType=="Manager"){
-              auth = true; 
-          }
+          Cart cart = new Cart(); 
+          boolean auth = session.isStaff();  
 
-          
         do{
             System.out.println("\n========= PLACE ORDER =========\n");
             System.out.println("\n1. Add item\n");      
@@ -735,12 +1688,17 @@ public static void Menu(Cafe esql, String authorisedUser){
               try{ 
                  System.out.print("\nEnter item name: "); 
                 String name = in.readLine(); 
-                price += getItemPrice(esql, name); 
+                MenuCatalog.Item item = esql.getMenuCatalog().find(name); 
+                if (item == null){
+                   System.err.println("\nInvalid item!\n"); 
+                   break; 
+                }
                 System.out.print("\n Enter comments: "); 
                 String comment = in.readLine(); 
-                String query2 = String.format("INSERT INTO ItemStatus (orderid, itemName, status, comments) VALUES ('%d', '%s', %s, '%s')", orderid, name, stat, comment); 
-                esql.executeUpdate(query2); 
-                System.out.println("\n Item added!\n");
+                if (cart.add(item.itemName, comment))
+                   System.out.println("\n Item added!\n");
+                else
+                   System.out.println("\n Item is already in your order!\n");
               }catch(Exception e){
                  System.err.println("\nInvalid item!\n"); 
               }
@@ -749,32 +1707,34 @@ public static void Menu(Cafe esql, String authorisedUser){
                case 2: PrintFullMenu(esql); break; 
 
                case 3: 
-               String ord = String.format("INSERT INTO Orders (orderid, login, paid, total) VALUES ('%d', '%s', '%b', '%f')", orderid, authorisedUser, paid, price);
-               esql.executeQuery(ord); 
-               System.out.println("\nOrder successfully placed! Your order ID is: " + orderid + "\n"); 
+               if (cart.isEmpty()){
+                  System.out.println("\nAdd an item before confirming the order.\n"); 
+                  break; 
+               }
+               Order placed = esql.placeOrder(session.getLogin(), cart); 
+               System.out.println("\nOrder successfully placed! Your order ID is: " + placed.orderid
+                  + String.format(", total $%.2f", placed.total) + "\n"); 
                it=false; 
                break; 
                case 4: 
                try{
-                     String history = String.format("SELECT * FROM ORDERS WHERE login = '%s' ORDER BY timeStampRecieved LIMIT 5", authorisedUser); 
-                     esql.executeQueryAndPrintResult(history); 
-                     break; 
+                     BrowseHistory(esql, session); 
                }catch(Exception e){
                    System.err.println(e.getMessage()); 
                }
+               break; 
                case 5: 
                   try{
                      if (auth==true){
-                        String unpaid = "SELECT * FROM Orders WHERE paid = 'false' AND timeStampRecieved > now() - interval '24 hours'"; 
-                        esql.executeQueryAndPrintResult(unpaid); 
+                        UnpaidOrders.print(out, esql.getUnpaidOrders().orders()); 
                      }
                   }catch(Exception e){
                      System.err.println(e.getMessage()); 
                   }
+               break; 
               
                case 9: 
-               String del  = String.format("DELETE * FROM ItemStatus WHERE orderid='%d'", orderid); 
-               esql.executeUpdate(del); 
+               cart.clear(); 
                it=false; 
                break; 
             }
@@ -787,40 +1747,144 @@ public static void Menu(Cafe esql, String authorisedUser){
             System.err.println(e.getMessage()); 
         }
    }
-   public static void UpdateOrder(Cafe esql, String authorisedUser){
+   /*
+    * Lets an employee claim the oldest ordered items a batch at a time and
+    * mark them ready, set their status and comments, or put them back
+    **/
+   public static void Kitchen(Cafe esql, Session session){
+      if (!session.isStaff()) {
+         System.out.println("\nOnly employees and managers can work the kitchen queue.\n");
+         return;
+      }
+      KitchenQueue queue = esql.getKitchenQueue();
+      try{
+         while (true) {
+            List<KitchenQueue.Item> items = queue.claim(session.getLogin(), KITCHEN_BATCH_SIZE);
+            if (items.isEmpty()) {
+               System.out.println("\nNo items waiting.\n");
+               break;
+            }
+            System.out.println("\norderid\titemname\twaited\tcomments");
+            for (KitchenQueue.Item item : items)
+               System.out.println(item.orderid + "\t" + item.itemName + "\t"
+                  + (item.waitedMicros / 1000000) + " s\t" + item.comments);
+            System.out.print("[r] mark ready  [s] set status  [Enter] put back and leave: ");
+            String answer = in.readLine();
+            answer = answer == null ? "" : answer.trim();
+            if (answer.equalsIgnoreCase("r")) {
+               queue.update(session.getLogin(), items, "Ready", null);
+            }else if (answer.equalsIgnoreCase("s")) {
+               System.out.print("New status: ");
+               String status = in.readLine();
+               System.out.print("New comments (Enter to keep): ");
+               String comments = in.readLine();
+               queue.update(session.getLogin(), items, status,
+                  comments == null || comments.length() == 0 ? null : comments);
+            }else {
+               queue.release(session.getLogin(), items);
+               break;
+            }
+         }
+      }catch(Exception e){
+         System.err.println(e.getMessage());
+      }
+      System.out.println(queue.stats());
+   }//end Kitchen
+
+   public static void SalesReports(Cafe esql, Session session){
+      if (!session.isManager()) {
+         System.out.println("\nOnly managers can read the sales reports.\n");
+         return;
+      }
+      SalesAnalytics analytics = esql.getSalesAnalytics();
+      boolean reports = true;
+      while (reports) {
+         System.out.println("SALES REPORTS");
+         System.out.println("-------------");
+         for (int i = 0; i < SalesAnalytics.REPORTS.length; ++i)
+            System.out.println((i + 1) + ". " + SalesAnalytics.REPORTS[i].title);
+         System.out.println("8. Rebuild the reports from the orders");
+         System.out.println("9. < Back");
+         int choice = readChoice();
+         try{
+            if (choice >= 1 && choice <= SalesAnalytics.REPORTS.length) {
+               SalesAnalytics.Report report = SalesAnalytics.REPORTS[choice - 1];
+               boolean customers = report == SalesAnalytics.TOP_CUSTOMERS;
+               System.out.print(customers ? "How many customers? [10] " : "Over the last how many hours? [24] ");
+               String answer = in.readLine();
+               answer = answer == null ? "" : answer.trim();
+               int arg = answer.length() == 0 ? (customers ? 10 : 24) : Integer.parseInt(answer);
+               analytics.print(report, arg);
+            }else if (choice == 8) {
+               System.out.println("Rebuilt " + analytics.rebuild() + " rollup rows.");
+            }else if (choice == 9) {
+               reports = false;
+            }else {
+               System.out.println("Unrecognized choice!");
+            }
+         }catch(Exception e){
+            System.err.println(e.getMessage());
+         }
+      }
+   }//end SalesReports
+
+   /*
+    * Shows the user's orders a page at a time, newest first, and moves to
+    * older or newer pages on request
+    **/
+   public static void BrowseHistory(Cafe esql, Session session) throws Exception {
+      OrderHistory history = new OrderHistory(esql, HISTORY_PAGE_SIZE);
+      OrderHistory.Page page = history.first(session.getLogin());
+      while (true) {
+         if (page.isEmpty()) {
+            System.out.println("\nNo more orders.\n");
+            return;
+         }
+         OrderHistory.print(out, page);
+         System.out.print((page.hasOlder ? "[o] older  " : "") + (page.hasNewer ? "[n] newer  " : "")
+            + "[Enter] done: ");
+         String answer = in.readLine();
+         answer = answer == null ? "" : answer.trim();
+         if (answer.equalsIgnoreCase("o") && page.hasOlder)
+            page = history.older(session.getLogin(), page.olderCursor());
+         else if (answer.equalsIgnoreCase("n") && page.hasNewer)
+            page = history.newer(session.getLogin(), page.newerCursor());
+         else
+            return;
+      }
+   }//end BrowseHistory
+
+   public static void UpdateOrder(Cafe esql, Session session){
       try{
          boolean it = true; 
-         boolean auth = false; 
-         String payst = null; 
+         boolean auth = session.isStaff(); 
          boolean pay = false; 
-         String userType = null;
- 	      String query = String.format("SELECT type FROM Users WHERE login='%s'", authorisedUser);
- 	      List<List<String>> result = esql.executeQueryAndReturnResult(query);
- 	      userType = result.get(0).get(0);
-          if (userType=="Employee" || userType=="Manager"){
-             auth = true; 
-          }
           System.out.print("\nEnter order id:\n"); 
           String id = in.readLine(); 
-          String payquery = String.format("SELECT paid FROM Orders WHERE orderid='%d'", Integer.parseInt(id)); 
-          List<List<String>> result2 = esql.executeQueryAndReturnResult(query);
- 	        payst = result2.get(0).get(0);
-           if (payst=="true"){
-              pay = true; 
-           } else { pay = false; }
+          // a journaled order is only in Orders once flushed, and is
+          // read, deleted and updated by id below.
+          esql.awaitOrders(); 
+          String payquery = "SELECT paid FROM Orders WHERE orderid=?"; 
+          ResultTable result2 = esql.executeQueryAndReturnResult(payquery, Integer.parseInt(id));
+          if (result2.isEmpty()){
+             System.out.println("There is no order " + id); 
+             return; 
+          }
+           pay = result2.getBoolean(0, 0);
          
          do {
             System.out.print("\n======== UPDATE ORDER =========\n");
             System.out.print("\n1. Delete order\n");
             System.out.print("\n2. View Order\n"); 
             System.out.print("\n3. [Manager/Employee] Pay Order\n"); 
+            System.out.print("\n4. [Manager/Employee] Update item status\n"); 
             System.out.print("\n9. Go back\n");  
             switch(readChoice()){
                case 1: 
                try{
                if (!pay){
-                     String del = String.format("DELETE * FROM Orders WHERE paid=false AND orderid='%d'", Integer.parseInt(id));
-                     esql.executeUpdate(del); 
+                     if (!esql.deleteOrder(Integer.parseInt(id)))
+                        System.out.println("Order " + id + " is paid or gone"); 
                }
                } catch(Exception e){
                    System.err.println(e.getMessage()); 
@@ -828,8 +1892,7 @@ public static void Menu(Cafe esql, String authorisedUser){
                break; 
                case 2: 
                try{
-                  String view = String.format("SELECT * FROM Orders WHERE orderid='%d'", Integer.parseInt(id)); 
-                  esql.executeQueryAndPrintResult(view); 
+                  esql.executeQueryAndPrintResult(ORDER_QUERY, Integer.parseInt(id)); 
                } catch(Exception e){
                    System.err.println(e.getMessage()); 
                }
@@ -837,14 +1900,27 @@ public static void Menu(Cafe esql, String authorisedUser){
                case 3: 
                try{
                   if (auth){
-                     String paid = String.format("UPDATE Orders SET paid=true WHERE orderid='%d'", Integer.parseInt(id)); 
-                     esql.executeUpdate(paid); 
+                     esql.payOrder(Integer.parseInt(id)); 
 
                   }
                }catch(Exception e){
                    System.err.println(e.getMessage()); 
                }
                break; 
+               case 4: 
+               try{
+                  if (auth){
+                     System.out.print("\nItem name: "); 
+                     String itemName = in.readLine(); 
+                     System.out.print("New status (e.g. Ready): "); 
+                     String status = in.readLine(); 
+                     if (!esql.setItemStatus(Integer.parseInt(id), itemName, status))
+                        System.out.println("Order " + id + " has no item " + itemName); 
+                  }
+               }catch(Exception e){
+                   System.err.println(e.getMessage()); 
+               }
+               break; 
                case 9: 
                it=false; 
                break; 
@@ -0,0 +1,350 @@
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * This class benchmarks the data access hot paths of Cafe against a live
+ * database loaded from data/*.csv.
+ *
+ * Each benchmark runs for a number of timed warmup iterations, whose results
+ * are thrown away, and then for a number of timed measurement iterations.
+ * The throughput of every measurement iteration is kept to give a mean and a
+ * 99.9% confidence interval, and every single call is recorded in a latency
+ * histogram.  Results are printed and written as JSON, laid out like JMH's
+ * own JSON output so runs can be compared with the same tools.
+ *
+ * These are not JMH results: the benchmarks run in the calling JVM with no
+ * forks, no blackholes and no isolation from whatever ran before them.  For
+ * JMH results build the jmh profile of pom.xml and run scripts/jmh.sh; the
+ * JMH benchmarks call the same operations through open.
+ *
+ * The order placement benchmark writes orders; they are deleted when the
+ * benchmark ends.  Run it against a test database.
+ *
+ */
+public class CafeBenchmark {
+
+   // the 0.9995 quantile of Student's t for 1 to 30 degrees of freedom.
+   private static final double[] T_9995 = {
+      636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+      4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+      3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646 };
+
+   /**
+    * One benchmarked operation.
+    */
+   static abstract class Bench {
+      final String name;
+
+      Bench(String name) {
+         this.name = name;
+      }
+
+      void setUp () throws Exception {}
+      abstract void call () throws Exception;
+      void tearDown () throws Exception {}
+   }//end Bench
+
+   /**
+    * A writer that drops everything written to it, so printing is measured
+    * without the cost of a terminal.
+    */
+   static final class NullWriter extends Writer {
+      public void write (char[] cbuf, int off, int len) {}
+      public void write (String str, int off, int len) {}
+      public void flush () {}
+      public void close () {}
+   }//end NullWriter
+
+   private final Cafe _esql;
+   private final int _warmupIterations;
+   private final int _iterations;
+   private final long _iterationMillis;
+   private final Random _random = new Random(166);
+
+   // logins, with passwords, and items the benchmarks pick from.
+   private final List<String[]> _users = new ArrayList<String[]>();
+   private final List<String> _items = new ArrayList<String>();
+
+   /**
+    * Creates a new benchmark runner
+    *
+    * @param esql the database
+    * @param warmupIterations untimed iterations before measuring
+    * @param iterations measured iterations
+    * @param iterationMillis length of each iteration
+    */
+   public CafeBenchmark(Cafe esql, int warmupIterations, int iterations, long iterationMillis) {
+      this._esql = esql;
+      this._warmupIterations = warmupIterations;
+      this._iterations = Math.max(1, iterations);
+      this._iterationMillis = iterationMillis;
+   }//end CafeBenchmark
+
+   /**
+    * Returns the benchmarks by name, in the order they are run.
+    */
+   Map<String, Bench> benchmarks () {
+      Map<String, Bench> all = new LinkedHashMap<String, Bench>();
+      add (all, new Bench("returnResult") {
+         void call () throws Exception {
+            _esql.executeQueryAndReturnResult ("SELECT * FROM Orders WHERE login = ?", randomUser ()[0]);
+         }
+      });
+      add (all, new Bench("printResult") {
+         final Writer sink = new NullWriter();
+         void call () throws Exception {
+            _esql.executeQueryAndPrintResult (sink, 0, "SELECT * FROM Orders WHERE login = ?", randomUser ()[0]);
+         }
+      });
+      add (all, new Bench("login") {
+         void call () throws Exception {
+            String[] user = randomUser ();
+            if (Session.open (_esql, user[0], user[1]) == null)
+               throw new IllegalStateException("Log in failed for " + user[0]);
+         }
+      });
+      add (all, new Bench("menuPrice") {
+         void call () throws Exception {
+            _esql.getMenuCatalog ().price (_items.get (_random.nextInt (_items.size ())));
+         }
+      });
+      add (all, new Bench("placeOrder") {
+         final List<Integer> placed = new ArrayList<Integer>();
+         void call () throws Exception {
+            Cart cart = new Cart();
+            while (cart.size () < Math.min(2, _items.size ()))
+               cart.add (_items.get (_random.nextInt (_items.size ())), "");
+            placed.add (_esql.placeOrder (randomUser ()[0], cart).orderid);
+         }
+         void tearDown () throws Exception {
+            for (Integer orderid : placed) {
+               _esql.executeUpdate ("DELETE FROM ItemStatus WHERE orderid=?", orderid);
+               _esql.executeUpdate ("DELETE FROM Orders WHERE orderid=?", orderid);
+               _esql.getUnpaidOrders ().removed (orderid);
+            }//end for
+            placed.clear ();
+         }
+      });
+      add (all, new Bench("orderHistory") {
+         final OrderHistory history = new OrderHistory(_esql, Cafe.HISTORY_PAGE_SIZE);
+         void call () throws Exception {
+            history.first (randomUser ()[0]);
+         }
+      });
+      return all;
+   }//end benchmarks
+
+   /**
+    * One benchmark opened for JMH.  Calling it runs the operation once;
+    * closing it tears the benchmark down and closes its connection.
+    */
+   private static final class Operation implements Callable<Void>, Closeable {
+      private final Cafe _esql;
+      private final Bench _bench;
+
+      Operation(Cafe esql, Bench bench) {
+         this._esql = esql;
+         this._bench = bench;
+      }
+
+      public Void call () throws Exception {
+         this._bench.call ();
+         return null;
+      }
+
+      public void close () {
+         try{
+            this._bench.tearDown ();
+         }catch (Exception e){
+            System.err.println ("Tearing down " + this._bench.name + " failed: " + e.getMessage ());
+         }finally{
+            this._esql.cleanup ();
+         }//end try
+      }
+   }//end Operation
+
+   /**
+    * Opens the named benchmark on a connection of its own and sets it up,
+    * for the JMH benchmarks.  JMH will not run benchmarks in the default
+    * package and a named package cannot use the classes here, so they look
+    * this method up by reflection.  The Callable returned is also Closeable.
+    *
+    * @param dbname the database name
+    * @param dbport the database port
+    * @param user the database user
+    * @param name the benchmark, one of those run by bench
+    * @return the benchmarked operation
+    */
+   public static Callable<Void> open (String dbname, String dbport, String user, String name) throws Exception {
+      Cafe esql = new Cafe(dbname, dbport, user, "");
+      try{
+         CafeBenchmark runner = new CafeBenchmark(esql, 0, 1, 0);
+         runner.loadData ();
+         Bench bench = runner.benchmarks ().get (name);
+         if (bench == null)
+            throw new IllegalArgumentException("Unknown benchmark " + name + ", expected one of "
+               + runner.benchmarks ().keySet ());
+         bench.setUp ();
+         return new Operation(esql, bench);
+      }catch (Exception e){
+         esql.cleanup ();
+         throw e;
+      }//end try
+   }//end open
+
+   // reads the logins and items the benchmarks pick from.
+   private void loadData () throws Exception {
+      for (ResultTable.Row row : this._esql.executeQueryAndReturnResult (
+               "SELECT login, password FROM Users ORDER BY login LIMIT 2000"))
+         this._users.add (new String[] { row.getString (0), row.getString (1) });
+      for (MenuCatalog.Item item : this._esql.getMenuCatalog ().items ())
+         this._items.add (item.itemName);
+      if (this._users.isEmpty () || this._items.isEmpty ())
+         throw new IllegalStateException("Load data/*.csv before benchmarking");
+   }//end loadData
+
+   /**
+    * Runs the named benchmarks, or all of them, prints the results and
+    * writes them as JSON.
+    *
+    * @param names the benchmarks to run; all when empty
+    * @param jsonFile where the JSON results are written
+    */
+   public void run (List<String> names, String jsonFile) throws Exception {
+      loadData ();
+
+      Map<String, Bench> all = benchmarks ();
+      List<Bench> selected = new ArrayList<Bench>();
+      for (String name : names.isEmpty () ? new ArrayList<String>(all.keySet ()) : names) {
+         Bench bench = all.get (name);
+         if (bench == null)
+            throw new IllegalArgumentException("Unknown benchmark " + name + ", expected one of " + all.keySet ());
+         selected.add (bench);
+      }//end for
+
+      StringBuilder json = new StringBuilder("[\n");
+      for (int b = 0; b < selected.size (); ++b) {
+         Bench bench = selected.get (b);
+         json.append (b == 0 ? "" : ",\n").append (measure (bench));
+      }//end for
+      json.append ("\n]\n");
+
+      Writer out = new OutputStreamWriter(new FileOutputStream(jsonFile), "UTF-8");
+      try{
+         out.write (json.toString ());
+      }finally{
+         out.close ();
+      }//end try
+      System.out.println ("Results written to " + jsonFile);
+   }//end run
+
+   private String measure (Bench bench) throws Exception {
+      System.out.println ("# Benchmark: " + bench.name);
+      bench.setUp ();
+      try{
+         for (int i = 0; i < this._warmupIterations; ++i) {
+            double ops = iteration (bench, null);
+            System.out.println (String.format ("# Warmup Iteration %2d: %.3f ops/s", i + 1, ops));
+         }//end for
+         LatencyHistogram latency = new LatencyHistogram();
+         double[] scores = new double[this._iterations];
+         for (int i = 0; i < this._iterations; ++i) {
+            scores[i] = iteration (bench, latency);
+            System.out.println (String.format ("Iteration %2d: %.3f ops/s", i + 1, scores[i]));
+         }//end for
+
+         double mean = 0;
+         for (double score : scores)
+            mean += score;
+         mean /= scores.length;
+         double error = confidence999 (scores, mean);
+         System.out.println (String.format ("Result \"%s\": %.3f +-(99.9%%) %.3f ops/s, latency %s%n",
+            bench.name, mean, error, latency.summary ()));
+
+         StringBuilder raw = new StringBuilder();
+         for (int i = 0; i < scores.length; ++i)
+            raw.append (i == 0 ? "" : ", ").append (String.format ("%.6f", scores[i]));
+         return String.format ("  {\n"
+            + "    \"benchmark\": \"Cafe.%s\",\n"
+            + "    \"mode\": \"thrpt\",\n"
+            + "    \"threads\": 1,\n"
+            + "    \"warmupIterations\": %d,\n"
+            + "    \"measurementIterations\": %d,\n"
+            + "    \"measurementTime\": \"%d ms\",\n"
+            + "    \"primaryMetric\": {\n"
+            + "      \"score\": %.6f,\n"
+            + "      \"scoreError\": %s,\n"
+            + "      \"scoreUnit\": \"ops/s\",\n"
+            + "      \"rawData\": [[%s]]\n"
+            + "    },\n"
+            + "    \"secondaryMetrics\": {\n"
+            + "      \"latency\": %s\n"
+            + "    }\n"
+            + "  }",
+            bench.name, this._warmupIterations, this._iterations, this._iterationMillis,
+            mean, Double.isNaN (error) ? "\"NaN\"" : String.format ("%.6f", error),
+            raw, latency.toJson ());
+      }finally{
+         bench.tearDown ();
+      }//end try
+   }//end measure
+
+   // calls the benchmark until the iteration time is up; returns ops/s.
+   private double iteration (Bench bench, LatencyHistogram latency) throws Exception {
+      long start = System.nanoTime ();
+      long end = start + this._iterationMillis * 1000000L;
+      long ops = 0;
+      long now = start;
+      while (now < end) {
+         bench.call ();
+         long after = System.nanoTime ();
+         if (latency != null)
+            latency.record (after - now);
+         now = after;
+         ++ops;
+      }//end while
+      return ops / ((now - start) / 1e9);
+   }//end iteration
+
+   // half width of the 99.9% confidence interval of the mean, with the
+   // Student's t quantile for n - 1 degrees of freedom, as JMH does.
+   private static double confidence999 (double[] scores, double mean) {
+      if (scores.length < 2)
+         return Double.NaN;
+      double variance = 0;
+      for (double score : scores)
+         variance += (score - mean) * (score - mean);
+      variance /= scores.length - 1;
+      return t9995 (scores.length - 1) * Math.sqrt (variance / scores.length);
+   }//end confidence999
+
+   // past the table, the Cornish-Fisher expansion of t around the normal
+   // quantile, within 0.001 of the exact value from 30 degrees of freedom.
+   private static double t9995 (int df) {
+      if (df <= T_9995.length)
+         return T_9995[df - 1];
+      double z = 3.2905267, v = df;
+      return z + (z*z*z + z) / (4 * v)
+         + (5*Math.pow (z, 5) + 16*z*z*z + 3*z) / (96 * v*v)
+         + (3*Math.pow (z, 7) + 19*Math.pow (z, 5) + 17*z*z*z - 15*z) / (384 * v*v*v)
+         + (79*Math.pow (z, 9) + 776*Math.pow (z, 7) + 1482*Math.pow (z, 5) - 1920*z*z*z - 945*z)
+           / (92160 * v*v*v*v);
+   }//end t9995
+
+   private String[] randomUser () {
+      return this._users.get (this._random.nextInt (this._users.size ()));
+   }
+
+   private static void add (Map<String, Bench> all, Bench bench) {
+      all.put (bench.name, bench);
+   }
+
+}//end CafeBenchmark
@@ -0,0 +1,576 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class serves the ordering flows as an HTTP API with JSON bodies, on
+ * the JDK's built in HTTP server, so one process can serve many clients
+ * through the shared connection pool.  Each request runs on a virtual
+ * thread of its own when the JVM has them (Java 21 and later) and on a
+ * thread from a cached pool otherwise.
+ *
+ *    GET  /menu                     the full menu
+ *    GET  /menu?name=N              the item named N, as ItemNameSearch
+ *    GET  /menu?type=T              the items of type T, as ItemTypeSearch
+ *    GET  /menu?q=W[&type=T][&fuzzy=false][&limit=N]
+ *                                   items whose words start with the words W,
+ *                                   best first, with match counts per type
+ *    POST /login                    {"login": .., "password": ..}, returns a token
+ *    POST /logout
+ *    GET  /orders[?older=C|?newer=C][&limit=N]
+ *                                   a page of the order history, newest first,
+ *                                   with the cursors of the pages around it
+ *    POST /orders                   {"items": [{"name": .., "comments": ..}, ..]}
+ *    GET  /orders/unpaid            unpaid orders of the last 24 hours, oldest
+ *                                   first; employees and managers only
+ *    GET  /orders/{id}              an order and the status of its items
+ *    POST /orders/{id}/pay          pays an order; employees and managers only
+ *    GET  /stats/live[?minutes=N]   approximate counts, distinct customers,
+ *                                   total percentiles and top items of the
+ *                                   orders of the last N minutes; employees
+ *                                   and managers only
+ *    GET  /events                   a stream of server-sent events, one per
+ *                                   change of status of the user's ordered
+ *                                   items (every item, for staff)
+ *
+ * All but /menu and /login need the token from /login in an
+ * "Authorization: Bearer <token>" header.  A limit above 100 is taken as
+ * 100.  Errors come back as {"error": message} with a 4xx or 5xx status.
+ *
+ */
+public class CafeServer {
+
+   private static final int MAX_BODY_BYTES = 64 * 1024;
+
+   // events held for a slow event stream before newer ones are dropped,
+   // and how often an idle stream is written to, to notice closed ones.
+   private static final int MAX_QUEUED_EVENTS = 1000;
+   private static final long KEEP_ALIVE_MILLIS = 15000;
+
+   // the most menu items or orders one request may ask for.
+   private static final int MAX_LIMIT = 100;
+
+   /**
+    * A failed request, with the HTTP status to answer it with.
+    */
+   private static final class HttpError extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      final int status;
+
+      HttpError(int status, String message) {
+         super(message);
+         this.status = status;
+      }
+   }//end HttpError
+
+   /**
+    * A logged in client.
+    */
+   private static final class Client {
+      final Session session;
+      volatile long lastUsed = System.currentTimeMillis ();
+
+      Client(Session session) {
+         this.session = session;
+      }
+   }//end Client
+
+   private final Cafe _esql;
+   private final HttpServer _server;
+   private final ExecutorService _executor;
+   private final long _sessionTimeoutMillis;
+   private final Map<String, Client> _clients = new ConcurrentHashMap<String, Client>();
+   private final SecureRandom _random = new SecureRandom();
+   private volatile boolean _stopping = false;
+
+   /**
+    * Creates a server bound to a port; it is not started yet.
+    *
+    * @param esql the database
+    * @param port the TCP port
+    * @param backlog queued connections the socket accepts; 0 for the
+    *        system default
+    * @param sessionTimeoutMillis how long an unused token stays valid
+    */
+   public CafeServer(Cafe esql, int port, int backlog, long sessionTimeoutMillis) throws IOException {
+      this._esql = esql;
+      this._sessionTimeoutMillis = sessionTimeoutMillis;
+      this._executor = requestExecutor ();
+      this._server = HttpServer.create (new InetSocketAddress(port), backlog);
+      this._server.setExecutor (this._executor);
+      this._server.createContext ("/", new HttpHandler() {
+         public void handle (HttpExchange exchange) throws IOException {
+            CafeServer.this.handle (exchange);
+         }
+      });
+   }//end CafeServer
+
+   /**
+    * Returns an executor with one virtual thread per task where the JVM
+    * has them, and a cached thread pool otherwise.
+    */
+   static ExecutorService requestExecutor () {
+      try{
+         Method factory = Executors.class.getMethod ("newVirtualThreadPerTaskExecutor");
+         return (ExecutorService) factory.invoke (null);
+      }catch (Exception e){
+         // no virtual threads before Java 21.
+         return Executors.newCachedThreadPool ();
+      }//end try
+   }//end requestExecutor
+
+   public void start () {
+      this._server.start ();
+      System.out.println ("Serving on port " + this._server.getAddress ().getPort ());
+   }//end start
+
+   /**
+    * Stops accepting requests and waits up to delaySeconds for the ones in
+    * progress.
+    */
+   public void stop (int delaySeconds) {
+      this._stopping = true;
+      this._server.stop (delaySeconds);
+      this._executor.shutdown ();
+      try{
+         // event streams only end when interrupted.
+         if (!this._executor.awaitTermination (delaySeconds, TimeUnit.SECONDS))
+            this._executor.shutdownNow ();
+      }catch (InterruptedException e){
+         Thread.currentThread ().interrupt ();
+      }//end try
+   }//end stop
+
+   private void handle (HttpExchange exchange) throws IOException {
+      if (exchange.getRequestURI ().getPath ().equals ("/events")) {
+         events (exchange);
+         return;
+      }//end if
+      try{
+         String body = route (exchange);
+         send (exchange, 200, body);
+      }catch (HttpError e){
+         send (exchange, e.status, error (e.getMessage ()));
+      }catch (IllegalArgumentException e){
+         send (exchange, 400, error (e.getMessage ()));
+      }catch (SQLException e){
+         send (exchange, 500, error (e.getMessage ()));
+      }catch (Exception e){
+         send (exchange, 500, error (e.toString ()));
+      }finally{
+         exchange.close ();
+      }//end try
+   }//end handle
+
+   private String route (HttpExchange exchange) throws Exception {
+      String method = exchange.getRequestMethod ();
+      String path = exchange.getRequestURI ().getPath ();
+      if (path.length () > 1 && path.endsWith ("/"))
+         path = path.substring (0, path.length () - 1);
+      String[] parts = path.substring (1).split ("/");
+
+      if (parts[0].equals ("menu") && parts.length == 1) {
+         requireMethod (method, "GET");
+         return menu (query (exchange));
+      }else if (parts[0].equals ("login") && parts.length == 1) {
+         requireMethod (method, "POST");
+         return login (body (exchange));
+      }else if (parts[0].equals ("logout") && parts.length == 1) {
+         requireMethod (method, "POST");
+         String token = token (exchange);
+         if (token != null)
+            this._clients.remove (token);
+         return "{}";
+      }else if (parts[0].equals ("orders")) {
+         Session session = session (exchange);
+         if (parts.length == 1) {
+            if (method.equals ("GET"))
+               return history (session, query (exchange));
+            requireMethod (method, "POST");
+            return placeOrder (session, body (exchange));
+         }//end if
+         if (parts.length == 2 && parts[1].equals ("unpaid")) {
+            requireMethod (method, "GET");
+            return unpaid (session);
+         }//end if
+         int orderid = orderId (parts[1]);
+         if (parts.length == 2) {
+            requireMethod (method, "GET");
+            return order (session, orderid);
+         }else if (parts.length == 3 && parts[2].equals ("pay")) {
+            requireMethod (method, "POST");
+            return pay (session, orderid);
+         }//end if
+      }else if (parts[0].equals ("stats") && parts.length == 2 && parts[1].equals ("live")) {
+         requireMethod (method, "GET");
+         return liveStats (session (exchange), query (exchange));
+      }//end if
+      throw new HttpError(404, "No such resource " + path);
+   }//end route
+
+   // streams item status changes until the client goes away or the server
+   // stops.
+   private void events (HttpExchange exchange) throws IOException {
+      final BlockingQueue<ItemStatusEvents.Event> queue =
+         new LinkedBlockingQueue<ItemStatusEvents.Event>(MAX_QUEUED_EVENTS);
+      ItemStatusEvents.Subscriber subscriber = new ItemStatusEvents.Subscriber() {
+         public void itemStatusChanged (ItemStatusEvents.Event event) {
+            queue.offer (event);
+         }
+      };
+      ItemStatusEvents events = this._esql.getItemStatusEvents ();
+      try{
+         Session session;
+         try{
+            requireMethod (exchange.getRequestMethod (), "GET");
+            session = session (exchange);
+         }catch (HttpError e){
+            send (exchange, e.status, error (e.getMessage ()));
+            return;
+         }//end try
+         exchange.getResponseHeaders ().set ("Content-Type", "text/event-stream; charset=utf-8");
+         exchange.getResponseHeaders ().set ("Cache-Control", "no-cache");
+         exchange.sendResponseHeaders (200, 0);
+         events.subscribe (session, subscriber);
+         OutputStream out = exchange.getResponseBody ();
+         StringBuilder text = new StringBuilder(256);
+         while (!this._stopping) {
+            ItemStatusEvents.Event event = queue.poll (KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+            text.setLength (0);
+            if (event == null) {
+               text.append (": keep-alive\n\n");
+            }else {
+               text.append ("event: item-status\ndata: {\"orderid\":").append (event.orderid);
+               Json.quote (text.append (",\"login\":"), event.login);
+               Json.quote (text.append (",\"itemName\":"), event.itemName);
+               Json.quote (text.append (",\"status\":"), event.status);
+               Json.quote (text.append (",\"lastUpdated\":"), event.lastUpdated).append ("}\n\n");
+            }//end if
+            out.write (text.toString ().getBytes ("UTF-8"));
+            out.flush ();
+         }//end while
+      }catch (InterruptedException e){
+         Thread.currentThread ().interrupt ();
+      }catch (IOException e){
+         // the client went away.
+      }finally{
+         events.unsubscribe (subscriber);
+         exchange.close ();
+      }//end try
+   }//end events
+
+   private String menu (Map<String, String> query) throws SQLException, HttpError {
+      MenuCatalog catalog = this._esql.getMenuCatalog ();
+      List<MenuCatalog.Item> items;
+      MenuSearch.Result found = null;
+      if (query.containsKey ("q")) {
+         found = catalog.search (query.get ("q"), query.get ("type"),
+            !"false".equals (query.get ("fuzzy")),
+            limit (query, 25));
+         items = new ArrayList<MenuCatalog.Item>();
+         for (MenuSearch.Hit hit : found.hits)
+            items.add (hit.item);
+      }else if (query.containsKey ("name")) {
+         MenuCatalog.Item item = catalog.find (query.get ("name"));
+         items = item == null ? Collections.<MenuCatalog.Item>emptyList ()
+                              : Collections.singletonList (item);
+      }else if (query.containsKey ("type")) {
+         items = catalog.ofType (query.get ("type"));
+      }else {
+         items = catalog.items ();
+      }//end if
+      StringBuilder json = new StringBuilder("{\"items\":[");
+      for (int i = 0; i < items.size (); ++i) {
+         MenuCatalog.Item item = items.get (i);
+         json.append (i == 0 ? "{" : ",{");
+         Json.quote (json.append ("\"itemName\":"), item.itemName);
+         Json.quote (json.append (",\"type\":"), item.type);
+         json.append (",\"price\":").append (item.price);
+         Json.quote (json.append (",\"description\":"), item.description);
+         Json.quote (json.append (",\"imageURL\":"), item.imageURL);
+         json.append ('}');
+      }//end for
+      json.append (']');
+      if (found != null) {
+         json.append (",\"facets\":{");
+         boolean first = true;
+         for (Map.Entry<String, Integer> facet : found.facets.entrySet ()) {
+            Json.quote (json.append (first ? "" : ","), facet.getKey ()).append (':').append (facet.getValue ());
+            first = false;
+         }//end for
+         json.append ('}');
+      }//end if
+      return json.append ('}').toString ();
+   }//end menu
+
+   private String login (Map<String, Object> body) throws SQLException, HttpError {
+      Session session = Session.open (this._esql, text (body, "login"), text (body, "password"));
+      if (session == null)
+         throw new HttpError(401, "Wrong login or password");
+      expireClients ();
+      String token = new BigInteger(130, this._random).toString (32);
+      this._clients.put (token, new Client(session));
+      StringBuilder json = new StringBuilder("{\"token\":");
+      Json.quote (json, token);
+      Json.quote (json.append (",\"login\":"), session.getLogin ());
+      Json.quote (json.append (",\"type\":"), session.getType ());
+      return json.append ('}').toString ();
+   }//end login
+
+   private String history (Session session, Map<String, String> query) throws SQLException, HttpError {
+      OrderHistory history = new OrderHistory(this._esql, limit (query, Cafe.HISTORY_PAGE_SIZE));
+      OrderHistory.Page page;
+      if (query.containsKey ("older"))
+         page = history.older (session.getLogin (), query.get ("older"));
+      else if (query.containsKey ("newer"))
+         page = history.newer (session.getLogin (), query.get ("newer"));
+      else
+         page = history.first (session.getLogin ());
+
+      StringBuilder json = new StringBuilder("{\"orders\":[");
+      for (int i = 0; i < page.orders.size (); ++i) {
+         OrderHistory.Entry order = page.orders.get (i);
+         json.append (i == 0 ? "{" : ",{").append ("\"orderid\":").append (order.orderid)
+             .append (",\"paid\":").append (order.paid)
+             .append (",\"total\":").append (order.total);
+         Json.quote (json.append (",\"timeStampRecieved\":"), order.timeStampRecieved).append (",\"items\":[");
+         for (int j = 0; j < order.items.size (); ++j) {
+            String[] item = order.items.get (j);
+            Json.quote (json.append (j == 0 ? "{" : ",{").append ("\"itemName\":"), item[0]);
+            Json.quote (json.append (",\"status\":"), item[1]);
+            Json.quote (json.append (",\"comments\":"), item[2]);
+            Json.quote (json.append (",\"lastUpdated\":"), item[3]).append ('}');
+         }//end for
+         json.append ("]}");
+      }//end for
+      json.append (']');
+      Json.quote (json.append (",\"older\":"), page.hasOlder ? page.olderCursor () : null);
+      Json.quote (json.append (",\"newer\":"), page.hasNewer ? page.newerCursor () : null);
+      return json.append ('}').toString ();
+   }//end history
+
+   private String placeOrder (Session session, Map<String, Object> body) throws SQLException, HttpError {
+      Object items = body.get ("items");
+      if (!(items instanceof List) || ((List<?>) items).isEmpty ())
+         throw new HttpError(400, "An order needs a non-empty \"items\" list");
+      MenuCatalog catalog = this._esql.getMenuCatalog ();
+      Cart cart = new Cart();
+      for (Object entry : (List<?>) items) {
+         String name;
+         String comments = "";
+         if (entry instanceof String) {
+            name = (String) entry;
+         }else if (entry instanceof Map) {
+            Map<?, ?> item = (Map<?, ?>) entry;
+            if (!(item.get ("name") instanceof String))
+               throw new HttpError(400, "Every item needs a \"name\"");
+            name = (String) item.get ("name");
+            if (item.get ("comments") instanceof String)
+               comments = (String) item.get ("comments");
+         }else {
+            throw new HttpError(400, "Items are names or {\"name\": .., \"comments\": ..} objects");
+         }//end if
+         MenuCatalog.Item item = catalog.find (name);
+         if (item == null)
+            throw new HttpError(400, "No item named " + name);
+         if (!cart.add (item.itemName, comments))
+            throw new HttpError(400, item.itemName + " is in the order twice");
+      }//end for
+
+      Order placed = this._esql.placeOrder (session.getLogin (), cart);
+      return String.format ("{\"orderid\":%d,\"total\":%s,\"timeStampRecieved\":%s}",
+         placed.orderid, placed.total,
+         Json.quote (new StringBuilder(), new Timestamp(placed.timeStampRecieved).toString ()));
+   }//end placeOrder
+
+   private String order (Session session, int orderid) throws SQLException, HttpError {
+      // an order just placed through the journal is in Orders once flushed.
+      this._esql.awaitOrders ();
+      ResultTable order = this._esql.executeQueryAndReturnResult (Cafe.ORDER_QUERY, orderid);
+      checkAccess (session, order, orderid);
+      ResultTable items = this._esql.executeQueryAndReturnResult (Cafe.ORDER_ITEMS_QUERY, orderid);
+      StringBuilder json = new StringBuilder("{\"order\":");
+      Json.row (json, order, 0).append (",\"items\":");
+      return Json.rows (json, items).append ('}').toString ();
+   }//end order
+
+   private String unpaid (Session session) throws SQLException, HttpError {
+      if (!session.isStaff ())
+         throw new HttpError(403, "Only employees and managers can list unpaid orders");
+      List<Order> orders = this._esql.getUnpaidOrders ().orders ();
+      StringBuilder json = new StringBuilder("{\"orders\":[");
+      for (int i = 0; i < orders.size (); ++i) {
+         Order order = orders.get (i);
+         json.append (i == 0 ? "{" : ",{").append ("\"orderid\":").append (order.orderid);
+         Json.quote (json.append (",\"login\":"), order.login)
+             .append (",\"total\":").append (order.total);
+         Json.quote (json.append (",\"timeStampRecieved\":"),
+            new Timestamp(order.timeStampRecieved).toString ()).append ('}');
+      }//end for
+      return json.append ("]}").toString ();
+   }//end unpaid
+
+   private String liveStats (Session session, Map<String, String> query) throws SQLException, HttpError {
+      if (!session.isStaff ())
+         throw new HttpError(403, "Only employees and managers can see the live figures");
+      OrderSketches sketches = this._esql.getOrderSketches ();
+      long millis = query.containsKey ("minutes")
+         ? Long.parseLong (query.get ("minutes")) * 60 * 1000L : sketches.windowMillis ();
+      List<String> itemNames = new ArrayList<String>();
+      for (MenuCatalog.Item item : this._esql.getMenuCatalog ().items ())
+         itemNames.add (item.itemName);
+      return sketches.toJson (millis, itemNames, 10);
+   }//end liveStats
+
+   private String pay (Session session, int orderid) throws SQLException, HttpError {
+      if (!session.isStaff ())
+         throw new HttpError(403, "Only employees and managers can pay orders");
+      if (!this._esql.payOrder (orderid))
+         throw new HttpError(404, "No order " + orderid);
+      return "{\"orderid\":" + orderid + ",\"paid\":true}";
+   }//end pay
+
+   // customers may only see their own orders.
+   private static void checkAccess (Session session, ResultTable order, int orderid) throws HttpError {
+      if (order.isEmpty ())
+         throw new HttpError(404, "No order " + orderid);
+      int login = -1;
+      for (int col = 0; col < order.getColumnCount (); ++col)
+         if (order.getColumnName (col).equalsIgnoreCase ("login"))
+            login = col;
+      if (!session.isStaff () && !session.getLogin ().equals (order.getString (0, login)))
+         throw new HttpError(404, "No order " + orderid);
+   }//end checkAccess
+
+   private Session session (HttpExchange exchange) throws HttpError {
+      String token = token (exchange);
+      Client client = token == null ? null : this._clients.get (token);
+      long now = System.currentTimeMillis ();
+      if (client == null || now - client.lastUsed > this._sessionTimeoutMillis) {
+         if (client != null)
+            this._clients.remove (token);
+         throw new HttpError(401, "Log in first and pass the token as \"Authorization: Bearer <token>\"");
+      }//end if
+      client.lastUsed = now;
+      return client.session;
+   }//end session
+
+   private void expireClients () {
+      long now = System.currentTimeMillis ();
+      for (Iterator<Client> it = this._clients.values ().iterator (); it.hasNext ();)
+         if (now - it.next ().lastUsed > this._sessionTimeoutMillis)
+            it.remove ();
+   }//end expireClients
+
+   private static String token (HttpExchange exchange) {
+      String header = exchange.getRequestHeaders ().getFirst ("Authorization");
+      if (header == null || !header.regionMatches (true, 0, "Bearer ", 0, 7))
+         return null;
+      return header.substring (7).trim ();
+   }//end token
+
+   private static void requireMethod (String method, String expected) throws HttpError {
+      if (!method.equals (expected))
+         throw new HttpError(405, "Use " + expected);
+   }//end requireMethod
+
+   private static int orderId (String text) throws HttpError {
+      try{
+         return Integer.parseInt (text);
+      }catch (NumberFormatException e){
+         throw new HttpError(404, "No order " + text);
+      }//end try
+   }//end orderId
+
+   // the limit parameter, between 1 and MAX_LIMIT.
+   private static int limit (Map<String, String> query, int otherwise) throws HttpError {
+      if (!query.containsKey ("limit"))
+         return otherwise;
+      try{
+         return Math.max(1, Math.min(MAX_LIMIT, Integer.parseInt (query.get ("limit"))));
+      }catch (NumberFormatException e){
+         throw new HttpError(400, "limit must be a number");
+      }//end try
+   }//end limit
+
+   private static String text (Map<String, Object> body, String key) throws HttpError {
+      Object value = body.get (key);
+      if (!(value instanceof String))
+         throw new HttpError(400, "Missing \"" + key + "\"");
+      return (String) value;
+   }//end text
+
+   @SuppressWarnings("unchecked")
+   private static Map<String, Object> body (HttpExchange exchange) throws IOException, HttpError {
+      InputStream in = exchange.getRequestBody ();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = in.read (buffer)) > 0) {
+         bytes.write (buffer, 0, n);
+         if (bytes.size () > MAX_BODY_BYTES)
+            throw new HttpError(413, "Request body over " + MAX_BODY_BYTES + " bytes");
+      }//end while
+      Object value = Json.parse (bytes.toString ("UTF-8"));
+      if (!(value instanceof Map))
+         throw new HttpError(400, "The request body must be a JSON object");
+      return (Map<String, Object>) value;
+   }//end body
+
+   private static Map<String, String> query (HttpExchange exchange) throws UnsupportedEncodingException {
+      Map<String, String> params = new HashMap<String, String>();
+      String query = exchange.getRequestURI ().getRawQuery ();
+      if (query == null)
+         return params;
+      for (String pair : query.split ("&")) {
+         int eq = pair.indexOf ('=');
+         if (eq > 0)
+            params.put (URLDecoder.decode (pair.substring (0, eq), "UTF-8"),
+                        URLDecoder.decode (pair.substring (eq + 1), "UTF-8"));
+      }//end for
+      return params;
+   }//end query
+
+   private static String error (String message) {
+      return Json.quote (new StringBuilder("{\"error\":"), message).append ('}').toString ();
+   }
+
+   private static void send (HttpExchange exchange, int status, String json) throws IOException {
+      byte[] body = json.getBytes ("UTF-8");
+      exchange.getResponseHeaders ().set ("Content-Type", "application/json; charset=utf-8");
+      exchange.sendResponseHeaders (status, body.length);
+      OutputStream out = exchange.getResponseBody ();
+      try{
+         out.write (body);
+      }finally{
+         out.close ();
+      }//end try
+   }//end send
+
+}//end CafeServer
@@ -0,0 +1,66 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class collects the items of an order, with their comments, while the
+ * user builds it.  Nothing is written to the database until the order is
+ * confirmed with Cafe.placeOrder, so cancelling an order costs nothing.
+ *
+ * An order holds each menu item at most once, as ItemStatus is keyed by
+ * order and item name.
+ *
+ */
+public class Cart {
+
+   // item name to comment, in the order the items were added.
+   private final LinkedHashMap<String, String> _items = new LinkedHashMap<String, String>();
+
+   /**
+    * Adds an item to the cart.
+    *
+    * @param itemName the menu item name
+    * @param comments the comments for the kitchen, may be empty
+    * @return false if the item is already in the cart
+    */
+   public boolean add (String itemName, String comments) {
+      if (this._items.containsKey (itemName))
+         return false;
+      this._items.put (itemName, comments == null ? "" : comments);
+      return true;
+   }//end add
+
+   public boolean remove (String itemName) {
+      return this._items.remove (itemName) != null;
+   }
+
+   public void clear () {
+      this._items.clear ();
+   }
+
+   public boolean isEmpty () {
+      return this._items.isEmpty ();
+   }
+
+   public int size () {
+      return this._items.size ();
+   }
+
+   /**
+    * Returns the item names in the order they were added.
+    */
+   public List<String> itemNames () {
+      return Collections.unmodifiableList (new ArrayList<String>(this._items.keySet ()));
+   }
+
+   public String comments (String itemName) {
+      return this._items.get (itemName);
+   }
+
+   Iterable<Map.Entry<String, String>> entries () {
+      return Collections.unmodifiableMap (this._items).entrySet ();
+   }
+
+}//end Cart
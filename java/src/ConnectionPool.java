@@ -0,0 +1,406 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class keeps a bounded pool of physical connections to one database so
+ * that many concurrent sessions can share a few backend connections.
+ *
+ * The pool opens minSize connections up front and grows on demand up to
+ * maxSize.  Borrowers wait at most borrowTimeout for a free connection.  A
+ * connection that sat idle for longer than validateAfter is checked with a
+ * trivial query before it is handed out; a connection used more recently
+ * is trusted, and one that cannot be reset when it is released is closed
+ * instead.  A background timer closes connections that stayed idle for
+ * longer than idleTimeout while the pool is above minSize.
+ *
+ */
+public class ConnectionPool {
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+
+   private final int _minSize;
+   private final int _maxSize;
+   private final long _idleTimeoutMillis;
+   private final long _borrowTimeoutMillis;
+   private final long _validateAfterMillis;
+   private final int _statementCacheSize;
+
+   // idle connections; the most recently released one is reused first so
+   // that its statement cache stays warm.
+   private final ArrayDeque<PooledConnection> _idle = new ArrayDeque<PooledConnection>();
+   private final ReentrantLock _lock = new ReentrantLock();
+   private final Condition _available = _lock.newCondition();
+
+   // number of open connections, idle or borrowed, plus ones being opened.
+   private int _open = 0;
+   private boolean _closed = false;
+
+   private final Timer _evictor;
+
+   // pool metrics, guarded by _lock.
+   private long _borrows = 0;
+   private long _created = 0;
+   private long _destroyed = 0;
+   private long _validationFailures = 0;
+   private long _timeouts = 0;
+   private long _waits = 0;
+   private long _waitNanos = 0;
+   private long _maxWaitNanos = 0;
+
+   // statement cache hits, misses, evictions and open statements of every
+   // connection, added up as each is released or closed; guarded by _lock.
+   private final long[] _statements = new long[4];
+
+   /**
+    * Creates a new pool and opens its minimum number of connections
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minSize the number of connections kept open when idle
+    * @param maxSize the maximum number of open connections
+    * @param idleTimeoutMillis how long a connection above minSize may stay idle
+    * @param borrowTimeoutMillis how long borrow waits for a free connection
+    * @param validateAfterMillis idle time after which a connection is validated on borrow
+    * @param statementCacheSize the prepared statement cache size per connection
+    * @throws java.sql.SQLException when the initial connections cannot be opened
+    */
+   public ConnectionPool(String url, String user, String passwd,
+                         int minSize, int maxSize, long idleTimeoutMillis,
+                         long borrowTimeoutMillis, long validateAfterMillis,
+                         int statementCacheSize) throws SQLException {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._maxSize = Math.max(1, maxSize);
+      this._minSize = Math.max(0, Math.min(minSize, this._maxSize));
+      this._idleTimeoutMillis = idleTimeoutMillis;
+      this._borrowTimeoutMillis = borrowTimeoutMillis;
+      this._validateAfterMillis = validateAfterMillis;
+      this._statementCacheSize = statementCacheSize;
+
+      for (int i = 0; i < this._minSize; ++i) {
+         this._idle.push (open ());
+         ++this._open;
+      }//end for
+
+      this._evictor = new Timer("cafe-pool-evictor", true);
+      long period = Math.max(1000L, idleTimeoutMillis / 2);
+      this._evictor.schedule (new TimerTask() {
+         public void run () {
+            evictIdle ();
+         }
+      }, period, period);
+   }//end ConnectionPool
+
+   /**
+    * Borrows a connection, waiting up to the borrow timeout for one to become
+    * free.  The connection is in autocommit mode and must be handed back with
+    * release.
+    *
+    * @return a validated connection
+    * @throws java.sql.SQLException when no connection became free in time or
+    *         a new connection cannot be opened
+    */
+   public PooledConnection borrow () throws SQLException {
+      long start = System.nanoTime ();
+      long deadline = start + TimeUnit.MILLISECONDS.toNanos (this._borrowTimeoutMillis);
+      boolean waited = false;
+      while (true) {
+         PooledConnection pc = null;
+         boolean create = false;
+         this._lock.lock ();
+         try{
+            while (pc == null && !create) {
+               if (this._closed)
+                  throw new SQLException("Connection pool is closed");
+               if (!this._idle.isEmpty ()) {
+                  pc = this._idle.pop ();
+               }else if (this._open < this._maxSize) {
+                  ++this._open;
+                  create = true;
+               }else {
+                  long remaining = deadline - System.nanoTime ();
+                  if (remaining <= 0) {
+                     ++this._timeouts;
+                     throw new SQLException("Timed out after " + this._borrowTimeoutMillis
+                        + " ms waiting for a database connection");
+                  }//end if
+                  waited = true;
+                  this._available.awaitNanos (remaining);
+               }//end if
+            }//end while
+         }catch (InterruptedException e){
+            Thread.currentThread ().interrupt ();
+            throw new SQLException("Interrupted while waiting for a database connection");
+         }finally{
+            this._lock.unlock ();
+         }//end try
+
+         if (create) {
+            try{
+               pc = open ();
+            }catch (SQLException e){
+               discarded (null);
+               throw e;
+            }//end try
+            borrowed (start, waited, true);
+            return pc;
+         }//end if
+         if (validate (pc)) {
+            borrowed (start, waited, false);
+            return pc;
+         }//end if
+         pc.close ();
+         discarded (pc);
+      }//end while
+   }//end borrow
+
+   /**
+    * Hands a borrowed connection back to the pool.  A connection left in the
+    * middle of a transaction is rolled back first; one that cannot be reset is
+    * closed instead of being reused.
+    *
+    * @param pc the borrowed connection, may be null
+    */
+   public void release (PooledConnection pc) {
+      if (pc == null)
+         return;
+      boolean reusable = true;
+      try{
+         if (!pc.getConnection ().getAutoCommit ()) {
+            pc.getConnection ().rollback ();
+            pc.getConnection ().setAutoCommit (true);
+         }//end if
+         reusable = !pc.getConnection ().isClosed ();
+      }catch (SQLException e){
+         reusable = false;
+      }//end try
+
+      this._lock.lock ();
+      try{
+         if (reusable && !this._closed) {
+            countStatements (pc);
+            pc.lastReleased = System.currentTimeMillis ();
+            this._idle.push (pc);
+            this._available.signal ();
+            return;
+         }//end if
+      }finally{
+         this._lock.unlock ();
+      }//end try
+      pc.close ();
+      discarded (pc);
+   }//end release
+
+   /**
+    * Closes a borrowed connection that is known to be broken instead of
+    * returning it to the pool.
+    *
+    * @param pc the borrowed connection
+    */
+   public void invalidate (PooledConnection pc) {
+      pc.close ();
+      discarded (pc);
+   }//end invalidate
+
+   /**
+    * Opens a connection to the same database outside the pool, for work
+    * that holds one for a long time, such as waiting for notifications.
+    * The caller closes it.
+    */
+   public Connection openUnpooled () throws SQLException {
+      return DriverManager.getConnection (this._url, this._user, this._passwd);
+   }//end openUnpooled
+
+   /**
+    * Closes every idle connection and stops handing out new ones.  Borrowed
+    * connections are closed when they are released.
+    */
+   public void close () {
+      List<PooledConnection> idle;
+      this._lock.lock ();
+      try{
+         this._closed = true;
+         idle = new ArrayList<PooledConnection>(this._idle);
+         this._idle.clear ();
+         this._open -= idle.size ();
+         this._destroyed += idle.size ();
+         this._available.signalAll ();
+      }finally{
+         this._lock.unlock ();
+      }//end try
+      this._evictor.cancel ();
+      closed (idle);
+   }//end close
+
+   /**
+    * Returns the prepared statement cache counters of every connection the
+    * pool has opened, closed ones included, as of the last time each was
+    * handed back.
+    *
+    * @return hits, misses, evictions and open statements
+    */
+   public long[] statementCacheTotals () {
+      this._lock.lock ();
+      try{
+         return this._statements.clone ();
+      }finally{
+         this._lock.unlock ();
+      }//end try
+   }//end statementCacheTotals
+
+   /**
+    * Returns the pool counters as a printable line.
+    */
+   public String stats () {
+      this._lock.lock ();
+      try{
+         return String.format ("connection pool: %d open (%d idle, min %d, max %d), "
+            + "%d borrows, %d waits (avg %.2f ms, max %.2f ms), %d timeouts, "
+            + "%d created, %d destroyed, %d failed validation",
+            this._open, this._idle.size (), this._minSize, this._maxSize,
+            this._borrows, this._waits,
+            this._waits == 0 ? 0.0 : this._waitNanos / 1e6 / this._waits,
+            this._maxWaitNanos / 1e6, this._timeouts,
+            this._created, this._destroyed, this._validationFailures);
+      }finally{
+         this._lock.unlock ();
+      }//end try
+   }//end stats
+
+   public int getMaxSize () {
+      return this._maxSize;
+   }
+
+   public long getBorrowTimeouts () {
+      this._lock.lock ();
+      try{
+         return this._timeouts;
+      }finally{
+         this._lock.unlock ();
+      }//end try
+   }
+
+   private PooledConnection open () throws SQLException {
+      PooledConnection pc = new PooledConnection(
+         DriverManager.getConnection (this._url, this._user, this._passwd),
+         this._statementCacheSize);
+      this._lock.lock ();
+      try{
+         ++this._created;
+      }finally{
+         this._lock.unlock ();
+      }//end try
+      return pc;
+   }//end open
+
+   private boolean validate (PooledConnection pc) {
+      if (System.currentTimeMillis () - pc.lastReleased < this._validateAfterMillis)
+         return true;
+      try{
+         ResultSet rs = pc.prepare ("SELECT 1").executeQuery ();
+         rs.close ();
+         return true;
+      }catch (SQLException e){
+         this._lock.lock ();
+         try{
+            ++this._validationFailures;
+         }finally{
+            this._lock.unlock ();
+         }//end try
+         return false;
+      }//end try
+   }//end validate
+
+   private void borrowed (long start, boolean waited, boolean created) {
+      long elapsed = System.nanoTime () - start;
+      this._lock.lock ();
+      try{
+         ++this._borrows;
+         if (waited) {
+            ++this._waits;
+            this._waitNanos += elapsed;
+            this._maxWaitNanos = Math.max(this._maxWaitNanos, elapsed);
+         }//end if
+      }finally{
+         this._lock.unlock ();
+      }//end try
+   }//end borrowed
+
+   // a connection was closed, or failed to open when pc is null.
+   private void discarded (PooledConnection pc) {
+      this._lock.lock ();
+      try{
+         --this._open;
+         if (pc != null) {
+            ++this._destroyed;
+            countStatements (pc);
+         }//end if
+         this._available.signal ();
+      }finally{
+         this._lock.unlock ();
+      }//end try
+   }//end discarded
+
+   private void evictIdle () {
+      List<PooledConnection> expired = new ArrayList<PooledConnection>();
+      long now = System.currentTimeMillis ();
+      this._lock.lock ();
+      try{
+         // the deque is ordered by release time, most recent first, so the
+         // connections idle the longest are at the tail.
+         Iterator<PooledConnection> it = this._idle.descendingIterator ();
+         while (it.hasNext () && this._open - expired.size () > this._minSize) {
+            PooledConnection pc = it.next ();
+            if (now - pc.lastReleased < this._idleTimeoutMillis)
+               break;
+            it.remove ();
+            expired.add (pc);
+         }//end while
+         this._open -= expired.size ();
+         this._destroyed += expired.size ();
+      }finally{
+         this._lock.unlock ();
+      }//end try
+      closed (expired);
+   }//end evictIdle
+
+   // closes connections already taken out of the pool counts.
+   private void closed (List<PooledConnection> connections) {
+      for (PooledConnection pc : connections)
+         pc.close ();
+      this._lock.lock ();
+      try{
+         for (PooledConnection pc : connections)
+            countStatements (pc);
+      }finally{
+         this._lock.unlock ();
+      }//end try
+   }//end closed
+
+   // adds what the statement cache of the connection counted since it was
+   // last added; a closed cache holds no statements.  Called with _lock held.
+   private void countStatements (PooledConnection pc) {
+      StatementCache cache = pc.getStatementCache ();
+      long[] now = { cache.getHits (), cache.getMisses (), cache.getEvictions (), cache.size () };
+      for (int i = 0; i < now.length; ++i) {
+         this._statements[i] += now[i] - pc.counted[i];
+         pc.counted[i] = now[i];
+      }//end for
+   }//end countStatements
+
+}//end ConnectionPool
@@ -0,0 +1,112 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * This class estimates how often each string was added to it, e.g. how
+ * many times each menu item was ordered, in a fixed depth x width table
+ * of counters.  An estimate is never below the true count, and with
+ * probability 1 - delta it is at most epsilon times the total count above
+ * it, for a width of e / epsilon and a depth of ln(1 / delta).
+ *
+ * Sketches of the same size merge into the sketch of everything added to
+ * either.  Not safe for use from several threads.
+ *
+ */
+public class CountMinSketch {
+
+   private final int _depth;
+   private final int _width;
+   private final long[][] _counts;
+   private long _total = 0;
+
+   /**
+    * Creates an empty sketch
+    *
+    * @param epsilon the error bound, as a fraction of the total count
+    * @param delta the probability of an estimate above the bound
+    */
+   public CountMinSketch(double epsilon, double delta) {
+      this((int) Math.ceil (Math.log (1 / delta)), (int) Math.ceil (Math.E / epsilon));
+   }
+
+   CountMinSketch(int depth, int width) {
+      this._depth = Math.max(1, depth);
+      this._width = Math.max(1, width);
+      this._counts = new long[this._depth][this._width];
+   }//end CountMinSketch
+
+   public void add (String value) {
+      long hash = HyperLogLog.hash64 (value);
+      for (int row = 0; row < this._depth; ++row)
+         ++this._counts[row][column (hash, row)];
+      ++this._total;
+   }//end add
+
+   /**
+    * Returns the estimated number of times a value was added.
+    */
+   public long estimate (String value) {
+      long hash = HyperLogLog.hash64 (value);
+      long estimate = Long.MAX_VALUE;
+      for (int row = 0; row < this._depth; ++row)
+         estimate = Math.min(estimate, this._counts[row][column (hash, row)]);
+      return estimate;
+   }//end estimate
+
+   public long total () {
+      return this._total;
+   }
+
+   /**
+    * Returns the error bound of an estimate, as a fraction of the total.
+    */
+   public double epsilon () {
+      return Math.E / this._width;
+   }
+
+   /**
+    * Returns the probability of an estimate above the error bound.
+    */
+   public double delta () {
+      return Math.exp (-this._depth);
+   }
+
+   public void merge (CountMinSketch other) {
+      if (other._depth != this._depth || other._width != this._width)
+         throw new IllegalArgumentException("Cannot merge sketches of different sizes");
+      for (int row = 0; row < this._depth; ++row)
+         for (int col = 0; col < this._width; ++col)
+            this._counts[row][col] += other._counts[row][col];
+      this._total += other._total;
+   }//end merge
+
+   public void clear () {
+      for (long[] row : this._counts)
+         Arrays.fill (row, 0L);
+      this._total = 0;
+   }//end clear
+
+   public void write (DataOutput out) throws IOException {
+      out.writeLong (this._total);
+      for (long[] row : this._counts)
+         for (long count : row)
+            out.writeLong (count);
+   }//end write
+
+   public void read (DataInput in) throws IOException {
+      this._total = in.readLong ();
+      for (long[] row : this._counts)
+         for (int col = 0; col < row.length; ++col)
+            row[col] = in.readLong ();
+   }//end read
+
+   // one column per row from the two halves of the hash (Kirsch and
+   // Mitzenmacher), as good as independent hashes for this use.
+   private int column (long hash, int row) {
+      int h1 = (int) hash, h2 = (int) (hash >>> 32);
+      return ((h1 + row * h2) & Integer.MAX_VALUE) % this._width;
+   }//end column
+
+}//end CountMinSketch
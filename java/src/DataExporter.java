@@ -0,0 +1,468 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class exports tables to the semicolon delimited files DataLoader
+ * and load_data.sql read: menu.csv, users.csv, orders.csv and
+ * itemStatus.csv, in the COPY text format with ';' between fields.
+ *
+ * Rows are streamed from the database into a FileChannel through a fixed
+ * buffer, so memory does not grow with the table: through COPY ... TO
+ * STDOUT when the driver offers the COPY protocol, one row at a time, and
+ * otherwise through a server side cursor fetched a number of rows at a
+ * time.  Several tables are exported at once, each on a connection of its
+ * own, and all of them from one snapshot: a transaction held open for the
+ * whole export exports its snapshot and every table is read in it, so an
+ * order placed during the export is in neither orders.csv nor
+ * itemStatus.csv, never in one alone.  A file may be split into parts of at most a given size, always at
+ * the end of a row (orders.0001.csv, orders.0002.csv, ..); the parts
+ * concatenated are the whole file.
+ *
+ * Orders and ItemStatus have a watermark, the newest timeStampRecieved
+ * and lastUpdated exported, recorded in a properties file after each
+ * export; they are kept as text, to the microsecond.  An incremental
+ * export only writes the rows above the recorded watermarks, up to the new
+ * ones: the orders placed and the items placed or changed since.
+ *
+ * A timestamp is taken when a row is written, not when it commits, so a
+ * row may become visible after newer rows were already exported: behind a
+ * long transaction, or an order placed through the journal, which is
+ * stamped by the client clock and reaches Orders only when flushed.  The
+ * new watermark is therefore held back a lag behind the database clock
+ * (cafe.export.lagSeconds, 300 by default), and rows committed later than
+ * that are missed until the next full export.  The rows inside the lag are
+ * written again by the next export, as is everything a full export wrote
+ * above its watermark, so a consumer should keep the last copy of a key.
+ * Paying an order does not move its timestamp, so payments are only
+ * carried by full exports.  Menu and Users have no watermark and are
+ * always exported whole.
+ *
+ */
+public class DataExporter {
+
+   private static final Charset UTF8 = Charset.forName ("UTF-8");
+   private static final int BUFFER_BYTES = 1 << 20;
+
+   // the watermark column of the tables that have one.
+   static final Map<String, String> WATERMARKS = new HashMap<String, String>();
+   static {
+      WATERMARKS.put ("Orders", "timeStampRecieved");
+      WATERMARKS.put ("ItemStatus", "lastUpdated");
+   }
+
+   /**
+    * Writes the rows of one table to its file, or to numbered parts of it,
+    * through a FileChannel.
+    */
+   private static final class PartWriter {
+      private final File _dir;
+      private final String _file;
+      private final long _splitBytes;
+      private final ByteBuffer _buffer = ByteBuffer.allocateDirect (BUFFER_BYTES);
+      private FileChannel _channel = null;
+      private long _partBytes = 0;
+      int parts = 0;
+      long bytes = 0;
+
+      PartWriter(File dir, String file, long splitBytes) {
+         this._dir = dir;
+         this._file = file;
+         this._splitBytes = splitBytes;
+      }
+
+      void write (byte[] row, int length) throws IOException {
+         if (this._channel == null
+             || (this._splitBytes > 0 && this._partBytes > 0 && this._partBytes + length > this._splitBytes))
+            nextPart ();
+         this._partBytes += length;
+         this.bytes += length;
+         for (int offset = 0; offset < length; ) {
+            if (!this._buffer.hasRemaining ())
+               drain ();
+            int n = Math.min(this._buffer.remaining (), length - offset);
+            this._buffer.put (row, offset, n);
+            offset += n;
+         }//end for
+      }//end write
+
+      // an empty table still gets its (empty) file.
+      void close () throws IOException {
+         if (this._channel == null)
+            nextPart ();
+         drain ();
+         this._channel.close ();
+         this._channel = null;
+      }//end close
+
+      private void nextPart () throws IOException {
+         if (this._channel != null) {
+            drain ();
+            this._channel.close ();
+         }//end if
+         ++this.parts;
+         this._channel = FileChannel.open (new File(this._dir, partName ()).toPath (),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+         this._partBytes = 0;
+      }//end nextPart
+
+      private String partName () {
+         if (this._splitBytes <= 0)
+            return this._file;
+         int dot = this._file.lastIndexOf ('.');
+         return String.format ("%s.%04d%s", this._file.substring (0, dot), this.parts, this._file.substring (dot));
+      }//end partName
+
+      private void drain () throws IOException {
+         this._buffer.flip ();
+         while (this._buffer.hasRemaining ())
+            this._channel.write (this._buffer);
+         this._buffer.clear ();
+      }//end drain
+   }//end PartWriter
+
+   private final Cafe _esql;
+   private final File _outDir;
+   private final long _splitBytes;
+   private final int _parallelism;
+   private final int _fetchRows;
+   private final boolean _useCopy;
+   private final long _lagSeconds;
+
+   /**
+    * Creates a new exporter
+    *
+    * @param esql the database to export from
+    * @param outDir the directory the files are written to
+    * @param splitBytes the most bytes per file part, or 0 for one file
+    * @param parallelism tables exported at once
+    * @param fetchRows rows fetched at a time when COPY is not available
+    * @param useCopy false to use the cursor even when COPY is available
+    * @param lagSeconds how far the new watermarks are held behind the
+    *        database clock, for rows that commit late
+    */
+   public DataExporter(Cafe esql, File outDir, long splitBytes, int parallelism, int fetchRows, boolean useCopy,
+                       long lagSeconds) {
+      this._esql = esql;
+      this._outDir = outDir;
+      this._splitBytes = Math.max(0L, splitBytes);
+      this._parallelism = Math.max(1, parallelism);
+      this._fetchRows = Math.max(1, fetchRows);
+      this._useCopy = useCopy;
+      this._lagSeconds = Math.max(0L, lagSeconds);
+   }//end DataExporter
+
+   /**
+    * Exports tables and records their new watermarks.
+    *
+    * @param tables the tables to export, or empty for all of them
+    * @param watermarkFile the file the watermarks are kept in
+    * @param incremental true to export only the rows above the recorded
+    *        watermarks
+    * @return the number of rows exported
+    * @throws java.sql.SQLException when a table fails to export; the
+    *         watermarks are then left as they were
+    */
+   public long export (List<String> tables, File watermarkFile, boolean incremental) throws SQLException, IOException {
+      List<DataLoader.Source> sources = sources (tables);
+      if (!this._outDir.isDirectory () && !this._outDir.mkdirs ())
+         throw new IOException("Cannot create " + this._outDir);
+
+      Properties marks = new Properties();
+      if (watermarkFile.isFile ()) {
+         InputStream in = new FileInputStream(watermarkFile);
+         try{
+            marks.load (in);
+         }finally{
+            in.close ();
+         }//end try
+      }//end if
+
+      // the new marks are read in the snapshot the tables are exported
+      // from, and as text, to keep the microseconds.  Each is held back the
+      // lag, so rows stamped before it but committed after it are still
+      // above it.
+      Map<String, String> upper = new LinkedHashMap<String, String>();
+      StringBuilder sql = new StringBuilder("SELECT ");
+      for (DataLoader.Source source : sources)
+         if (WATERMARKS.containsKey (source.table)) {
+            sql.append (upper.isEmpty () ? "" : ", ").append ("(SELECT CAST(LEAST(MAX(")
+               .append (WATERMARKS.get (source.table)).append ("), CAST(now() AS timestamp) - interval '")
+               .append (this._lagSeconds).append (" seconds') AS text) FROM ").append (source.table).append (')');
+            upper.put (source.table, null);
+         }//end if
+
+      long start = System.nanoTime ();
+      long total = 0;
+      final String snapshot;
+      // holds the snapshot until every table is exported.
+      PooledConnection coordinator = this._esql.borrowConnection ();
+      ExecutorService workers = null;
+      try{
+         coordinator.getConnection ().setAutoCommit (false);
+         Statement stmt = coordinator.getConnection ().createStatement ();
+         try{
+            stmt.execute ("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+            ResultSet rs = stmt.executeQuery ("SELECT pg_export_snapshot()");
+            rs.next ();
+            snapshot = rs.getString (1);
+            rs.close ();
+            if (!upper.isEmpty ()) {
+               rs = stmt.executeQuery (sql.toString ());
+               rs.next ();
+               int col = 0;
+               for (String table : new ArrayList<String>(upper.keySet ()))
+                  upper.put (table, rs.getString (++col));
+               rs.close ();
+            }//end if
+         }finally{
+            stmt.close ();
+         }//end try
+
+         workers = Executors.newFixedThreadPool (Math.min(this._parallelism, sources.size ()));
+         List<Future<Long>> exports = new ArrayList<Future<Long>>();
+         for (final DataLoader.Source source : sources) {
+            final String column = WATERMARKS.get (source.table);
+            final String high = upper.get (source.table);
+            String mark = marks.getProperty (source.table);
+            final String low = incremental && column != null && mark != null ? mark : null;
+            exports.add (workers.submit (new Callable<Long>() {
+               public Long call () throws Exception {
+                  return exportTable (source, column, low, high, snapshot);
+               }
+            }));
+         }//end for
+         for (Future<Long> export : exports)
+            total += await (export);
+      }finally{
+         if (workers != null)
+            workers.shutdownNow ();
+         // rolls back the read-only transaction.
+         this._esql.releaseConnection (coordinator);
+      }//end try
+
+      for (Map.Entry<String, String> mark : upper.entrySet ())
+         if (mark.getValue () != null)
+            marks.setProperty (mark.getKey (), mark.getValue ());
+      File temp = new File(watermarkFile.getPath () + ".tmp");
+      OutputStream out = new FileOutputStream(temp);
+      try{
+         marks.store (out, "newest row exported per table");
+      }finally{
+         out.close ();
+      }//end try
+      if (!temp.renameTo (watermarkFile)) {
+         watermarkFile.delete ();
+         if (!temp.renameTo (watermarkFile))
+            throw new IOException("Cannot replace " + watermarkFile);
+      }//end if
+
+      double seconds = (System.nanoTime () - start) / 1e9;
+      System.out.println (String.format ("Exported %d rows in %.2f s (%.0f rows/s) to %s",
+         total, seconds, total / Math.max(seconds, 1e-9), this._outDir));
+      return total;
+   }//end export
+
+   // exports the rows above low and up to high, or every row when low is
+   // null, as of the snapshot.
+   private long exportTable (DataLoader.Source source, String column, String low, String high,
+                             String snapshot) throws Exception {
+      StringBuilder query = new StringBuilder("SELECT * FROM ").append (source.table);
+      if (column != null && low != null) {
+         // Timestamp.valueOf rejects anything but a timestamp, so the marks
+         // are safe to put in the SQL text.
+         Timestamp.valueOf (low);
+         query.append (" WHERE ").append (column).append (" > '").append (low).append ('\'');
+         if (high != null) {
+            Timestamp.valueOf (high);
+            query.append (" AND ").append (column).append (" <= '").append (high).append ('\'');
+         }//end if
+      }//end if
+
+      long start = System.nanoTime ();
+      long rows;
+      boolean viaCopy;
+      PartWriter out = new PartWriter(this._outDir, source.file, this._splitBytes);
+      PooledConnection pc = this._esql.borrowConnection ();
+      try{
+         useSnapshot (pc.getConnection (), snapshot);
+         Object copyManager = this._useCopy ? DataLoader.copyManager (pc.getConnection ()) : null;
+         viaCopy = copyManager != null;
+         rows = viaCopy
+            ? copyOut (copyManager, query.toString (), out)
+            : fetch (pc.getConnection (), query.toString (), out);
+      }finally{
+         this._esql.releaseConnection (pc);
+         out.close ();
+      }//end try
+
+      double seconds = (System.nanoTime () - start) / 1e9;
+      System.out.println (String.format ("%s: %d rows, %d bytes in %d file%s, %.2f s (%.0f rows/s) via %s%s",
+         source.table, rows, out.bytes, out.parts, out.parts == 1 ? "" : "s", seconds,
+         rows / Math.max(seconds, 1e-9), viaCopy ? "COPY" : "cursor",
+         low != null ? ", after " + low : ""));
+      return rows;
+   }//end exportTable
+
+   // starts a transaction that reads the exported snapshot.
+   private static void useSnapshot (Connection connection, String snapshot) throws SQLException {
+      // the id goes into the SQL text.
+      if (!snapshot.matches ("[0-9A-Fa-f-]+"))
+         throw new SQLException("Unexpected snapshot id " + snapshot);
+      connection.setAutoCommit (false);
+      Statement stmt = connection.createStatement ();
+      try{
+         stmt.execute ("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+         stmt.execute ("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end useSnapshot
+
+   // COPY ... TO STDOUT through the driver's CopyManager, one row per read.
+   private static long copyOut (Object copyManager, String query, PartWriter out) throws Exception {
+      Object copy = null;
+      try{
+         Class<?> copyOut = Class.forName ("org.postgresql.copy.CopyOut");
+         copy = copyManager.getClass ().getMethod ("copyOut", String.class)
+            .invoke (copyManager, "COPY (" + query + ") TO STDOUT WITH DELIMITER ';'");
+         Method read = copyOut.getMethod ("readFromCopy");
+         long rows = 0;
+         byte[] row;
+         while ((row = (byte[]) read.invoke (copy)) != null) {
+            out.write (row, row.length);
+            ++rows;
+         }//end while
+         copy = null;
+         return rows;
+      }catch (InvocationTargetException e){
+         Throwable cause = e.getCause ();
+         if (cause instanceof SQLException)
+            throw (SQLException) cause;
+         throw new SQLException("COPY of " + query + " failed: " + cause);
+      }finally{
+         // leaves the connection usable when the file could not be written.
+         if (copy != null) {
+            try{
+               Class.forName ("org.postgresql.copy.CopyOperation").getMethod ("cancelCopy").invoke (copy);
+            }catch (Exception e){
+               // the connection is rolled back on release anyway.
+            }//end try
+         }//end if
+      }//end try
+   }//end copyOut
+
+   // a cursor declared in a transaction of its own, fetched fetchRows at a
+   // time, so drivers that read whole results only hold one fetch.
+   private long fetch (Connection connection, String query, PartWriter out) throws SQLException, IOException {
+      connection.setAutoCommit (false);
+      Statement stmt = connection.createStatement ();
+      try{
+         stmt.execute ("DECLARE export_rows NO SCROLL CURSOR FOR " + query);
+         StringBuilder line = new StringBuilder(256);
+         long rows = 0;
+         int fetched;
+         do {
+            fetched = 0;
+            ResultSet rs = stmt.executeQuery ("FETCH FORWARD " + this._fetchRows + " FROM export_rows");
+            try{
+               int numCol = rs.getMetaData ().getColumnCount ();
+               while (rs.next ()) {
+                  line.setLength (0);
+                  for (int c = 1; c <= numCol; ++c)
+                     escape (line.append (c == 1 ? "" : ";"), rs.getString (c));
+                  byte[] row = line.append ('\n').toString ().getBytes (UTF8);
+                  out.write (row, row.length);
+                  ++fetched;
+               }//end while
+            }finally{
+               rs.close ();
+            }//end try
+            rows += fetched;
+         } while (fetched == this._fetchRows);
+         stmt.execute ("CLOSE export_rows");
+         connection.commit ();
+         return rows;
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end fetch
+
+   /**
+    * Appends a value in COPY text format: \N for NULL, and backslash
+    * escapes for the characters parseLine undoes.
+    */
+   static StringBuilder escape (StringBuilder line, String value) {
+      if (value == null)
+         return line.append ("\\N");
+      for (int i = 0; i < value.length (); ++i) {
+         char ch = value.charAt (i);
+         switch (ch) {
+            case '\\': line.append ("\\\\"); break;
+            case ';': line.append ("\\;"); break;
+            case '\n': line.append ("\\n"); break;
+            case '\r': line.append ("\\r"); break;
+            case '\t': line.append ("\\t"); break;
+            default: line.append (ch); break;
+         }//end switch
+      }//end for
+      return line;
+   }//end escape
+
+   // the loader's sources, in its order, of the tables asked for.
+   private static List<DataLoader.Source> sources (List<String> tables) {
+      List<DataLoader.Source> sources = new ArrayList<DataLoader.Source>();
+      List<String> unknown = new ArrayList<String>(tables);
+      for (DataLoader.Source[] level : DataLoader.LEVELS)
+         for (DataLoader.Source source : level)
+            for (String table : tables.isEmpty () ? Collections.singletonList (source.table) : tables)
+               if (table.equalsIgnoreCase (source.table)) {
+                  sources.add (source);
+                  unknown.remove (table);
+               }//end if
+      if (!unknown.isEmpty ())
+         throw new IllegalArgumentException("No such table to export: " + unknown);
+      return sources;
+   }//end sources
+
+   private static <T> T await (Future<T> future) throws SQLException {
+      try{
+         return future.get ();
+      }catch (InterruptedException e){
+         Thread.currentThread ().interrupt ();
+         throw new SQLException("Interrupted while exporting");
+      }catch (ExecutionException e){
+         Throwable cause = e.getCause ();
+         if (cause instanceof SQLException)
+            throw (SQLException) cause;
+         throw new SQLException("Export failed: " + cause);
+      }//end try
+   }//end await
+
+}//end DataExporter
@@ -0,0 +1,427 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class generates data files at any scale for DataLoader and
+ * load_data.sql: users.csv, menu.csv, orders.csv and itemStatus.csv in the
+ * ';' delimited format, from the users.csv and menu.csv in a data
+ * directory.  Generated customers are added to the existing users, and
+ * every order is placed by one of the customers and every ordered item is
+ * on the menu.
+ *
+ * Orders are spread over a number of days before a fixed end date, in
+ * orderid order, at the hours a cafe is busy: breakfast, lunch and the
+ * afternoon.  A few customers order much more than the rest, and the
+ * items near the top of the menu are ordered most.  Orders of the last
+ * day are still being made; older ones are ready and nearly all paid.
+ *
+ * Orders are made in blocks of a fixed size, each from a random generator
+ * seeded by the seed and the block number alone, on as many threads as
+ * asked, and written in block order; the files are therefore the same for
+ * a seed whatever the number of threads.  Only a few blocks per thread
+ * are held at once, so 100 million item statuses take no more memory
+ * than a thousand.
+ *
+ */
+public class DataGenerator {
+
+   private static final Charset UTF8 = Charset.forName ("UTF-8");
+   private static final int BLOCK_ORDERS = 5000;
+
+   // relative number of orders in each hour of the day.
+   private static final int[] HOUR_WEIGHTS = {
+      1, 1, 1, 1, 1, 2, 8, 20, 24, 16, 12, 18, 22, 18, 10, 12, 10, 8, 6, 5, 4, 3, 2, 1 };
+
+   private static final String[] COMMENTS = {
+      "extra hot", "no sugar", "oat milk", "to go", "no ice", "less sweet", "extra napkins", "no onions" };
+
+   // orders and item statuses of one block, as file lines.
+   private static final class Block {
+      final byte[] orders;
+      final byte[] items;
+      final int itemCount;
+
+      Block(byte[] orders, byte[] items, int itemCount) {
+         this.orders = orders;
+         this.items = items;
+         this.itemCount = itemCount;
+      }
+   }//end Block
+
+   private final File _dataDir;
+   private final File _outDir;
+   private final long _orders;
+   private final int _users;
+   private final long _seed;
+   private final int _threads;
+   private final int _days;
+   private final String _endDate;
+   private final int _maxItems;
+
+   private String[] _itemNames;
+   private int[] _itemCents;
+   private List<String> _customers;
+   private String[] _dates;
+   private int[] _hourBounds;
+
+   /**
+    * Creates a new generator
+    *
+    * @param dataDir the directory with users.csv and menu.csv
+    * @param outDir the directory the files are written to
+    * @param orders orders generated
+    * @param users customers generated in addition to the existing users
+    * @param seed the seed; the same seed gives the same files
+    * @param threads threads generating orders
+    * @param days days the orders are spread over
+    * @param endDate the day after the last order, as yyyy-mm-dd
+    * @param maxItems the most items per order
+    */
+   public DataGenerator(File dataDir, File outDir, long orders, int users, long seed, int threads,
+                        int days, String endDate, int maxItems) {
+      this._dataDir = dataDir;
+      this._outDir = outDir;
+      this._orders = Math.max(0L, orders);
+      this._users = Math.max(0, users);
+      this._seed = seed;
+      this._threads = Math.max(1, threads);
+      this._days = Math.max(1, days);
+      this._endDate = endDate;
+      this._maxItems = Math.max(1, maxItems);
+   }//end DataGenerator
+
+   /**
+    * Writes the four files.
+    *
+    * @return the number of item statuses written
+    * @throws java.io.IOException when an input file cannot be read or an
+    *         output file written
+    */
+   public long generate () throws IOException {
+      if (this._outDir.getCanonicalFile ().equals (this._dataDir.getCanonicalFile ()))
+         throw new IOException("Cannot generate into the data directory " + this._dataDir);
+      if (!this._outDir.isDirectory () && !this._outDir.mkdirs ())
+         throw new IOException("Cannot create " + this._outDir);
+      long start = System.nanoTime ();
+      readMenu (new File(this._dataDir, "menu.csv"));
+      copy (new File(this._dataDir, "menu.csv"), new File(this._outDir, "menu.csv"));
+      int users = writeUsers (new File(this._dataDir, "users.csv"), new File(this._outDir, "users.csv"));
+      if (this._customers.isEmpty () && this._orders > 0)
+         throw new IOException("There are no customers to place the orders");
+      this._dates = dates ();
+      this._hourBounds = new int[HOUR_WEIGHTS.length];
+      for (int h = 0, sum = 0; h < HOUR_WEIGHTS.length; ++h)
+         this._hourBounds[h] = sum += HOUR_WEIGHTS[h];
+
+      long items = 0;
+      long blocks = (this._orders + BLOCK_ORDERS - 1) / BLOCK_ORDERS;
+      FileChannel orders = open (new File(this._outDir, "orders.csv"));
+      FileChannel statuses = open (new File(this._outDir, "itemStatus.csv"));
+      ExecutorService workers = Executors.newFixedThreadPool (this._threads);
+      try{
+         Deque<Future<Block>> pending = new ArrayDeque<Future<Block>>();
+         long next = 0;
+         for (long written = 0; written < blocks; ++written) {
+            while (next < blocks && pending.size () < 2 * this._threads) {
+               final long number = next++;
+               pending.add (workers.submit (new Callable<Block>() {
+                  public Block call () {
+                     return block (number);
+                  }
+               }));
+            }//end while
+            Block block = await (pending.poll ());
+            write (orders, block.orders);
+            write (statuses, block.items);
+            items += block.itemCount;
+         }//end for
+      }finally{
+         workers.shutdownNow ();
+         orders.close ();
+         statuses.close ();
+      }//end try
+
+      double seconds = (System.nanoTime () - start) / 1e9;
+      System.out.println (String.format ("Generated %d users (%d new), %d orders and %d item statuses "
+         + "in %.2f s with seed %d, into %s", users, this._users, this._orders, items, seconds,
+         this._seed, this._outDir));
+      return items;
+   }//end generate
+
+   // the orders of one block, from its own random generator.
+   private Block block (long number) {
+      Random random = new Random(mix (this._seed + mix (number + 1)));
+      long first = number * BLOCK_ORDERS;
+      long last = Math.min(this._orders, first + BLOCK_ORDERS);
+      StringBuilder orders = new StringBuilder((int) (last - first) * 96);
+      StringBuilder items = new StringBuilder((int) (last - first) * 96 * this._maxItems / 2);
+      int itemCount = 0;
+      boolean[] chosen = new boolean[this._itemNames.length];
+      for (long i = first; i < last; ++i) {
+         long orderid = i + 1;
+         int day = (int) (i * this._days / this._orders);
+         int second = hour (random) * 3600 + random.nextInt (3600);
+         boolean recent = day == this._days - 1;
+         String login = this._customers.get ((int) (this._customers.size () * Math.pow (random.nextDouble (), 3)));
+
+         int count = 1 + random.nextInt (Math.min(this._maxItems, this._itemNames.length));
+         Arrays.fill (chosen, false);
+         int cents = 0;
+         for (int n = 0; n < count; ) {
+            int item = (int) (this._itemNames.length * Math.pow (random.nextDouble (), 2));
+            if (chosen[item])
+               continue;
+            chosen[item] = true;
+            cents += this._itemCents[item];
+            ++n;
+         }//end for
+
+         boolean ready = true;
+         for (int item = 0; item < chosen.length; ++item) {
+            if (!chosen[item])
+               continue;
+            String status = Cafe.STATUS_RECEIVED;
+            int delay = 0;
+            int step = recent ? random.nextInt (3) : 2;
+            if (step == 1) {
+               status = KitchenQueue.STATUS_PREPARING;
+               delay = 60 + random.nextInt (9 * 60);
+            }else if (step == 2) {
+               status = "Ready";
+               delay = 120 + random.nextInt (23 * 60);
+            }//end if
+            ready &= step == 2;
+            items.append (orderid).append (';');
+            DataExporter.escape (items, this._itemNames[item]).append (';');
+            timestamp (items, day, second + delay).append (';').append (status).append (';');
+            if (random.nextInt (10) == 0)
+               items.append (COMMENTS[random.nextInt (COMMENTS.length)]);
+            items.append ('\n');
+            ++itemCount;
+         }//end for
+
+         boolean paid = random.nextInt (100) < (ready && !recent ? 97 : 40);
+         orders.append (orderid).append (';');
+         DataExporter.escape (orders, login).append (';').append (paid ? 't' : 'f').append (';');
+         timestamp (orders, day, second).append (';').append (cents / 100).append ('.');
+         orders.append ((char) ('0' + cents % 100 / 10)).append ((char) ('0' + cents % 10)).append ('\n');
+      }//end for
+      return new Block(orders.toString ().getBytes (UTF8), items.toString ().getBytes (UTF8), itemCount);
+   }//end block
+
+   private int hour (Random random) {
+      int pick = random.nextInt (this._hourBounds[this._hourBounds.length - 1]);
+      int hour = 0;
+      while (this._hourBounds[hour] <= pick)
+         ++hour;
+      return hour;
+   }//end hour
+
+   // day and seconds into it as yyyy-mm-dd hh:mm:ss; the seconds may run
+   // into the next day.
+   private StringBuilder timestamp (StringBuilder line, int day, int second) {
+      line.append (this._dates[day + second / 86400]).append (' ');
+      second %= 86400;
+      two (line, second / 3600).append (':');
+      two (line, second / 60 % 60).append (':');
+      return two (line, second % 60);
+   }//end timestamp
+
+   private static StringBuilder two (StringBuilder line, int value) {
+      return line.append ((char) ('0' + value / 10)).append ((char) ('0' + value % 10));
+   }
+
+   // the dates of the days, and of the day after the last one.
+   private String[] dates () throws IOException {
+      SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+      format.setTimeZone (TimeZone.getTimeZone ("UTC"));
+      format.setLenient (false);
+      Calendar day = Calendar.getInstance (TimeZone.getTimeZone ("UTC"));
+      try{
+         day.setTime (format.parse (this._endDate));
+      }catch (ParseException e){
+         throw new IOException("End date must be yyyy-mm-dd: " + this._endDate);
+      }//end try
+      day.add (Calendar.DAY_OF_MONTH, -this._days);
+      String[] dates = new String[this._days + 1];
+      for (int d = 0; d < dates.length; ++d) {
+         dates[d] = format.format (day.getTime ());
+         day.add (Calendar.DAY_OF_MONTH, 1);
+      }//end for
+      return dates;
+   }//end dates
+
+   private void readMenu (File file) throws IOException {
+      List<String> names = new ArrayList<String>();
+      List<Integer> cents = new ArrayList<Integer>();
+      for (String[] fields : read (file, 5)) {
+         names.add (fields[0]);
+         cents.add ((int) Math.round (Double.parseDouble (fields[2]) * 100));
+      }//end for
+      if (names.isEmpty ())
+         throw new IOException(file + " has no items");
+      this._itemNames = names.toArray (new String[names.size ()]);
+      this._itemCents = new int[cents.size ()];
+      for (int i = 0; i < this._itemCents.length; ++i)
+         this._itemCents[i] = cents.get (i);
+   }//end readMenu
+
+   // copies the existing users and adds the generated customers, in the
+   // line ending of the file so COPY still reads it.
+   private int writeUsers (File in, File out) throws IOException {
+      List<String[]> users = read (in, 5);
+      Set<String> logins = new HashSet<String>();
+      Set<String> phones = new HashSet<String>();
+      this._customers = new ArrayList<String>();
+      for (String[] user : users) {
+         logins.add (user[0]);
+         phones.add (user[1]);
+         if (user[4].trim ().equals ("Customer"))
+            this._customers.add (user[0]);
+      }//end for
+
+      byte[] head = new byte[(int) Math.min(in.length (), 4096)];
+      byte last = 0;
+      FileChannel source = FileChannel.open (in.toPath (), StandardOpenOption.READ);
+      try{
+         source.read (ByteBuffer.wrap (head), 0);
+         if (in.length () > 0) {
+            ByteBuffer end = ByteBuffer.allocate (1);
+            source.read (end, in.length () - 1);
+            last = end.get (0);
+         }//end if
+      }finally{
+         source.close ();
+      }//end try
+      String eol = new String(head, UTF8).contains ("\r\n") ? "\r\n" : "\n";
+
+      copy (in, out);
+      Random random = new Random(mix (this._seed));
+      StringBuilder lines = new StringBuilder();
+      if (in.length () > 0 && last != '\n')
+         lines.append (eol);
+      FileChannel channel = FileChannel.open (out.toPath (), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+      try{
+         for (int i = 1; i <= this._users; ++i) {
+            String login = "customer" + i;
+            while (!logins.add (login))
+               login += "_";
+            String phone;
+            do {
+               phone = String.format ("+1(%03d)%03d-%04d",
+                  random.nextInt (1000), random.nextInt (1000), random.nextInt (10000));
+            } while (!phones.add (phone));
+            String password = Long.toHexString (random.nextLong () | Long.MIN_VALUE)
+               + Long.toHexString (random.nextLong () | Long.MIN_VALUE);
+            // like the existing users: none, or the first few menu items.
+            StringBuilder favItems = new StringBuilder();
+            int favorites = random.nextInt (3) == 0 ? 1 + random.nextInt (this._itemNames.length) : 0;
+            for (int f = 0; f < favorites; ++f)
+               favItems.append (f == 0 ? "" : ",").append (this._itemNames[f]);
+            DataExporter.escape (lines, login).append (';').append (phone).append (';').append (password)
+               .append (';');
+            DataExporter.escape (lines, favItems.toString ()).append (";Customer").append (eol);
+            this._customers.add (login);
+            if (lines.length () > (1 << 20)) {
+               write (channel, lines.toString ().getBytes (UTF8));
+               lines.setLength (0);
+            }//end if
+         }//end for
+         write (channel, lines.toString ().getBytes (UTF8));
+      }finally{
+         channel.close ();
+      }//end try
+      return users.size () + this._users;
+   }//end writeUsers
+
+   private static List<String[]> read (File file, int numCol) throws IOException {
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try{
+         List<String[]> rows = new ArrayList<String[]>();
+         String line;
+         while ((line = in.readLine ()) != null) {
+            if (line.length () == 0)
+               continue;
+            String[] fields = DataLoader.parseLine (line, numCol);
+            if (fields == null)
+               throw new IOException("Malformed line in " + file + ": " + line);
+            rows.add (fields);
+         }//end while
+         return rows;
+      }finally{
+         in.close ();
+      }//end try
+   }//end read
+
+   private static void copy (File from, File to) throws IOException {
+      FileChannel in = FileChannel.open (from.toPath (), StandardOpenOption.READ);
+      try{
+         FileChannel out = open (to);
+         try{
+            for (long done = 0, size = in.size (); done < size; )
+               done += in.transferTo (done, size - done, out);
+         }finally{
+            out.close ();
+         }//end try
+      }finally{
+         in.close ();
+      }//end try
+   }//end copy
+
+   private static FileChannel open (File file) throws IOException {
+      return FileChannel.open (file.toPath (),
+         StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+   }
+
+   private static void write (FileChannel channel, byte[] bytes) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap (bytes);
+      while (buffer.hasRemaining ())
+         channel.write (buffer);
+   }//end write
+
+   // the MurmurHash3 finalizer, so neighbouring block numbers give
+   // unrelated seeds.
+   private static long mix (long value) {
+      value ^= value >>> 33;
+      value *= 0xff51afd7ed558ccdL;
+      value ^= value >>> 33;
+      value *= 0xc4ceb9fe1a85ec53L;
+      return value ^ (value >>> 33);
+   }//end mix
+
+   private static <T> T await (Future<T> future) throws IOException {
+      try{
+         return future.get ();
+      }catch (InterruptedException e){
+         Thread.currentThread ().interrupt ();
+         throw new IOException("Interrupted while generating");
+      }catch (ExecutionException e){
+         throw new IOException("Generating failed: " + e.getCause (), e.getCause ());
+      }//end try
+   }//end await
+
+}//end DataGenerator
@@ -0,0 +1,407 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class loads the semicolon delimited files in data/ into the database
+ * from the client, so loading does not depend on server-side file paths.
+ *
+ * Tables are loaded in dependency order: Menu and Users side by side, then
+ * Orders, then ItemStatus.  For each table one thread reads the file into
+ * chunks of rows while another writes them, each chunk in its own
+ * transaction.  Chunks go through the PostgreSQL COPY protocol when the
+ * driver offers it, and as batches of multi-row INSERTs otherwise.
+ *
+ * The number of lines committed for each table is recorded in the
+ * LoadProgress table in the same transaction as the rows, so a load that
+ * failed part way is resumed where it stopped by running it again.
+ *
+ */
+public class DataLoader {
+
+   /**
+    * A table and the file it is loaded from.
+    */
+   static final class Source {
+      final String table;
+      final String file;
+
+      Source(String table, String file) {
+         this.table = table;
+         this.file = file;
+      }
+   }//end Source
+
+   // tables in dependency order; the tables of a level are loaded in parallel.
+   static final Source[][] LEVELS = {
+      { new Source("Menu", "menu.csv"), new Source("Users", "users.csv") },
+      { new Source("Orders", "orders.csv") },
+      { new Source("ItemStatus", "itemStatus.csv") },
+   };
+
+   // a run of consecutive rows of one file, and the number of file lines
+   // read up to and including its last row.
+   private static final class Chunk {
+      final List<String> lines;
+      final long endLine;
+
+      Chunk(List<String> lines, long endLine) {
+         this.lines = lines;
+         this.endLine = endLine;
+      }
+   }//end Chunk
+
+   private static final Chunk END = new Chunk(null, -1);
+
+   private final Cafe _esql;
+   private final File _dataDir;
+   private final int _chunkRows;
+   private final int _rowsPerInsert;
+
+   /**
+    * Creates a new loader
+    *
+    * @param esql the database to load into
+    * @param dataDir the directory holding the data files
+    * @param chunkRows rows committed per transaction
+    * @param rowsPerInsert rows per INSERT statement when COPY is not available
+    */
+   public DataLoader(Cafe esql, File dataDir, int chunkRows, int rowsPerInsert) {
+      this._esql = esql;
+      this._dataDir = dataDir;
+      this._chunkRows = Math.max(1, chunkRows);
+      this._rowsPerInsert = Math.max(1, rowsPerInsert);
+   }//end DataLoader
+
+   /**
+    * Loads every data file that exists, resuming a previous load that did
+    * not finish.
+    *
+    * @return the number of rows loaded by this run
+    * @throws java.sql.SQLException when a table fails to load; the rows
+    *         committed so far are kept and a later run resumes after them
+    */
+   public long load () throws SQLException {
+      this._esql.executeUpdate ("CREATE TABLE IF NOT EXISTS LoadProgress("
+         + "tableName varchar(64) PRIMARY KEY, linesLoaded bigint NOT NULL)");
+      Map<String, Long> progress = new HashMap<String, Long>();
+      for (ResultTable.Row row : this._esql.executeQueryAndReturnResult (
+               "SELECT tableName, linesLoaded FROM LoadProgress"))
+         progress.put (row.getString (0), row.getLong (1));
+      if (!progress.isEmpty ())
+         System.out.println ("Resuming the previous load");
+
+      long start = System.nanoTime ();
+      long total = 0;
+      ExecutorService workers = Executors.newCachedThreadPool ();
+      try{
+         for (Source[] level : LEVELS) {
+            List<Future<Long>> loads = new ArrayList<Future<Long>>();
+            for (final Source source : level) {
+               final File file = new File(this._dataDir, source.file);
+               if (!file.isFile ()) {
+                  System.out.println (source.table + ": " + file + " not found, skipped");
+                  continue;
+               }//end if
+               Long done = progress.get (source.table);
+               final long skip = done == null ? 0L : done.longValue ();
+               final ExecutorService readers = workers;
+               loads.add (workers.submit (new Callable<Long>() {
+                  public Long call () throws Exception {
+                     return loadTable (source.table, file, skip, readers);
+                  }
+               }));
+            }//end for
+            for (Future<Long> load : loads)
+               total += await (load);
+         }//end for
+      }finally{
+         workers.shutdownNow ();
+      }//end try
+
+      // keeps new orders clear of the loaded ids, never moving the sequence
+      // back over ids already handed out, e.g. in blocks other processes
+      // hold.
+      this._esql.executeQuery ("SELECT setval('" + OrderIdAllocator.SEQUENCE
+         + "', GREATEST((SELECT MAX(orderid) FROM Orders), (SELECT last_value FROM "
+         + OrderIdAllocator.SEQUENCE + ")))");
+      this._esql.executeUpdate ("DELETE FROM LoadProgress");
+
+      double seconds = (System.nanoTime () - start) / 1e9;
+      System.out.println (String.format ("Loaded %d rows in %.2f s (%.0f rows/s)",
+         total, seconds, total / Math.max(seconds, 1e-9)));
+      return total;
+   }//end load
+
+   private long loadTable (String table, File file, long skip, ExecutorService readers) throws Exception {
+      final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<Chunk>(4);
+      Future<Void> reader = readers.submit (readChunks (file, skip, chunks));
+
+      long start = System.nanoTime ();
+      long rows = 0;
+      PooledConnection pc = this._esql.borrowConnection ();
+      try{
+         Object copyManager = copyManager (pc.getConnection ());
+         String[] columnTypes = copyManager == null ? columnTypes (pc, table) : null;
+         pc.getConnection ().setAutoCommit (false);
+         while (true) {
+            Chunk chunk = chunks.take ();
+            if (chunk == END)
+               break;
+            if (copyManager != null)
+               copy (copyManager, table, chunk.lines);
+            else
+               insert (pc, table, columnTypes, chunk.lines);
+            recordProgress (pc, table, chunk.endLine);
+            pc.getConnection ().commit ();
+            rows += chunk.lines.size ();
+         }//end while
+         await (reader);
+
+         double seconds = (System.nanoTime () - start) / 1e9;
+         System.out.println (String.format ("%s: %d rows in %.2f s (%.0f rows/s) via %s%s",
+            table, rows, seconds, rows / Math.max(seconds, 1e-9),
+            copyManager != null ? "COPY" : "INSERT",
+            skip > 0 ? ", resumed after line " + skip : ""));
+         return rows;
+      }finally{
+         reader.cancel (true);
+         this._esql.releaseConnection (pc);
+      }//end try
+   }//end loadTable
+
+   // reads the lines after skip into chunks, then queues END.  END is
+   // queued after a failure too, so the loader stops taking chunks and gets
+   // the failure from the future.
+   private Callable<Void> readChunks (final File file, final long skip, final BlockingQueue<Chunk> chunks) {
+      return new Callable<Void>() {
+         public Void call () throws Exception {
+            BufferedReader in = new BufferedReader(
+               new InputStreamReader(new FileInputStream(file), "UTF-8"), 1 << 16);
+            try{
+               long lineNo = 0;
+               String line;
+               while (lineNo < skip && in.readLine () != null)
+                  ++lineNo;
+               List<String> lines = new ArrayList<String>(_chunkRows);
+               while ((line = in.readLine ()) != null) {
+                  ++lineNo;
+                  if (line.length () == 0)
+                     continue;
+                  lines.add (line);
+                  if (lines.size () == _chunkRows) {
+                     chunks.put (new Chunk(lines, lineNo));
+                     lines = new ArrayList<String>(_chunkRows);
+                  }//end if
+               }//end while
+               if (!lines.isEmpty ())
+                  chunks.put (new Chunk(lines, lineNo));
+               chunks.put (END);
+               return null;
+            }catch (InterruptedException e){
+               // cancelled by the loader, which no longer takes chunks.
+               throw e;
+            }catch (Exception e){
+               // an interrupt while queueing END must not hide the cause.
+               try{
+                  chunks.put (END);
+               }catch (InterruptedException ie){
+                  e.addSuppressed (ie);
+                  Thread.currentThread ().interrupt ();
+               }//end try
+               throw e;
+            }finally{
+               in.close ();
+            }//end try
+         }
+      };
+   }//end readChunks
+
+   // records the lines loaded so far, in the transaction of the chunk.
+   private static void recordProgress (PooledConnection pc, String table, long lines) throws SQLException {
+      PreparedStatement clear = pc.prepare ("DELETE FROM LoadProgress WHERE tableName = ?");
+      Cafe.bind (clear, table);
+      clear.executeUpdate ();
+      PreparedStatement record = pc.prepare ("INSERT INTO LoadProgress (tableName, linesLoaded) VALUES (?, ?)");
+      Cafe.bind (record, table, lines);
+      record.executeUpdate ();
+   }//end recordProgress
+
+   // COPY ... FROM STDIN through the driver's CopyManager.
+   private static void copy (Object copyManager, String table, List<String> lines) throws SQLException {
+      StringBuilder data = new StringBuilder(lines.size () * 64);
+      for (String line : lines)
+         data.append (line).append ('\n');
+      try{
+         Method copyIn = copyManager.getClass ().getMethod ("copyIn", String.class, Reader.class);
+         copyIn.invoke (copyManager, "COPY " + table + " FROM STDIN WITH DELIMITER ';'",
+                        new StringReader(data.toString ()));
+      }catch (InvocationTargetException e){
+         Throwable cause = e.getCause ();
+         if (cause instanceof SQLException)
+            throw (SQLException) cause;
+         throw new SQLException("COPY into " + table + " failed: " + cause);
+      }catch (ReflectiveOperationException e){
+         throw new SQLException("COPY into " + table + " failed: " + e);
+      }//end try
+   }//end copy
+
+   // multi-row INSERTs, sent as one JDBC batch per chunk.
+   private void insert (PooledConnection pc, String table, String[] columnTypes, List<String> lines) throws SQLException {
+      int full = lines.size () / this._rowsPerInsert * this._rowsPerInsert;
+      if (full > 0) {
+         PreparedStatement stmt = pc.prepare (insertSql (table, columnTypes, this._rowsPerInsert));
+         try{
+            for (int from = 0; from < full; from += this._rowsPerInsert) {
+               bindRows (stmt, table, columnTypes.length, lines, from, this._rowsPerInsert);
+               stmt.addBatch ();
+            }//end for
+            stmt.executeBatch ();
+         }finally{
+            stmt.clearBatch ();
+         }//end try
+      }//end if
+      int rest = lines.size () - full;
+      if (rest > 0) {
+         PreparedStatement stmt = pc.prepare (insertSql (table, columnTypes, rest));
+         bindRows (stmt, table, columnTypes.length, lines, full, rest);
+         stmt.executeUpdate ();
+      }//end if
+   }//end insert
+
+   private static void bindRows (PreparedStatement stmt, String table, int numCol,
+                                 List<String> lines, int from, int count) throws SQLException {
+      Object[] params = new Object[numCol * count];
+      for (int r = 0; r < count; ++r) {
+         String[] fields = parseLine (lines.get (from + r), numCol);
+         if (fields == null)
+            throw new SQLException("Malformed " + table + " row: " + lines.get (from + r));
+         System.arraycopy (fields, 0, params, r * numCol, numCol);
+      }//end for
+      Cafe.bind (stmt, params);
+   }//end bindRows
+
+   private static String insertSql (String table, String[] columnTypes, int rows) {
+      StringBuilder row = new StringBuilder("(");
+      for (int c = 0; c < columnTypes.length; ++c)
+         row.append (c == 0 ? "" : ", ").append ("CAST(? AS ").append (columnTypes[c]).append (')');
+      row.append (')');
+      StringBuilder sql = new StringBuilder("INSERT INTO ").append (table).append (" VALUES ");
+      for (int r = 0; r < rows; ++r)
+         sql.append (r == 0 ? "" : ", ").append (row);
+      return sql.toString ();
+   }//end insertSql
+
+   private static String[] columnTypes (PooledConnection pc, String table) throws SQLException {
+      Statement stmt = pc.getConnection ().createStatement ();
+      try{
+         ResultSet rs = stmt.executeQuery ("SELECT * FROM " + table + " WHERE false");
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         String[] types = new String[rsmd.getColumnCount ()];
+         for (int c = 0; c < types.length; ++c)
+            types[c] = rsmd.getColumnTypeName (c + 1);
+         return types;
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end columnTypes
+
+   /**
+    * Splits one line of COPY text format into its fields: fields are
+    * separated by ';', \N is NULL and backslash escapes are undone.
+    *
+    * @param line the line
+    * @param numCol the number of fields expected
+    * @return the fields, or null if the line does not have numCol fields
+    */
+   static String[] parseLine (String line, int numCol) {
+      String[] fields = new String[numCol];
+      StringBuilder field = new StringBuilder();
+      int col = 0;
+      int fieldStart = 0;
+      for (int i = 0; i <= line.length (); ++i) {
+         if (i == line.length () || line.charAt (i) == ';') {
+            if (col == numCol)
+               return null;
+            boolean isNull = i - fieldStart == 2 && line.startsWith ("\\N", fieldStart);
+            fields[col++] = isNull ? null : field.toString ();
+            field.setLength (0);
+            fieldStart = i + 1;
+            continue;
+         }//end if
+         char ch = line.charAt (i);
+         if (ch != '\\' || i + 1 == line.length ()) {
+            field.append (ch);
+            continue;
+         }//end if
+         char next = line.charAt (++i);
+         switch (next) {
+            case 'n': field.append ('\n'); break;
+            case 'r': field.append ('\r'); break;
+            case 't': field.append ('\t'); break;
+            case 'b': field.append ('\b'); break;
+            case 'f': field.append ('\f'); break;
+            case 'v': field.append ('\u000b'); break;
+            default: field.append (next); break;
+         }//end switch
+      }//end for
+      return col == numCol ? fields : null;
+   }//end parseLine
+
+   /**
+    * Returns the driver's CopyManager for a connection, or null when the
+    * driver does not support the COPY protocol.  It is looked up by
+    * reflection so the program still builds and runs against drivers that
+    * predate it.
+    */
+   static Object copyManager (Connection connection) {
+      try{
+         Class<?> pgConnection = Class.forName ("org.postgresql.PGConnection");
+         if (!pgConnection.isInstance (connection))
+            return null;
+         return pgConnection.getMethod ("getCopyAPI").invoke (connection);
+      }catch (Exception e){
+         return null;
+      }catch (LinkageError e){
+         return null;
+      }//end try
+   }//end copyManager
+
+   private static <T> T await (Future<T> future) throws SQLException {
+      try{
+         return future.get ();
+      }catch (InterruptedException e){
+         Thread.currentThread ().interrupt ();
+         throw new SQLException("Interrupted while loading");
+      }catch (ExecutionException e){
+         Throwable cause = e.getCause ();
+         if (cause instanceof SQLException)
+            throw (SQLException) cause;
+         throw new SQLException("Load failed: " + cause);
+      }//end try
+   }//end await
+
+}//end DataLoader
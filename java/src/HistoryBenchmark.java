@@ -0,0 +1,122 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class shows how the cost of reading a page of order history grows
+ * with the page number, for keyset pages as OrderHistory reads them and for
+ * the same pages read with OFFSET.  It gives one user enough orders for
+ * the deepest page asked for, one item each, reads a number of pages at
+ * each depth both ways, and deletes the user and the orders at the end.
+ *
+ * It writes a large number of orders, so it is meant for a test database
+ * only.
+ *
+ */
+public class HistoryBenchmark {
+
+   private static final String OFFSET_QUERY = String.format (OrderHistory.PAGE_QUERY,
+      "", "DESC", "DESC", "LIMIT ? OFFSET ?");
+
+   // the cursor of the last order of the page before a given page.
+   private static final String CURSOR_QUERY =
+      "SELECT CAST(timeStampRecieved AS text), orderid FROM Orders WHERE login = ? "
+      + "ORDER BY timeStampRecieved DESC, orderid DESC LIMIT 1 OFFSET ?";
+
+   private final Cafe _esql;
+   private final int _pageSize;
+   private final int _maxPage;
+   private final int _reads;
+
+   /**
+    * Creates a new benchmark
+    *
+    * @param esql the test database
+    * @param pageSize orders per page
+    * @param maxPage the deepest page read
+    * @param reads reads of each page, each way
+    */
+   public HistoryBenchmark(Cafe esql, int pageSize, int maxPage, int reads) {
+      this._esql = esql;
+      this._pageSize = Math.max(1, pageSize);
+      this._maxPage = Math.max(1, maxPage);
+      this._reads = Math.max(1, reads);
+   }//end HistoryBenchmark
+
+   /**
+    * Runs the benchmark and prints the results.
+    */
+   public void run () throws SQLException {
+      List<MenuCatalog.Item> menu = this._esql.getMenuCatalog ().items ();
+      if (menu.isEmpty ())
+         throw new SQLException("The benchmark needs rows in Menu");
+      String login = "histbench" + Long.toString (System.currentTimeMillis (), 36);
+      int orders = this._pageSize * this._maxPage;
+
+      this._esql.createUser (login, "histbench", null);
+      try{
+         System.out.println ("Adding " + orders + " orders for " + login);
+         // one second apart, newest now; the ids come from the sequence so
+         // they never meet ids already handed out by the allocator.
+         this._esql.executeUpdate (
+            "INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total) "
+            + "SELECT nextval('" + OrderIdAllocator.SEQUENCE + "'), ?, true, "
+            + "now() - g * interval '1 second', ? FROM generate_series(1, ?) g",
+            login, (double) menu.get (0).price, orders);
+         this._esql.executeUpdate (
+            "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) "
+            + "SELECT orderid, ?, timeStampRecieved, ?, '' FROM Orders WHERE login = ?",
+            menu.get (0).itemName, Cafe.STATUS_RECEIVED, login);
+         this._esql.executeUpdate ("ANALYZE Orders");
+         this._esql.executeUpdate ("ANALYZE ItemStatus");
+
+         StringBuilder report = new StringBuilder();
+         report.append (String.format ("%10s %12s %12s %12s %12s%n",
+            "page", "keyset p50", "keyset p99", "offset p50", "offset p99"));
+         OrderHistory history = new OrderHistory(this._esql, this._pageSize);
+         for (int page : pages ()) {
+            LatencyHistogram keyset = new LatencyHistogram();
+            LatencyHistogram offset = new LatencyHistogram();
+            String cursor = null;
+            if (page > 1) {
+               ResultTable last = this._esql.executeQueryAndReturnResult (
+                  CURSOR_QUERY, login, (page - 1) * this._pageSize - 1);
+               cursor = last.getString (0, 0) + "," + last.getInt (0, 1);
+            }//end if
+            for (int i = 0; i < this._reads; ++i) {
+               long t0 = System.nanoTime ();
+               OrderHistory.Page read = cursor == null ? history.first (login) : history.older (login, cursor);
+               keyset.recordSince (t0);
+               if (read.orders.size () != this._pageSize)
+                  throw new SQLException("Page " + page + " has " + read.orders.size () + " orders");
+               t0 = System.nanoTime ();
+               this._esql.executeQuery (OFFSET_QUERY, login, this._pageSize + 1, (page - 1) * this._pageSize);
+               offset.recordSince (t0);
+            }//end for
+            System.out.println ("page " + page + " keyset " + keyset.summary ());
+            System.out.println ("page " + page + " offset " + offset.summary ());
+            report.append (String.format ("%10d %12.3f %12.3f %12.3f %12.3f%n", page,
+               keyset.percentileNanos (0.5) / 1e6, keyset.percentileNanos (0.99) / 1e6,
+               offset.percentileNanos (0.5) / 1e6, offset.percentileNanos (0.99) / 1e6));
+         }//end for
+         System.out.println ();
+         System.out.print (report);
+         System.out.println ("latencies in ms, " + this._pageSize + " orders per page");
+      }finally{
+         this._esql.executeUpdate ("DELETE FROM ItemStatus WHERE orderid IN "
+            + "(SELECT orderid FROM Orders WHERE login = ?)", login);
+         this._esql.executeUpdate ("DELETE FROM Orders WHERE login = ?", login);
+         this._esql.executeUpdate ("DELETE FROM USERS WHERE login = ?", login);
+      }//end try
+   }//end run
+
+   // 1, 10, 100, ... up to the deepest page, which is always included.
+   private List<Integer> pages () {
+      List<Integer> pages = new ArrayList<Integer>();
+      for (long page = 1; page < this._maxPage; page *= 10)
+         pages.add ((int) page);
+      pages.add (this._maxPage);
+      return pages;
+   }//end pages
+
+}//end HistoryBenchmark
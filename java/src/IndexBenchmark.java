@@ -0,0 +1,221 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * This class measures what each set of secondary indexes costs the order
+ * workload.  For every index profile it drops the secondary indexes, creates
+ * the profile's indexes from its script in sql/src, places a number of orders
+ * the same way PlaceOrder does, runs the application's lookups against them,
+ * and reports insert throughput, lookup latencies and the size of the
+ * indexes.  The orders it placed are deleted afterwards and the current
+ * profile is put back at the end.
+ *
+ * It changes the schema and writes orders, so it is meant for a test
+ * database only.
+ *
+ */
+public class IndexBenchmark {
+
+   // profile name to the script that creates its indexes; "none" keeps only
+   // the primary keys.
+   static final Map<String, String> PROFILES = new LinkedHashMap<String, String>();
+   static {
+      PROFILES.put ("current", "create_indexes.sql");
+      PROFILES.put ("minimal", "create_indexes_minimal.sql");
+      PROFILES.put ("covering", "create_indexes_covering.sql");
+      PROFILES.put ("none", null);
+   }
+
+   private static final String INDEX_SIZE_QUERY =
+      "SELECT COALESCE(SUM(pg_relation_size(i.indexrelid)), 0), COUNT(*) "
+      + "FROM pg_index i JOIN pg_class t ON t.oid = i.indrelid "
+      + "WHERE t.relname IN ('users', 'menu', 'orders', 'itemstatus')";
+
+   private final Cafe _esql;
+   private final File _sqlDir;
+   private final int _orders;
+   private final int _lookups;
+   private final Random _random = new Random(166);
+
+   /**
+    * Creates a new benchmark
+    *
+    * @param esql the test database
+    * @param sqlDir the directory holding the create_indexes*.sql scripts
+    * @param orders orders placed per profile
+    * @param lookups executions of each lookup per profile
+    */
+   public IndexBenchmark(Cafe esql, File sqlDir, int orders, int lookups) {
+      this._esql = esql;
+      this._sqlDir = sqlDir;
+      this._orders = orders;
+      this._lookups = lookups;
+   }//end IndexBenchmark
+
+   /**
+    * Runs the workload against each named profile and prints the results.
+    *
+    * @param profiles profile names; all profiles when empty
+    */
+   public void run (List<String> profiles) throws SQLException, IOException {
+      if (profiles.isEmpty ())
+         profiles = new ArrayList<String>(PROFILES.keySet ());
+      for (String profile : profiles)
+         if (!PROFILES.containsKey (profile))
+            throw new IllegalArgumentException("Unknown index profile " + profile
+               + ", expected one of " + PROFILES.keySet ());
+
+      List<String> logins = new ArrayList<String>();
+      for (ResultTable.Row row : this._esql.executeQueryAndReturnResult (
+               "SELECT login FROM Users ORDER BY login LIMIT 2000"))
+         logins.add (row.getString (0));
+      List<MenuCatalog.Item> menu = this._esql.getMenuCatalog ().items ();
+      if (logins.isEmpty () || menu.isEmpty ())
+         throw new SQLException("The benchmark needs rows in Users and Menu");
+
+      StringBuilder report = new StringBuilder();
+      report.append (String.format ("%-10s %10s %10s %10s %10s %10s %10s %10s %8s%n",
+         "profile", "orders/s", "ins p50", "ins p99", "hist p99", "unpaid p99",
+         "order p99", "items p99", "idx MB"));
+      try{
+         for (String profile : profiles)
+            report.append (runProfile (profile, logins, menu));
+      }finally{
+         System.out.println ("Restoring the current index profile");
+         apply ("current");
+      }//end try
+      System.out.println ();
+      System.out.print (report);
+      System.out.println ("latencies in ms");
+   }//end run
+
+   private String runProfile (String profile, List<String> logins, List<MenuCatalog.Item> menu) throws SQLException, IOException {
+      System.out.println ("Index profile " + profile);
+      apply (profile);
+      this._esql.executeUpdate ("ANALYZE Orders");
+      this._esql.executeUpdate ("ANALYZE ItemStatus");
+
+      LatencyHistogram inserts = new LatencyHistogram();
+      List<Integer> placed = new ArrayList<Integer>(this._orders);
+      long start = System.nanoTime ();
+      try{
+         for (int i = 0; i < this._orders; ++i) {
+            Cart cart = randomCart (menu);
+            String login = logins.get (this._random.nextInt (logins.size ()));
+            long t0 = System.nanoTime ();
+            placed.add (this._esql.placeOrder (login, cart).orderid);
+            inserts.recordSince (t0);
+         }//end for
+         double seconds = (System.nanoTime () - start) / 1e9;
+
+         OrderHistory orderHistory = new OrderHistory(this._esql, Cafe.HISTORY_PAGE_SIZE);
+         LatencyHistogram history = new LatencyHistogram();
+         LatencyHistogram unpaid = new LatencyHistogram();
+         LatencyHistogram order = new LatencyHistogram();
+         LatencyHistogram items = new LatencyHistogram();
+         for (int i = 0; i < this._lookups; ++i) {
+            String login = logins.get (this._random.nextInt (logins.size ()));
+            int orderid = placed.isEmpty () ? 0 : placed.get (this._random.nextInt (placed.size ()));
+            long t0 = System.nanoTime ();
+            orderHistory.first (login);
+            history.recordSince (t0);
+            t0 = System.nanoTime ();
+            this._esql.executeQuery (Cafe.UNPAID_ORDERS_QUERY);
+            unpaid.recordSince (t0);
+            t0 = System.nanoTime ();
+            this._esql.executeQuery (Cafe.ORDER_QUERY, orderid);
+            order.recordSince (t0);
+            t0 = System.nanoTime ();
+            this._esql.executeQuery (Cafe.ORDER_ITEMS_QUERY, orderid);
+            items.recordSince (t0);
+         }//end for
+
+         ResultTable size = this._esql.executeQueryAndReturnResult (INDEX_SIZE_QUERY);
+         System.out.println ("  inserts " + inserts.summary ());
+         System.out.println ("  history " + history.summary ());
+         System.out.println ("  unpaid  " + unpaid.summary ());
+         System.out.println ("  order   " + order.summary ());
+         System.out.println ("  items   " + items.summary ());
+         System.out.println ("  " + size.getLong (0, 1) + " indexes, " + size.getLong (0, 0) + " bytes");
+
+         return String.format ("%-10s %10.1f %10.3f %10.3f %10.3f %10.3f %10.3f %10.3f %8.2f%n",
+            profile, this._orders / Math.max(seconds, 1e-9),
+            inserts.percentileNanos (0.5) / 1e6, inserts.percentileNanos (0.99) / 1e6,
+            history.percentileNanos (0.99) / 1e6, unpaid.percentileNanos (0.99) / 1e6,
+            order.percentileNanos (0.99) / 1e6, items.percentileNanos (0.99) / 1e6,
+            size.getLong (0, 0) / (1024.0 * 1024.0));
+      }finally{
+         deleteOrders (placed);
+      }//end try
+   }//end runProfile
+
+   private Cart randomCart (List<MenuCatalog.Item> menu) {
+      Cart cart = new Cart();
+      int items = 1 + this._random.nextInt (Math.min(4, menu.size ()));
+      while (cart.size () < items)
+         cart.add (menu.get (this._random.nextInt (menu.size ())).itemName, "");
+      return cart;
+   }//end randomCart
+
+   private void deleteOrders (List<Integer> orderids) throws SQLException {
+      for (Integer orderid : orderids) {
+         this._esql.executeUpdate ("DELETE FROM ItemStatus WHERE orderid=?", orderid);
+         this._esql.executeUpdate ("DELETE FROM Orders WHERE orderid=?", orderid);
+         this._esql.getUnpaidOrders ().removed (orderid);
+      }//end for
+   }//end deleteOrders
+
+   private void apply (String profile) throws SQLException, IOException {
+      runScript (this._esql, new File(this._sqlDir, "drop_indexes.sql"));
+      String script = PROFILES.get (profile);
+      if (script != null)
+         runScript (this._esql, new File(this._sqlDir, script));
+   }//end apply
+
+   /**
+    * Runs the statements of a SQL script, one at a time.  Statements end
+    * with ';' and lines starting with '--' are skipped.
+    *
+    * @param esql the database
+    * @param script the script file
+    */
+   static void runScript (Cafe esql, File script) throws SQLException, IOException {
+      StringBuilder sql = new StringBuilder();
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(script), "UTF-8"));
+      try{
+         String line;
+         while ((line = in.readLine ()) != null) {
+            if (!line.trim ().startsWith ("--"))
+               sql.append (line).append ('\n');
+         }//end while
+      }finally{
+         in.close ();
+      }//end try
+
+      PooledConnection pc = esql.borrowConnection ();
+      try{
+         Statement stmt = pc.getConnection ().createStatement ();
+         try{
+            for (String statement : sql.toString ().split (";")) {
+               if (statement.trim ().length () > 0)
+                  stmt.executeUpdate (statement);
+            }//end for
+         }finally{
+            stmt.close ();
+         }//end try
+      }finally{
+         esql.releaseConnection (pc);
+      }//end try
+   }//end runScript
+
+}//end IndexBenchmark
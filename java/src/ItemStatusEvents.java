@@ -0,0 +1,364 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class tells subscribers when ordered items change status, without
+ * them querying ItemStatus again.  A trigger on ItemStatus sends a
+ * notification on the item_status channel for every status change,
+ * whoever made it, and one with no payload for every statement that
+ * orders items; a background thread holds one connection of its own that
+ * LISTENs on the channel and hands each change to the subscribers it
+ * concerns: customers get the changes to their own orders, employees and
+ * managers get all of them.
+ *
+ * Drivers that can wait for a notification (pgjdbc 42.2 and later) are
+ * left waiting on the socket.  Older drivers only read notifications that
+ * arrive with a query result, so the thread sends a trivial query every
+ * poll interval instead; it touches no table.  The thread only runs while
+ * there are subscribers, so nothing polls when nobody follows the items.
+ *
+ * The payload of a notification needs a 9.0 or later driver.  With older
+ * drivers, such as the bundled pg73 one, and for newly ordered items, a
+ * notification only wakes the thread, which then reads the ItemStatus rows
+ * changed since the newest lastUpdated it has seen; the notifications
+ * that arrive together cost one read.  A change committed later than a newer one but
+ * stamped earlier can be missed this way.
+ *
+ * If the connection is lost the thread opens another one; changes made
+ * while it was down are not told.
+ *
+ */
+public class ItemStatusEvents {
+
+   static final String CHANNEL = "item_status";
+
+   // the items changed after a time, oldest first.
+   private static final String CHANGES =
+      "SELECT i.orderid, rtrim(o.login), rtrim(i.itemName), rtrim(i.status), CAST(i.lastUpdated AS text) "
+      + "FROM ItemStatus i JOIN Orders o ON o.orderid = i.orderid "
+      + "WHERE i.lastUpdated > CAST(? AS timestamp) ORDER BY i.lastUpdated";
+
+   /**
+    * One change of status of one ordered item.
+    */
+   public static final class Event {
+      public final int orderid;
+      public final String login;
+      public final String itemName;
+      public final String status;
+      public final String lastUpdated;
+
+      Event(int orderid, String login, String itemName, String status, String lastUpdated) {
+         this.orderid = orderid;
+         this.login = login;
+         this.itemName = itemName;
+         this.status = status;
+         this.lastUpdated = lastUpdated;
+      }
+
+      public String toString () {
+         return "Order " + this.orderid + ": " + this.itemName + " is now " + this.status;
+      }
+   }//end Event
+
+   /**
+    * Told about the changes it subscribed to, on the listener thread.
+    * Subscribers must be quick and must not throw.
+    */
+   public interface Subscriber {
+      void itemStatusChanged (Event event);
+   }//end Subscriber
+
+   // a subscriber and the login whose orders it follows; null for all.
+   private static final class Subscription {
+      final String login;
+      final Subscriber subscriber;
+
+      Subscription(String login, Subscriber subscriber) {
+         this.login = login;
+         this.subscriber = subscriber;
+      }
+   }//end Subscription
+
+   private final Cafe _esql;
+   private final long _pollMillis;
+   private final List<Subscription> _subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+   private Thread _thread = null;
+   private volatile boolean _stopped = false;
+   private volatile Connection _connection = null;
+
+   // counters, for the benchmark and the stats line.
+   private volatile long _events = 0;
+   private volatile long _polls = 0;
+   private volatile long _reconnects = 0;
+
+   // the newest lastUpdated told, as text; used by the listener thread only.
+   private String _since = null;
+
+   /**
+    * Creates a new, stopped listener.
+    *
+    * @param esql the database
+    * @param pollMillis how often drivers that cannot wait for a
+    *        notification ask for one
+    */
+   public ItemStatusEvents(Cafe esql, long pollMillis) {
+      this._esql = esql;
+      this._pollMillis = Math.max(1, pollMillis);
+   }//end ItemStatusEvents
+
+   /**
+    * Follows the items of one user's orders, or of every order for
+    * employees and managers.  Starts the listener thread if it is not
+    * running.
+    *
+    * @param session the user
+    * @param subscriber told about each change
+    */
+   public void subscribe (Session session, Subscriber subscriber) {
+      subscribe (session.isStaff () ? null : session.getLogin (), subscriber);
+   }//end subscribe
+
+   /**
+    * Follows the items of one user's orders.
+    *
+    * @param login the user, or null for every order
+    * @param subscriber told about each change
+    */
+   public synchronized void subscribe (String login, Subscriber subscriber) {
+      this._subscriptions.add (new Subscription(login, subscriber));
+      if (this._thread == null && !this._stopped) {
+         this._thread = new Thread(new Runnable() {
+            public void run () {
+               listen ();
+            }
+         }, "item-status-events");
+         this._thread.setDaemon (true);
+         this._thread.start ();
+      }//end if
+   }//end subscribe
+
+   /**
+    * Stops telling a subscriber; the listener thread ends with the last one.
+    */
+   public synchronized void unsubscribe (Subscriber subscriber) {
+      for (Subscription subscription : this._subscriptions)
+         if (subscription.subscriber == subscriber)
+            this._subscriptions.remove (subscription);
+      if (this._subscriptions.isEmpty () && this._thread != null) {
+         this._thread.interrupt ();
+         this._thread = null;
+      }//end if
+   }//end unsubscribe
+
+   /**
+    * Stops the listener thread and closes its connection.
+    */
+   public void stop () {
+      Thread thread;
+      synchronized (this) {
+         this._stopped = true;
+         thread = this._thread;
+      }
+      if (thread == null)
+         return;
+      thread.interrupt ();
+      close (this._connection);
+      try{
+         thread.join (1000);
+      }catch (InterruptedException e){
+         Thread.currentThread ().interrupt ();
+      }//end try
+   }//end stop
+
+   public String stats () {
+      return String.format ("item status events: %d events, %d polls, %d reconnects",
+         this._events, this._polls, this._reconnects);
+   }//end stats
+
+   long events () {
+      return this._events;
+   }
+
+   long polls () {
+      return this._polls;
+   }
+
+   // true while the calling thread is the listener thread that should run.
+   private synchronized boolean listening () {
+      return !this._stopped && this._thread == Thread.currentThread ();
+   }
+
+   // the listener thread: (re)connects, LISTENs and hands out notifications.
+   private void listen () {
+      long backoff = 100;
+      while (listening ()) {
+         Connection connection = null;
+         try{
+            connection = this._esql.openConnection ();
+            this._connection = connection;
+            Statement stmt = connection.createStatement ();
+            PreparedStatement changes = null;
+            try{
+               stmt.execute ("LISTEN " + CHANNEL);
+               if (this._since == null)
+                  this._since = now (stmt);
+               Method wait = waitMethod (connection);
+               backoff = 100;
+               while (listening ()) {
+                  Object[] notifications;
+                  if (wait != null) {
+                     notifications = (Object[]) wait.invoke (connection, (int) Math.max(this._pollMillis, 1000));
+                  }else {
+                     stmt.execute ("SELECT 1");
+                     ++this._polls;
+                     notifications = notifications (connection);
+                     if (notifications == null || notifications.length == 0)
+                        Thread.sleep (this._pollMillis);
+                  }//end if
+                  boolean woken = false;
+                  if (notifications != null)
+                     for (Object notification : notifications)
+                        woken |= !deliver (notification);
+                  if (woken) {
+                     if (changes == null)
+                        changes = connection.prepareStatement (CHANGES);
+                     reread (changes);
+                  }//end if
+               }//end while
+            }finally{
+               if (changes != null)
+                  changes.close ();
+               stmt.close ();
+            }//end try
+         }catch (InterruptedException e){
+            break;
+         }catch (Exception e){
+            if (!listening ())
+               break;
+            ++this._reconnects;
+            Throwable cause = e instanceof InvocationTargetException ? e.getCause () : e;
+            System.err.println ("Item status listener: " + cause.getMessage () + "; reconnecting");
+            try{
+               Thread.sleep (backoff);
+            }catch (InterruptedException ie){
+               break;
+            }//end try
+            backoff = Math.min(backoff * 2, 10000);
+         }finally{
+            close (connection);
+            this._connection = null;
+         }//end try
+      }//end while
+   }//end listen
+
+   // hands out the change in a notification; false if it has no payload
+   // and the changes must be read from ItemStatus.
+   private boolean deliver (Object notification) {
+      String payload = payload (notification);
+      if (payload == null || payload.length () == 0)
+         return false;
+      Map<?, ?> fields;
+      try{
+         fields = (Map<?, ?>) Json.parse (payload);
+      }catch (RuntimeException e){
+         System.err.println ("Item status listener: bad payload " + payload);
+         return true;
+      }//end try
+      Object orderid = fields.get ("orderid");
+      Event event = new Event(orderid instanceof Number ? ((Number) orderid).intValue () : -1,
+         (String) fields.get ("login"), (String) fields.get ("itemName"),
+         (String) fields.get ("status"), (String) fields.get ("lastUpdated"));
+      deliver (event);
+      // JSON writes a T between date and time; as text the times then
+      // compare in time order.
+      String told = event.lastUpdated == null ? null : event.lastUpdated.replace ('T', ' ');
+      if (told != null && (this._since == null || told.compareTo (this._since) > 0))
+         this._since = told;
+      return true;
+   }//end deliver
+
+   private void deliver (Event event) {
+      ++this._events;
+      for (Subscription subscription : this._subscriptions)
+         if (subscription.login == null || subscription.login.equals (event.login))
+            subscription.subscriber.itemStatusChanged (event);
+   }//end deliver
+
+   // hands out the items changed after the newest one told.
+   private void reread (PreparedStatement changes) throws SQLException {
+      changes.setString (1, this._since);
+      ResultSet rs = changes.executeQuery ();
+      try{
+         while (rs.next ()) {
+            this._since = rs.getString (5);
+            deliver (new Event(rs.getInt (1), rs.getString (2), rs.getString (3), rs.getString (4), this._since));
+         }//end while
+      }finally{
+         rs.close ();
+      }//end try
+   }//end reread
+
+   private static String now (Statement stmt) throws SQLException {
+      ResultSet rs = stmt.executeQuery ("SELECT CAST(now() AS text)");
+      try{
+         rs.next ();
+         return rs.getString (1);
+      }finally{
+         rs.close ();
+      }//end try
+   }//end now
+
+   // PGConnection.getNotifications(int), which waits, where the driver has it.
+   private static Method waitMethod (Connection connection) {
+      try{
+         Class<?> pgConnection = Class.forName ("org.postgresql.PGConnection");
+         if (!pgConnection.isInstance (connection))
+            return null;
+         return pgConnection.getMethod ("getNotifications", int.class);
+      }catch (Exception e){
+         return null;
+      }catch (LinkageError e){
+         return null;
+      }//end try
+   }//end waitMethod
+
+   // PGConnection.getNotifications(), which returns what was already read.
+   private static Object[] notifications (Connection connection) throws Exception {
+      Class<?> pgConnection = Class.forName ("org.postgresql.PGConnection");
+      return (Object[]) pgConnection.getMethod ("getNotifications").invoke (connection);
+   }//end notifications
+
+   // PGNotification.getParameter(), null on drivers without payloads.
+   private static String payload (Object notification) {
+      try{
+         Class<?> pgNotification = Class.forName ("org.postgresql.PGNotification");
+         return (String) pgNotification.getMethod ("getParameter").invoke (notification);
+      }catch (Exception e){
+         return null;
+      }catch (LinkageError e){
+         return null;
+      }//end try
+   }//end payload
+
+   private static void close (Connection connection) {
+      if (connection == null)
+         return;
+      try{
+         connection.close ();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end close
+
+}//end ItemStatusEvents
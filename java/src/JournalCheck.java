@@ -0,0 +1,301 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class checks that the order journal loses no confirmed order when
+ * the process writing it dies.  It starts a second java process that
+ * places orders through a journal and halts itself in the middle of a
+ * flush, then opens the journal the way a restarted program would, lets it
+ * replay, and checks that every order the other process confirmed is in
+ * the database with all its items.
+ *
+ * It runs two rounds: one halting after the Orders rows of a batch were
+ * sent and before its ItemStatus rows and commit, and one halting right
+ * after a commit, before the journal saved how far it got, so the replay
+ * writes orders that are already there and must skip them.  A last round
+ * journals an order for an item deleted from the menu before the flush;
+ * it must be set aside in journal-rejected.log, and the orders around it
+ * written.
+ *
+ * The orders, the user and the journal files it makes are deleted at the
+ * end.
+ *
+ */
+public class JournalCheck {
+
+   private static final String[] HALT_POINTS = { "mid-batch:3", "after-commit:2" };
+   // the exit status of a process halted by the journal.
+   private static final int HALTED = 3;
+   private static final long CHILD_TIMEOUT_MILLIS = 5 * 60 * 1000L;
+   private static final long REPLAY_TIMEOUT_MILLIS = 60 * 1000L;
+
+   private final Cafe _esql;
+   private final String[] _connection;
+   private final int _orders;
+   private final int _batchSize;
+
+   /**
+    * Creates a new check
+    *
+    * @param esql the test database
+    * @param connection the database name, port and user, for the process
+    *        that is halted
+    * @param orders orders placed by that process in each round
+    * @param batchSize orders per flush batch
+    */
+   public JournalCheck(Cafe esql, String[] connection, int orders, int batchSize) {
+      this._esql = esql;
+      this._connection = connection;
+      this._batchSize = Math.max(1, batchSize);
+      // enough orders to reach the halting batch.
+      this._orders = Math.max(4 * this._batchSize, orders);
+   }//end JournalCheck
+
+   /**
+    * Runs the check and prints the results.
+    *
+    * @return true if every confirmed order was found once with its items
+    */
+   public boolean run () throws Exception {
+      String tag = Long.toString (System.currentTimeMillis (), 36);
+      String login = "journalcheck" + tag;
+      File dir = new File(System.getProperty ("java.io.tmpdir"), "cafe-journal-" + tag);
+      this._esql.createUser (login, "journalcheck", null);
+      Map<Integer, Integer> confirmed = new HashMap<Integer, Integer>();
+      boolean ok = true;
+      try{
+         for (int round = 0; round < HALT_POINTS.length; ++round)
+            ok &= round (login, new File(dir, "round-" + (round + 1)), HALT_POINTS[round], confirmed);
+         ok &= refusedRound (login, new File(dir, "refused"), "journalcheck-" + tag);
+         System.out.println (ok ? "PASS: every confirmed order was replayed into the database once" : "FAIL");
+         return ok;
+      }finally{
+         this._esql.executeUpdate ("DELETE FROM ItemStatus WHERE orderid IN "
+            + "(SELECT orderid FROM Orders WHERE login = ?)", login);
+         this._esql.executeUpdate ("DELETE FROM Orders WHERE login = ?", login);
+         this._esql.executeUpdate ("DELETE FROM USERS WHERE login = ?", login);
+         for (int id : confirmed.keySet ())
+            this._esql.getUnpaidOrders ().removed (id);
+         delete (dir);
+      }//end try
+   }//end run
+
+   private boolean round (String login, File dir, String haltAt, Map<Integer, Integer> confirmed) throws Exception {
+      System.out.println ();
+      System.out.println ("Placing " + this._orders + " journaled orders, halting " + haltAt);
+      if (!dir.mkdirs ())
+         throw new SQLException("Cannot create " + dir);
+      File output = new File(dir, "fill.out");
+      List<String> command = new ArrayList<String>();
+      command.add (new File(new File(System.getProperty ("java.home"), "bin"), "java").getPath ());
+      command.add ("-cp");
+      command.add (System.getProperty ("java.class.path"));
+      command.add ("-Dcafe.journal=" + dir.getPath ());
+      command.add ("-Dcafe.journal.batchSize=" + this._batchSize);
+      command.add ("-Dcafe.journal.haltAt=" + haltAt);
+      command.add ("-Dcafe.queryStats.file=" + new File(dir, "query-stats.json").getPath ());
+      command.add ("-Dcafe.slowQueryLog=" + new File(dir, "slow-queries.log").getPath ());
+      command.add (Cafe.class.getName ());
+      for (String arg : this._connection)
+         command.add (arg);
+      command.add ("journal-fill");
+      command.add (login);
+      command.add (Integer.toString (this._orders));
+      ProcessBuilder builder = new ProcessBuilder(command);
+      builder.redirectErrorStream (true);
+      builder.redirectOutput (output);
+      Process child = builder.start ();
+      int status = waitFor (child);
+
+      // the orders confirmed before the halt; the child prints each one as
+      // soon as placeOrder returns.
+      int placed = 0;
+      BufferedReader lines = new BufferedReader(new FileReader(output));
+      try{
+         String line;
+         while ((line = lines.readLine ()) != null) {
+            if (line.startsWith ("placed ")) {
+               String[] fields = line.split (" ");
+               confirmed.put (Integer.valueOf (fields[1]), Integer.valueOf (fields[2]));
+               ++placed;
+            }else if (line.startsWith ("Order journal"))
+               System.out.println ("  child: " + line);
+         }//end while
+      }finally{
+         lines.close ();
+      }//end try
+      System.out.println (placed + " orders confirmed before the process exited with status " + status);
+      boolean ok = true;
+      if (status != HALTED) {
+         System.out.println ("The process was not halted where expected; see " + output);
+         ok = false;
+      }//end if
+
+      // what a restarted program does.
+      OrderJournal journal = new OrderJournal(this._esql, dir, 64 << 20, OrderJournal.FSYNC_INTERVAL,
+         100L, this._batchSize, 20L);
+      long replayed = journal.replayed ();
+      journal.start ();
+      try{
+         journal.awaitFlushed (REPLAY_TIMEOUT_MILLIS);
+      }finally{
+         journal.close (REPLAY_TIMEOUT_MILLIS);
+      }//end try
+      System.out.println (replayed + " journaled orders replayed, " + journal.rejected () + " refused");
+      ok &= journal.rejected () == 0;
+
+      // nothing may be left to replay.
+      OrderJournal reopened = new OrderJournal(this._esql, dir, 64 << 20, OrderJournal.FSYNC_NEVER,
+         100L, this._batchSize, 20L);
+      reopened.close (0);
+      if (reopened.replayed () != 0) {
+         System.out.println (reopened.replayed () + " orders still unflushed after the replay");
+         ok = false;
+      }//end if
+
+      ResultTable rows = this._esql.executeQueryAndReturnResult (
+         "SELECT o.orderid, COUNT(i.itemName) FROM Orders o LEFT JOIN ItemStatus i ON i.orderid = o.orderid "
+         + "WHERE o.login = ? GROUP BY o.orderid", login);
+      Map<Integer, Long> stored = new HashMap<Integer, Long>();
+      for (ResultTable.Row row : rows)
+         stored.put (row.getInt (0), row.getLong (1));
+      int missing = 0, partial = 0;
+      for (Map.Entry<Integer, Integer> order : confirmed.entrySet ()) {
+         Long items = stored.get (order.getKey ());
+         if (items == null)
+            ++missing;
+         else if (items.longValue () != order.getValue ().intValue ())
+            ++partial;
+      }//end for
+      System.out.println (String.format ("%d confirmed orders so far: %d in the database, %d missing, "
+         + "%d without all their items", confirmed.size (), confirmed.size () - missing - partial,
+         missing, partial));
+      return ok && missing == 0 && partial == 0;
+   }//end round
+
+   // journals orders around one for an item deleted before they are
+   // flushed, and checks that only that one is refused.
+   private boolean refusedRound (String login, File dir, String itemName) throws Exception {
+      System.out.println ();
+      System.out.println ("Journaling orders around one for an item deleted before the flush");
+      MenuCatalog catalog = this._esql.getMenuCatalog ();
+      List<MenuCatalog.Item> menu = catalog.items ();
+      if (menu.isEmpty ())
+         throw new SQLException("The check needs rows in Menu");
+      String kept = menu.get (0).itemName;
+      this._esql.executeUpdate ("INSERT INTO Menu (itemName, type, price) VALUES (?, 'journalcheck', 1)", itemName);
+      catalog.invalidate ();
+      List<Integer> written = new ArrayList<Integer>();
+      int refused = -1;
+      OrderJournal journal = new OrderJournal(this._esql, dir, 64 << 20, OrderJournal.FSYNC_NEVER,
+         100L, this._batchSize, 20L);
+      try{
+         for (int i = 0; i < 2 * this._batchSize; ++i) {
+            Cart cart = new Cart();
+            cart.add (kept, "order " + i);
+            if (i == this._batchSize / 2)
+               cart.add (itemName, "refused");
+            Order order = journal.place (login, cart);
+            if (i == this._batchSize / 2)
+               refused = order.orderid;
+            else
+               written.add (order.orderid);
+         }//end for
+         this._esql.executeUpdate ("DELETE FROM Menu WHERE itemName = ?", itemName);
+         catalog.invalidate ();
+         journal.start ();
+         journal.awaitFlushed (REPLAY_TIMEOUT_MILLIS);
+      }finally{
+         journal.close (REPLAY_TIMEOUT_MILLIS);
+         this._esql.executeUpdate ("DELETE FROM Menu WHERE itemName = ?", itemName);
+         catalog.invalidate ();
+      }//end try
+
+      ResultTable rows = this._esql.executeQueryAndReturnResult (
+         "SELECT orderid FROM Orders WHERE login = ?", login);
+      Set<Integer> stored = new HashSet<Integer>();
+      for (ResultTable.Row row : rows)
+         stored.add (row.getInt (0));
+      int missing = 0;
+      for (int orderid : written)
+         if (!stored.contains (orderid))
+            ++missing;
+      boolean logged = false;
+      File log = new File(dir, "journal-rejected.log");
+      if (log.isFile ()) {
+         BufferedReader lines = new BufferedReader(new FileReader(log));
+         try{
+            String line;
+            while ((line = lines.readLine ()) != null)
+               logged |= line.contains (";" + refused + ";");
+         }finally{
+            lines.close ();
+         }//end try
+      }//end if
+      System.out.println (String.format ("%d refused, order %d %s journal-rejected.log, %d of %d other orders written",
+         journal.rejected (), refused, logged ? "in" : "missing from", written.size () - missing, written.size ()));
+      return journal.rejected () == 1 && logged && !stored.contains (refused) && missing == 0;
+   }//end refusedRound
+
+   /**
+    * Places orders through the order journal and prints "placed <orderid>
+    * <items>" for each as soon as it is confirmed; run in the process the
+    * check halts.
+    *
+    * @param esql a database opened with an order journal
+    * @param login the customer
+    * @param orders the number of orders
+    * @param items the items in each order
+    */
+   public static void fill (Cafe esql, String login, int orders, int items) throws SQLException {
+      if (esql.getOrderJournal () == null)
+         throw new SQLException("journal-fill needs -Dcafe.journal=<dir>");
+      List<MenuCatalog.Item> menu = esql.getMenuCatalog ().items ();
+      if (menu.isEmpty ())
+         throw new SQLException("journal-fill needs rows in Menu");
+      int perOrder = Math.max(1, Math.min(items, menu.size ()));
+      for (int i = 0; i < orders; ++i) {
+         Cart cart = new Cart();
+         for (int j = 0; j < perOrder; ++j)
+            cart.add (menu.get ((i + j) % menu.size ()).itemName, "order " + i);
+         Order order = esql.placeOrder (login, cart);
+         System.out.println ("placed " + order.orderid + " " + cart.size ());
+      }//end for
+      esql.getOrderJournal ().awaitFlushed (REPLAY_TIMEOUT_MILLIS);
+      System.out.println (esql.getOrderJournal ().stats ());
+   }//end fill
+
+   private static int waitFor (Process child) throws Exception {
+      long deadline = System.currentTimeMillis () + CHILD_TIMEOUT_MILLIS;
+      while (true) {
+         try{
+            return child.exitValue ();
+         }catch (IllegalThreadStateException running){
+            if (System.currentTimeMillis () > deadline) {
+               child.destroy ();
+               throw new SQLException("The journal-fill process did not exit in "
+                  + TimeUnit.MILLISECONDS.toSeconds (CHILD_TIMEOUT_MILLIS) + " s");
+            }//end if
+            Thread.sleep (100);
+         }//end try
+      }//end while
+   }//end waitFor
+
+   private static void delete (File file) {
+      File[] children = file.listFiles ();
+      if (children != null)
+         for (File child : children)
+            delete (child);
+      file.delete ();
+   }//end delete
+
+}//end JournalCheck
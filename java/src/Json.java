@@ -0,0 +1,233 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class reads and writes the small JSON documents of the HTTP API.
+ * Objects are read as Maps, arrays as Lists, numbers as Doubles, and true,
+ * false and null as Boolean and null.
+ *
+ */
+public class Json {
+
+   private final String _text;
+   private int _pos = 0;
+
+   private Json(String text) {
+      this._text = text;
+   }//end Json
+
+   /**
+    * Parses a JSON document.
+    *
+    * @param text the document
+    * @return the value it holds
+    * @throws IllegalArgumentException when the text is not valid JSON
+    */
+   public static Object parse (String text) {
+      Json json = new Json(text);
+      Object value = json.value ();
+      json.skipSpace ();
+      if (json._pos != text.length ())
+         throw json.error ("trailing characters");
+      return value;
+   }//end parse
+
+   /**
+    * Appends a string as a quoted JSON string, or null.
+    */
+   public static StringBuilder quote (StringBuilder out, String value) {
+      if (value == null)
+         return out.append ("null");
+      out.append ('"');
+      for (int i = 0; i < value.length (); ++i) {
+         char c = value.charAt (i);
+         switch (c) {
+            case '"': out.append ("\\\""); break;
+            case '\\': out.append ("\\\\"); break;
+            case '\n': out.append ("\\n"); break;
+            case '\r': out.append ("\\r"); break;
+            case '\t': out.append ("\\t"); break;
+            default:
+               if (c < 0x20)
+                  out.append (String.format ("\\u%04x", (int) c));
+               else
+                  out.append (c);
+               break;
+         }//end switch
+      }//end for
+      return out.append ('"');
+   }//end quote
+
+   /**
+    * Appends the rows of a query result as an array of objects keyed by
+    * column name.  Timestamps are written as text, as psql shows them.
+    */
+   public static StringBuilder rows (StringBuilder out, ResultTable table) {
+      out.append ('[');
+      for (int row = 0; row < table.size (); ++row) {
+         out.append (row == 0 ? "" : ",");
+         row (out, table, row);
+      }//end for
+      return out.append (']');
+   }//end rows
+
+   /**
+    * Appends one row of a query result as an object keyed by column name.
+    */
+   public static StringBuilder row (StringBuilder out, ResultTable table, int row) {
+      out.append ('{');
+      for (int col = 0; col < table.getColumnCount (); ++col) {
+         quote (out.append (col == 0 ? "" : ","), table.getColumnName (col)).append (':');
+         if (table.isNull (row, col)) {
+            out.append ("null");
+            continue;
+         }//end if
+         switch (table.getColumnKind (col)) {
+            case ResultTable.INT:
+            case ResultTable.LONG: out.append (table.getLong (row, col)); break;
+            case ResultTable.DOUBLE: out.append (table.getDouble (row, col)); break;
+            case ResultTable.BOOLEAN: out.append (table.getBoolean (row, col)); break;
+            default: quote (out, table.getString (row, col)); break;
+         }//end switch
+      }//end for
+      return out.append ('}');
+   }//end row
+
+   private Object value () {
+      skipSpace ();
+      if (this._pos >= this._text.length ())
+         throw error ("unexpected end");
+      char c = this._text.charAt (this._pos);
+      switch (c) {
+         case '{': return object ();
+         case '[': return array ();
+         case '"': return string ();
+         case 't': return literal ("true", Boolean.TRUE);
+         case 'f': return literal ("false", Boolean.FALSE);
+         case 'n': return literal ("null", null);
+         default: return number ();
+      }//end switch
+   }//end value
+
+   private Map<String, Object> object () {
+      Map<String, Object> map = new LinkedHashMap<String, Object>();
+      ++this._pos;
+      skipSpace ();
+      if (peek () == '}') {
+         ++this._pos;
+         return map;
+      }//end if
+      while (true) {
+         skipSpace ();
+         if (peek () != '"')
+            throw error ("expected a key");
+         String key = string ();
+         skipSpace ();
+         expect (':');
+         map.put (key, value ());
+         skipSpace ();
+         if (peek () == '}') {
+            ++this._pos;
+            return map;
+         }//end if
+         expect (',');
+      }//end while
+   }//end object
+
+   private List<Object> array () {
+      List<Object> list = new ArrayList<Object>();
+      ++this._pos;
+      skipSpace ();
+      if (peek () == ']') {
+         ++this._pos;
+         return list;
+      }//end if
+      while (true) {
+         list.add (value ());
+         skipSpace ();
+         if (peek () == ']') {
+            ++this._pos;
+            return list;
+         }//end if
+         expect (',');
+      }//end while
+   }//end array
+
+   private String string () {
+      StringBuilder value = new StringBuilder();
+      ++this._pos;
+      while (true) {
+         if (this._pos >= this._text.length ())
+            throw error ("unterminated string");
+         char c = this._text.charAt (this._pos++);
+         if (c == '"')
+            return value.toString ();
+         if (c != '\\') {
+            value.append (c);
+            continue;
+         }//end if
+         if (this._pos >= this._text.length ())
+            throw error ("unterminated string");
+         char e = this._text.charAt (this._pos++);
+         switch (e) {
+            case 'b': value.append ('\b'); break;
+            case 'f': value.append ('\f'); break;
+            case 'n': value.append ('\n'); break;
+            case 'r': value.append ('\r'); break;
+            case 't': value.append ('\t'); break;
+            case 'u':
+               if (this._pos + 4 > this._text.length ())
+                  throw error ("bad unicode escape");
+               try{
+                  value.append ((char) Integer.parseInt (this._text.substring (this._pos, this._pos + 4), 16));
+               }catch (NumberFormatException ex){
+                  throw error ("bad unicode escape");
+               }//end try
+               this._pos += 4;
+               break;
+            default: value.append (e); break;
+         }//end switch
+      }//end while
+   }//end string
+
+   private Double number () {
+      int start = this._pos;
+      while (this._pos < this._text.length () && "+-0123456789.eE".indexOf (this._text.charAt (this._pos)) >= 0)
+         ++this._pos;
+      try{
+         return Double.valueOf (this._text.substring (start, this._pos));
+      }catch (NumberFormatException e){
+         this._pos = start;
+         throw error ("unexpected character");
+      }//end try
+   }//end number
+
+   private Object literal (String word, Object value) {
+      if (!this._text.startsWith (word, this._pos))
+         throw error ("unexpected character");
+      this._pos += word.length ();
+      return value;
+   }//end literal
+
+   private void expect (char c) {
+      if (peek () != c)
+         throw error ("expected '" + c + "'");
+      ++this._pos;
+   }//end expect
+
+   private char peek () {
+      return this._pos < this._text.length () ? this._text.charAt (this._pos) : 0;
+   }
+
+   private void skipSpace () {
+      while (this._pos < this._text.length () && Character.isWhitespace (this._text.charAt (this._pos)))
+         ++this._pos;
+   }//end skipSpace
+
+   private IllegalArgumentException error (String message) {
+      return new IllegalArgumentException("Bad JSON at offset " + this._pos + ": " + message);
+   }
+
+}//end Json
@@ -0,0 +1,150 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class checks the kitchen queue under contention and measures it.
+ * It queues a number of orders of a few items each, then has many
+ * employees claim batches from the queue at once and mark them ready
+ * until the queue is empty.  Every claimed item is recorded; the run fails
+ * if an item was claimed twice, or if any item was not claimed or not
+ * marked ready.  It prints the throughput, the share of items each
+ * employee got and how long items waited.
+ *
+ * Its items are queued under a status of their own, so items waiting in
+ * the real queue are left alone.  The orders and the user it makes are
+ * deleted at the end.
+ *
+ */
+public class KitchenBenchmark {
+
+   private static final String STATUS_READY = "Ready";
+
+   private final Cafe _esql;
+   private final int _employees;
+   private final int _orders;
+   private final int _itemsPerOrder;
+   private final int _batchSize;
+
+   /**
+    * Creates a new benchmark
+    *
+    * @param esql the test database
+    * @param employees employees claiming at once
+    * @param orders orders queued
+    * @param itemsPerOrder items in each order
+    * @param batchSize the most items claimed at a time
+    */
+   public KitchenBenchmark(Cafe esql, int employees, int orders, int itemsPerOrder, int batchSize) {
+      this._esql = esql;
+      this._employees = Math.max(1, employees);
+      this._orders = Math.max(1, orders);
+      this._itemsPerOrder = Math.max(1, itemsPerOrder);
+      this._batchSize = Math.max(1, batchSize);
+   }//end KitchenBenchmark
+
+   /**
+    * Runs the benchmark and prints the results.
+    *
+    * @return true if every item was claimed exactly once and marked ready
+    */
+   public boolean run () throws Exception {
+      List<MenuCatalog.Item> menu = this._esql.getMenuCatalog ().items ();
+      if (menu.isEmpty ())
+         throw new SQLException("The benchmark needs rows in Menu");
+      int perOrder = Math.min(this._itemsPerOrder, menu.size ());
+      String tag = "kb" + Long.toString (System.currentTimeMillis (), 36);
+      String login = "kitchen" + tag;
+      int expected = this._orders * perOrder;
+
+      this._esql.createUser (login, "kitchenbench", null);
+      try{
+         System.out.println ("Queueing " + expected + " items for " + this._employees + " employees");
+         this._esql.executeUpdate (
+            "INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total) "
+            + "SELECT nextval('" + OrderIdAllocator.SEQUENCE + "'), ?, true, "
+            + "now() - g * interval '1 millisecond', 0 FROM generate_series(1, ?) g",
+            login, this._orders);
+         for (int i = 0; i < perOrder; ++i)
+            this._esql.executeUpdate (
+               "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) "
+               + "SELECT orderid, ?, timeStampRecieved, ?, '' FROM Orders WHERE login = ?",
+               menu.get (i).itemName, tag, login);
+         this._esql.executeUpdate ("ANALYZE ItemStatus");
+
+         final KitchenQueue queue = new KitchenQueue(this._esql, tag, 60000L);
+         final ConcurrentHashMap<String, String> claimedBy = new ConcurrentHashMap<String, String>();
+         final AtomicLong duplicates = new AtomicLong();
+         final AtomicLong ready = new AtomicLong();
+         final CountDownLatch go = new CountDownLatch(1);
+         final Exception[] failures = new Exception[this._employees];
+         Thread[] threads = new Thread[this._employees];
+         for (int e = 0; e < this._employees; ++e) {
+            final int index = e;
+            final String employee = "employee-" + e;
+            threads[e] = new Thread(employee) {
+               public void run () {
+                  try{
+                     go.await ();
+                     while (true) {
+                        List<KitchenQueue.Item> items = queue.claim (employee, _batchSize);
+                        if (items.isEmpty ())
+                           break;
+                        for (KitchenQueue.Item item : items) {
+                           String other = claimedBy.putIfAbsent (item.orderid + "/" + item.itemName, employee);
+                           if (other != null) {
+                              duplicates.incrementAndGet ();
+                              System.out.println (item.orderid + "/" + item.itemName + " claimed by "
+                                 + other + " and " + employee);
+                           }//end if
+                        }//end for
+                        ready.addAndGet (queue.update (employee, items, STATUS_READY, null));
+                     }//end while
+                  }catch (Exception ex){
+                     failures[index] = ex;
+                  }//end try
+               }
+            };
+            threads[e].start ();
+         }//end for
+
+         long start = System.nanoTime ();
+         go.countDown ();
+         for (Thread thread : threads)
+            thread.join ();
+         double seconds = (System.nanoTime () - start) / 1e9;
+
+         boolean ok = true;
+         for (int e = 0; e < failures.length; ++e) {
+            if (failures[e] != null) {
+               ok = false;
+               System.out.println ("employee-" + e + " failed: " + failures[e].getMessage ());
+            }//end if
+         }//end for
+         ResultTable left = this._esql.executeQueryAndReturnResult (
+            "SELECT COUNT(*) FROM ItemStatus i JOIN Orders o ON o.orderid = i.orderid "
+            + "WHERE o.login = ? AND i.status <> CAST(? AS char(20))", login, STATUS_READY);
+         long notReady = left.getLong (0, 0);
+
+         System.out.println ();
+         System.out.println (queue.stats ());
+         System.out.println ("items per employee: " + queue.claimedByEmployee ());
+         System.out.println (String.format ("%d items in %.3f s: %.1f items/s claimed and marked ready",
+            ready.get (), seconds, ready.get () / Math.max(seconds, 1e-9)));
+         System.out.println ("wait before claim: " + queue.waits ().summary ());
+         System.out.println (String.format ("%d of %d items claimed, %d claimed twice, %d not marked ready",
+            claimedBy.size (), expected, duplicates.get (), notReady));
+         ok &= duplicates.get () == 0 && claimedBy.size () == expected && notReady == 0;
+         System.out.println (ok ? "PASS: every item was claimed exactly once" : "FAIL");
+         return ok;
+      }finally{
+         this._esql.executeUpdate ("DELETE FROM ItemStatus WHERE orderid IN "
+            + "(SELECT orderid FROM Orders WHERE login = ?)", login);
+         this._esql.executeUpdate ("DELETE FROM Orders WHERE login = ?", login);
+         this._esql.executeUpdate ("DELETE FROM USERS WHERE login = ?", login);
+      }//end try
+   }//end run
+
+}//end KitchenBenchmark
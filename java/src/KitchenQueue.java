@@ -0,0 +1,271 @@
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is the kitchen's work queue: the ordered items still to be
+ * made, oldest first, that employees claim a batch at a time and then
+ * mark done.
+ *
+ * A claim is one statement.  It picks the oldest pending items with
+ * SELECT ... FOR UPDATE SKIP LOCKED, so employees claiming at the same
+ * time pass over the rows another claim has locked instead of waiting for
+ * them, and sets their status to "Preparing" so no later claim sees them
+ * as pending.  An item is therefore claimed by one employee only.  Claimed
+ * items are then updated in bulk, one JDBC batch in one transaction, and
+ * only while they are still being prepared.  Items claimed but neither
+ * updated nor released within the claim timeout, e.g. by a session that
+ * went away, are put back in the queue.
+ *
+ * The queue counts, per employee, the items claimed and finished, and
+ * keeps how long items waited before they were claimed, for fairness and
+ * throughput figures.
+ *
+ */
+public class KitchenQueue {
+
+   static final String STATUS_PREPARING = "Preparing";
+
+   // the oldest pending items, locked and marked in the same statement; the
+   // wait is computed by the database so both ends use its clock.  Statuses
+   // are compared as char(20), the column's type, so (status, lastUpdated)
+   // indexes can be used.
+   private static final String CLAIM =
+      "UPDATE ItemStatus s SET status = ?, lastUpdated = now() "
+      + "FROM (SELECT orderid, itemName, lastUpdated FROM ItemStatus WHERE status = CAST(? AS char(20)) "
+      + "ORDER BY lastUpdated, orderid, itemName LIMIT ? FOR UPDATE SKIP LOCKED) c "
+      + "WHERE s.orderid = c.orderid AND s.itemName = c.itemName "
+      + "RETURNING s.orderid, s.itemName, s.comments, "
+      + "CAST(EXTRACT(EPOCH FROM now() - c.lastUpdated) * 1000000 AS bigint)";
+   private static final String UPDATE =
+      "UPDATE ItemStatus SET status = ?, comments = COALESCE(?, comments), lastUpdated = now() "
+      + "WHERE orderid = ? AND itemName = ? AND status = CAST(? AS char(20))";
+   private static final String REQUEUE =
+      "UPDATE ItemStatus SET status = ?, lastUpdated = now() "
+      + "WHERE status = CAST(? AS char(20)) AND lastUpdated < now() - CAST(? AS interval)";
+
+   /**
+    * One claimed item.
+    */
+   public static final class Item {
+      public final int orderid;
+      public final String itemName;
+      public final String comments;
+      // how long the item was pending before it was claimed.
+      public final long waitedMicros;
+
+      Item(int orderid, String itemName, String comments, long waitedMicros) {
+         this.orderid = orderid;
+         this.itemName = itemName;
+         this.comments = comments;
+         this.waitedMicros = waitedMicros;
+      }
+   }//end Item
+
+   private final Cafe _esql;
+   private final String _pending;
+   private final long _claimTimeoutMillis;
+   private final AtomicLong _lastRequeue = new AtomicLong();
+
+   // claims, items claimed and items finished, per employee.
+   private final ConcurrentHashMap<String, AtomicLong[]> _byEmployee = new ConcurrentHashMap<String, AtomicLong[]>();
+   private final LatencyHistogram _waits = new LatencyHistogram();
+   private final LatencyHistogram _claimLatency = new LatencyHistogram();
+   private final AtomicLong _requeued = new AtomicLong();
+   private final long _startNanos = System.nanoTime ();
+
+   /**
+    * Creates a queue of the items just ordered.
+    *
+    * @param esql the database
+    * @param claimTimeoutMillis how long a claimed item may go without an
+    *        update before it is put back in the queue
+    */
+   public KitchenQueue(Cafe esql, long claimTimeoutMillis) {
+      this(esql, Cafe.STATUS_RECEIVED, claimTimeoutMillis);
+   }
+
+   /**
+    * Creates a queue of the items with some status.
+    *
+    * @param esql the database
+    * @param pending the status of the items waiting in the queue
+    * @param claimTimeoutMillis how long a claimed item may go without an
+    *        update before it is put back in the queue
+    */
+   KitchenQueue(Cafe esql, String pending, long claimTimeoutMillis) {
+      this._esql = esql;
+      this._pending = pending;
+      this._claimTimeoutMillis = claimTimeoutMillis;
+   }//end KitchenQueue
+
+   /**
+    * Claims the oldest pending items.
+    *
+    * @param employee the login of the employee claiming them
+    * @param max the most items claimed
+    * @return the items, oldest first; empty if none are pending
+    */
+   public List<Item> claim (String employee, int max) throws SQLException {
+      requeueStale ();
+      long start = System.nanoTime ();
+      ResultTable rows = this._esql.executeQueryAndReturnResult (CLAIM,
+         STATUS_PREPARING, this._pending, Math.max(1, max));
+      this._claimLatency.recordSince (start);
+      List<Item> items = new ArrayList<Item>(rows.size ());
+      for (ResultTable.Row row : rows) {
+         Item item = new Item(row.getInt (0), row.getString (1), row.getString (2), row.getLong (3));
+         items.add (item);
+         this._waits.record (Math.max(0, item.waitedMicros) * 1000);
+      }//end for
+      // RETURNING gives no order; oldest first as claimed.
+      Collections.sort (items, new Comparator<Item>() {
+         public int compare (Item a, Item b) {
+            return a.waitedMicros > b.waitedMicros ? -1 : a.waitedMicros < b.waitedMicros ? 1 : 0;
+         }
+      });
+      AtomicLong[] counts = counts (employee);
+      counts[0].incrementAndGet ();
+      counts[1].addAndGet (items.size ());
+      return items;
+   }//end claim
+
+   /**
+    * Sets the status, and optionally the comments, of claimed items, in one
+    * transaction.  Items no longer being prepared, because they were
+    * requeued or updated already, are left alone.
+    *
+    * @param employee the login of the employee updating them
+    * @param items items from claim()
+    * @param status the new status, e.g. "Ready"
+    * @param comments the new comments, or null to keep each item's own
+    * @return the number of items updated
+    */
+   public int update (String employee, List<Item> items, String status, String comments) throws SQLException {
+      int updated = 0;
+      if (items.isEmpty ())
+         return updated;
+      PooledConnection pc = this._esql.borrowConnection ();
+      try{
+         pc.getConnection ().setAutoCommit (false);
+         PreparedStatement stmt = pc.prepare (UPDATE);
+         try{
+            for (Item item : items) {
+               Cafe.bind (stmt, status, comments, item.orderid, item.itemName, STATUS_PREPARING);
+               stmt.addBatch ();
+            }//end for
+            for (int count : stmt.executeBatch ())
+               updated += count > 0 ? count : 0;
+         }finally{
+            stmt.clearBatch ();
+         }//end try
+         pc.getConnection ().commit ();
+      }finally{
+         // rolls back anything left uncommitted.
+         this._esql.releaseConnection (pc);
+      }//end try
+      if (!STATUS_PREPARING.equals (status) && !this._pending.equals (status))
+         counts (employee)[2].addAndGet (updated);
+      return updated;
+   }//end update
+
+   /**
+    * Puts claimed items back in the queue.
+    *
+    * @return the number of items put back
+    */
+   public int release (String employee, List<Item> items) throws SQLException {
+      return update (employee, items, this._pending, null);
+   }//end release
+
+   /**
+    * Puts back every item claimed longer than the claim timeout ago and not
+    * updated since.
+    *
+    * @return the number of items put back
+    */
+   public int requeue () throws SQLException {
+      int requeued = this._esql.executeUpdate (REQUEUE, this._pending, STATUS_PREPARING,
+         this._claimTimeoutMillis + " milliseconds");
+      this._requeued.addAndGet (requeued);
+      return requeued;
+   }//end requeue
+
+   /**
+    * Returns the number of items claimed by each employee.
+    */
+   public Map<String, Long> claimedByEmployee () {
+      Map<String, Long> claimed = new TreeMap<String, Long>();
+      for (Map.Entry<String, AtomicLong[]> entry : this._byEmployee.entrySet ())
+         claimed.put (entry.getKey (), entry.getValue ()[1].get ());
+      return claimed;
+   }//end claimedByEmployee
+
+   /**
+    * Returns Jain's fairness index of the items claimed per employee: 1
+    * when every employee claimed as many, 1/n when one claimed them all.
+    */
+   public double fairness () {
+      return fairness (claimedByEmployee ().values ());
+   }//end fairness
+
+   static double fairness (Iterable<Long> shares) {
+      double sum = 0, squares = 0;
+      int n = 0;
+      for (long share : shares) {
+         sum += share;
+         squares += (double) share * share;
+         ++n;
+      }//end for
+      return squares == 0 ? 1.0 : sum * sum / (n * squares);
+   }//end fairness
+
+   /**
+    * Returns how long claimed items had waited in the queue.
+    */
+   public LatencyHistogram waits () {
+      return this._waits;
+   }
+
+   public String stats () {
+      long claims = 0, claimed = 0, finished = 0;
+      for (AtomicLong[] counts : this._byEmployee.values ()) {
+         claims += counts[0].get ();
+         claimed += counts[1].get ();
+         finished += counts[2].get ();
+      }//end for
+      double seconds = (System.nanoTime () - this._startNanos) / 1e9;
+      return String.format ("kitchen queue: %d claims, %d items claimed, %d finished (%.1f items/s), "
+         + "%d requeued, %d employees, fairness %.3f, wait p50 %.1f ms p99 %.1f ms, claim p50 %.3f ms",
+         claims, claimed, finished, finished / Math.max(seconds, 1e-9), this._requeued.get (),
+         this._byEmployee.size (), fairness (), this._waits.percentileNanos (0.5) / 1e6,
+         this._waits.percentileNanos (0.99) / 1e6, this._claimLatency.percentileNanos (0.5) / 1e6);
+   }//end stats
+
+   // requeues at most once per claim timeout, from whichever claim comes first.
+   private void requeueStale () throws SQLException {
+      long now = System.currentTimeMillis ();
+      long last = this._lastRequeue.get ();
+      if (now - last >= this._claimTimeoutMillis && this._lastRequeue.compareAndSet (last, now))
+         requeue ();
+   }//end requeueStale
+
+   private AtomicLong[] counts (String employee) {
+      AtomicLong[] counts = this._byEmployee.get (employee);
+      if (counts == null) {
+         AtomicLong[] created = { new AtomicLong(), new AtomicLong(), new AtomicLong() };
+         counts = this._byEmployee.putIfAbsent (employee, created);
+         if (counts == null)
+            counts = created;
+      }//end if
+      return counts;
+   }//end counts
+
+}//end KitchenQueue
@@ -0,0 +1,154 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts latencies in log-linear buckets, in the manner of an HDR
+ * histogram: every power of two is split into 64 equal buckets, so any
+ * recorded value is reported within about 1.6% of its true value while the
+ * histogram itself stays a fixed, small array.  Values are nanoseconds, from
+ * 1 ns up to about three days; larger values are counted in the last bucket.
+ *
+ * Recording is lock-free and safe from any number of threads.
+ *
+ */
+public class LatencyHistogram {
+
+   // 64 buckets per power of two.
+   private static final int SUB_BITS = 6;
+   private static final int SUB_COUNT = 1 << SUB_BITS;
+   private static final int MAX_EXPONENT = 42;
+   private static final int BUCKETS = (MAX_EXPONENT + 1) * SUB_COUNT;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong _count = new AtomicLong();
+   private final AtomicLong _sum = new AtomicLong();
+   private final AtomicLong _max = new AtomicLong();
+
+   /**
+    * Records one latency.
+    *
+    * @param nanos the latency in nanoseconds; negative values count as 0
+    */
+   public void record (long nanos) {
+      long value = Math.max(0L, nanos);
+      this._counts.incrementAndGet (index (value));
+      this._count.incrementAndGet ();
+      this._sum.addAndGet (value);
+      long max;
+      while (value > (max = this._max.get ()) && !this._max.compareAndSet (max, value)) {
+         // retry until our value is stored or a larger one is.
+      }//end while
+   }//end record
+
+   /**
+    * Records the time elapsed since a System.nanoTime() reading.
+    */
+   public void recordSince (long startNanos) {
+      record (System.nanoTime () - startNanos);
+   }
+
+   public long count () {
+      return this._count.get ();
+   }
+
+   public long maxNanos () {
+      return this._max.get ();
+   }
+
+   public double meanNanos () {
+      long count = this._count.get ();
+      return count == 0 ? 0.0 : (double) this._sum.get () / count;
+   }
+
+   /**
+    * Returns the latency below which the given fraction of the recorded
+    * values fall.
+    *
+    * @param quantile a fraction between 0 and 1, e.g. 0.99
+    * @return the latency in nanoseconds, or 0 if nothing was recorded
+    */
+   public long percentileNanos (double quantile) {
+      long count = this._count.get ();
+      if (count == 0)
+         return 0L;
+      long rank = (long) Math.ceil (Math.min(1.0, Math.max(0.0, quantile)) * count);
+      rank = Math.max(1L, rank);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; ++i) {
+         seen += this._counts.get (i);
+         if (seen >= rank)
+            return Math.min(highestValue (i), this._max.get ());
+      }//end for
+      return this._max.get ();
+   }//end percentileNanos
+
+   /**
+    * Adds the counts of another histogram to this one.
+    */
+   public void add (LatencyHistogram other) {
+      for (int i = 0; i < BUCKETS; ++i) {
+         long n = other._counts.get (i);
+         if (n != 0)
+            this._counts.addAndGet (i, n);
+      }//end for
+      this._count.addAndGet (other._count.get ());
+      this._sum.addAndGet (other._sum.get ());
+      long max;
+      long value = other._max.get ();
+      while (value > (max = this._max.get ()) && !this._max.compareAndSet (max, value)) {
+         // retry until our value is stored or a larger one is.
+      }//end while
+   }//end add
+
+   public void reset () {
+      for (int i = 0; i < BUCKETS; ++i)
+         this._counts.set (i, 0L);
+      this._count.set (0L);
+      this._sum.set (0L);
+      this._max.set (0L);
+   }//end reset
+
+   /**
+    * Returns count, mean and the usual percentiles in milliseconds.
+    */
+   public String summary () {
+      return String.format ("n=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f ms",
+         count (), meanNanos () / 1e6,
+         percentileNanos (0.50) / 1e6, percentileNanos (0.90) / 1e6,
+         percentileNanos (0.99) / 1e6, percentileNanos (0.999) / 1e6,
+         maxNanos () / 1e6);
+   }//end summary
+
+   /**
+    * Returns the same figures as summary as a JSON object.
+    */
+   public String toJson () {
+      return String.format ("{\"count\": %d, \"meanMs\": %.4f, \"p50Ms\": %.4f, \"p90Ms\": %.4f, "
+         + "\"p99Ms\": %.4f, \"p999Ms\": %.4f, \"maxMs\": %.4f}",
+         count (), meanNanos () / 1e6,
+         percentileNanos (0.50) / 1e6, percentileNanos (0.90) / 1e6,
+         percentileNanos (0.99) / 1e6, percentileNanos (0.999) / 1e6,
+         maxNanos () / 1e6);
+   }//end toJson
+
+   // values below SUB_COUNT get a bucket each; above, the bucket is chosen by
+   // the exponent and the SUB_BITS bits after the leading one.
+   private static int index (long value) {
+      if (value < SUB_COUNT)
+         return (int) value;
+      int exponent = 63 - Long.numberOfLeadingZeros (value) - SUB_BITS + 1;
+      if (exponent > MAX_EXPONENT)
+         return BUCKETS - 1;
+      int sub = (int) (value >>> (exponent - 1)) & (SUB_COUNT - 1);
+      return exponent * SUB_COUNT + sub;
+   }//end index
+
+   private static long highestValue (int index) {
+      int exponent = index / SUB_COUNT;
+      int sub = index % SUB_COUNT;
+      if (exponent == 0)
+         return sub;
+      return ((long) (SUB_COUNT + sub + 1) << (exponent - 1)) - 1;
+   }//end highestValue
+
+}//end LatencyHistogram
@@ -0,0 +1,424 @@
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class drives the application flows headless, with a number of
+ * concurrent simulated users, and reports the latency and throughput of
+ * each operation.  Every virtual user creates and logs in to an account of
+ * its own, then repeatedly picks an operation from a weighted mix:
+ *
+ *    create   create another customer account, as CreateUser does
+ *    login    check the credentials, as LogIn does
+ *    menu     print the full menu and look up an item, as Menu does
+ *    order    place an order for several items, as PlaceOrder does
+ *    pay      pay the user's oldest unpaid order, as UpdateOrder does
+ *    view     print one of the user's orders and its items
+ *    history  print the first page of the user's order history
+ *
+ * With a rate of 0 the load is closed loop: each virtual user starts its
+ * next operation as soon as the last one ends.  With a positive rate the
+ * operations arrive open loop, as a Poisson process of that many
+ * operations per second shared by all virtual users, and latency is
+ * measured from the time each operation was due to start, so time spent
+ * queued behind busy users is counted.
+ *
+ * When the load stops, and before anything is deleted, the unpaid orders
+ * the program keeps in memory are compared with the same lookup in the
+ * database.  The accounts and orders made by a run are then deleted, by
+ * the virtual user that made them.  The statements of virtual user 0 can be
+ * recorded to a trace file for SqlTrace to replay.
+ *
+ */
+public class LoadGenerator {
+
+   static final String[] OPERATIONS = { "create", "login", "menu", "order", "pay", "view", "history" };
+   static final String DEFAULT_MIX = "create=2,login=8,menu=30,order=25,pay=10,view=10,history=15";
+
+   private static final int CREATE = 0, LOGIN = 1, MENU = 2, ORDER = 3, PAY = 4, VIEW = 5, HISTORY = 6;
+   private static final String PASSWORD = "loadgen";
+
+   private final Cafe _esql;
+   private final int _users;
+   private final long _durationMillis;
+   private final double _rate;
+   private final int[] _weights;
+   private final int _itemsPerOrder;
+   private final long _seed;
+   private final String _traceFile;
+
+   // logins made by this run start with this prefix.
+   private final String _prefix = "loadgen" + Long.toString (System.currentTimeMillis (), 36);
+
+   private final LatencyHistogram[] _latency = new LatencyHistogram[OPERATIONS.length];
+   private final AtomicLong[] _errors = new AtomicLong[OPERATIONS.length];
+   private final AtomicReferenceArray<String> _firstError = new AtomicReferenceArray<String>(OPERATIONS.length);
+
+   // intended start times, in System.nanoTime(), of open loop arrivals.
+   private final BlockingQueue<Long> _arrivals = new LinkedBlockingQueue<Long>();
+   private volatile boolean _stopping = false;
+   // virtual users count down _stopped when their last operation ended and
+   // wait for _checked before cleaning up.
+   private final CountDownLatch _checked = new CountDownLatch(1);
+   private CountDownLatch _stopped;
+   private List<MenuCatalog.Item> _menu;
+   private final OrderHistory _history;
+
+   /**
+    * Creates a new load generator
+    *
+    * @param esql the database
+    * @param users number of virtual users
+    * @param durationMillis how long to generate load
+    * @param rate operations per second for open loop load; 0 for closed loop
+    * @param mix operation weights, e.g. "menu=3,order=1"; operations left
+    *        out are not run
+    * @param itemsPerOrder items in each placed order
+    * @param seed seed of the operation and item choices
+    * @param traceFile where virtual user 0's statements are recorded, or null
+    */
+   public LoadGenerator(Cafe esql, int users, long durationMillis, double rate, String mix,
+                        int itemsPerOrder, long seed, String traceFile) {
+      this._esql = esql;
+      this._users = Math.max(1, users);
+      this._durationMillis = durationMillis;
+      this._rate = rate;
+      this._weights = parseMix (mix);
+      this._itemsPerOrder = Math.max(1, itemsPerOrder);
+      this._seed = seed;
+      this._traceFile = traceFile;
+      this._history = new OrderHistory(esql, Cafe.HISTORY_PAGE_SIZE);
+      for (int i = 0; i < OPERATIONS.length; ++i) {
+         this._latency[i] = new LatencyHistogram();
+         this._errors[i] = new AtomicLong();
+      }//end for
+   }//end LoadGenerator
+
+   /**
+    * Parses an operation mix into cumulative weights, in OPERATIONS order.
+    */
+   static int[] parseMix (String mix) {
+      int[] weights = new int[OPERATIONS.length];
+      for (String entry : mix.split (",")) {
+         if (entry.trim ().length () == 0)
+            continue;
+         String[] pair = entry.split ("=");
+         int op = indexOf (pair[0].trim ());
+         if (op < 0 || pair.length != 2)
+            throw new IllegalArgumentException("Bad operation mix entry " + entry
+               + ", expected name=weight with a name from " + Arrays.toString (OPERATIONS));
+         weights[op] = Integer.parseInt (pair[1].trim ());
+         if (weights[op] < 0)
+            throw new IllegalArgumentException("Negative weight in " + entry);
+      }//end for
+      for (int i = 1; i < weights.length; ++i)
+         weights[i] += weights[i - 1];
+      if (weights[weights.length - 1] == 0)
+         throw new IllegalArgumentException("The operation mix " + mix + " has no weight");
+      return weights;
+   }//end parseMix
+
+   private static int indexOf (String name) {
+      for (int i = 0; i < OPERATIONS.length; ++i)
+         if (OPERATIONS[i].equals (name))
+            return i;
+      return -1;
+   }//end indexOf
+
+   /**
+    * Runs the load, prints the results and writes them as JSON.
+    *
+    * @param jsonFile where the JSON results are written
+    */
+   public void run (String jsonFile) throws Exception {
+      this._menu = this._esql.getMenuCatalog ().items ();
+      if (this._menu.isEmpty ())
+         throw new IllegalStateException("Load data/*.csv before generating load");
+
+      System.out.println (String.format ("%d virtual users for %d s, %s", this._users,
+         this._durationMillis / 1000,
+         this._rate > 0 ? String.format ("open loop at %.1f ops/s", this._rate) : "closed loop"));
+
+      CountDownLatch ready = new CountDownLatch(this._users);
+      CountDownLatch go = new CountDownLatch(1);
+      this._stopped = new CountDownLatch(this._users);
+      VirtualUser[] users = new VirtualUser[this._users];
+      Thread[] threads = new Thread[this._users];
+      for (int i = 0; i < this._users; ++i) {
+         users[i] = new VirtualUser(i, ready, go);
+         threads[i] = new Thread(users[i], "loadgen-" + i);
+         threads[i].start ();
+      }//end for
+
+      ready.await ();
+      long start = System.nanoTime ();
+      long deadline = start + this._durationMillis * 1000000L;
+      for (VirtualUser user : users)
+         user.deadline = deadline;
+      go.countDown ();
+      if (this._rate > 0)
+         schedule (start, deadline);
+      else
+         sleepUntil (deadline);
+      this._stopping = true;
+      double seconds = (System.nanoTime () - start) / 1e9;
+      this._stopped.await ();
+      try{
+         if (this._esql.getUnpaidOrders ().verify ())
+            System.out.println ("The unpaid orders in memory match the database");
+      }catch (SQLException e){
+         System.out.println ("Unable to check the unpaid orders: " + e.getMessage ());
+      }finally{
+         this._checked.countDown ();
+      }//end try
+      for (Thread thread : threads)
+         thread.join ();
+
+      for (VirtualUser user : users)
+         if (user.failure != null)
+            System.out.println ("virtual user " + user.index + " failed: " + user.failure.getMessage ());
+      report (seconds, jsonFile);
+   }//end run
+
+   // adds arrivals with exponential gaps until the deadline.
+   private void schedule (long start, long deadline) throws InterruptedException {
+      Random random = new Random(this._seed);
+      long next = start;
+      while (next < deadline) {
+         sleepUntil (next);
+         this._arrivals.add (next);
+         next += (long) (-Math.log (1.0 - random.nextDouble ()) / this._rate * 1e9);
+      }//end while
+      sleepUntil (deadline);
+   }//end schedule
+
+   private static void sleepUntil (long nanoTime) throws InterruptedException {
+      long wait = nanoTime - System.nanoTime ();
+      if (wait > 0)
+         Thread.sleep (wait / 1000000, (int) (wait % 1000000));
+   }//end sleepUntil
+
+   private void report (double seconds, String jsonFile) throws Exception {
+      StringBuilder text = new StringBuilder();
+      StringBuilder json = new StringBuilder();
+      text.append (String.format ("%n%-8s %9s %9s %7s %9s %9s %9s %9s %9s%n",
+         "op", "count", "ops/s", "errors", "p50", "p90", "p99", "p99.9", "max"));
+      json.append (String.format ("{\n  \"users\": %d,\n  \"seconds\": %.3f,\n  \"rate\": %.3f,\n"
+         + "  \"missedArrivals\": %d,\n  \"operations\": {", this._users, seconds, this._rate, this._arrivals.size ()));
+      LatencyHistogram all = new LatencyHistogram();
+      long errors = 0;
+      boolean first = true;
+      for (int op = 0; op < OPERATIONS.length; ++op) {
+         LatencyHistogram latency = this._latency[op];
+         long failed = this._errors[op].get ();
+         if (latency.count () == 0 && failed == 0)
+            continue;
+         all.add (latency);
+         errors += failed;
+         text.append (line (OPERATIONS[op], latency, failed, seconds));
+         json.append (first ? "\n" : ",\n").append (String.format (
+            "    \"%s\": {\"count\": %d, \"throughput\": %.3f, \"errors\": %d, \"latency\": %s}",
+            OPERATIONS[op], latency.count (), latency.count () / seconds, failed, latency.toJson ()));
+         first = false;
+      }//end for
+      text.append (line ("all", all, errors, seconds));
+      json.append ("\n  }\n}\n");
+
+      System.out.print (text);
+      System.out.println ("latencies in ms");
+      if (this._rate > 0)
+         System.out.println (this._arrivals.size () + " arrivals were not started before the end");
+      for (int op = 0; op < OPERATIONS.length; ++op)
+         if (this._firstError.get (op) != null)
+            System.out.println ("first " + OPERATIONS[op] + " error: " + this._firstError.get (op));
+
+      Writer out = new OutputStreamWriter(new FileOutputStream(jsonFile), "UTF-8");
+      try{
+         out.write (json.toString ());
+      }finally{
+         out.close ();
+      }//end try
+      System.out.println ("Results written to " + jsonFile);
+   }//end report
+
+   private static String line (String name, LatencyHistogram latency, long errors, double seconds) {
+      return String.format ("%-8s %9d %9.1f %7d %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+         name, latency.count (), latency.count () / seconds, errors,
+         latency.percentileNanos (0.50) / 1e6, latency.percentileNanos (0.90) / 1e6,
+         latency.percentileNanos (0.99) / 1e6, latency.percentileNanos (0.999) / 1e6,
+         latency.maxNanos () / 1e6);
+   }//end line
+
+   /**
+    * One simulated user, run on its own thread.
+    */
+   private final class VirtualUser implements Runnable {
+      final int index;
+      final String login;
+      volatile long deadline;
+      Exception failure = null;
+
+      private final CountDownLatch _ready;
+      private final CountDownLatch _go;
+      private final Random _random;
+      private final Writer _sink = new CafeBenchmark.NullWriter();
+      private final List<String> _created = new ArrayList<String>();
+      private final List<Integer> _orders = new ArrayList<Integer>();
+      private final List<Integer> _unpaid = new ArrayList<Integer>();
+
+      VirtualUser(int index, CountDownLatch ready, CountDownLatch go) {
+         this.index = index;
+         this.login = _prefix + "-" + index;
+         this._ready = ready;
+         this._go = go;
+         this._random = new Random(_seed + 1 + index);
+      }//end VirtualUser
+
+      public void run () {
+         SqlTrace.Recorder recorder = null;
+         try{
+            if (this.index == 0 && _traceFile != null) {
+               recorder = new SqlTrace.Recorder(_traceFile, Thread.currentThread ());
+               _esql.addQueryListener (recorder);
+            }//end if
+            try{
+               _esql.createUser (this.login, PASSWORD, null);
+               this._created.add (this.login);
+               if (Session.open (_esql, this.login, PASSWORD) == null)
+                  throw new SQLException("Log in failed for " + this.login);
+            }finally{
+               this._ready.countDown ();
+            }//end try
+            this._go.await ();
+
+            if (_rate > 0)
+               openLoop ();
+            else
+               closedLoop ();
+         }catch (Exception e){
+            this.failure = e;
+         }finally{
+            _stopped.countDown ();
+            try{
+               _checked.await ();
+            }catch (InterruptedException e){
+               Thread.currentThread ().interrupt ();
+            }//end try
+            cleanUp ();
+            if (recorder != null) {
+               _esql.removeQueryListener (recorder);
+               try{
+                  recorder.close ();
+                  System.out.println (recorder.statements () + " statements traced to " + _traceFile);
+               }catch (Exception e){
+                  System.out.println ("Unable to write the trace: " + e.getMessage ());
+               }//end try
+            }//end if
+         }//end try
+      }//end run
+
+      private void closedLoop () {
+         while (!_stopping && System.nanoTime () < this.deadline)
+            operation (System.nanoTime ());
+      }//end closedLoop
+
+      private void openLoop () throws InterruptedException {
+         while (!_stopping) {
+            Long due = _arrivals.poll (100, TimeUnit.MILLISECONDS);
+            if (due != null)
+               operation (due.longValue ());
+         }//end while
+      }//end openLoop
+
+      // runs one operation and records its latency from the given start.
+      private void operation (long startNanos) {
+         int pick = this._random.nextInt (_weights[_weights.length - 1]);
+         int op = 0;
+         while (_weights[op] <= pick)
+            ++op;
+         // nothing to pay or view yet; order instead, as a user would.
+         if ((op == PAY && this._unpaid.isEmpty ()) || (op == VIEW && this._orders.isEmpty ()))
+            op = ORDER;
+         try{
+            call (op);
+            _latency[op].record (System.nanoTime () - startNanos);
+         }catch (Exception e){
+            _errors[op].incrementAndGet ();
+            _firstError.compareAndSet (op, null, e.getMessage ());
+         }//end try
+      }//end operation
+
+      private void call (int op) throws Exception {
+         switch (op) {
+            case CREATE:
+               String login = this.login + "-" + this._created.size ();
+               _esql.createUser (login, PASSWORD, null);
+               this._created.add (login);
+               break;
+            case LOGIN:
+               if (Session.open (_esql, this.login, PASSWORD) == null)
+                  throw new SQLException("Log in failed for " + this.login);
+               break;
+            case MENU:
+               MenuCatalog catalog = _esql.getMenuCatalog ();
+               MenuCatalog.print (this._sink, catalog.items ());
+               catalog.find (randomItem ());
+               break;
+            case ORDER:
+               Cart cart = new Cart();
+               while (cart.size () < Math.min(_itemsPerOrder, _menu.size ()))
+                  cart.add (randomItem (), "");
+               Order placed = _esql.placeOrder (this.login, cart);
+               this._orders.add (placed.orderid);
+               this._unpaid.add (placed.orderid);
+               break;
+            case PAY:
+               _esql.payOrder (this._unpaid.remove (0));
+               break;
+            case VIEW:
+               int orderid = this._orders.get (this._random.nextInt (this._orders.size ()));
+               _esql.executeQueryAndPrintResult (this._sink, 0, Cafe.ORDER_QUERY, orderid);
+               _esql.executeQueryAndPrintResult (this._sink, 0, Cafe.ORDER_ITEMS_QUERY, orderid);
+               break;
+            case HISTORY:
+               OrderHistory.print (this._sink, _history.first (this.login));
+               break;
+            default:
+               throw new IllegalArgumentException("Unknown operation " + op);
+         }//end switch
+      }//end call
+
+      private String randomItem () {
+         return _menu.get (this._random.nextInt (_menu.size ())).itemName;
+      }
+
+      // deletes the accounts and orders this user made.
+      private void cleanUp () {
+         try{
+            if (!this._orders.isEmpty ()) {
+               _esql.executeUpdate ("DELETE FROM ItemStatus WHERE orderid IN "
+                  + "(SELECT orderid FROM Orders WHERE login = ?)", this.login);
+               _esql.executeUpdate ("DELETE FROM Orders WHERE login = ?", this.login);
+               for (Integer orderid : this._unpaid)
+                  _esql.getUnpaidOrders ().removed (orderid);
+            }//end if
+            for (String created : this._created)
+               _esql.executeUpdate ("DELETE FROM USERS WHERE login = ?", created);
+         }catch (SQLException e){
+            System.out.println ("virtual user " + this.index + " could not clean up: " + e.getMessage ());
+         }//end try
+      }//end cleanUp
+   }//end VirtualUser
+
+}//end LoadGenerator
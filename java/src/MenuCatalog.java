@@ -0,0 +1,210 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps an in-memory copy of the Menu table.  The menu is small
+ * and changes rarely, so listing it, searching it and looking up prices are
+ * served from memory instead of a query each time.
+ *
+ * Changes made through this program invalidate the copy directly.  Changes
+ * made by other processes are noticed through the MenuVersion table, which a
+ * trigger bumps on every write to Menu: at most once per check interval the
+ * catalog reads that single row and reloads the menu if the version moved.
+ *
+ */
+public class MenuCatalog {
+
+   /**
+    * One row of the Menu table.  char(n) values are kept without their
+    * trailing blanks.
+    */
+   public static final class Item {
+      public final String itemName;
+      public final String type;
+      public final float price;
+      public final String description;
+      public final String imageURL;
+
+      Item(String itemName, String type, float price, String description, String imageURL) {
+         this.itemName = itemName;
+         this.type = type;
+         this.price = price;
+         this.description = description;
+         this.imageURL = imageURL;
+      }
+   }//end Item
+
+   // an immutable copy of the menu and the version it was read at.
+   private static final class Snapshot {
+      final long version;
+      final List<Item> items;
+      final Map<String, Item> byName;
+      final Map<String, List<Item>> byType;
+      volatile long checkedAt;
+
+      Snapshot(long version, List<Item> items) {
+         this.version = version;
+         this.items = Collections.unmodifiableList (items);
+         this.byName = new HashMap<String, Item>();
+         Map<String, List<Item>> types = new HashMap<String, List<Item>>();
+         for (Item item : items) {
+            this.byName.put (item.itemName, item);
+            List<Item> ofType = types.get (item.type);
+            if (ofType == null) {
+               ofType = new ArrayList<Item>();
+               types.put (item.type, ofType);
+            }//end if
+            ofType.add (item);
+         }//end for
+         this.byType = types;
+         this.checkedAt = System.currentTimeMillis ();
+      }
+   }//end Snapshot
+
+   // version used when the MenuVersion table does not exist; such a catalog
+   // is reloaded on every check.
+   private static final long UNVERSIONED = -1L;
+
+   private final Cafe _esql;
+   private final long _checkIntervalMillis;
+   private volatile Snapshot _snapshot = null;
+   private final MenuSearch _search = new MenuSearch();
+
+   /**
+    * Creates a new, empty catalog; the menu is loaded on first use.
+    *
+    * @param esql the database the menu is read from
+    * @param checkIntervalMillis how often the version stamp is checked
+    */
+   public MenuCatalog(Cafe esql, long checkIntervalMillis) {
+      this._esql = esql;
+      this._checkIntervalMillis = checkIntervalMillis;
+   }//end MenuCatalog
+
+   /**
+    * Returns every menu item, in the order the table returned them.
+    */
+   public List<Item> items () throws SQLException {
+      return current ().items;
+   }
+
+   /**
+    * Returns the item with the given name, or null if there is none.
+    */
+   public Item find (String itemName) throws SQLException {
+      return itemName == null ? null : current ().byName.get (ResultTable.rtrim (itemName));
+   }
+
+   /**
+    * Returns the items of the given type; the list is empty if there are none.
+    */
+   public List<Item> ofType (String type) throws SQLException {
+      List<Item> items = type == null ? null : current ().byType.get (ResultTable.rtrim (type));
+      return items == null ? Collections.<Item>emptyList () : Collections.unmodifiableList (items);
+   }
+
+   /**
+    * Returns the price of the named item, or null if there is no such item.
+    */
+   public Double price (String itemName) throws SQLException {
+      Item item = find (itemName);
+      return item == null ? null : Double.valueOf (item.price);
+   }
+
+   /**
+    * Searches item names, types and description variants by word prefix,
+    * optionally allowing typing errors.  The search index follows the
+    * catalog: when the menu is reloaded only the changed items are
+    * reindexed.
+    *
+    * @param query the words to search for; empty to list all items
+    * @param type only return items of this type; null for all types
+    * @param fuzzy true to also match words with a few typing errors
+    * @param limit the most hits returned
+    * @return the hits, best first, and the number of matches per type
+    */
+   public MenuSearch.Result search (String query, String type, boolean fuzzy, int limit) throws SQLException {
+      Snapshot snapshot = current ();
+      this._search.update (snapshot, snapshot.items);
+      return this._search.search (query, type == null ? null : ResultTable.rtrim (type), fuzzy, limit);
+   }//end search
+
+   /**
+    * Drops the in-memory copy so the next lookup reads the table again.
+    * Called after this program changes the Menu table.
+    */
+   public void invalidate () {
+      this._snapshot = null;
+   }
+
+   /**
+    * Writes items in the same tab separated layout as
+    * Cafe.executeQueryAndPrintResult, header first.
+    *
+    * @param writer where the items are written; flushed before returning
+    * @param items the items to write
+    * @return the number of items written
+    */
+   public static int print (Writer writer, List<Item> items) throws IOException {
+      if (!items.isEmpty ())
+         writer.write ("itemname\ttype\tprice\tdescription\timageurl\t\n");
+      StringBuilder line = new StringBuilder(256);
+      for (Item item : items) {
+         line.setLength (0);
+         line.append (item.itemName).append ('\t')
+             .append (item.type).append ('\t')
+             .append (item.price).append ('\t')
+             .append (item.description).append ('\t')
+             .append (item.imageURL).append ('\t').append ('\n');
+         writer.append (line);
+      }//end for
+      writer.flush ();
+      return items.size ();
+   }//end print
+
+   private Snapshot current () throws SQLException {
+      Snapshot snapshot = this._snapshot;
+      long now = System.currentTimeMillis ();
+      if (snapshot != null && now - snapshot.checkedAt < this._checkIntervalMillis)
+         return snapshot;
+      synchronized (this) {
+         snapshot = this._snapshot;
+         if (snapshot != null && now - snapshot.checkedAt < this._checkIntervalMillis)
+            return snapshot;
+         long version = readVersion ();
+         if (snapshot != null && version != UNVERSIONED && version == snapshot.version) {
+            snapshot.checkedAt = now;
+            return snapshot;
+         }//end if
+         snapshot = load (version);
+         this._snapshot = snapshot;
+         return snapshot;
+      }//end synchronized
+   }//end current
+
+   private long readVersion () {
+      try{
+         ResultTable res = this._esql.executeQueryAndReturnResult ("SELECT version FROM MenuVersion");
+         return res.isEmpty () ? UNVERSIONED : res.getLong (0, 0);
+      }catch (SQLException e){
+         return UNVERSIONED;
+      }//end try
+   }//end readVersion
+
+   private Snapshot load (long version) throws SQLException {
+      ResultTable res = this._esql.executeQueryAndReturnResult (
+         "SELECT itemName, type, price, description, imageURL FROM Menu");
+      List<Item> items = new ArrayList<Item>(res.size ());
+      for (ResultTable.Row row : res)
+         items.add (new Item(row.getString (0), row.getString (1), (float) row.getDouble (2),
+                             row.getString (3), row.getString (4)));
+      return new Snapshot(version, items);
+   }//end load
+
+}//end MenuCatalog
@@ -0,0 +1,315 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class is a search index over the menu, kept in memory as a trie of
+ * the words in each item's name, type and description.  Descriptions hold
+ * comma separated variants of an item, e.g. "Americano,Cappuccino,Latte"
+ * under Coffee, and each variant is indexed as well.
+ *
+ * A query is split into words and every word must match a word of the
+ * item, as a prefix, so results can be shown while the user types.  A
+ * typo-tolerant query accepts, for a word that is no prefix of any indexed
+ * word, the words within a small edit distance instead, found by walking
+ * the trie with a Levenshtein row per node and pruning branches that
+ * cannot come within the distance.  Results are ranked by where the words
+ * matched (name before variant before type), by exactness and by edits,
+ * and can be narrowed to one type; the number of matches of every type is
+ * returned alongside as facets.
+ *
+ * The index is changed in place when the menu changes: only items that
+ * were added, removed or renamed, or whose type or description changed,
+ * have their words taken out of or put into the trie.
+ *
+ */
+public class MenuSearch {
+
+   // how much a match counts, by the field it matched in.
+   private static final int NAME = 3, VARIANT = 2, TYPE = 1;
+
+   /**
+    * One search result.
+    */
+   public static final class Hit {
+      public final MenuCatalog.Item item;
+      public final int score;
+
+      Hit(MenuCatalog.Item item, int score) {
+         this.item = item;
+         this.score = score;
+      }
+   }//end Hit
+
+   /**
+    * The results of a search.
+    */
+   public static final class Result {
+      // best first.
+      public final List<Hit> hits;
+      // type to number of matching items, before narrowing by type.
+      public final Map<String, Integer> facets;
+
+      Result(List<Hit> hits, Map<String, Integer> facets) {
+         this.hits = hits;
+         this.facets = facets;
+      }
+   }//end Result
+
+   private static final class Node {
+      final Map<Character, Node> children = new HashMap<Character, Node>(4);
+      // item name to the weight of its best field ending at this node.
+      final Map<String, Integer> postings = new HashMap<String, Integer>(2);
+   }//end Node
+
+   private final ReadWriteLock _lock = new ReentrantReadWriteLock();
+   private final Node _root = new Node();
+   private final Map<String, MenuCatalog.Item> _items = new HashMap<String, MenuCatalog.Item>();
+   private Object _indexed = null;
+
+   /**
+    * Brings the index up to date with a copy of the menu, unless it was
+    * already built from that very copy.
+    *
+    * @param menu identifies the copy of the menu, e.g. a catalog snapshot
+    * @param items the items of that copy
+    * @return the number of items whose words were reindexed
+    */
+   public int update (Object menu, List<MenuCatalog.Item> items) {
+      this._lock.writeLock ().lock ();
+      try{
+         if (menu != null && menu == this._indexed)
+            return 0;
+         int changed = 0;
+         Map<String, MenuCatalog.Item> next = new HashMap<String, MenuCatalog.Item>();
+         for (MenuCatalog.Item item : items)
+            next.put (item.itemName, item);
+         for (Iterator<MenuCatalog.Item> it = this._items.values ().iterator (); it.hasNext ();) {
+            MenuCatalog.Item old = it.next ();
+            MenuCatalog.Item now = next.get (old.itemName);
+            if (now == null || !sameWords (old, now)) {
+               unindex (old);
+               it.remove ();
+               ++changed;
+            }//end if
+         }//end for
+         for (MenuCatalog.Item item : items) {
+            // the price or image may have changed; the words have not.
+            if (this._items.put (item.itemName, item) == null) {
+               index (item);
+               ++changed;
+            }//end if
+         }//end for
+         this._indexed = menu;
+         return changed;
+      }finally{
+         this._lock.writeLock ().unlock ();
+      }//end try
+   }//end update
+
+   /**
+    * Searches the index.
+    *
+    * @param query words to look for; each must match the start of a word
+    *        of the item
+    * @param type only return items of this type; null for all types
+    * @param fuzzy true to accept words with a few typing errors when a
+    *        word matches nothing as it is
+    * @param limit the most hits returned
+    * @return the hits and the facet counts
+    */
+   public Result search (String query, String type, boolean fuzzy, int limit) {
+      List<String> words = words (query);
+      this._lock.readLock ().lock ();
+      try{
+         Map<String, Integer> scores = null;
+         if (words.isEmpty ()) {
+            // no words: every item, for browsing by type.
+            scores = new HashMap<String, Integer>();
+            for (String itemName : this._items.keySet ())
+               scores.put (itemName, 0);
+         }//end if
+         for (String word : words) {
+            Map<String, Integer> matches = new HashMap<String, Integer>();
+            Node end = walk (word);
+            if (end != null)
+               collect (end, 10, 3, matches);
+            // typing errors are only looked for when the word is no prefix.
+            if (fuzzy && matches.isEmpty () && maxEdits (word) > 0) {
+               int[] row = new int[word.length () + 1];
+               for (int i = 0; i < row.length; ++i)
+                  row[i] = i;
+               for (Map.Entry<Character, Node> child : this._root.children.entrySet ())
+                  fuzzy (child.getValue (), child.getKey ().charValue (), row, word, maxEdits (word), matches);
+            }//end if
+            scores = scores == null ? matches : intersect (scores, matches);
+            if (scores.isEmpty ())
+               break;
+         }//end for
+
+         Map<String, Integer> facets = new TreeMap<String, Integer>();
+         List<Hit> hits = new ArrayList<Hit>();
+         if (scores != null) {
+            for (Map.Entry<String, Integer> score : scores.entrySet ()) {
+               MenuCatalog.Item item = this._items.get (score.getKey ());
+               String itemType = item.type == null ? "" : item.type;
+               Integer count = facets.get (itemType);
+               facets.put (itemType, count == null ? 1 : count + 1);
+               if (type == null || type.equals (itemType))
+                  hits.add (new Hit(item, score.getValue ()));
+            }//end for
+         }//end if
+         Collections.sort (hits, new Comparator<Hit>() {
+            public int compare (Hit a, Hit b) {
+               if (a.score != b.score)
+                  return a.score > b.score ? -1 : 1;
+               return a.item.itemName.compareTo (b.item.itemName);
+            }
+         });
+         if (hits.size () > limit)
+            hits = new ArrayList<Hit>(hits.subList (0, Math.max(0, limit)));
+         return new Result(hits, facets);
+      }finally{
+         this._lock.readLock ().unlock ();
+      }//end try
+   }//end search
+
+   // walks down the trie along a word; null if no indexed word starts with it.
+   private Node walk (String word) {
+      Node node = this._root;
+      for (int i = 0; i < word.length () && node != null; ++i)
+         node = node.children.get (word.charAt (i));
+      return node;
+   }//end walk
+
+   // scores every item with a word in the subtree; exact words score a bonus.
+   private static void collect (Node node, int base, int exactBonus, Map<String, Integer> matches) {
+      for (Map.Entry<String, Integer> posting : node.postings.entrySet ())
+         best (matches, posting.getKey (), base + posting.getValue () * 10 + exactBonus);
+      for (Node child : node.children.values ())
+         collect (child, base, 0, matches);
+   }//end collect
+
+   // one step of the Levenshtein walk: row holds the distances of the
+   // prefixes of the word to the path above this node.
+   private static void fuzzy (Node node, char c, int[] above, String word, int maxEdits, Map<String, Integer> matches) {
+      int[] row = new int[above.length];
+      row[0] = above[0] + 1;
+      int min = row[0];
+      for (int i = 1; i < row.length; ++i) {
+         int replace = above[i - 1] + (word.charAt (i - 1) == c ? 0 : 1);
+         row[i] = Math.min(replace, Math.min(row[i - 1] + 1, above[i] + 1));
+         min = Math.min(min, row[i]);
+      }//end for
+      int edits = row[row.length - 1];
+      if (edits > 0 && edits <= maxEdits)
+         collect (node, 10 - 4 * edits, 0, matches);
+      if (min <= maxEdits)
+         for (Map.Entry<Character, Node> child : node.children.entrySet ())
+            fuzzy (child.getValue (), child.getKey ().charValue (), row, word, maxEdits, matches);
+   }//end fuzzy
+
+   // items matching every word so far, their scores added up.
+   private static Map<String, Integer> intersect (Map<String, Integer> scores, Map<String, Integer> matches) {
+      Map<String, Integer> both = new HashMap<String, Integer>();
+      for (Map.Entry<String, Integer> score : scores.entrySet ()) {
+         Integer more = matches.get (score.getKey ());
+         if (more != null)
+            both.put (score.getKey (), score.getValue () + more);
+      }//end for
+      return both;
+   }//end intersect
+
+   private static void best (Map<String, Integer> scores, String key, int score) {
+      Integer old = scores.get (key);
+      if (old == null || old < score)
+         scores.put (key, score);
+   }//end best
+
+   // short words tolerate fewer errors.
+   private static int maxEdits (String word) {
+      return word.length () <= 2 ? 0 : word.length () <= 5 ? 1 : 2;
+   }
+
+   private void index (MenuCatalog.Item item) {
+      for (Map.Entry<String, Integer> term : terms (item).entrySet ()) {
+         Node node = this._root;
+         for (int i = 0; i < term.getKey ().length (); ++i) {
+            char c = term.getKey ().charAt (i);
+            Node child = node.children.get (c);
+            if (child == null) {
+               child = new Node();
+               node.children.put (c, child);
+            }//end if
+            node = child;
+         }//end for
+         best (node.postings, item.itemName, term.getValue ());
+      }//end for
+   }//end index
+
+   private void unindex (MenuCatalog.Item item) {
+      for (String term : terms (item).keySet ())
+         unindex (this._root, term, 0, item.itemName);
+   }//end unindex
+
+   // removes a posting and prunes nodes left empty; true if node is empty.
+   private static boolean unindex (Node node, String term, int depth, String itemName) {
+      if (depth == term.length ()) {
+         node.postings.remove (itemName);
+      }else {
+         Node child = node.children.get (term.charAt (depth));
+         if (child != null && unindex (child, term, depth + 1, itemName))
+            node.children.remove (term.charAt (depth));
+      }//end if
+      return node.postings.isEmpty () && node.children.isEmpty ();
+   }//end unindex
+
+   // the words of an item and the weight of the best field each is in.
+   private static Map<String, Integer> terms (MenuCatalog.Item item) {
+      Map<String, Integer> terms = new LinkedHashMap<String, Integer>();
+      for (String word : words (item.type))
+         terms.put (word, TYPE);
+      if (item.description != null)
+         for (String variant : item.description.split (","))
+            for (String word : words (variant))
+               terms.put (word, VARIANT);
+      for (String word : words (item.itemName))
+         terms.put (word, NAME);
+      return terms;
+   }//end terms
+
+   // lower case runs of letters and digits.
+   static List<String> words (String text) {
+      List<String> words = new ArrayList<String>();
+      if (text == null)
+         return words;
+      StringBuilder word = new StringBuilder();
+      for (int i = 0; i <= text.length (); ++i) {
+         char c = i < text.length () ? text.charAt (i) : ' ';
+         if (Character.isLetterOrDigit (c)) {
+            word.append (Character.toLowerCase (c));
+         }else if (word.length () > 0) {
+            words.add (word.toString ());
+            word.setLength (0);
+         }//end if
+      }//end for
+      return words;
+   }//end words
+
+   private static boolean sameWords (MenuCatalog.Item a, MenuCatalog.Item b) {
+      return eq (a.type, b.type) && eq (a.description, b.description);
+   }
+
+   private static boolean eq (String a, String b) {
+      return a == null ? b == null : a.equals (b);
+   }
+
+}//end MenuSearch
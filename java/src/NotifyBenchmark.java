@@ -0,0 +1,202 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class compares two ways of seeing an item change status: being told
+ * through ItemStatusEvents, and querying ItemStatus every poll interval.
+ * It places one order of one item, then changes the item's status a number
+ * of times for each way and measures the time from the start of each
+ * update until the change is seen, together with the queries per second
+ * the watcher sent the database while waiting.  Updates start at random
+ * times so they fall anywhere in a poll interval.
+ *
+ * The order and the user it makes are deleted at the end.
+ *
+ */
+public class NotifyBenchmark {
+
+   private static final String POLL_QUERY = "SELECT status FROM ItemStatus WHERE orderid = ? AND itemName = ?";
+   private static final long TIMEOUT_MILLIS = 10000;
+
+   private final Cafe _esql;
+   private final int _rounds;
+   private final long[] _pollIntervals;
+   private final Random _random = new Random(18);
+
+   /**
+    * Creates a new benchmark
+    *
+    * @param esql the test database
+    * @param rounds status changes measured for each way
+    * @param pollIntervals the poll intervals compared, in milliseconds
+    */
+   public NotifyBenchmark(Cafe esql, int rounds, long[] pollIntervals) {
+      this._esql = esql;
+      this._rounds = Math.max(1, rounds);
+      this._pollIntervals = pollIntervals;
+   }//end NotifyBenchmark
+
+   /**
+    * Runs the benchmark and prints the results.
+    */
+   public void run () throws Exception {
+      List<MenuCatalog.Item> menu = this._esql.getMenuCatalog ().items ();
+      if (menu.isEmpty ())
+         throw new SQLException("The benchmark needs rows in Menu");
+      String login = "notifybench" + Long.toString (System.currentTimeMillis (), 36);
+      String itemName = menu.get (0).itemName;
+      this._esql.createUser (login, "notifybench", null);
+      int orderid = -1;
+      try{
+         Cart cart = new Cart();
+         cart.add (itemName, "");
+         orderid = this._esql.placeOrder (login, cart).orderid;
+
+         StringBuilder report = new StringBuilder();
+         report.append (String.format ("%-14s %12s %12s %12s%n", "watcher", "p50 ms", "p99 ms", "queries/s"));
+         report.append (push (login, orderid, itemName));
+         for (long interval : this._pollIntervals)
+            report.append (poll (orderid, itemName, interval));
+         System.out.println ();
+         System.out.print (report);
+         System.out.println ("latency from the start of the update until the change was seen; "
+            + "queries/s is what one watcher sends, and grows with every polling client");
+      }finally{
+         if (orderid >= 0) {
+            this._esql.executeUpdate ("DELETE FROM ItemStatus WHERE orderid = ?", orderid);
+            this._esql.executeUpdate ("DELETE FROM Orders WHERE orderid = ?", orderid);
+            this._esql.getUnpaidOrders ().removed (orderid);
+         }//end if
+         this._esql.executeUpdate ("DELETE FROM USERS WHERE login = ?", login);
+      }//end try
+   }//end run
+
+   // the latency of being told, through the listener.
+   private String push (String login, int orderid, String itemName) throws Exception {
+      final BlockingQueue<Object[]> seen = new LinkedBlockingQueue<Object[]>();
+      ItemStatusEvents.Subscriber subscriber = new ItemStatusEvents.Subscriber() {
+         public void itemStatusChanged (ItemStatusEvents.Event event) {
+            seen.add (new Object[] { event.status, System.nanoTime () });
+         }
+      };
+      ItemStatusEvents events = this._esql.getItemStatusEvents ();
+      events.subscribe (login, subscriber);
+      try{
+         // the listener starts with the first subscription; change the
+         // status until it is heard.
+         long deadline = System.currentTimeMillis () + TIMEOUT_MILLIS;
+         boolean listening = false;
+         for (int i = 0; !listening && System.currentTimeMillis () < deadline; ++i) {
+            this._esql.setItemStatus (orderid, itemName, "warm-up " + i);
+            listening = seen.poll (200, TimeUnit.MILLISECONDS) != null;
+         }//end for
+         if (!listening)
+            throw new SQLException("No item status notification arrived; is the ItemStatus trigger installed?");
+         seen.clear ();
+
+         LatencyHistogram latency = new LatencyHistogram();
+         long polls = events.polls ();
+         long start = System.nanoTime ();
+         for (int i = 0; i < this._rounds; ++i) {
+            Thread.sleep (this._random.nextInt (50));
+            String status = "push " + i;
+            long t0 = System.nanoTime ();
+            this._esql.setItemStatus (orderid, itemName, status);
+            latency.record (await (seen, status) - t0);
+         }//end for
+         double seconds = (System.nanoTime () - start) / 1e9;
+         System.out.println ("notify " + latency.summary ());
+         return row ("notify", latency, (events.polls () - polls) / seconds);
+      }finally{
+         events.unsubscribe (subscriber);
+      }//end try
+   }//end push
+
+   // the latency of polling at one interval.
+   private String poll (final int orderid, final String itemName, final long intervalMillis) throws Exception {
+      final BlockingQueue<Object[]> seen = new LinkedBlockingQueue<Object[]>();
+      final AtomicLong queries = new AtomicLong();
+      Thread poller = new Thread("notify-bench-poller") {
+         public void run () {
+            String last = null;
+            try{
+               while (!isInterrupted ()) {
+                  ResultTable status = _esql.executeQueryAndReturnResult (POLL_QUERY, orderid, itemName);
+                  long now = System.nanoTime ();
+                  queries.incrementAndGet ();
+                  String current = status.isEmpty () ? null : status.getString (0, 0);
+                  if (current != null && !current.equals (last))
+                     seen.add (new Object[] { current, now });
+                  last = current;
+                  Thread.sleep (intervalMillis);
+               }//end while
+            }catch (InterruptedException e){
+               // stopped.
+            }catch (Exception e){
+               // handed to the waiting round instead of a status.
+               seen.add (new Object[] { e, 0L });
+            }//end try
+         }
+      };
+      poller.start ();
+      try{
+         LatencyHistogram latency = new LatencyHistogram();
+         long start = System.nanoTime ();
+         long startQueries = queries.get ();
+         for (int i = 0; i < this._rounds; ++i) {
+            Thread.sleep (this._random.nextInt ((int) Math.max(1, intervalMillis)));
+            String status = "poll " + intervalMillis + " " + i;
+            long t0 = System.nanoTime ();
+            this._esql.setItemStatus (orderid, itemName, status);
+            latency.record (await (seen, status) - t0);
+         }//end for
+         double seconds = (System.nanoTime () - start) / 1e9;
+         long sent = queries.get () - startQueries;
+         String name = "poll " + intervalMillis + " ms";
+         System.out.println (name + " " + latency.summary ());
+         return row (name, latency, sent / seconds);
+      }finally{
+         poller.interrupt ();
+         poller.join ();
+      }//end try
+   }//end poll
+
+   // waits until the given status is seen and returns when it was.
+   private static long await (BlockingQueue<Object[]> seen, String status) throws Exception {
+      long deadline = System.currentTimeMillis () + TIMEOUT_MILLIS;
+      while (System.currentTimeMillis () < deadline) {
+         Object[] next = seen.poll (deadline - System.currentTimeMillis (), TimeUnit.MILLISECONDS);
+         if (next != null && next[0] instanceof Exception)
+            throw (Exception) next[0];
+         if (next != null && status.equals (next[0]))
+            return ((Long) next[1]).longValue ();
+      }//end while
+      throw new SQLException("The change to " + status + " was not seen in " + TIMEOUT_MILLIS + " ms");
+   }//end await
+
+   private static String row (String name, LatencyHistogram latency, double queriesPerSecond) {
+      return String.format ("%-14s %12.3f %12.3f %12.1f%n", name,
+         latency.percentileNanos (0.5) / 1e6, latency.percentileNanos (0.99) / 1e6, queriesPerSecond);
+   }//end row
+
+   /**
+    * Parses a comma separated list of poll intervals in milliseconds.
+    */
+   static long[] parseIntervals (String text) {
+      List<Long> intervals = new ArrayList<Long>();
+      for (String interval : text.split (","))
+         if (interval.trim ().length () > 0)
+            intervals.add (Long.valueOf (interval.trim ()));
+      long[] result = new long[intervals.size ()];
+      for (int i = 0; i < result.length; ++i)
+         result[i] = intervals.get (i);
+      return result;
+   }//end parseIntervals
+
+}//end NotifyBenchmark
@@ -0,0 +1,30 @@
+/**
+ * This class holds one row of the Orders table as returned to callers that
+ * place, pay or list orders.
+ *
+ */
+public class Order {
+
+   public final int orderid;
+   public final String login;
+   public final boolean paid;
+   // timeStampRecieved as milliseconds since the epoch.
+   public final long timeStampRecieved;
+   public final double total;
+
+   public Order(int orderid, String login, boolean paid, long timeStampRecieved, double total) {
+      this.orderid = orderid;
+      this.login = login;
+      this.paid = paid;
+      this.timeStampRecieved = timeStampRecieved;
+      this.total = total;
+   }//end Order
+
+   /**
+    * Returns a copy of this order marked as paid.
+    */
+   public Order asPaid () {
+      return new Order(this.orderid, this.login, true, this.timeStampRecieved, this.total);
+   }
+
+}//end Order
@@ -0,0 +1,206 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class pages through the orders of one user, newest first, together
+ * with the status of each ordered item.
+ *
+ * Pages are found by keyset: the next page is the orders just before the
+ * (timeStampRecieved, orderid) of the last order shown, the previous page
+ * the orders just after the first one.  With an index on (login,
+ * timeStampRecieved, orderid) each page is read by one index range scan,
+ * so a page deep in the history costs the same as the first page, where
+ * OFFSET would read and throw away every order before it.
+ *
+ * A position in the history is handed around as a cursor string, the
+ * timestamp of an order as the database prints it and its order id.  The
+ * timestamp is kept as text because the column holds microseconds.
+ *
+ */
+public class OrderHistory {
+
+   // the page of orders is chosen in the subquery, then joined to its items.
+   static final String PAGE_QUERY =
+      "SELECT o.orderid, o.paid, o.total, CAST(o.timeStampRecieved AS text), "
+      + "i.itemName, i.status, i.comments, CAST(i.lastUpdated AS text) "
+      + "FROM (SELECT orderid, paid, total, timeStampRecieved FROM Orders WHERE login = ? %s "
+      + "ORDER BY timeStampRecieved %s, orderid %s %s) o "
+      + "LEFT JOIN ItemStatus i ON i.orderid = o.orderid "
+      + "ORDER BY o.timeStampRecieved DESC, o.orderid DESC, i.itemName";
+
+   private static final String FIRST_QUERY = String.format (PAGE_QUERY, "", "DESC", "DESC", "LIMIT ?");
+   private static final String OLDER_QUERY = String.format (PAGE_QUERY,
+      "AND (timeStampRecieved, orderid) < (CAST(? AS timestamp), ?)", "DESC", "DESC", "LIMIT ?");
+   private static final String NEWER_QUERY = String.format (PAGE_QUERY,
+      "AND (timeStampRecieved, orderid) > (CAST(? AS timestamp), ?)", "ASC", "ASC", "LIMIT ?");
+
+   /**
+    * One order of a page and its items.
+    */
+   public static final class Entry {
+      public final int orderid;
+      public final boolean paid;
+      public final double total;
+      public final String timeStampRecieved;
+      // itemName, status, comments and lastUpdated of each item.
+      public final List<String[]> items = new ArrayList<String[]>();
+
+      Entry(int orderid, boolean paid, double total, String timeStampRecieved) {
+         this.orderid = orderid;
+         this.paid = paid;
+         this.total = total;
+         this.timeStampRecieved = timeStampRecieved;
+      }
+
+      String cursor () {
+         return this.timeStampRecieved + "," + this.orderid;
+      }
+   }//end Entry
+
+   /**
+    * One page of orders, newest first.
+    */
+   public static final class Page {
+      public final List<Entry> orders;
+      public final boolean hasOlder;
+      public final boolean hasNewer;
+
+      Page(List<Entry> orders, boolean hasOlder, boolean hasNewer) {
+         this.orders = orders;
+         this.hasOlder = hasOlder && !orders.isEmpty ();
+         this.hasNewer = hasNewer && !orders.isEmpty ();
+      }
+
+      public boolean isEmpty () {
+         return this.orders.isEmpty ();
+      }
+
+      // the cursor to pass to older() for the page after this one.
+      public String olderCursor () {
+         return isEmpty () ? null : this.orders.get (this.orders.size () - 1).cursor ();
+      }
+
+      // the cursor to pass to newer() for the page before this one.
+      public String newerCursor () {
+         return isEmpty () ? null : this.orders.get (0).cursor ();
+      }
+   }//end Page
+
+   private final Cafe _esql;
+   private final int _pageSize;
+
+   /**
+    * Creates a new history reader
+    *
+    * @param esql the database
+    * @param pageSize orders per page
+    */
+   public OrderHistory(Cafe esql, int pageSize) {
+      this._esql = esql;
+      this._pageSize = Math.max(1, pageSize);
+   }//end OrderHistory
+
+   /**
+    * Returns the newest orders of a user.
+    */
+   public Page first (String login) throws SQLException {
+      List<Entry> orders = read (this._esql.executeQueryAndReturnResult (FIRST_QUERY, login, this._pageSize + 1));
+      boolean more = trim (orders, false);
+      return new Page(orders, more, false);
+   }//end first
+
+   /**
+    * Returns the orders just older than a cursor.
+    *
+    * @param login the user
+    * @param cursor Page.olderCursor() of the page shown
+    */
+   public Page older (String login, String cursor) throws SQLException {
+      int comma = checkCursor (cursor);
+      List<Entry> orders = read (this._esql.executeQueryAndReturnResult (OLDER_QUERY, login,
+         cursor.substring (0, comma), Integer.parseInt (cursor.substring (comma + 1)), this._pageSize + 1));
+      boolean more = trim (orders, false);
+      return new Page(orders, more, true);
+   }//end older
+
+   /**
+    * Returns the orders just newer than a cursor.
+    *
+    * @param login the user
+    * @param cursor Page.newerCursor() of the page shown
+    */
+   public Page newer (String login, String cursor) throws SQLException {
+      int comma = checkCursor (cursor);
+      List<Entry> orders = read (this._esql.executeQueryAndReturnResult (NEWER_QUERY, login,
+         cursor.substring (0, comma), Integer.parseInt (cursor.substring (comma + 1)), this._pageSize + 1));
+      boolean more = trim (orders, true);
+      return new Page(orders, true, more);
+   }//end newer
+
+   /**
+    * Writes a page, one line per order followed by one indented line per
+    * item.
+    *
+    * @param writer where the page is written; flushed before returning
+    * @param page the page
+    * @return the number of orders written
+    */
+   public static int print (Writer writer, Page page) throws IOException {
+      StringBuilder line = new StringBuilder(256);
+      if (!page.isEmpty ())
+         writer.write ("orderid\tpaid\ttotal\ttimestamprecieved\t\n");
+      for (Entry order : page.orders) {
+         line.setLength (0);
+         line.append (order.orderid).append ('\t')
+             .append (order.paid ? 't' : 'f').append ('\t')
+             .append (order.total).append ('\t')
+             .append (order.timeStampRecieved).append ('\t').append ('\n');
+         for (String[] item : order.items) {
+            line.append ("    ");
+            for (String field : item)
+               line.append (field).append ('\t');
+            line.append ('\n');
+         }//end for
+         writer.append (line);
+      }//end for
+      writer.flush ();
+      return page.orders.size ();
+   }//end print
+
+   // groups the joined rows by order; rows of one order are adjacent.
+   private static List<Entry> read (ResultTable rows) {
+      List<Entry> orders = new ArrayList<Entry>();
+      Entry order = null;
+      for (ResultTable.Row row : rows) {
+         int orderid = row.getInt (0);
+         if (order == null || order.orderid != orderid) {
+            order = new Entry(orderid, row.getBoolean (1), row.getDouble (2), row.getString (3));
+            orders.add (order);
+         }//end if
+         if (!row.isNull (4))
+            order.items.add (new String[] { row.getString (4), row.getString (5), row.getString (6), row.getString (7) });
+      }//end for
+      return orders;
+   }//end read
+
+   // one order more than a page is read to know whether there is more; it
+   // is the oldest when paging back in time and the newest when paging
+   // forward.  Returns true if there was one.
+   private boolean trim (List<Entry> orders, boolean newest) {
+      if (orders.size () <= this._pageSize)
+         return false;
+      orders.remove (newest ? 0 : orders.size () - 1);
+      return true;
+   }//end trim
+
+   private static int checkCursor (String cursor) {
+      int comma = cursor == null ? -1 : cursor.lastIndexOf (',');
+      if (comma <= 0)
+         throw new IllegalArgumentException("Bad history cursor " + cursor);
+      return comma;
+   }//end checkCursor
+
+}//end OrderHistory
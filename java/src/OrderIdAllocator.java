@@ -0,0 +1,83 @@
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class hands out order ids from blocks reserved in advance on the
+ * Orders id sequence (hi/lo style), so placing an order does not cost a
+ * round trip for its id.
+ *
+ * A block is reserved with one nextval per id in a single statement, so the
+ * ids are unique across every process and every insert that relies on the
+ * serial default.  Inside the process ids are taken from the current block
+ * with an atomic counter; only the thread that finds the block used up goes
+ * back to the database.  Ids left in a block when the program exits are never
+ * used, which leaves gaps in the sequence the same way rolled back inserts do.
+ *
+ */
+public class OrderIdAllocator {
+
+   // sequence behind Orders.orderid serial column.
+   static final String SEQUENCE = "orders_orderid_seq";
+
+   private final Cafe _esql;
+   private final int _blockSize;
+   private final AtomicReference<Block> _current = new AtomicReference<Block>(new Block(new int[0]));
+
+   // number of blocks reserved, for reporting.
+   private final AtomicInteger _reservations = new AtomicInteger();
+
+   /**
+    * Creates a new allocator
+    *
+    * @param esql the database the ids are reserved on
+    * @param blockSize the number of ids reserved per round trip
+    */
+   public OrderIdAllocator(Cafe esql, int blockSize) {
+      this._esql = esql;
+      this._blockSize = Math.max(1, blockSize);
+   }//end OrderIdAllocator
+
+   /**
+    * Returns an order id no other caller, in this or any other process, has
+    * been or will be given.
+    *
+    * @return the next order id
+    * @throws java.sql.SQLException when a new block cannot be reserved
+    */
+   public int next () throws SQLException {
+      while (true) {
+         Block block = this._current.get ();
+         int i = block.next.getAndIncrement ();
+         if (i < block.ids.length)
+            return block.ids[i];
+         refill (block);
+      }//end while
+   }//end next
+
+   public int getBlockSize () {
+      return this._blockSize;
+   }
+
+   public int getReservations () {
+      return this._reservations.get ();
+   }
+
+   // replaces an exhausted block; threads that lose the race just retry.
+   private synchronized void refill (Block exhausted) throws SQLException {
+      if (this._current.get () != exhausted)
+         return;
+      this._current.set (new Block(this._esql.reserveSequenceValues (SEQUENCE, this._blockSize)));
+      this._reservations.incrementAndGet ();
+   }//end refill
+
+   private static final class Block {
+      final int[] ids;
+      final AtomicInteger next = new AtomicInteger();
+
+      Block(int[] ids) {
+         this.ids = ids;
+      }
+   }//end Block
+
+}//end OrderIdAllocator
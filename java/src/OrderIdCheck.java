@@ -0,0 +1,111 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class checks that order ids are never handed out twice.  It opens a
+ * number of Cafe instances on the same database, each with an id allocator
+ * of its own as a separate process would have, and has many threads on
+ * each take ids through nextOrderId at once.  Every id is recorded; the run
+ * fails if one was handed out twice.
+ *
+ * No orders are written; the ids taken are left as gaps in the sequence.
+ *
+ */
+public class OrderIdCheck {
+
+   private final String[] _connection;
+   private final int _instances;
+   private final int _threads;
+   private final int _ids;
+
+   /**
+    * Creates a new check
+    *
+    * @param connection the database name, port and user
+    * @param instances Cafe instances opened
+    * @param threads threads taking ids on each instance
+    * @param ids ids each thread takes
+    */
+   public OrderIdCheck(String[] connection, int instances, int threads, int ids) {
+      this._connection = connection;
+      this._instances = Math.max(1, instances);
+      this._threads = Math.max(1, threads);
+      this._ids = Math.max(1, ids);
+   }//end OrderIdCheck
+
+   /**
+    * Runs the check and prints the results.
+    *
+    * @return true if no id was handed out twice
+    */
+   public boolean run () throws Exception {
+      List<Cafe> instances = new ArrayList<Cafe>();
+      try{
+         for (int i = 0; i < this._instances; ++i)
+            instances.add (new Cafe(this._connection[0], this._connection[1], this._connection[2], ""));
+         System.out.println ("Taking " + this._ids + " ids on each of " + this._threads + " threads on "
+            + this._instances + " instances");
+
+         final ConcurrentHashMap<Integer, String> takenBy = new ConcurrentHashMap<Integer, String>();
+         final AtomicLong duplicates = new AtomicLong();
+         final CountDownLatch go = new CountDownLatch(1);
+         final Exception[] failures = new Exception[this._instances * this._threads];
+         List<Thread> threads = new ArrayList<Thread>();
+         for (int i = 0; i < this._instances; ++i) {
+            for (int t = 0; t < this._threads; ++t) {
+               final Cafe esql = instances.get (i);
+               final int index = i * this._threads + t;
+               final String name = "instance-" + i + "/thread-" + t;
+               Thread thread = new Thread(name) {
+                  public void run () {
+                     try{
+                        go.await ();
+                        for (int n = 0; n < _ids; ++n) {
+                           int orderid = esql.nextOrderId ();
+                           String other = takenBy.putIfAbsent (orderid, name);
+                           if (other != null) {
+                              duplicates.incrementAndGet ();
+                              System.out.println ("order id " + orderid + " taken by " + other + " and " + name);
+                           }//end if
+                        }//end for
+                     }catch (Exception ex){
+                        failures[index] = ex;
+                     }//end try
+                  }
+               };
+               thread.start ();
+               threads.add (thread);
+            }//end for
+         }//end for
+
+         long start = System.nanoTime ();
+         go.countDown ();
+         for (Thread thread : threads)
+            thread.join ();
+         double seconds = (System.nanoTime () - start) / 1e9;
+
+         boolean ok = true;
+         for (int f = 0; f < failures.length; ++f) {
+            if (failures[f] != null) {
+               ok = false;
+               System.out.println ("instance-" + (f / this._threads) + "/thread-" + (f % this._threads)
+                  + " failed: " + failures[f].getMessage ());
+            }//end if
+         }//end for
+         long expected = (long) this._instances * this._threads * this._ids;
+         System.out.println ();
+         System.out.println (String.format ("%d of %d ids taken in %.3f s, %d taken twice",
+            takenBy.size () + duplicates.get (), expected, seconds, duplicates.get ()));
+         ok &= duplicates.get () == 0 && takenBy.size () == expected;
+         System.out.println (ok ? "PASS: every order id was handed out once" : "FAIL");
+         return ok;
+      }finally{
+         for (Cafe esql : instances)
+            esql.cleanup ();
+      }//end try
+   }//end run
+
+}//end OrderIdCheck
@@ -0,0 +1,761 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * This class lets orders be confirmed without waiting for the database.
+ * A placed order, its Orders row and its ItemStatus rows, is appended to a
+ * journal on local disk and confirmed at once; a background thread then
+ * writes the journaled orders to the database in large batches, one
+ * transaction per batch.
+ *
+ * The journal is a series of segment files mapped into memory.  Each
+ * record is its length, a CRC32 of its bytes and the bytes; the length is
+ * written last, and a record whose checksum does not match ends the
+ * journal, so a record torn by a crash is never read.  The header of each
+ * segment holds the offset up to which its records are in the database;
+ * segments written to the end and flushed are deleted.
+ *
+ * When a journal is opened the records past the flushed offset are written
+ * to the database again.  The inserts skip rows that are already there, so
+ * an order flushed just before a crash, whose offset was not saved, is not
+ * written twice.  An order the database refuses, e.g. for an item deleted
+ * from the menu meanwhile, is written to journal-rejected.log and skipped;
+ * while the database cannot be reached the flusher retries, backing off.
+ * An error counts as the database being out of reach only when it says so
+ * by its SQLState or the connection no longer answers, as the bundled
+ * driver sets no SQLState; an order that keeps failing alone for another
+ * reason is set aside after MAX_ORDER_ATTEMPTS tries.
+ *
+ * The fsync policy sets when the mapped pages are forced to disk.  Pages
+ * belong to the operating system as soon as they are written, so a killed
+ * process loses nothing whatever the policy; the policy is about losing
+ * the machine.
+ *   always   - before each order is confirmed
+ *   interval - every fsync interval; at most that much is lost
+ *   never    - when the operating system writes them back
+ *
+ * Ids come from the order id allocator and totals from the menu catalog,
+ * so placing an order in this mode needs no round trip; the order appears
+ * in the database, and to other sessions, when it is flushed.
+ *
+ */
+public class OrderJournal {
+
+   public static final String FSYNC_ALWAYS = "always";
+   public static final String FSYNC_INTERVAL = "interval";
+   public static final String FSYNC_NEVER = "never";
+
+   // segment header: magic, version and the flushed offset.
+   private static final int MAGIC = 0x4a524e4c;
+   private static final int VERSION = 1;
+   private static final int FLUSHED_AT = 8;
+   private static final int HEADER = 64;
+   // length and checksum before the bytes of each record.
+   private static final int RECORD_HEADER = 8;
+   private static final byte ORDER = 1;
+
+   private static final String ORDERS_INSERT =
+      "INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total) "
+      + "VALUES (?, ?, false, ?, ?) ON CONFLICT (orderid) DO NOTHING";
+   private static final String ITEM_STATUS_INSERT =
+      "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) "
+      + "VALUES (?, ?, ?, ?, ?) ON CONFLICT (orderid, itemName) DO NOTHING";
+
+   private static final long MAX_BACKOFF_MILLIS = 5000;
+   // tries of an order written alone before it is set aside, unless the
+   // database could not be reached at all.
+   private static final int MAX_ORDER_ATTEMPTS = 10;
+
+   /**
+    * A write that failed because the connection was lost, or none could be
+    * had.
+    */
+   private static final class LostConnection extends SQLException {
+      private static final long serialVersionUID = 1L;
+
+      // no connection could be had at all.
+      final boolean unreachable;
+
+      LostConnection(SQLException cause, boolean unreachable) {
+         super(cause.getMessage (), cause.getSQLState (), cause);
+         this.unreachable = unreachable;
+      }
+   }//end LostConnection
+
+   /**
+    * One journaled order.
+    */
+   static final class Entry {
+      final int orderid;
+      final String login;
+      final long timeStampRecieved;
+      final float total;
+      // item name and comments of each item.
+      final List<String[]> items;
+
+      Entry(int orderid, String login, long timeStampRecieved, float total, List<String[]> items) {
+         this.orderid = orderid;
+         this.login = login;
+         this.timeStampRecieved = timeStampRecieved;
+         this.total = total;
+         this.items = items;
+      }
+
+      byte[] encode () throws IOException {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 32 * this.items.size ());
+         DataOutputStream out = new DataOutputStream(bytes);
+         out.writeByte (ORDER);
+         out.writeInt (this.orderid);
+         out.writeUTF (this.login);
+         out.writeLong (this.timeStampRecieved);
+         out.writeFloat (this.total);
+         out.writeShort (this.items.size ());
+         for (String[] item : this.items) {
+            out.writeUTF (item[0]);
+            out.writeUTF (item[1]);
+         }//end for
+         out.flush ();
+         return bytes.toByteArray ();
+      }//end encode
+
+      static Entry decode (byte[] record) throws IOException {
+         DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+         if (in.readByte () != ORDER)
+            throw new IOException("Unknown journal record type");
+         int orderid = in.readInt ();
+         String login = in.readUTF ();
+         long time = in.readLong ();
+         float total = in.readFloat ();
+         int count = in.readUnsignedShort ();
+         List<String[]> items = new ArrayList<String[]>(count);
+         for (int i = 0; i < count; ++i)
+            items.add (new String[] { in.readUTF (), in.readUTF () });
+         return new Entry(orderid, login, time, total, items);
+      }//end decode
+   }//end Entry
+
+   // one journal file, mapped whole.
+   private static final class Segment {
+      final long number;
+      final File file;
+      final RandomAccessFile raf;
+      final MappedByteBuffer map;
+      // positioned copies: the appender's, under the journal lock, and the
+      // flusher's.
+      final ByteBuffer writer;
+      final ByteBuffer reader;
+      // the end of the last complete record.
+      volatile int end = HEADER;
+      // no more records will be added.
+      volatile boolean sealed = false;
+
+      Segment(File file, long number, int size) throws IOException {
+         this.number = number;
+         this.file = file;
+         boolean created = !file.exists ();
+         this.raf = new RandomAccessFile(file, "rw");
+         if (created)
+            this.raf.setLength (size);
+         this.map = this.raf.getChannel ().map (FileChannel.MapMode.READ_WRITE, 0, this.raf.length ());
+         this.writer = this.map.duplicate ();
+         this.reader = this.map.duplicate ();
+         if (created) {
+            this.map.putInt (0, MAGIC);
+            this.map.putInt (4, VERSION);
+            this.map.putInt (FLUSHED_AT, HEADER);
+         }else if (this.map.capacity () < HEADER || this.map.getInt (0) != MAGIC)
+            throw new IOException(file + " is not an order journal");
+      }
+
+      int flushedAt () {
+         return this.map.getInt (FLUSHED_AT);
+      }
+
+      void close () {
+         try{
+            this.raf.close ();
+         }catch (IOException e){
+            // the mapping stays valid; nothing to do.
+         }//end try
+      }
+   }//end Segment
+
+   private final Cafe _esql;
+   private final File _dir;
+   private final int _segmentBytes;
+   private final String _fsync;
+   private final long _fsyncMillis;
+   private final int _batchSize;
+   private final long _flushMillis;
+
+   // the segments not yet flushed and deleted, oldest first; the last one
+   // is written to.  Guarded by this.
+   private final List<Segment> _segments = new ArrayList<Segment>();
+   private Segment _writing;
+
+   // orders appended, counting those found unflushed at open, and orders
+   // flushed or rejected since.
+   private volatile long _appended = 0;
+   private volatile long _flushed = 0;
+   private final Object _flushedLock = new Object();
+   private final long _replayed;
+   private long _batches = 0;
+   private long _rejected = 0;
+   // the order last written alone and failed, and its tries; flusher only.
+   private int _failingOrder = -1;
+   private int _failingAttempts = 0;
+   private final LatencyHistogram _flushLatency = new LatencyHistogram();
+
+   private Thread _flusher = null;
+   private Thread _syncer = null;
+   private volatile boolean _closing = false;
+   private volatile boolean _stopped = false;
+
+   // where the flusher halts the process, for the crash check.
+   private String _haltPhase = null;
+   private long _haltBatch = -1;
+
+   /**
+    * Opens the journal in a directory, creating it if needed, and finds the
+    * orders that are not yet in the database; start() writes them.
+    *
+    * @param esql the database
+    * @param dir the journal directory
+    * @param segmentBytes the size of each journal file
+    * @param fsync always, interval or never
+    * @param fsyncMillis the fsync interval
+    * @param batchSize the most orders written per transaction
+    * @param flushMillis how long the flusher sleeps when there is nothing
+    *        to write
+    */
+   public OrderJournal(Cafe esql, File dir, int segmentBytes, String fsync, long fsyncMillis,
+                       int batchSize, long flushMillis) throws IOException {
+      if (!FSYNC_ALWAYS.equals (fsync) && !FSYNC_INTERVAL.equals (fsync) && !FSYNC_NEVER.equals (fsync))
+         throw new IllegalArgumentException("Unknown fsync policy: " + fsync);
+      this._esql = esql;
+      this._dir = dir;
+      this._segmentBytes = Math.max(HEADER + 4096, segmentBytes);
+      this._fsync = fsync;
+      this._fsyncMillis = Math.max(1, fsyncMillis);
+      this._batchSize = Math.max(1, batchSize);
+      this._flushMillis = Math.max(1, flushMillis);
+      if (!dir.isDirectory () && !dir.mkdirs ())
+         throw new IOException("Cannot create journal directory " + dir);
+
+      List<Long> numbers = new ArrayList<Long>();
+      String[] names = dir.list ();
+      for (String name : names == null ? new String[0] : names)
+         if (name.matches ("journal-\\d+\\.log"))
+            numbers.add (Long.valueOf (name.substring (8, name.length () - 4)));
+      Collections.sort (numbers);
+      long unflushed = 0;
+      for (long number : numbers) {
+         Segment segment = new Segment(segmentFile (number), number, this._segmentBytes);
+         int[] count = new int[1];
+         segment.end = scan (segment, count);
+         segment.sealed = true;
+         unflushed += count[0];
+         this._segments.add (segment);
+      }//end for
+      if (this._segments.isEmpty ())
+         this._segments.add (new Segment(segmentFile (1), 1, this._segmentBytes));
+      this._writing = this._segments.get (this._segments.size () - 1);
+      this._writing.sealed = false;
+      // whatever follows the last good record, e.g. a torn one, is cleared
+      // so records appended over it cannot be mistaken for older ones.
+      clear (this._writing, this._writing.end);
+      this._appended = unflushed;
+      this._replayed = unflushed;
+   }//end OrderJournal
+
+   /**
+    * Starts writing journaled orders to the database, those left from
+    * before first.
+    */
+   public synchronized void start () {
+      if (this._flusher != null)
+         return;
+      if (this._replayed > 0)
+         System.out.println ("Replaying " + this._replayed + " journaled orders not yet in the database");
+      this._flusher = new Thread("order-journal-flusher") {
+         public void run () {
+            flushLoop ();
+         }
+      };
+      this._flusher.setDaemon (true);
+      this._flusher.start ();
+      if (FSYNC_INTERVAL.equals (this._fsync)) {
+         this._syncer = new Thread("order-journal-sync") {
+            public void run () {
+               while (!_stopped) {
+                  LockSupport.parkNanos (_fsyncMillis * 1000000L);
+                  force ();
+               }//end while
+            }
+         };
+         this._syncer.setDaemon (true);
+         this._syncer.start ();
+      }//end if
+   }//end start
+
+   /**
+    * Journals an order for the items in a cart and returns it at once.
+    * The total is summed from the menu catalog's prices.
+    *
+    * @param login the login of the customer
+    * @param cart the items to order; must not be empty
+    * @return the new order
+    * @throws java.sql.SQLException when an item is not on the menu, no id
+    *         could be had, or the journal is closed or cannot be written
+    */
+   public Order place (String login, Cart cart) throws SQLException {
+      if (cart.isEmpty ())
+         throw new SQLException("Cannot place an order without items");
+      MenuCatalog menu = this._esql.getMenuCatalog ();
+      List<String[]> items = new ArrayList<String[]>(cart.size ());
+      float total = 0;
+      for (Map.Entry<String, String> item : cart.entries ()) {
+         // an unknown item would fail the flush instead of the order.
+         MenuCatalog.Item known = menu.find (item.getKey ());
+         if (known == null)
+            throw new SQLException("No item named " + item.getKey () + " on the menu");
+         total += known.price;
+         items.add (new String[] { item.getKey (), item.getValue () });
+      }//end for
+      Entry entry = new Entry(this._esql.nextOrderId (), login, System.currentTimeMillis (), total, items);
+      try{
+         append (entry.encode ());
+      }catch (IOException e){
+         throw new SQLException("Cannot journal order " + entry.orderid + ": " + e.getMessage ());
+      }//end try
+      return new Order(entry.orderid, login, false, entry.timeStampRecieved, total);
+   }//end place
+
+   /**
+    * Waits until every order journaled so far is in the database.
+    *
+    * @throws java.sql.SQLException if they are not within the timeout
+    */
+   public void awaitFlushed (long timeoutMillis) throws SQLException {
+      long target = this._appended;
+      long deadline = System.currentTimeMillis () + timeoutMillis;
+      synchronized (this._flushedLock) {
+         while (this._flushed < target) {
+            long left = deadline - System.currentTimeMillis ();
+            if (left <= 0)
+               throw new SQLException("Journaled orders are not in the database after "
+                  + timeoutMillis + " ms; " + (target - this._flushed) + " left");
+            try{
+               this._flushedLock.wait (left);
+            }catch (InterruptedException e){
+               Thread.currentThread ().interrupt ();
+               throw new SQLException("Interrupted waiting for the order journal");
+            }//end try
+         }//end while
+      }//end synchronized
+   }//end awaitFlushed
+
+   /**
+    * Returns the number of journaled orders not yet in the database.
+    */
+   public long behind () {
+      return this._appended - this._flushed;
+   }
+
+   /**
+    * Returns the number of orders the database refused.
+    */
+   public synchronized long rejected () {
+      return this._rejected;
+   }
+
+   /**
+    * Returns the number of orders found unflushed when the journal was
+    * opened.
+    */
+   public long replayed () {
+      return this._replayed;
+   }
+
+   public String stats () {
+      long batches, rejected;
+      int segments;
+      synchronized (this) {
+         batches = this._batches;
+         rejected = this._rejected;
+         segments = this._segments.size ();
+      }//end synchronized
+      return String.format ("order journal: %d appended, %d flushed in %d batches, %d rejected, "
+         + "%d behind, %d replayed, %d segments, fsync %s, flush p50 %.3f ms p99 %.3f ms",
+         this._appended, this._flushed, batches, rejected, behind (), this._replayed, segments,
+         this._fsync, this._flushLatency.percentileNanos (0.5) / 1e6,
+         this._flushLatency.percentileNanos (0.99) / 1e6);
+   }//end stats
+
+   /**
+    * Stops taking orders and writes the journaled ones to the database,
+    * waiting at most the timeout; what is left is written when the
+    * journal is next opened.
+    */
+   public void close (long timeoutMillis) {
+      Thread flusher;
+      synchronized (this) {
+         if (this._closing)
+            return;
+         this._closing = true;
+         flusher = this._flusher;
+      }//end synchronized
+      try{
+         if (flusher != null) {
+            LockSupport.unpark (flusher);
+            flusher.join (timeoutMillis);
+         }//end if
+      }catch (InterruptedException e){
+         Thread.currentThread ().interrupt ();
+      }//end try
+      this._stopped = true;
+      if (flusher != null && flusher.isAlive ()) {
+         System.err.println ("Order journal closed with " + behind () + " orders not yet in the database");
+         flusher.interrupt ();
+      }//end if
+      if (this._syncer != null)
+         LockSupport.unpark (this._syncer);
+      if (!FSYNC_NEVER.equals (this._fsync))
+         force ();
+      synchronized (this) {
+         for (Segment segment : this._segments)
+            segment.close ();
+      }//end synchronized
+   }//end close
+
+   /**
+    * Makes the flusher halt the process during a batch or right after
+    * committing one, for the crash check: "mid-batch:N" halts after the
+    * Orders rows of the Nth batch were sent and before its ItemStatus
+    * rows, "after-commit:N" after the Nth batch committed and before its
+    * offset was saved.
+    */
+   void haltAt (String where) {
+      int colon = where.indexOf (':');
+      this._haltPhase = where.substring (0, colon);
+      this._haltBatch = Long.parseLong (where.substring (colon + 1));
+   }//end haltAt
+
+   private void append (byte[] record) throws IOException, SQLException {
+      int length = RECORD_HEADER + record.length;
+      if (length > this._segmentBytes - HEADER)
+         throw new IOException("Order of " + record.length + " bytes does not fit in a journal segment");
+      CRC32 crc = new CRC32();
+      crc.update (record, 0, record.length);
+      synchronized (this) {
+         if (this._closing)
+            throw new SQLException("The order journal is closed");
+         if (this._writing.end + length > this._writing.map.capacity ())
+            roll ();
+         Segment segment = this._writing;
+         int at = segment.end;
+         segment.writer.position (at + RECORD_HEADER);
+         segment.writer.put (record);
+         segment.map.putInt (at + 4, (int) crc.getValue ());
+         // the length last: until it is there the record does not exist.
+         segment.map.putInt (at, record.length);
+         segment.end = at + length;
+         if (FSYNC_ALWAYS.equals (this._fsync))
+            segment.map.force ();
+         this._appended = this._appended + 1;
+      }//end synchronized
+   }//end append
+
+   // starts the next segment; called holding the lock.
+   private void roll () throws IOException {
+      Segment full = this._writing;
+      Segment next = new Segment(segmentFile (full.number + 1), full.number + 1, this._segmentBytes);
+      if (!FSYNC_NEVER.equals (this._fsync))
+         full.map.force ();
+      full.sealed = true;
+      this._segments.add (next);
+      this._writing = next;
+   }//end roll
+
+   private void flushLoop () {
+      long backoff = this._flushMillis;
+      while (!this._stopped) {
+         Segment segment;
+         synchronized (this) {
+            segment = this._segments.get (0);
+         }//end synchronized
+         // sealed is read first: once it is set, end no longer moves.
+         boolean sealed = segment.sealed;
+         int end = segment.end;
+         int from = segment.flushedAt ();
+         List<Entry> batch = new ArrayList<Entry>();
+         int to = from;
+         try{
+            while (batch.size () < this._batchSize && to < end) {
+               byte[] record = read (segment, to);
+               if (record == null)
+                  throw new IOException("Bad record at " + to + " of " + segment.file);
+               batch.add (Entry.decode (record));
+               to += RECORD_HEADER + record.length;
+            }//end while
+         }catch (IOException e){
+            // only records this process checked are read; stop rather than
+            // skip orders.
+            System.err.println ("Order journal flusher stopped: " + e.getMessage ());
+            return;
+         }//end try
+
+         if (batch.isEmpty ()) {
+            if (sealed && from >= end) {
+               retire (segment);
+               continue;
+            }//end if
+            if (this._closing)
+               return;
+            LockSupport.parkNanos (this._flushMillis * 1000000L);
+            continue;
+         }//end if
+
+         long start = System.nanoTime ();
+         try{
+            int rejected = write (batch);
+            synchronized (this) {
+               ++this._batches;
+               this._rejected += rejected;
+            }//end synchronized
+            halt ("after-commit", this._batches);
+            backoff = this._flushMillis;
+         }catch (SQLException e){
+            System.err.println ("Order journal flush failed, retrying in " + backoff + " ms: " + e.getMessage ());
+            LockSupport.parkNanos (backoff * 1000000L);
+            backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+            continue;
+         }//end try
+         this._flushLatency.recordSince (start);
+         segment.map.putInt (FLUSHED_AT, to);
+         if (FSYNC_ALWAYS.equals (this._fsync))
+            segment.map.force ();
+         synchronized (this._flushedLock) {
+            this._flushed = this._flushed + batch.size ();
+            this._flushedLock.notifyAll ();
+         }//end synchronized
+      }//end while
+   }//end flushLoop
+
+   // writes a batch in one transaction; if the database refuses it, each
+   // order is tried alone and the refused ones are set aside.  Returns
+   // the number set aside.  Throws when the database cannot be reached.
+   private int write (List<Entry> batch) throws SQLException {
+      try{
+         insert (batch);
+         return 0;
+      }catch (SQLException e){
+         if (batch.size () == 1 && (!isTransient (e) || gaveUp (batch.get (0), e))) {
+            reject (batch.get (0), e);
+            return 1;
+         }//end if
+         if (batch.size () == 1 || isTransient (e))
+            throw e;
+      }//end try
+      int rejected = 0;
+      for (Entry entry : batch)
+         rejected += write (Collections.singletonList (entry));
+      return rejected;
+   }//end write
+
+   // counts a transient failure of an order written alone; true once it
+   // has failed MAX_ORDER_ATTEMPTS times with the database in reach.
+   private boolean gaveUp (Entry entry, SQLException e) {
+      if (e instanceof LostConnection && ((LostConnection) e).unreachable)
+         return false;
+      if (entry.orderid != this._failingOrder) {
+         this._failingOrder = entry.orderid;
+         this._failingAttempts = 0;
+      }//end if
+      return ++this._failingAttempts >= MAX_ORDER_ATTEMPTS;
+   }//end gaveUp
+
+   // throws LostConnection when no connection could be had or the one used
+   // no longer answers.
+   private void insert (List<Entry> batch) throws SQLException {
+      PooledConnection pc;
+      try{
+         pc = this._esql.borrowConnection ();
+      }catch (SQLException e){
+         throw new LostConnection(e, true);
+      }//end try
+      try{
+         pc.getConnection ().setAutoCommit (false);
+         PreparedStatement orders = pc.prepare (ORDERS_INSERT);
+         PreparedStatement items = pc.prepare (ITEM_STATUS_INSERT);
+         try{
+            for (Entry entry : batch) {
+               Timestamp at = new Timestamp(entry.timeStampRecieved);
+               Cafe.bind (orders, entry.orderid, entry.login, at, entry.total);
+               orders.addBatch ();
+               for (String[] item : entry.items) {
+                  Cafe.bind (items, entry.orderid, item[0], at, Cafe.STATUS_RECEIVED, item[1]);
+                  items.addBatch ();
+               }//end for
+            }//end for
+            orders.executeBatch ();
+            halt ("mid-batch", batches () + 1);
+            items.executeBatch ();
+         }finally{
+            orders.clearBatch ();
+            items.clearBatch ();
+         }//end try
+         pc.getConnection ().commit ();
+      }catch (SQLException e){
+         if (!answers (pc))
+            throw new LostConnection(e, false);
+         throw e;
+      }finally{
+         // rolls back anything left uncommitted.
+         this._esql.releaseConnection (pc);
+      }//end try
+   }//end insert
+
+   // whether the connection still runs a query, after rolling back.
+   private static boolean answers (PooledConnection pc) {
+      try{
+         pc.getConnection ().rollback ();
+         Statement stmt = pc.getConnection ().createStatement ();
+         try{
+            stmt.executeQuery ("SELECT 1").close ();
+         }finally{
+            stmt.close ();
+         }//end try
+         return true;
+      }catch (SQLException e){
+         return false;
+      }//end try
+   }//end answers
+
+   private synchronized long batches () {
+      return this._batches;
+   }
+
+   private void halt (String phase, long batch) {
+      if (phase.equals (this._haltPhase) && batch == this._haltBatch) {
+         System.err.println ("Order journal: halting " + phase + " in batch " + batch);
+         Runtime.getRuntime ().halt (3);
+      }//end if
+   }//end halt
+
+   // lost connections, timeouts, resource shortages and conflicts clear up
+   // by themselves.  Without a state, as from the bundled driver, only a
+   // connection found lost counts.
+   private static boolean isTransient (SQLException e) {
+      if (e instanceof LostConnection)
+         return true;
+      String state = null;
+      for (SQLException next = e; next != null && state == null; next = next.getNextException ())
+         state = next.getSQLState ();
+      return state != null && (state.startsWith ("08") || state.startsWith ("40")
+         || state.startsWith ("53") || state.startsWith ("57"));
+   }//end isTransient
+
+   private void reject (Entry entry, SQLException e) {
+      StringBuilder line = new StringBuilder();
+      line.append (new Timestamp(System.currentTimeMillis ())).append (';')
+          .append (entry.orderid).append (';').append (entry.login).append (';')
+          .append (new Timestamp(entry.timeStampRecieved)).append (';').append (entry.total).append (';');
+      for (int i = 0; i < entry.items.size (); ++i)
+         line.append (i == 0 ? "" : ",").append (entry.items.get (i)[0]);
+      line.append (';').append (e.getMessage ()).append ('\n');
+      System.err.println ("Order journal: order " + entry.orderid + " refused: " + e.getMessage ());
+      try{
+         Writer out = new FileWriter(new File(this._dir, "journal-rejected.log"), true);
+         try{
+            out.write (line.toString ());
+         }finally{
+            out.close ();
+         }//end try
+      }catch (IOException io){
+         System.err.println ("Cannot write journal-rejected.log: " + io.getMessage ());
+      }//end try
+   }//end reject
+
+   // drops a segment that is sealed and flushed to its end.
+   private void retire (Segment segment) {
+      synchronized (this) {
+         if (this._segments.size () < 2 || this._segments.get (0) != segment)
+            return;
+         this._segments.remove (0);
+      }//end synchronized
+      segment.close ();
+      if (!segment.file.delete ())
+         System.err.println ("Cannot delete flushed journal segment " + segment.file);
+   }//end retire
+
+   private void force () {
+      List<Segment> segments;
+      synchronized (this) {
+         segments = new ArrayList<Segment>(this._segments);
+      }//end synchronized
+      for (Segment segment : segments)
+         segment.map.force ();
+   }//end force
+
+   // returns the bytes of the record at a position, or null if there is no
+   // complete record there.
+   private static byte[] read (Segment segment, int at) {
+      ByteBuffer map = segment.reader;
+      if (at + RECORD_HEADER > map.capacity ())
+         return null;
+      int length = map.getInt (at);
+      if (length <= 0 || length > map.capacity () - at - RECORD_HEADER)
+         return null;
+      byte[] record = new byte[length];
+      map.position (at + RECORD_HEADER);
+      map.get (record);
+      CRC32 crc = new CRC32();
+      crc.update (record, 0, length);
+      return (int) crc.getValue () == map.getInt (at + 4) ? record : null;
+   }//end read
+
+   // finds the end of the good records after the flushed offset.
+   private static int scan (Segment segment, int[] count) {
+      int at = Math.max(HEADER, segment.flushedAt ());
+      byte[] record;
+      while ((record = read (segment, at)) != null) {
+         at += RECORD_HEADER + record.length;
+         ++count[0];
+      }//end while
+      return at;
+   }//end scan
+
+   private static void clear (Segment segment, int from) {
+      byte[] zeros = new byte[1 << 16];
+      ByteBuffer map = segment.writer;
+      map.position (from);
+      while (map.hasRemaining ())
+         map.put (zeros, 0, Math.min(zeros.length, map.remaining ()));
+   }//end clear
+
+   private File segmentFile (long number) {
+      return new File(this._dir, String.format ("journal-%08d.log", number));
+   }
+
+}//end OrderJournal
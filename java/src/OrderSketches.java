@@ -0,0 +1,366 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * This class keeps approximate live figures of the orders placed and paid
+ * by this program, for dashboards that cannot afford COUNT(DISTINCT login)
+ * or percentiles over Orders every few seconds: the distinct customers
+ * ordering and paying (HyperLogLog), quantiles of the order totals and
+ * paid totals (QuantileSketch) and how often each item is ordered
+ * (CountMinSketch).  placeOrder and payOrder feed it as they succeed.
+ *
+ * The figures cover a sliding window kept as a ring of slices of equal
+ * length; each slice holds sketches of its own, a slice is cleared when
+ * the window moves past it, and a question over the last so many minutes
+ * merges the slices in them.  Memory is therefore fixed by the settings,
+ * whatever the number of orders.
+ *
+ * snapshot() writes the ring to a file and the constructor reads it back,
+ * so the figures of the window survive a restart; slices that fell out of
+ * the window while the program was down are dropped as usual.
+ *
+ */
+public class OrderSketches {
+
+   private static final int MAGIC = 0x534b5431;
+   private static final int MAX_QUANTILE_BUCKETS = 2048;
+
+   /**
+    * The sketches of one slice, or of several merged.
+    */
+   public static final class Slice {
+      long number;
+      long orders;
+      long paidOrders;
+      final HyperLogLog customers;
+      final HyperLogLog payers;
+      final QuantileSketch totals;
+      final QuantileSketch paidTotals;
+      final CountMinSketch items;
+
+      Slice(int precision, double accuracy, int depth, int width) {
+         this.customers = new HyperLogLog(precision);
+         this.payers = new HyperLogLog(precision);
+         this.totals = new QuantileSketch(accuracy, MAX_QUANTILE_BUCKETS);
+         this.paidTotals = new QuantileSketch(accuracy, MAX_QUANTILE_BUCKETS);
+         this.items = new CountMinSketch(depth, width);
+      }
+
+      /** Orders placed. */
+      public long orders () { return this.orders; }
+      /** Orders paid. */
+      public long paidOrders () { return this.paidOrders; }
+      /** Distinct customers who placed orders. */
+      public long customers () { return this.customers.estimate (); }
+      /** Distinct customers who paid orders. */
+      public long payers () { return this.payers.estimate (); }
+      /** The order total at a quantile, NaN if there were no orders. */
+      public double total (double quantile) { return this.totals.quantile (quantile); }
+      /** The paid total at a quantile, NaN if there were no payments. */
+      public double paidTotal (double quantile) { return this.paidTotals.quantile (quantile); }
+      /** Times an item was ordered. */
+      public long itemCount (String itemName) { return this.items.estimate (itemName); }
+
+      void clear (long number) {
+         this.number = number;
+         this.orders = 0;
+         this.paidOrders = 0;
+         this.customers.clear ();
+         this.payers.clear ();
+         this.totals.clear ();
+         this.paidTotals.clear ();
+         this.items.clear ();
+      }
+
+      void merge (Slice other) {
+         this.orders += other.orders;
+         this.paidOrders += other.paidOrders;
+         this.customers.merge (other.customers);
+         this.payers.merge (other.payers);
+         this.totals.merge (other.totals);
+         this.paidTotals.merge (other.paidTotals);
+         this.items.merge (other.items);
+      }
+
+      void write (DataOutputStream out) throws IOException {
+         out.writeLong (this.number);
+         out.writeLong (this.orders);
+         out.writeLong (this.paidOrders);
+         this.customers.write (out);
+         this.payers.write (out);
+         this.totals.write (out);
+         this.paidTotals.write (out);
+         this.items.write (out);
+      }
+
+      void read (DataInputStream in) throws IOException {
+         this.number = in.readLong ();
+         this.orders = in.readLong ();
+         this.paidOrders = in.readLong ();
+         this.customers.read (in);
+         this.payers.read (in);
+         this.totals.read (in);
+         this.paidTotals.read (in);
+         this.items.read (in);
+      }
+   }//end Slice
+
+   private final long _sliceMillis;
+   private final Slice[] _ring;
+   private final int _precision;
+   private final double _accuracy;
+   private final int _depth;
+   private final int _width;
+   private final File _file;
+   private Thread _snapshots = null;
+   private volatile boolean _stopped = false;
+
+   /**
+    * Creates the sketches, reading the snapshot file if there is one
+    * written with the same settings.
+    *
+    * @param windowMillis the length of the window
+    * @param slices the slices the window is kept in
+    * @param precision the HyperLogLog precision, e.g. 12 for about 1.6%
+    * @param accuracy the relative accuracy of the quantiles, e.g. 0.01
+    * @param epsilon the count-min error bound, as a fraction of all items
+    * @param delta the probability of a count-min estimate above the bound
+    * @param file the snapshot file, or null for none
+    */
+   public OrderSketches(long windowMillis, int slices, int precision, double accuracy,
+                        double epsilon, double delta, File file) {
+      int count = Math.max(1, slices);
+      this._sliceMillis = Math.max(1L, windowMillis / count);
+      this._precision = precision;
+      this._accuracy = accuracy;
+      this._depth = (int) Math.ceil (Math.log (1 / delta));
+      this._width = (int) Math.ceil (Math.E / epsilon);
+      this._file = file;
+      this._ring = new Slice[count];
+      for (int i = 0; i < count; ++i)
+         this._ring[i] = newSlice ();
+      if (file != null && file.isFile ()) {
+         try{
+            restore (file);
+         }catch (IOException e){
+            System.err.println ("Order sketches not restored from " + file + ": " + e.getMessage ());
+            for (Slice slice : this._ring)
+               slice.clear (-1);
+         }//end try
+      }//end if
+   }//end OrderSketches
+
+   /**
+    * Counts an order just placed.
+    */
+   public void placed (Order order, List<String> itemNames) {
+      long number = System.currentTimeMillis () / this._sliceMillis;
+      Slice slice = slot (number);
+      synchronized (slice) {
+         roll (slice, number);
+         ++slice.orders;
+         slice.customers.add (order.login);
+         slice.totals.add (order.total);
+         for (String itemName : itemNames)
+            slice.items.add (itemName);
+      }//end synchronized
+   }//end placed
+
+   /**
+    * Counts an order just paid.
+    */
+   public void paid (String login, double total) {
+      long number = System.currentTimeMillis () / this._sliceMillis;
+      Slice slice = slot (number);
+      synchronized (slice) {
+         roll (slice, number);
+         ++slice.paidOrders;
+         slice.payers.add (login);
+         slice.paidTotals.add (total);
+      }//end synchronized
+   }//end paid
+
+   /**
+    * Returns the figures of the last minutes, rounded up to whole slices
+    * and at most the whole window.
+    */
+   public Slice window (long millis) {
+      long now = System.currentTimeMillis () / this._sliceMillis;
+      long slices = Math.min(this._ring.length, Math.max(1L, (millis + this._sliceMillis - 1) / this._sliceMillis));
+      Slice merged = newSlice ();
+      merged.number = now;
+      for (Slice slice : this._ring) {
+         synchronized (slice) {
+            if (slice.number > now - slices && slice.number <= now)
+               merged.merge (slice);
+         }//end synchronized
+      }//end for
+      return merged;
+   }//end window
+
+   public long windowMillis () {
+      return this._sliceMillis * this._ring.length;
+   }
+
+   /**
+    * Returns the figures of the last minutes as JSON, with the most ordered
+    * of the given items.
+    */
+   public String toJson (long millis, List<String> itemNames, int topItems) {
+      final Slice window = window (millis);
+      List<String> top = new ArrayList<String>(itemNames);
+      Collections.sort (top, new Comparator<String>() {
+         public int compare (String a, String b) {
+            long x = window.itemCount (a), y = window.itemCount (b);
+            return x > y ? -1 : x < y ? 1 : a.compareTo (b);
+         }
+      });
+      StringBuilder json = new StringBuilder("{");
+      json.append ("\"windowMinutes\":").append (Math.min(millis, windowMillis ()) / 60000.0)
+          .append (",\"orders\":").append (window.orders)
+          .append (",\"customers\":").append (window.customers ())
+          .append (",\"paidOrders\":").append (window.paidOrders)
+          .append (",\"payers\":").append (window.payers ());
+      quantiles (json.append (",\"total\":"), window.totals);
+      quantiles (json.append (",\"paidTotal\":"), window.paidTotals);
+      json.append (",\"topItems\":[");
+      int shown = 0;
+      for (String itemName : top) {
+         long count = window.itemCount (itemName);
+         if (shown == topItems || count == 0)
+            break;
+         Json.quote (json.append (shown++ == 0 ? "{\"itemName\":" : ",{\"itemName\":"), itemName)
+             .append (",\"count\":").append (count).append ('}');
+      }//end for
+      return json.append ("]}").toString ();
+   }//end toJson
+
+   private static void quantiles (StringBuilder json, QuantileSketch sketch) {
+      if (sketch.count () == 0) {
+         json.append ("null");
+         return;
+      }//end if
+      json.append (String.format ("{\"p50\":%.2f,\"p90\":%.2f,\"p99\":%.2f}",
+         sketch.quantile (0.5), sketch.quantile (0.9), sketch.quantile (0.99)));
+   }//end quantiles
+
+   /**
+    * Starts writing a snapshot every interval, from a background thread.
+    */
+   public synchronized void startSnapshots (final long intervalMillis) {
+      if (this._file == null || this._snapshots != null)
+         return;
+      this._snapshots = new Thread("order-sketches-snapshot") {
+         public void run () {
+            while (!_stopped) {
+               try{
+                  Thread.sleep (intervalMillis);
+                  snapshot ();
+               }catch (InterruptedException e){
+                  return;
+               }catch (IOException e){
+                  System.err.println ("Order sketches not saved: " + e.getMessage ());
+               }//end try
+            }//end while
+         }
+      };
+      this._snapshots.setDaemon (true);
+      this._snapshots.start ();
+   }//end startSnapshots
+
+   /**
+    * Stops the snapshot thread and writes a last snapshot.
+    */
+   public void close () {
+      this._stopped = true;
+      Thread snapshots;
+      synchronized (this) {
+         snapshots = this._snapshots;
+      }//end synchronized
+      if (snapshots != null)
+         snapshots.interrupt ();
+      try{
+         snapshot ();
+      }catch (IOException e){
+         System.err.println ("Order sketches not saved: " + e.getMessage ());
+      }//end try
+   }//end close
+
+   /**
+    * Writes the window to the snapshot file, through a temporary file of
+    * its own in the same directory so a crash never leaves half a snapshot.
+    */
+   public void snapshot () throws IOException {
+      if (this._file == null)
+         return;
+      File temp = File.createTempFile ("." + this._file.getName () + "-", ".tmp", this._file.getAbsoluteFile ().getParentFile ());
+      DataOutputStream out = null;
+      try{
+         out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+         out.writeInt (MAGIC);
+         out.writeLong (this._sliceMillis);
+         out.writeInt (this._ring.length);
+         out.writeInt (this._precision);
+         out.writeDouble (this._accuracy);
+         out.writeInt (this._depth);
+         out.writeInt (this._width);
+         for (Slice slice : this._ring) {
+            synchronized (slice) {
+               slice.write (out);
+            }//end synchronized
+         }//end for
+         out.close ();
+         out = null;
+         if (!temp.renameTo (this._file)) {
+            this._file.delete ();
+            if (!temp.renameTo (this._file))
+               throw new IOException("Cannot replace " + this._file);
+         }//end if
+      }finally{
+         if (out != null)
+            out.close ();
+         temp.delete ();
+      }//end try
+   }//end snapshot
+
+   private void restore (File file) throws IOException {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try{
+         if (in.readInt () != MAGIC || in.readLong () != this._sliceMillis || in.readInt () != this._ring.length
+             || in.readInt () != this._precision || in.readDouble () != this._accuracy
+             || in.readInt () != this._depth || in.readInt () != this._width)
+            throw new IOException("written with other settings");
+         for (Slice slice : this._ring)
+            slice.read (in);
+      }finally{
+         in.close ();
+      }//end try
+   }//end restore
+
+   private Slice slot (long number) {
+      return this._ring[(int) (number % this._ring.length)];
+   }
+
+   // clears a slice that still holds an older one; called holding its lock.
+   private static void roll (Slice slice, long number) {
+      if (slice.number < number)
+         slice.clear (number);
+   }//end roll
+
+   private Slice newSlice () {
+      Slice slice = new Slice(this._precision, this._accuracy, this._depth, this._width);
+      slice.number = -1;
+      return slice;
+   }//end newSlice
+
+}//end OrderSketches
@@ -0,0 +1,67 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * A physical connection owned by a ConnectionPool, together with its own
+ * prepared statement cache.  A pooled connection is used by one borrower at
+ * a time and must be handed back with ConnectionPool.release.
+ *
+ */
+public class PooledConnection {
+
+   // the physical connection.
+   private final Connection _connection;
+
+   // prepared statements on this connection, reused by SQL text.
+   private final StatementCache _statements;
+
+   // System.currentTimeMillis() when the connection was last handed back.
+   long lastReleased;
+
+   // statement cache counters already added to the pool totals; guarded
+   // by the pool lock.
+   final long[] counted = new long[4];
+
+   PooledConnection(Connection connection, int statementCacheSize) {
+      this._connection = connection;
+      this._statements = new StatementCache(connection, statementCacheSize);
+      this.lastReleased = System.currentTimeMillis ();
+   }//end PooledConnection
+
+   /**
+    * Returns the physical connection.  Statements created on it directly are
+    * not cached and must be closed by the caller.
+    */
+   public Connection getConnection () {
+      return this._connection;
+   }
+
+   /**
+    * Returns the cached prepared statement for the SQL text.
+    *
+    * @param sql the SQL text with '?' parameter markers
+    * @return a prepared statement the caller must not close
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public PreparedStatement prepare (String sql) throws SQLException {
+      return this._statements.prepare (sql);
+   }
+
+   StatementCache getStatementCache () {
+      return this._statements;
+   }
+
+   /**
+    * Closes the cached statements and the physical connection.
+    */
+   void close () {
+      this._statements.close ();
+      try{
+         this._connection.close ();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end close
+
+}//end PooledConnection
@@ -0,0 +1,142 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class estimates quantiles of positive values, e.g. order totals,
+ * within a relative accuracy: every quantile it returns is within that
+ * fraction of the value at the same rank in the values added.  Values are
+ * counted in buckets whose bounds grow geometrically, in the manner of
+ * DDSketch, so the number of buckets grows with the log of the range of
+ * the values and not with their count.  If the buckets exceed their limit
+ * the lowest ones are folded together; only the lowest quantiles then lose
+ * their accuracy.  Values of 0 or less are counted apart, as 0.
+ *
+ * Sketches of the same accuracy merge into the sketch of all the values
+ * added to either.  Not safe for use from several threads.
+ *
+ */
+public class QuantileSketch {
+
+   private final double _accuracy;
+   private final double _logGamma;
+   private final int _maxBuckets;
+   private final TreeMap<Integer, Long> _buckets = new TreeMap<Integer, Long>();
+   private long _zeros = 0;
+   private long _count = 0;
+
+   /**
+    * Creates an empty sketch
+    *
+    * @param accuracy the relative accuracy, e.g. 0.01
+    * @param maxBuckets the most buckets kept
+    */
+   public QuantileSketch(double accuracy, int maxBuckets) {
+      if (accuracy <= 0 || accuracy >= 1)
+         throw new IllegalArgumentException("accuracy must be between 0 and 1: " + accuracy);
+      this._accuracy = accuracy;
+      this._logGamma = Math.log ((1 + accuracy) / (1 - accuracy));
+      this._maxBuckets = Math.max(2, maxBuckets);
+   }//end QuantileSketch
+
+   public void add (double value) {
+      add (value, 1);
+   }
+
+   private void add (double value, long count) {
+      this._count += count;
+      if (value <= 0) {
+         this._zeros += count;
+         return;
+      }//end if
+      addToBucket ((int) Math.ceil (Math.log (value) / this._logGamma), count);
+   }//end add
+
+   private void addToBucket (int index, long count) {
+      Long before = this._buckets.get (index);
+      this._buckets.put (index, before == null ? count : before + count);
+      while (this._buckets.size () > this._maxBuckets) {
+         Map.Entry<Integer, Long> lowest = this._buckets.pollFirstEntry ();
+         Integer next = this._buckets.firstKey ();
+         this._buckets.put (next, this._buckets.get (next) + lowest.getValue ());
+      }//end while
+   }//end addToBucket
+
+   public long count () {
+      return this._count;
+   }
+
+   public double accuracy () {
+      return this._accuracy;
+   }
+
+   /**
+    * Returns the value at a quantile, ranked as percentile_disc ranks: the
+    * first value at or above the given fraction of the values.
+    *
+    * @param quantile a fraction between 0 and 1, e.g. 0.99
+    * @return the estimate, or NaN if nothing was added
+    */
+   public double quantile (double quantile) {
+      if (this._count == 0)
+         return Double.NaN;
+      long rank = Math.max(1L, (long) Math.ceil (Math.min(1.0, Math.max(0.0, quantile)) * this._count));
+      long seen = this._zeros;
+      if (seen >= rank)
+         return 0.0;
+      for (Map.Entry<Integer, Long> bucket : this._buckets.entrySet ()) {
+         seen += bucket.getValue ();
+         if (seen >= rank)
+            return value (bucket.getKey ());
+      }//end for
+      return value (this._buckets.lastKey ());
+   }//end quantile
+
+   // the value within the accuracy of every value in a bucket.
+   private double value (int index) {
+      return 2 * Math.exp (index * this._logGamma) / (1 + Math.exp (this._logGamma));
+   }
+
+   /**
+    * Adds the values of another sketch of the same accuracy.
+    */
+   public void merge (QuantileSketch other) {
+      if (other._accuracy != this._accuracy)
+         throw new IllegalArgumentException("Cannot merge sketches of different accuracy");
+      this._count += other._count;
+      this._zeros += other._zeros;
+      for (Map.Entry<Integer, Long> bucket : other._buckets.entrySet ())
+         addToBucket (bucket.getKey (), bucket.getValue ());
+   }//end merge
+
+   public void clear () {
+      this._buckets.clear ();
+      this._zeros = 0;
+      this._count = 0;
+   }//end clear
+
+   public void write (DataOutput out) throws IOException {
+      out.writeLong (this._zeros);
+      out.writeInt (this._buckets.size ());
+      for (Map.Entry<Integer, Long> bucket : this._buckets.entrySet ()) {
+         out.writeInt (bucket.getKey ());
+         out.writeLong (bucket.getValue ());
+      }//end for
+   }//end write
+
+   public void read (DataInput in) throws IOException {
+      clear ();
+      this._zeros = in.readLong ();
+      this._count = this._zeros;
+      int buckets = in.readInt ();
+      for (int i = 0; i < buckets; ++i) {
+         int index = in.readInt ();
+         long count = in.readLong ();
+         this._count += count;
+         addToBucket (index, count);
+      }//end for
+   }//end read
+
+}//end QuantileSketch
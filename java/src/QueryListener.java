@@ -0,0 +1,24 @@
+import java.sql.SQLException;
+
+/**
+ * This interface is told about the statements Cafe runs, so they can be
+ * traced or measured without changing the code that issues them.
+ *
+ */
+public interface QueryListener {
+
+   /**
+    * Called after a statement ran, on the thread that ran it.
+    *
+    * @param sql the SQL text, with '?' markers
+    * @param params the values bound to the markers; not to be changed
+    * @param update true for an update, false for a query
+    * @param startNanos System.nanoTime() when the statement was started
+    * @param elapsedNanos how long it took
+    * @param rows rows returned or affected, or -1 when it failed
+    * @param error the failure, or null
+    */
+   void queryExecuted (String sql, Object[] params, boolean update,
+                       long startNanos, long elapsedNanos, int rows, SQLException error);
+
+}//end QueryListener
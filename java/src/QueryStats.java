@@ -0,0 +1,382 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class measures the statements Cafe runs, grouped by shape: the SQL
+ * text with its literals replaced by '?', its blanks collapsed and its
+ * lists of parameters, such as the IN list of a cart, folded into one, so
+ * the same statement with other values or another cart size counts as
+ * one.  For each shape it keeps the number of runs, failures and rows and
+ * a latency histogram.
+ *
+ * Statements slower than a threshold are written to a slow query log with
+ * their parameters and the plan of running them again under EXPLAIN
+ * (ANALYZE, BUFFERS).  The plan is taken on a background thread, inside a
+ * transaction that is rolled back, so updates are not applied twice; at
+ * most one plan per shape per minute is taken, and plans that would queue
+ * behind too many others are skipped.  Statements that already failed or
+ * cannot be explained are logged without a plan.
+ *
+ * The figures are readable through JMX and are written to a file as JSON
+ * by close().
+ *
+ */
+public class QueryStats implements QueryListener, QueryStatsMXBean {
+
+   // plans of one shape are taken at most this often.
+   private static final long PLAN_INTERVAL_MILLIS = 60000;
+   // shapes of this many distinct SQL texts are remembered.
+   private static final int MAX_CACHED_TEXTS = 4096;
+
+   /**
+    * The figures of one statement shape.
+    */
+   public static final class ShapeStats {
+      private final String _shape;
+      private final boolean _update;
+      private final LatencyHistogram _latency = new LatencyHistogram();
+      private final AtomicLong _errors = new AtomicLong();
+      private final AtomicLong _rows = new AtomicLong();
+      private final AtomicLong _slow = new AtomicLong();
+      private final AtomicLong _lastPlan = new AtomicLong();
+      private volatile String _lastError = null;
+
+      ShapeStats(String shape, boolean update) {
+         this._shape = shape;
+         this._update = update;
+      }
+
+      public String getShape () { return this._shape; }
+      public boolean isUpdate () { return this._update; }
+      public long getCount () { return this._latency.count (); }
+      public long getErrors () { return this._errors.get (); }
+      public long getRows () { return this._rows.get (); }
+      public long getSlow () { return this._slow.get (); }
+      public String getLastError () { return this._lastError; }
+      public double getTotalMillis () { return this._latency.meanNanos () * this._latency.count () / 1e6; }
+      public double getMeanMillis () { return this._latency.meanNanos () / 1e6; }
+      public double getP50Millis () { return this._latency.percentileNanos (0.5) / 1e6; }
+      public double getP99Millis () { return this._latency.percentileNanos (0.99) / 1e6; }
+      public double getMaxMillis () { return this._latency.maxNanos () / 1e6; }
+   }//end ShapeStats
+
+   private final Cafe _esql;
+   private final long _slowNanos;
+   private final String _slowLog;
+   private final ConcurrentHashMap<String, ShapeStats> _shapes = new ConcurrentHashMap<String, ShapeStats>();
+   private final ConcurrentHashMap<String, String> _shapeOfText = new ConcurrentHashMap<String, String>();
+   private final AtomicLong _statements = new AtomicLong();
+   private final AtomicLong _errors = new AtomicLong();
+   private final AtomicLong _slow = new AtomicLong();
+   private final ExecutorService _planner;
+   private ObjectName _name = null;
+
+   /**
+    * Creates a new, empty set of figures.
+    *
+    * @param esql the database, for the plans of slow statements
+    * @param slowMillis statements taking at least this long are logged; 0
+    *        or less to log none
+    * @param slowLog the slow query log, appended to
+    */
+   public QueryStats(Cafe esql, long slowMillis, String slowLog) {
+      this._esql = esql;
+      this._slowNanos = slowMillis > 0 ? slowMillis * 1000000L : Long.MAX_VALUE;
+      this._slowLog = slowLog;
+      this._planner = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+         new LinkedBlockingQueue<Runnable>(16), new ThreadFactory() {
+            public Thread newThread (Runnable task) {
+               Thread thread = new Thread(task, "slow-query-planner");
+               thread.setDaemon (true);
+               return thread;
+            }
+         }, new ThreadPoolExecutor.DiscardPolicy());
+   }//end QueryStats
+
+   public void queryExecuted (String sql, Object[] params, boolean update,
+                              long startNanos, long elapsedNanos, int rows, SQLException error) {
+      this._statements.incrementAndGet ();
+      ShapeStats stats = stats (sql, update);
+      stats._latency.record (elapsedNanos);
+      if (rows > 0)
+         stats._rows.addAndGet (rows);
+      if (error != null) {
+         this._errors.incrementAndGet ();
+         stats._errors.incrementAndGet ();
+         stats._lastError = error.getMessage ();
+      }//end if
+      if (elapsedNanos >= this._slowNanos) {
+         this._slow.incrementAndGet ();
+         stats._slow.incrementAndGet ();
+         slow (stats, sql, params, elapsedNanos, rows, error);
+      }//end if
+   }//end queryExecuted
+
+   public long getStatementCount () {
+      return this._statements.get ();
+   }
+
+   public long getErrorCount () {
+      return this._errors.get ();
+   }
+
+   public long getSlowStatementCount () {
+      return this._slow.get ();
+   }
+
+   public long getSlowThresholdMillis () {
+      return this._slowNanos == Long.MAX_VALUE ? 0 : this._slowNanos / 1000000L;
+   }
+
+   public List<ShapeStats> getShapes () {
+      List<ShapeStats> shapes = new ArrayList<ShapeStats>(this._shapes.values ());
+      Collections.sort (shapes, new Comparator<ShapeStats>() {
+         public int compare (ShapeStats a, ShapeStats b) {
+            return Double.compare (b.getTotalMillis (), a.getTotalMillis ());
+         }
+      });
+      return shapes;
+   }//end getShapes
+
+   public String report () {
+      StringBuilder report = new StringBuilder();
+      report.append (String.format ("%10s %8s %10s %10s %10s %10s %10s  %s%n",
+         "count", "errors", "rows", "total ms", "p50 ms", "p99 ms", "max ms", "shape"));
+      for (ShapeStats shape : getShapes ())
+         report.append (String.format ("%10d %8d %10d %10.1f %10.3f %10.3f %10.3f  %s%n",
+            shape.getCount (), shape.getErrors (), shape.getRows (), shape.getTotalMillis (),
+            shape.getP50Millis (), shape.getP99Millis (), shape.getMaxMillis (), shape.getShape ()));
+      return report.toString ();
+   }//end report
+
+   public void reset () {
+      this._shapes.clear ();
+      this._statements.set (0);
+      this._errors.set (0);
+      this._slow.set (0);
+   }//end reset
+
+   /**
+    * Registers these figures with the platform MBean server, as
+    * cafe:type=QueryStats, or with a number after it if that name is
+    * taken.  Failures are reported and otherwise ignored.
+    */
+   public void register () {
+      try{
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer ();
+         ObjectName name = new ObjectName("cafe:type=QueryStats");
+         for (int i = 2; server.isRegistered (name); ++i)
+            name = new ObjectName("cafe:type=QueryStats,instance=" + i);
+         server.registerMBean (this, name);
+         this._name = name;
+      }catch (Exception e){
+         System.err.println ("Query statistics not registered with JMX: " + e.getMessage ());
+      }//end try
+   }//end register
+
+   /**
+    * Stops taking plans, unregisters from JMX and writes the figures to a
+    * file as JSON.
+    *
+    * @param file where the figures are written, or null for nowhere
+    */
+   public void close (String file) {
+      this._planner.shutdownNow ();
+      if (this._name != null) {
+         try{
+            ManagementFactory.getPlatformMBeanServer ().unregisterMBean (this._name);
+         }catch (Exception e){
+            // ignored.
+         }//end try
+         this._name = null;
+      }//end if
+      if (file == null || this._statements.get () == 0)
+         return;
+      try{
+         Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+         try{
+            out.write (toJson ());
+         }finally{
+            out.close ();
+         }//end try
+      }catch (IOException e){
+         System.err.println ("Unable to write query statistics to " + file + ": " + e.getMessage ());
+      }//end try
+   }//end close
+
+   /**
+    * Returns every figure as a JSON object.
+    */
+   public String toJson () {
+      StringBuilder json = new StringBuilder();
+      json.append ("{\"statements\": ").append (this._statements.get ())
+          .append (", \"errors\": ").append (this._errors.get ())
+          .append (", \"slow\": ").append (this._slow.get ())
+          .append (", \"slowThresholdMs\": ").append (getSlowThresholdMillis ())
+          .append (", \"shapes\": [");
+      List<ShapeStats> shapes = getShapes ();
+      for (int i = 0; i < shapes.size (); ++i) {
+         ShapeStats shape = shapes.get (i);
+         Json.quote (json.append (i == 0 ? "\n  {\"shape\": " : ",\n  {\"shape\": "), shape.getShape ());
+         json.append (", \"update\": ").append (shape.isUpdate ())
+             .append (", \"errors\": ").append (shape.getErrors ())
+             .append (", \"rows\": ").append (shape.getRows ())
+             .append (", \"slow\": ").append (shape.getSlow ());
+         Json.quote (json.append (", \"lastError\": "), shape.getLastError ());
+         json.append (", \"latency\": ").append (shape._latency.toJson ()).append ('}');
+      }//end for
+      return json.append ("\n]}\n").toString ();
+   }//end toJson
+
+   /**
+    * Returns the shape of a statement: string and number literals become
+    * '?', runs of blanks one space, and lists of '?' a single "?, ...".
+    */
+   static String shape (String sql) {
+      StringBuilder shape = new StringBuilder(sql.length ());
+      int i = 0;
+      while (i < sql.length ()) {
+         char c = sql.charAt (i);
+         if (c == '\'') {
+            // a string literal; '' inside it is a quote.
+            ++i;
+            while (i < sql.length ()) {
+               if (sql.charAt (i) == '\'' && (i + 1 >= sql.length () || sql.charAt (i + 1) != '\''))
+                  break;
+               i += sql.charAt (i) == '\'' ? 2 : 1;
+            }//end while
+            ++i;
+            shape.append ('?');
+         }else if (Character.isDigit (c) && !identifierChar (shape)) {
+            while (i < sql.length () && (Character.isLetterOrDigit (sql.charAt (i)) || sql.charAt (i) == '.'))
+               ++i;
+            shape.append ('?');
+         }else if (Character.isWhitespace (c)) {
+            while (i < sql.length () && Character.isWhitespace (sql.charAt (i)))
+               ++i;
+            if (shape.length () > 0)
+               shape.append (' ');
+         }else {
+            shape.append (c);
+            ++i;
+         }//end if
+      }//end while
+      return shape.toString ().trim ().replaceAll ("\\?(\\s*,\\s*\\?)+", "?, ...");
+   }//end shape
+
+   private static boolean identifierChar (StringBuilder shape) {
+      if (shape.length () == 0)
+         return false;
+      char last = shape.charAt (shape.length () - 1);
+      return Character.isLetterOrDigit (last) || last == '_';
+   }//end identifierChar
+
+   private ShapeStats stats (String sql, boolean update) {
+      String shape = this._shapeOfText.get (sql);
+      if (shape == null) {
+         shape = shape (sql);
+         if (this._shapeOfText.size () >= MAX_CACHED_TEXTS)
+            this._shapeOfText.clear ();
+         this._shapeOfText.put (sql, shape);
+      }//end if
+      ShapeStats stats = this._shapes.get (shape);
+      if (stats == null) {
+         ShapeStats created = new ShapeStats(shape, update);
+         stats = this._shapes.putIfAbsent (shape, created);
+         if (stats == null)
+            stats = created;
+      }//end if
+      return stats;
+   }//end stats
+
+   // logs a slow statement, with its plan unless one was taken lately.
+   private void slow (ShapeStats stats, final String sql, final Object[] params,
+                      final long elapsedNanos, final int rows, final SQLException error) {
+      final String when = new Timestamp(System.currentTimeMillis ()).toString ();
+      long now = System.currentTimeMillis ();
+      long last = stats._lastPlan.get ();
+      final boolean plan = error == null && explainable (sql)
+         && now - last >= PLAN_INTERVAL_MILLIS && stats._lastPlan.compareAndSet (last, now);
+      final Object[] values = params == null ? new Object[0] : params.clone ();
+      this._planner.execute (new Runnable() {
+         public void run () {
+            StringBuilder entry = new StringBuilder(512);
+            entry.append (when).append (String.format (" %.3f ms, %d rows", elapsedNanos / 1e6, rows));
+            if (error != null)
+               entry.append (", failed: ").append (error.getMessage ());
+            entry.append ('\n').append (sql).append ('\n');
+            if (values.length > 0)
+               entry.append ("params: ").append (Arrays.toString (values)).append ('\n');
+            if (plan)
+               explain (entry, sql, values);
+            append (entry.append ('\n').toString ());
+         }
+      });
+   }//end slow
+
+   // runs the statement again under EXPLAIN in a transaction that is rolled
+   // back, on a connection of its own so it is not measured itself.
+   private void explain (StringBuilder entry, String sql, Object[] params) {
+      try{
+         PooledConnection pc = this._esql.borrowConnection ();
+         try{
+            pc.getConnection ().setAutoCommit (false);
+            PreparedStatement stmt = pc.prepare ("EXPLAIN (ANALYZE, BUFFERS) " + sql);
+            Cafe.bind (stmt, params);
+            ResultSet rs = stmt.executeQuery ();
+            try{
+               while (rs.next ())
+                  entry.append ("  ").append (rs.getString (1)).append ('\n');
+            }finally{
+               rs.close ();
+            }//end try
+         }finally{
+            // rolls the statement back.
+            this._esql.releaseConnection (pc);
+         }//end try
+      }catch (SQLException e){
+         entry.append ("  no plan: ").append (e.getMessage ()).append ('\n');
+      }//end try
+   }//end explain
+
+   private static boolean explainable (String sql) {
+      String start = sql.trim ().toUpperCase ();
+      return start.startsWith ("SELECT") || start.startsWith ("INSERT") || start.startsWith ("UPDATE")
+         || start.startsWith ("DELETE") || start.startsWith ("WITH");
+   }//end explainable
+
+   private synchronized void append (String entry) {
+      try{
+         Writer out = new OutputStreamWriter(new FileOutputStream(this._slowLog, true), "UTF-8");
+         try{
+            out.write (entry);
+         }finally{
+            out.close ();
+         }//end try
+      }catch (IOException e){
+         System.err.println ("Unable to write the slow query log " + this._slowLog + ": " + e.getMessage ());
+      }//end try
+   }//end append
+
+}//end QueryStats
@@ -0,0 +1,33 @@
+import java.util.List;
+
+/**
+ * This interface is the JMX view of QueryStats, registered as
+ * cafe:type=QueryStats.
+ *
+ */
+public interface QueryStatsMXBean {
+
+   long getStatementCount ();
+
+   long getErrorCount ();
+
+   long getSlowStatementCount ();
+
+   long getSlowThresholdMillis ();
+
+   /**
+    * Returns the figures of every statement shape, most total time first.
+    */
+   List<QueryStats.ShapeStats> getShapes ();
+
+   /**
+    * Returns the figures of every statement shape as a printable table.
+    */
+   String report ();
+
+   /**
+    * Forgets every figure recorded so far.
+    */
+   void reset ();
+
+}//end QueryStatsMXBean
@@ -0,0 +1,328 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * This class holds a query result column by column in primitive arrays, so
+ * reading a result does not create a String for every cell and callers do
+ * not have to parse numbers back out of text.
+ *
+ * Integer columns are kept in int[] or long[], floating point and numeric
+ * columns in double[], booleans in boolean[] and timestamps as epoch
+ * milliseconds in long[].  Every other column is dictionary encoded: each
+ * distinct value is stored once and the cells hold its code.  Trailing blanks
+ * of char(n) values are dropped, as PostgreSQL ignores them when comparing.
+ *
+ * Rows and columns are numbered from 0.
+ *
+ */
+public class ResultTable implements Iterable<ResultTable.Row> {
+
+   // storage kinds of the columns.
+   static final int INT = 0;
+   static final int LONG = 1;
+   static final int DOUBLE = 2;
+   static final int BOOLEAN = 3;
+   static final int TIMESTAMP = 4;
+   static final int STRING = 5;
+
+   private final String[] _names;
+   private final int[] _kinds;
+   private final boolean[] _padded;
+
+   // one primitive array per column, sized to _capacity.
+   private final int[][] _ints;
+   private final long[][] _longs;
+   private final double[][] _doubles;
+   private final boolean[][] _booleans;
+
+   // dictionaries of the STRING columns; the cells in _ints hold the codes.
+   private final ArrayList<ArrayList<String>> _values;
+   private final ArrayList<HashMap<String, Integer>> _codes;
+
+   private final BitSet[] _nulls;
+   private int _rows = 0;
+   private int _capacity;
+
+   private ResultTable(ResultSetMetaData rsmd) throws SQLException {
+      int numCol = rsmd.getColumnCount ();
+      this._names = new String[numCol];
+      this._kinds = new int[numCol];
+      this._padded = new boolean[numCol];
+      this._ints = new int[numCol][];
+      this._longs = new long[numCol][];
+      this._doubles = new double[numCol][];
+      this._booleans = new boolean[numCol][];
+      this._values = new ArrayList<ArrayList<String>>(numCol);
+      this._codes = new ArrayList<HashMap<String, Integer>>(numCol);
+      this._nulls = new BitSet[numCol];
+      this._capacity = 16;
+      for (int c = 0; c < numCol; ++c) {
+         this._names[c] = rsmd.getColumnName (c + 1);
+         this._kinds[c] = kindOf (rsmd.getColumnType (c + 1));
+         this._padded[c] = rsmd.getColumnType (c + 1) == Types.CHAR;
+         this._nulls[c] = new BitSet();
+         switch (this._kinds[c]) {
+            case INT:
+            case STRING: this._ints[c] = new int[this._capacity]; break;
+            case LONG:
+            case TIMESTAMP: this._longs[c] = new long[this._capacity]; break;
+            case DOUBLE: this._doubles[c] = new double[this._capacity]; break;
+            case BOOLEAN: this._booleans[c] = new boolean[this._capacity]; break;
+         }//end switch
+         boolean dictionary = this._kinds[c] == STRING;
+         this._values.add (dictionary ? new ArrayList<String>() : null);
+         this._codes.add (dictionary ? new HashMap<String, Integer>() : null);
+      }//end for
+   }//end ResultTable
+
+   /**
+    * Reads every remaining row of a result set into a new table.  The result
+    * set is not closed.
+    *
+    * @param rs the result set, positioned before its first row
+    * @return the result as a table
+    * @throws java.sql.SQLException when the rows cannot be read
+    */
+   public static ResultTable from (ResultSet rs) throws SQLException {
+      ResultTable table = new ResultTable(rs.getMetaData ());
+      int numCol = table._names.length;
+      while (rs.next ()) {
+         table.ensureCapacity ();
+         int row = table._rows;
+         for (int c = 0; c < numCol; ++c) {
+            int col = c + 1;
+            switch (table._kinds[c]) {
+               case INT: table._ints[c][row] = rs.getInt (col); break;
+               case LONG: table._longs[c][row] = rs.getLong (col); break;
+               case DOUBLE: table._doubles[c][row] = rs.getDouble (col); break;
+               case BOOLEAN: table._booleans[c][row] = rs.getBoolean (col); break;
+               case TIMESTAMP:
+                  Timestamp ts = rs.getTimestamp (col);
+                  table._longs[c][row] = ts == null ? 0L : ts.getTime ();
+                  break;
+               default:
+                  String value = rs.getString (col);
+                  table._ints[c][row] = value == null ? -1 : table.encode (c, value);
+                  break;
+            }//end switch
+            if (rs.wasNull ())
+               table._nulls[c].set (row);
+         }//end for
+         ++table._rows;
+      }//end while
+      return table;
+   }//end from
+
+   /**
+    * Returns the number of rows.
+    */
+   public int size () {
+      return this._rows;
+   }
+
+   public boolean isEmpty () {
+      return this._rows == 0;
+   }
+
+   public int getColumnCount () {
+      return this._names.length;
+   }
+
+   public String getColumnName (int col) {
+      return this._names[col];
+   }
+
+   /**
+    * Returns how a column is stored: INT, LONG, DOUBLE, BOOLEAN, TIMESTAMP
+    * or STRING.
+    */
+   public int getColumnKind (int col) {
+      return this._kinds[col];
+   }
+
+   public boolean isNull (int row, int col) {
+      checkRow (row);
+      return this._nulls[col].get (row);
+   }
+
+   public int getInt (int row, int col) {
+      checkRow (row);
+      switch (this._kinds[col]) {
+         case INT: return this._ints[col][row];
+         case LONG:
+         case TIMESTAMP: return (int) this._longs[col][row];
+         case DOUBLE: return (int) this._doubles[col][row];
+         case BOOLEAN: return this._booleans[col][row] ? 1 : 0;
+         default: return isNull (row, col) ? 0 : Integer.parseInt (getString (row, col));
+      }//end switch
+   }//end getInt
+
+   public long getLong (int row, int col) {
+      checkRow (row);
+      switch (this._kinds[col]) {
+         case INT: return this._ints[col][row];
+         case LONG:
+         case TIMESTAMP: return this._longs[col][row];
+         case DOUBLE: return (long) this._doubles[col][row];
+         case BOOLEAN: return this._booleans[col][row] ? 1L : 0L;
+         default: return isNull (row, col) ? 0L : Long.parseLong (getString (row, col));
+      }//end switch
+   }//end getLong
+
+   public double getDouble (int row, int col) {
+      checkRow (row);
+      switch (this._kinds[col]) {
+         case INT: return this._ints[col][row];
+         case LONG:
+         case TIMESTAMP: return this._longs[col][row];
+         case DOUBLE: return this._doubles[col][row];
+         case BOOLEAN: return this._booleans[col][row] ? 1.0 : 0.0;
+         default: return isNull (row, col) ? 0.0 : Double.parseDouble (getString (row, col));
+      }//end switch
+   }//end getDouble
+
+   public boolean getBoolean (int row, int col) {
+      checkRow (row);
+      switch (this._kinds[col]) {
+         case BOOLEAN: return this._booleans[col][row];
+         case STRING:
+            String value = getString (row, col);
+            return "t".equals (value) || "true".equalsIgnoreCase (value);
+         default: return getLong (row, col) != 0L;
+      }//end switch
+   }//end getBoolean
+
+   /**
+    * Returns a timestamp or date cell as milliseconds since the epoch.
+    */
+   public long getTimestamp (int row, int col) {
+      checkRow (row);
+      if (this._kinds[col] == STRING)
+         return isNull (row, col) ? 0L : Timestamp.valueOf (getString (row, col)).getTime ();
+      return getLong (row, col);
+   }//end getTimestamp
+
+   /**
+    * Returns a cell as text, or null for a SQL NULL.  char(n) values come
+    * back without their trailing blanks.
+    */
+   public String getString (int row, int col) {
+      checkRow (row);
+      if (this._nulls[col].get (row))
+         return null;
+      switch (this._kinds[col]) {
+         case INT: return Integer.toString (this._ints[col][row]);
+         case LONG: return Long.toString (this._longs[col][row]);
+         case DOUBLE: return Double.toString (this._doubles[col][row]);
+         case BOOLEAN: return this._booleans[col][row] ? "t" : "f";
+         case TIMESTAMP: return new Timestamp(this._longs[col][row]).toString ();
+         default: return this._values.get (col).get (this._ints[col][row]);
+      }//end switch
+   }//end getString
+
+   /**
+    * Returns a lazy iterator over the rows.  The iterator hands out the same
+    * Row object on every call to next, moved to the next row, so a Row must
+    * not be kept past the following call.
+    */
+   public Iterator<Row> iterator () {
+      final Row cursor = new Row();
+      return new Iterator<Row>() {
+         public boolean hasNext () {
+            return cursor._row + 1 < _rows;
+         }
+         public Row next () {
+            if (!hasNext ())
+               throw new NoSuchElementException();
+            ++cursor._row;
+            return cursor;
+         }
+         public void remove () {
+            throw new UnsupportedOperationException();
+         }
+      };
+   }//end iterator
+
+   /**
+    * A view of one row of the table.
+    */
+   public class Row {
+      private int _row = -1;
+
+      public int index () { return this._row; }
+      public boolean isNull (int col) { return ResultTable.this.isNull (this._row, col); }
+      public int getInt (int col) { return ResultTable.this.getInt (this._row, col); }
+      public long getLong (int col) { return ResultTable.this.getLong (this._row, col); }
+      public double getDouble (int col) { return ResultTable.this.getDouble (this._row, col); }
+      public boolean getBoolean (int col) { return ResultTable.this.getBoolean (this._row, col); }
+      public long getTimestamp (int col) { return ResultTable.this.getTimestamp (this._row, col); }
+      public String getString (int col) { return ResultTable.this.getString (this._row, col); }
+   }//end Row
+
+   private int encode (int col, String value) {
+      if (this._padded[col])
+         value = rtrim (value);
+      HashMap<String, Integer> codes = this._codes.get (col);
+      Integer code = codes.get (value);
+      if (code == null) {
+         ArrayList<String> values = this._values.get (col);
+         code = Integer.valueOf (values.size ());
+         values.add (value);
+         codes.put (value, code);
+      }//end if
+      return code.intValue ();
+   }//end encode
+
+   private void ensureCapacity () {
+      if (this._rows < this._capacity)
+         return;
+      this._capacity *= 2;
+      for (int c = 0; c < this._names.length; ++c) {
+         if (this._ints[c] != null) this._ints[c] = Arrays.copyOf (this._ints[c], this._capacity);
+         if (this._longs[c] != null) this._longs[c] = Arrays.copyOf (this._longs[c], this._capacity);
+         if (this._doubles[c] != null) this._doubles[c] = Arrays.copyOf (this._doubles[c], this._capacity);
+         if (this._booleans[c] != null) this._booleans[c] = Arrays.copyOf (this._booleans[c], this._capacity);
+      }//end for
+   }//end ensureCapacity
+
+   private void checkRow (int row) {
+      if (row < 0 || row >= this._rows)
+         throw new IndexOutOfBoundsException("Row " + row + " of a result with " + this._rows + " rows");
+   }//end checkRow
+
+   private static int kindOf (int sqlType) {
+      switch (sqlType) {
+         case Types.TINYINT:
+         case Types.SMALLINT:
+         case Types.INTEGER: return INT;
+         case Types.BIGINT: return LONG;
+         case Types.REAL:
+         case Types.FLOAT:
+         case Types.DOUBLE:
+         case Types.NUMERIC:
+         case Types.DECIMAL: return DOUBLE;
+         case Types.BIT:
+         case Types.BOOLEAN: return BOOLEAN;
+         case Types.DATE:
+         case Types.TIMESTAMP: return TIMESTAMP;
+         default: return STRING;
+      }//end switch
+   }//end kindOf
+
+   static String rtrim (String value) {
+      int end = value.length ();
+      while (end > 0 && value.charAt (end - 1) == ' ')
+         --end;
+      return end == value.length () ? value : value.substring (0, end);
+   }//end rtrim
+
+}//end ResultTable
@@ -0,0 +1,394 @@
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * This class serves the sales reports: revenue per item, per item type and
+ * per hour, the top customers and the average basket size.
+ *
+ * The reports read the rollup tables SalesByHour, SalesByItemHour and
+ * SalesByCustomer, which triggers on Orders and ItemStatus keep up to date
+ * as orders are placed, paid and deleted (see create_tables.sql), so a
+ * report costs a few rows per hour of the window instead of a scan of
+ * every order in it.  Each report also has the equivalent scan of the base
+ * tables, for checking the rollups and for comparing the two.
+ *
+ * rebuild() recomputes the rollups from the base tables.  It splits the
+ * range of timeStampRecieved into chunks that are aggregated in parallel
+ * with fork/join, each chunk on a pooled connection of its own, and writes
+ * the sums in one transaction.  Orders and ItemStatus are locked against
+ * writes while it runs, so no change is missed or counted twice.
+ *
+ */
+public class SalesAnalytics {
+
+   /**
+    * One report: its rollup query and the equivalent scan.  Every report
+    * takes one parameter, the window in hours back from the start of the
+    * current hour, or the number of customers for the top customers.
+    */
+   static final class Report {
+      final String name;
+      final String title;
+      final String rollup;
+      final String scan;
+
+      Report(String name, String title, String rollup, String scan) {
+         this.name = name;
+         this.title = title;
+         this.rollup = rollup;
+         this.scan = scan;
+      }
+   }//end Report
+
+   private static final String SINCE = "date_trunc('hour', now()) - CAST(? AS integer) * interval '1 hour'";
+   private static final String MONEY = "ROUND(CAST(%s AS numeric), 2)";
+   private static final String ITEMS_SCANNED =
+      "FROM ItemStatus i JOIN Orders o ON o.orderid = i.orderid LEFT JOIN Menu m ON m.itemName = i.itemName "
+      + "WHERE o.timeStampRecieved >= " + SINCE;
+
+   static final Report BY_ITEM = new Report("item", "Revenue per item",
+      "SELECT itemName, SUM(quantity) AS quantity, " + money ("SUM(revenue)") + " AS revenue "
+      + "FROM SalesByItemHour WHERE hour >= " + SINCE + " GROUP BY itemName "
+      + "HAVING SUM(quantity) <> 0 ORDER BY 3 DESC, 1",
+      "SELECT i.itemName, COUNT(*) AS quantity, "
+      + money ("COALESCE(SUM(CAST(m.price AS double precision)), 0)") + " AS revenue "
+      + ITEMS_SCANNED + " GROUP BY i.itemName ORDER BY 3 DESC, 1");
+   static final Report BY_TYPE = new Report("type", "Revenue per item type",
+      "SELECT COALESCE(m.type, '') AS type, SUM(s.quantity) AS quantity, "
+      + money ("SUM(s.revenue)") + " AS revenue "
+      + "FROM SalesByItemHour s LEFT JOIN Menu m ON m.itemName = s.itemName WHERE s.hour >= " + SINCE
+      + " GROUP BY 1 HAVING SUM(s.quantity) <> 0 ORDER BY 3 DESC, 1",
+      "SELECT COALESCE(m.type, '') AS type, COUNT(*) AS quantity, "
+      + money ("COALESCE(SUM(CAST(m.price AS double precision)), 0)") + " AS revenue "
+      + ITEMS_SCANNED + " GROUP BY 1 ORDER BY 3 DESC, 1");
+   static final Report BY_HOUR = new Report("hour", "Revenue per hour",
+      "SELECT CAST(hour AS text) AS hour, SUM(orders) AS orders, SUM(items) AS items, "
+      + money ("SUM(revenue)") + " AS revenue, " + money ("SUM(paidRevenue)") + " AS paid "
+      + "FROM SalesByHour WHERE hour >= " + SINCE + " GROUP BY hour HAVING SUM(orders) <> 0 ORDER BY hour",
+      "SELECT CAST(date_trunc('hour', o.timeStampRecieved) AS text) AS hour, COUNT(*) AS orders, "
+      + "SUM((SELECT COUNT(*) FROM ItemStatus i WHERE i.orderid = o.orderid)) AS items, "
+      + money ("SUM(CAST(o.total AS double precision))") + " AS revenue, "
+      + money ("COALESCE(SUM(CAST(o.total AS double precision)) FILTER (WHERE o.paid), 0)") + " AS paid "
+      + "FROM Orders o WHERE o.timeStampRecieved >= " + SINCE + " GROUP BY 1 ORDER BY 1");
+   static final Report TOP_CUSTOMERS = new Report("customers", "Top customers",
+      "SELECT login, orders, items, " + money ("revenue") + " AS revenue, " + money ("paidRevenue") + " AS paid "
+      + "FROM SalesByCustomer WHERE orders <> 0 ORDER BY 4 DESC, 1 LIMIT ?",
+      "SELECT o.login, COUNT(*) AS orders, "
+      + "SUM((SELECT COUNT(*) FROM ItemStatus i WHERE i.orderid = o.orderid)) AS items, "
+      + money ("SUM(CAST(o.total AS double precision))") + " AS revenue, "
+      + money ("COALESCE(SUM(CAST(o.total AS double precision)) FILTER (WHERE o.paid), 0)") + " AS paid "
+      + "FROM Orders o WHERE o.login IS NOT NULL GROUP BY o.login ORDER BY 4 DESC, 1 LIMIT ?");
+   static final Report BASKET_SIZE = new Report("basket", "Average basket size",
+      "SELECT SUM(orders) AS orders, SUM(items) AS items, "
+      + "ROUND(CAST(SUM(items) AS numeric) / NULLIF(SUM(orders), 0), 3) AS basket "
+      + "FROM SalesByHour WHERE hour >= " + SINCE,
+      "SELECT COUNT(*) AS orders, SUM(n) AS items, ROUND(CAST(SUM(n) AS numeric) / NULLIF(COUNT(*), 0), 3) AS basket "
+      + "FROM (SELECT (SELECT COUNT(*) FROM ItemStatus i WHERE i.orderid = o.orderid) AS n "
+      + "FROM Orders o WHERE o.timeStampRecieved >= " + SINCE + ") t");
+
+   static final Report[] REPORTS = { BY_ITEM, BY_TYPE, BY_HOUR, TOP_CUSTOMERS, BASKET_SIZE };
+
+   // the chunk bounds, in seconds since the epoch as timeStampRecieved
+   // reads without a time zone.
+   private static final String CHUNK =
+      "o.timeStampRecieved >= TIMESTAMP 'epoch' + CAST(? AS bigint) * interval '1 second' "
+      + "AND o.timeStampRecieved < TIMESTAMP 'epoch' + CAST(? AS bigint) * interval '1 second'";
+   private static final String HOUR_OF = "CAST(EXTRACT(EPOCH FROM date_trunc('hour', o.timeStampRecieved)) AS bigint)";
+   private static final String RANGE_QUERY =
+      "SELECT CAST(EXTRACT(EPOCH FROM MIN(timeStampRecieved)) AS bigint), "
+      + "CAST(EXTRACT(EPOCH FROM MAX(timeStampRecieved)) AS bigint) FROM Orders";
+   private static final String ORDER_SUMS = "COUNT(*), SUM(CAST(o.total AS double precision)), "
+      + "COUNT(*) FILTER (WHERE o.paid), COALESCE(SUM(CAST(o.total AS double precision)) FILTER (WHERE o.paid), 0)";
+   private static final String CHUNK_ORDERS_BY_HOUR =
+      "SELECT " + HOUR_OF + ", " + ORDER_SUMS + " FROM Orders o WHERE " + CHUNK + " GROUP BY 1";
+   private static final String CHUNK_ORDERS_BY_CUSTOMER =
+      "SELECT o.login, " + ORDER_SUMS + " FROM Orders o WHERE " + CHUNK + " AND o.login IS NOT NULL GROUP BY 1";
+   private static final String CHUNK_ITEMS_BY_HOUR =
+      "SELECT " + HOUR_OF + ", i.itemName, COUNT(*), COALESCE(SUM(CAST(m.price AS double precision)), 0) "
+      + "FROM Orders o JOIN ItemStatus i ON i.orderid = o.orderid LEFT JOIN Menu m ON m.itemName = i.itemName "
+      + "WHERE " + CHUNK + " GROUP BY 1, 2";
+   private static final String CHUNK_ITEMS_BY_CUSTOMER =
+      "SELECT o.login, COUNT(*) FROM Orders o JOIN ItemStatus i ON i.orderid = o.orderid "
+      + "WHERE " + CHUNK + " AND o.login IS NOT NULL GROUP BY 1";
+   private static final String AT_HOUR = "TIMESTAMP 'epoch' + CAST(? AS bigint) * interval '1 second'";
+   private static final String HOUR_INSERT =
+      "INSERT INTO SalesByHour (hour, stripe, orders, items, revenue, paidOrders, paidRevenue) "
+      + "VALUES (" + AT_HOUR + ", 0, ?, ?, ?, ?, ?)";
+   private static final String ITEM_HOUR_INSERT =
+      "INSERT INTO SalesByItemHour (hour, itemName, stripe, quantity, revenue) VALUES (" + AT_HOUR + ", ?, 0, ?, ?)";
+   private static final String CUSTOMER_INSERT =
+      "INSERT INTO SalesByCustomer (login, orders, items, revenue, paidRevenue) VALUES (?, ?, ?, ?, ?)";
+   private static final int INSERT_BATCH = 1000;
+
+   // the sums of a range of orders: per hour orders, items, revenue, paid
+   // orders and paid revenue; per hour and item quantity and revenue; per
+   // customer orders, items, revenue and paid revenue.
+   private static final class Sums {
+      final Map<Long, double[]> byHour = new HashMap<Long, double[]>();
+      final Map<Long, Map<String, double[]>> byItemHour = new HashMap<Long, Map<String, double[]>>();
+      final Map<String, double[]> byCustomer = new HashMap<String, double[]>();
+
+      void add (Sums other) {
+         add (this.byHour, other.byHour);
+         add (this.byCustomer, other.byCustomer);
+         for (Map.Entry<Long, Map<String, double[]>> hour : other.byItemHour.entrySet ()) {
+            Map<String, double[]> items = this.byItemHour.get (hour.getKey ());
+            if (items == null)
+               this.byItemHour.put (hour.getKey (), hour.getValue ());
+            else
+               add (items, hour.getValue ());
+         }//end for
+      }
+
+      static <K> double[] row (Map<K, double[]> sums, K key, int width) {
+         double[] row = sums.get (key);
+         if (row == null) {
+            row = new double[width];
+            sums.put (key, row);
+         }//end if
+         return row;
+      }
+
+      static <K> void add (Map<K, double[]> into, Map<K, double[]> from) {
+         for (Map.Entry<K, double[]> entry : from.entrySet ()) {
+            double[] row = row (into, entry.getKey (), entry.getValue ().length);
+            for (int i = 0; i < row.length; ++i)
+               row[i] += entry.getValue ()[i];
+         }//end for
+      }
+   }//end Sums
+
+   // aggregates a range of orders, splitting it while it is longer than a
+   // chunk.
+   private final class Chunk extends RecursiveTask<Sums> {
+      private static final long serialVersionUID = 1L;
+
+      final long from;
+      final long to;
+
+      Chunk(long from, long to) {
+         this.from = from;
+         this.to = to;
+      }
+
+      protected Sums compute () {
+         if (this.to - this.from <= _chunkSeconds) {
+            try{
+               return scan (this.from, this.to);
+            }catch (SQLException e){
+               throw new RuntimeException(e);
+            }//end try
+         }//end if
+         // split on an hour so no hour is summed in two chunks.
+         long middle = this.from + (this.to - this.from) / 2 / 3600 * 3600;
+         Chunk left = new Chunk(this.from, middle);
+         left.fork ();
+         Sums sums = new Chunk(middle, this.to).compute ();
+         sums.add (left.join ());
+         return sums;
+      }
+   }//end Chunk
+
+   private final Cafe _esql;
+   private final int _parallelism;
+   private final long _chunkSeconds;
+
+   /**
+    * Creates a new report server
+    *
+    * @param esql the database
+    * @param parallelism chunks aggregated at once by rebuild(); each holds
+    *        a pooled connection
+    * @param chunkHours the hours of orders in each chunk
+    */
+   public SalesAnalytics(Cafe esql, int parallelism, int chunkHours) {
+      this._esql = esql;
+      this._parallelism = Math.max(1, parallelism);
+      this._chunkSeconds = Math.max(1, chunkHours) * 3600L;
+   }//end SalesAnalytics
+
+   public int chunkHours () {
+      return (int) (this._chunkSeconds / 3600);
+   }
+
+   /**
+    * Runs a report from the rollups.
+    *
+    * @param report one of REPORTS
+    * @param arg the window in hours, or the number of top customers
+    */
+   public ResultTable report (Report report, int arg) throws SQLException {
+      return this._esql.executeQueryAndReturnResult (report.rollup, arg);
+   }//end report
+
+   /**
+    * Runs a report by scanning Orders and ItemStatus.
+    */
+   public ResultTable scan (Report report, int arg) throws SQLException {
+      return this._esql.executeQueryAndReturnResult (report.scan, arg);
+   }//end scan
+
+   /**
+    * Prints a report from the rollups.
+    *
+    * @return the number of rows printed
+    */
+   public int print (Report report, int arg) throws SQLException {
+      System.out.println (report.title);
+      return this._esql.executeQueryAndPrintResult (report.rollup, arg);
+   }//end print
+
+   /**
+    * Recomputes the rollups from Orders and ItemStatus.  Item revenue is
+    * counted again at the current menu prices.
+    *
+    * @return the number of rollup rows written
+    */
+   public int rebuild () throws SQLException {
+      PooledConnection pc = this._esql.borrowConnection ();
+      try{
+         pc.getConnection ().setAutoCommit (false);
+         // blocks writers, not readers: the chunks read on connections of
+         // their own and see every committed order.
+         Statement lock = pc.getConnection ().createStatement ();
+         try{
+            lock.execute ("LOCK TABLE Orders, ItemStatus IN SHARE MODE");
+         }finally{
+            lock.close ();
+         }//end try
+
+         Sums sums = new Sums();
+         ResultTable range = this._esql.executeQueryAndReturnResult (RANGE_QUERY);
+         if (!range.isNull (0, 0)) {
+            long from = range.getLong (0, 0) / 3600 * 3600;
+            long to = range.getLong (0, 1) / 3600 * 3600 + 3600;
+            ForkJoinPool pool = new ForkJoinPool(this._parallelism);
+            try{
+               sums = pool.invoke (new Chunk(from, to));
+            }catch (RuntimeException e){
+               if (e.getCause () instanceof SQLException)
+                  throw (SQLException) e.getCause ();
+               throw e;
+            }finally{
+               pool.shutdown ();
+            }//end try
+         }//end if
+
+         Statement clear = pc.getConnection ().createStatement ();
+         try{
+            clear.executeUpdate ("DELETE FROM SalesByHour");
+            clear.executeUpdate ("DELETE FROM SalesByItemHour");
+            clear.executeUpdate ("DELETE FROM SalesByCustomer");
+         }finally{
+            clear.close ();
+         }//end try
+         int rows = 0;
+         PreparedStatement stmt = pc.prepare (HOUR_INSERT);
+         try{
+            for (Map.Entry<Long, double[]> hour : sums.byHour.entrySet ()) {
+               double[] s = hour.getValue ();
+               Cafe.bind (stmt, hour.getKey (), (long) s[0], (long) s[1], s[2], (long) s[3], s[4]);
+               rows = addBatch (stmt, rows);
+            }//end for
+            stmt.executeBatch ();
+         }finally{
+            stmt.clearBatch ();
+         }//end try
+         stmt = pc.prepare (ITEM_HOUR_INSERT);
+         try{
+            for (Map.Entry<Long, Map<String, double[]>> hour : sums.byItemHour.entrySet ()) {
+               for (Map.Entry<String, double[]> item : hour.getValue ().entrySet ()) {
+                  double[] s = item.getValue ();
+                  Cafe.bind (stmt, hour.getKey (), item.getKey (), (long) s[0], s[1]);
+                  rows = addBatch (stmt, rows);
+               }//end for
+            }//end for
+            stmt.executeBatch ();
+         }finally{
+            stmt.clearBatch ();
+         }//end try
+         stmt = pc.prepare (CUSTOMER_INSERT);
+         try{
+            for (Map.Entry<String, double[]> customer : sums.byCustomer.entrySet ()) {
+               double[] s = customer.getValue ();
+               Cafe.bind (stmt, customer.getKey (), (long) s[0], (long) s[1], s[2], s[3]);
+               rows = addBatch (stmt, rows);
+            }//end for
+            stmt.executeBatch ();
+         }finally{
+            stmt.clearBatch ();
+         }//end try
+         pc.getConnection ().commit ();
+         return rows;
+      }finally{
+         // rolls back anything left uncommitted, and unlocks.
+         this._esql.releaseConnection (pc);
+      }//end try
+   }//end rebuild
+
+   // adds the bound row to the batch, sending the batch when it is full;
+   // returns the rows added so far.
+   private static int addBatch (PreparedStatement stmt, int rows) throws SQLException {
+      stmt.addBatch ();
+      if (++rows % INSERT_BATCH == 0) {
+         stmt.executeBatch ();
+         stmt.clearBatch ();
+      }//end if
+      return rows;
+   }//end addBatch
+
+   // aggregates the orders of one chunk.
+   private Sums scan (long from, long to) throws SQLException {
+      Sums sums = new Sums();
+      for (ResultTable.Row row : this._esql.executeQueryAndReturnResult (CHUNK_ORDERS_BY_HOUR, from, to)) {
+         double[] hour = Sums.row (sums.byHour, row.getLong (0), 5);
+         hour[0] += row.getLong (1);
+         hour[2] += row.getDouble (2);
+         hour[3] += row.getLong (3);
+         hour[4] += row.getDouble (4);
+      }//end for
+      for (ResultTable.Row row : this._esql.executeQueryAndReturnResult (CHUNK_ORDERS_BY_CUSTOMER, from, to)) {
+         double[] customer = Sums.row (sums.byCustomer, row.getString (0), 4);
+         customer[0] += row.getLong (1);
+         customer[2] += row.getDouble (2);
+         customer[3] += row.getDouble (4);
+      }//end for
+      for (ResultTable.Row row : this._esql.executeQueryAndReturnResult (CHUNK_ITEMS_BY_HOUR, from, to)) {
+         long count = row.getLong (2);
+         Sums.row (sums.byHour, row.getLong (0), 5)[1] += count;
+         Map<String, double[]> items = sums.byItemHour.get (row.getLong (0));
+         if (items == null) {
+            items = new HashMap<String, double[]>();
+            sums.byItemHour.put (row.getLong (0), items);
+         }//end if
+         double[] item = Sums.row (items, row.getString (1), 2);
+         item[0] += count;
+         item[1] += row.getDouble (3);
+      }//end for
+      for (ResultTable.Row row : this._esql.executeQueryAndReturnResult (CHUNK_ITEMS_BY_CUSTOMER, from, to))
+         Sums.row (sums.byCustomer, row.getString (0), 4)[1] += row.getLong (1);
+      return sums;
+   }//end scan
+
+   private static String money (String sum) {
+      return String.format (MONEY, sum);
+   }
+
+   /**
+    * Finds a report by name.
+    *
+    * @return the report, or null if there is none by that name
+    */
+   static Report find (String name) {
+      for (Report report : REPORTS)
+         if (report.name.equals (name))
+            return report;
+      return null;
+   }//end find
+
+}//end SalesAnalytics
@@ -0,0 +1,96 @@
+import java.sql.SQLException;
+
+/**
+ * This class holds the profile of a logged in user for the length of a
+ * session, so the menu flows can check the user's role without going back
+ * to the Users table.  It is read once at log in and again only after the
+ * user's own profile is changed.
+ *
+ */
+public class Session {
+
+   private static final String PROFILE_COLUMNS = "SELECT login, phoneNum, favItems, type FROM USERS";
+
+   private String _login;
+   private String _phoneNum;
+   private String _favItems;
+   private String _type;
+
+   private Session(ResultTable profile) {
+      set (profile);
+   }//end Session
+
+   /**
+    * Checks log in credentials and reads the user's profile in one query.
+    *
+    * @param esql the database
+    * @param login the user login
+    * @param password the user password
+    * @return the session, or null if the credentials do not match a user
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static Session open (Cafe esql, String login, String password) throws SQLException {
+      ResultTable profile = esql.executeQueryAndReturnResult (
+         PROFILE_COLUMNS + " WHERE login = ? AND password = ?", login, password);
+      return profile.isEmpty () ? null : new Session(profile);
+   }//end open
+
+   /**
+    * Reads the profile again, after it was changed.
+    *
+    * @param esql the database
+    * @throws java.sql.SQLException when failed to execute the query or the
+    *         user no longer exists
+    */
+   public void refresh (Cafe esql) throws SQLException {
+      ResultTable profile = esql.executeQueryAndReturnResult (
+         PROFILE_COLUMNS + " WHERE login = ?", this._login);
+      if (profile.isEmpty ())
+         throw new SQLException("User " + this._login + " no longer exists");
+      set (profile);
+   }//end refresh
+
+   /**
+    * Follows a change of the user's login and reads the profile again.
+    */
+   void renamed (Cafe esql, String newLogin) throws SQLException {
+      this._login = newLogin;
+      refresh (esql);
+   }//end renamed
+
+   public String getLogin () {
+      return this._login;
+   }
+
+   public String getPhoneNum () {
+      return this._phoneNum;
+   }
+
+   public String getFavItems () {
+      return this._favItems;
+   }
+
+   public String getType () {
+      return this._type;
+   }
+
+   public boolean isManager () {
+      return "Manager".equals (this._type);
+   }
+
+   /**
+    * Returns true for employees and managers, who may see and pay the
+    * orders of other users.
+    */
+   public boolean isStaff () {
+      return isManager () || "Employee".equals (this._type);
+   }
+
+   private void set (ResultTable profile) {
+      this._login = profile.getString (0, 0);
+      this._phoneNum = profile.getString (0, 1);
+      this._favItems = profile.getString (0, 2);
+      this._type = profile.getString (0, 3);
+   }//end set
+
+}//end Session
@@ -0,0 +1,176 @@
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class checks the order sketches against the exact answers of SQL.
+ * It places a number of orders for many made-up customers through
+ * placeOrder, pays a share of them through payOrder, and compares each
+ * figure of the sketches they fed with its exact count or percentile over
+ * those orders.  Sketches of its own take the place of the live ones while
+ * it runs, so its made-up orders stay out of the live figures:
+ *
+ *    distinct customers   within three standard errors of HyperLogLog
+ *    total quantiles      within the relative accuracy of the sketch
+ *    item counts          never below the true count, and at most
+ *                         epsilon times all items above it
+ *
+ * It then writes its sketches to a snapshot file, reads them back and
+ * checks that the figures did not change.  The orders it makes are
+ * deleted at the end.
+ *
+ */
+public class SketchCheck {
+
+   private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+   private final Cafe _esql;
+   private final int _orders;
+   private final int _customers;
+   private final int _precision;
+   private final double _accuracy;
+   private final double _epsilon;
+   private final double _delta;
+   private final Random _random = new Random(23);
+
+   /**
+    * Creates a new check
+    *
+    * @param esql the test database
+    * @param orders orders placed
+    * @param customers distinct customers placing them
+    * @param precision the HyperLogLog precision
+    * @param accuracy the relative accuracy of the quantiles
+    * @param epsilon the count-min error bound
+    * @param delta the count-min failure probability
+    */
+   public SketchCheck(Cafe esql, int orders, int customers, int precision, double accuracy,
+                      double epsilon, double delta) {
+      this._esql = esql;
+      this._orders = Math.max(1, orders);
+      this._customers = Math.max(1, customers);
+      this._precision = precision;
+      this._accuracy = accuracy;
+      this._epsilon = epsilon;
+      this._delta = delta;
+   }//end SketchCheck
+
+   /**
+    * Runs the check and prints the results.
+    *
+    * @return true if every figure was within its bound
+    */
+   public boolean run () throws Exception {
+      List<MenuCatalog.Item> menu = this._esql.getMenuCatalog ().items ();
+      if (menu.isEmpty ())
+         throw new SQLException("The check needs rows in Menu");
+      String tag = "sk" + Long.toString (System.currentTimeMillis (), 36);
+      File snapshot = File.createTempFile (tag, ".sketch");
+      OrderSketches sketches = new OrderSketches(60 * 60 * 1000L, 12, this._precision, this._accuracy,
+         this._epsilon, this._delta, snapshot);
+      List<Integer> placed = new ArrayList<Integer>();
+      OrderSketches live = this._esql.swapOrderSketches (sketches);
+      try{
+         System.out.println ("Placing " + this._orders + " orders for " + this._customers + " customers");
+         for (int i = 0; i < this._orders; ++i) {
+            Cart cart = new Cart();
+            int items = 1 + this._random.nextInt (Math.min(4, menu.size ()));
+            // skewed towards the start of the menu, so some items are popular.
+            while (cart.size () < items)
+               cart.add (menu.get ((int) (menu.size () * Math.pow (this._random.nextDouble (), 2))).itemName, "");
+            Order order = this._esql.placeOrder (tag + "-" + this._random.nextInt (this._customers), cart);
+            placed.add (order.orderid);
+            if (this._random.nextInt (3) == 0)
+               this._esql.payOrder (order.orderid);
+         }//end for
+         if (this._esql.getOrderJournal () != null)
+            this._esql.getOrderJournal ().awaitFlushed (Cafe.JOURNAL_WAIT_MILLIS);
+
+         OrderSketches.Slice window = sketches.window (sketches.windowMillis ());
+         boolean ok = true;
+         StringBuilder report = new StringBuilder();
+         report.append (String.format ("%-24s %12s %12s %10s %10s %6s%n",
+            "figure", "exact", "sketch", "error", "bound", "ok"));
+
+         String mine = "login LIKE '" + tag + "-%'";
+         ResultTable exact = this._esql.executeQueryAndReturnResult (
+            "SELECT COUNT(DISTINCT login), COUNT(DISTINCT login) FILTER (WHERE paid) FROM Orders WHERE " + mine);
+         double hllBound = 3 * new HyperLogLog(this._precision).standardError ();
+         ok &= row (report, "distinct customers", exact.getLong (0, 0), window.customers (), hllBound);
+         ok &= row (report, "distinct payers", exact.getLong (0, 1), window.payers (), hllBound);
+
+         for (int paid = 0; paid < 2; ++paid) {
+            StringBuilder sql = new StringBuilder("SELECT ");
+            for (int q = 0; q < QUANTILES.length; ++q)
+               sql.append (q == 0 ? "" : ", ").append ("percentile_disc(").append (QUANTILES[q])
+                  .append (") WITHIN GROUP (ORDER BY total)");
+            sql.append (" FROM Orders WHERE ").append (mine).append (paid == 1 ? " AND paid" : "");
+            exact = this._esql.executeQueryAndReturnResult (sql.toString ());
+            if (exact.isNull (0, 0))
+               continue;
+            for (int q = 0; q < QUANTILES.length; ++q) {
+               double estimate = paid == 1 ? window.paidTotal (QUANTILES[q]) : window.total (QUANTILES[q]);
+               ok &= row (report, (paid == 1 ? "paid total p" : "total p") + Math.round (QUANTILES[q] * 100),
+                  exact.getDouble (0, q), estimate, this._accuracy);
+            }//end for
+         }//end for
+
+         ResultTable counts = this._esql.executeQueryAndReturnResult (
+            "SELECT i.itemName, COUNT(*) FROM ItemStatus i JOIN Orders o ON o.orderid = i.orderid "
+            + "WHERE o." + mine + " GROUP BY i.itemName ORDER BY 2 DESC");
+         long items = 0;
+         for (ResultTable.Row row : counts)
+            items += row.getLong (1);
+         double cmsBound = Math.E / Math.ceil (Math.E / this._epsilon) * items;
+         int shown = 0;
+         for (ResultTable.Row row : counts) {
+            long truth = row.getLong (1);
+            long estimate = window.itemCount (row.getString (0));
+            boolean within = estimate >= truth && estimate - truth <= cmsBound;
+            ok &= within;
+            if (shown++ < 5 || !within)
+               report.append (String.format ("%-24s %12d %12d %10d %10.1f %6s%n",
+                  "item " + row.getString (0), truth, estimate, estimate - truth, cmsBound, within ? "yes" : "NO"));
+         }//end for
+
+         // the figures must come back unchanged from a snapshot.
+         sketches.snapshot ();
+         OrderSketches restored = new OrderSketches(60 * 60 * 1000L, 12, this._precision, this._accuracy,
+            this._epsilon, this._delta, snapshot);
+         OrderSketches.Slice again = restored.window (restored.windowMillis ());
+         boolean same = again.customers () == window.customers () && again.orders () == window.orders ()
+            && again.total (0.5) == window.total (0.5) && again.paidTotal (0.99) == window.paidTotal (0.99)
+            && again.itemCount (menu.get (0).itemName) == window.itemCount (menu.get (0).itemName);
+         report.append (String.format ("%-24s %12s %12s %10s %10s %6s%n", "snapshot round trip",
+            "", "", "", "", same ? "yes" : "NO"));
+         ok &= same;
+
+         System.out.println ();
+         System.out.print (report);
+         System.out.println (ok ? "PASS: every sketch is within its error bound" : "FAIL");
+         return ok;
+      }finally{
+         this._esql.swapOrderSketches (live);
+         for (int orderid : placed)
+            this._esql.getUnpaidOrders ().removed (orderid);
+         this._esql.executeUpdate ("DELETE FROM ItemStatus WHERE orderid IN "
+            + "(SELECT orderid FROM Orders WHERE login LIKE ?)", tag + "-%");
+         this._esql.executeUpdate ("DELETE FROM Orders WHERE login LIKE ?", tag + "-%");
+         this._esql.executeUpdate ("DELETE FROM SalesByCustomer WHERE login LIKE ?", tag + "-%");
+         snapshot.delete ();
+      }//end try
+   }//end run
+
+   // one figure; the bound is relative.
+   private static boolean row (StringBuilder report, String name, double exact, double estimate,
+                               double bound) {
+      double error = exact == 0 ? Math.abs (estimate) : Math.abs (estimate - exact) / exact;
+      boolean within = error <= bound + 1e-9;
+      report.append (String.format ("%-24s %12.2f %12.2f %9.2f%% %9.2f%% %6s%n",
+         name, exact, estimate, error * 100, bound * 100, within ? "yes" : "NO"));
+      return within;
+   }//end row
+
+}//end SketchCheck
@@ -0,0 +1,287 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class records the statements of a session to a file and replays
+ * them later against a database, with the original spacing in time.
+ *
+ * A trace has one line per statement, with tab separated fields:
+ *
+ *    offset-us  elapsed-us  U|Q  sql  param...
+ *
+ * The offset is measured from the first recorded statement.  Tabs, line
+ * breaks and backslashes in the SQL and in string values are escaped as
+ * in COPY text.  Each parameter is tagged with its type: n (null), s:text,
+ * i:int, l:long, d:double, f:float, b:boolean and t:epoch-ms timestamp.
+ *
+ */
+public class SqlTrace {
+
+   /**
+    * Writes the statements run by one thread, or by every thread, to a
+    * trace file.  Register it with Cafe.addQueryListener.
+    */
+   public static class Recorder implements QueryListener {
+      private final Writer _out;
+      private final Thread _thread;
+      private long _origin = -1;
+      private IOException _error = null;
+      private int _statements = 0;
+
+      /**
+       * Opens a trace file for writing
+       *
+       * @param file the trace file; replaced if it exists
+       * @param thread the only thread recorded, or null for all threads
+       */
+      public Recorder(String file, Thread thread) throws IOException {
+         this._out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+         this._thread = thread;
+      }//end Recorder
+
+      public void queryExecuted (String sql, Object[] params, boolean update,
+                                 long startNanos, long elapsedNanos, int rows, SQLException error) {
+         if (this._thread != null && Thread.currentThread () != this._thread)
+            return;
+         StringBuilder line = new StringBuilder(sql.length () + 64);
+         synchronized (this) {
+            if (this._error != null)
+               return;
+            if (this._origin < 0)
+               this._origin = startNanos;
+            line.append ((startNanos - this._origin) / 1000).append ('\t')
+                .append (elapsedNanos / 1000).append ('\t')
+                .append (update ? 'U' : 'Q').append ('\t');
+            escape (line, sql);
+            for (Object param : params) {
+               line.append ('\t');
+               encode (line, param);
+            }//end for
+            line.append ('\n');
+            try{
+               this._out.append (line);
+               ++this._statements;
+            }catch (IOException e){
+               // keeps the first failure for close to report.
+               this._error = e;
+            }//end try
+         }//end synchronized
+      }//end queryExecuted
+
+      public synchronized int statements () {
+         return this._statements;
+      }
+
+      /**
+       * Flushes and closes the trace file.
+       *
+       * @throws IOException when writing any part of the trace failed
+       */
+      public synchronized void close () throws IOException {
+         this._out.close ();
+         if (this._error != null)
+            throw this._error;
+      }//end close
+   }//end Recorder
+
+   /**
+    * One traced statement.
+    */
+   static final class Statement {
+      final long offsetMicros;
+      final long elapsedMicros;
+      final boolean update;
+      final String sql;
+      final Object[] params;
+
+      Statement(long offsetMicros, long elapsedMicros, boolean update, String sql, Object[] params) {
+         this.offsetMicros = offsetMicros;
+         this.elapsedMicros = elapsedMicros;
+         this.update = update;
+         this.sql = sql;
+         this.params = params;
+      }
+   }//end Statement
+
+   /**
+    * Reads a trace file.
+    *
+    * @param file the trace file
+    * @return its statements in order
+    * @throws IOException when the file cannot be read or is not a trace
+    */
+   static List<Statement> read (String file) throws IOException {
+      List<Statement> statements = new ArrayList<Statement>();
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try{
+         String line;
+         int lineNo = 0;
+         while ((line = in.readLine ()) != null) {
+            ++lineNo;
+            if (line.length () == 0)
+               continue;
+            String[] fields = line.split ("\t", -1);
+            if (fields.length < 4 || !(fields[2].equals ("U") || fields[2].equals ("Q")))
+               throw new IOException(file + ":" + lineNo + ": not a trace line");
+            Object[] params = new Object[fields.length - 4];
+            try{
+               for (int i = 0; i < params.length; ++i)
+                  params[i] = decode (fields[i + 4]);
+               statements.add (new Statement(Long.parseLong (fields[0]), Long.parseLong (fields[1]),
+                  fields[2].equals ("U"), unescape (fields[3]), params));
+            }catch (IllegalArgumentException e){
+               throw new IOException(file + ":" + lineNo + ": " + e.getMessage ());
+            }//end try
+         }//end while
+      }finally{
+         in.close ();
+      }//end try
+      return statements;
+   }//end read
+
+   /**
+    * Replays a trace through the execute methods of Cafe and prints how
+    * the replay compares with the recording.  A statement that fails is
+    * counted and the replay goes on.
+    *
+    * The replayed statements write to the database as the recorded ones
+    * did, so replay against a test database.
+    *
+    * @param esql the database
+    * @param file the trace file
+    * @param speed 1 keeps the recorded spacing, 2 replays twice as fast,
+    *        0 runs the statements back to back
+    */
+   public static void replay (Cafe esql, String file, double speed) throws IOException {
+      List<Statement> statements = read (file);
+      LatencyHistogram recorded = new LatencyHistogram();
+      LatencyHistogram replayed = new LatencyHistogram();
+      int errors = 0;
+      String firstError = null;
+
+      long start = System.nanoTime ();
+      for (Statement statement : statements) {
+         if (speed > 0) {
+            long due = start + (long) (statement.offsetMicros * 1000 / speed);
+            long wait = due - System.nanoTime ();
+            if (wait > 0) {
+               try{
+                  Thread.sleep (wait / 1000000, (int) (wait % 1000000));
+               }catch (InterruptedException e){
+                  Thread.currentThread ().interrupt ();
+                  break;
+               }//end try
+            }//end if
+         }//end if
+         long t0 = System.nanoTime ();
+         try{
+            if (statement.update)
+               esql.executeUpdate (statement.sql, statement.params);
+            else
+               esql.executeQuery (statement.sql, statement.params);
+         }catch (SQLException e){
+            if (firstError == null)
+               firstError = e.getMessage ();
+            ++errors;
+         }//end try
+         replayed.recordSince (t0);
+         recorded.record (statement.elapsedMicros * 1000);
+      }//end for
+      double seconds = (System.nanoTime () - start) / 1e9;
+
+      System.out.println (String.format ("Replayed %d statements in %.3f s, %d failed",
+         statements.size (), seconds, errors));
+      if (firstError != null)
+         System.out.println ("  first failure: " + firstError);
+      System.out.println ("  recorded " + recorded.summary ());
+      System.out.println ("  replayed " + replayed.summary ());
+   }//end replay
+
+   private static void encode (StringBuilder line, Object value) {
+      if (value == null) {
+         line.append ('n');
+      }else if (value instanceof String) {
+         line.append ("s:");
+         escape (line, (String) value);
+      }else if (value instanceof Integer) {
+         line.append ("i:").append (value);
+      }else if (value instanceof Long) {
+         line.append ("l:").append (value);
+      }else if (value instanceof Double) {
+         line.append ("d:").append (value);
+      }else if (value instanceof Float) {
+         line.append ("f:").append (value);
+      }else if (value instanceof Boolean) {
+         line.append ("b:").append (value);
+      }else if (value instanceof Timestamp) {
+         line.append ("t:").append (((Timestamp) value).getTime ());
+      }else {
+         // bound with setObject; replayed as its text.
+         line.append ("s:");
+         escape (line, value.toString ());
+      }//end if
+   }//end encode
+
+   private static Object decode (String field) {
+      if (field.equals ("n"))
+         return null;
+      if (field.length () < 2 || field.charAt (1) != ':')
+         throw new IllegalArgumentException("bad parameter " + field);
+      String value = field.substring (2);
+      switch (field.charAt (0)) {
+         case 's': return unescape (value);
+         case 'i': return Integer.valueOf (value);
+         case 'l': return Long.valueOf (value);
+         case 'd': return Double.valueOf (value);
+         case 'f': return Float.valueOf (value);
+         case 'b': return Boolean.valueOf (value);
+         case 't': return new Timestamp(Long.parseLong (value));
+         default : throw new IllegalArgumentException("bad parameter " + field);
+      }//end switch
+   }//end decode
+
+   private static void escape (StringBuilder line, String text) {
+      for (int i = 0; i < text.length (); ++i) {
+         char c = text.charAt (i);
+         switch (c) {
+            case '\\': line.append ("\\\\"); break;
+            case '\t': line.append ("\\t"); break;
+            case '\n': line.append ("\\n"); break;
+            case '\r': line.append ("\\r"); break;
+            default : line.append (c); break;
+         }//end switch
+      }//end for
+   }//end escape
+
+   private static String unescape (String text) {
+      if (text.indexOf ('\\') < 0)
+         return text;
+      StringBuilder value = new StringBuilder(text.length ());
+      for (int i = 0; i < text.length (); ++i) {
+         char c = text.charAt (i);
+         if (c != '\\' || i + 1 == text.length ()) {
+            value.append (c);
+            continue;
+         }//end if
+         char next = text.charAt (++i);
+         switch (next) {
+            case 't': value.append ('\t'); break;
+            case 'n': value.append ('\n'); break;
+            case 'r': value.append ('\r'); break;
+            default : value.append (next); break;
+         }//end switch
+      }//end for
+      return value.toString ();
+   }//end unescape
+
+}//end SqlTrace
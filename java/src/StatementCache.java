@@ -0,0 +1,105 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps a bounded, least-recently-used cache of PreparedStatements
+ * for a single physical connection.  Statements are keyed by their SQL text,
+ * so every call site that uses the same query shape shares one statement and
+ * the server only parses and plans it once.
+ *
+ */
+public class StatementCache {
+
+   // connection the cached statements belong to.
+   private final Connection _connection;
+
+   // maximum number of open statements kept for the connection.
+   private final int _capacity;
+
+   // statements in access order; the eldest entry is evicted first.
+   private final LinkedHashMap<String, PreparedStatement> _statements;
+
+   // lookup counters, used to judge whether the cache is large enough.
+   private long _hits = 0;
+   private long _misses = 0;
+   private long _evictions = 0;
+
+   /**
+    * Creates a new statement cache
+    *
+    * @param connection the connection statements are prepared on
+    * @param capacity the maximum number of statements kept open
+    */
+   public StatementCache(Connection connection, int capacity) {
+      this._connection = connection;
+      this._capacity = Math.max(1, capacity);
+      this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+   }//end StatementCache
+
+   /**
+    * Returns the cached statement for the SQL text, preparing and caching it
+    * on a miss.  The caller must not close the returned statement.
+    *
+    * @param sql the SQL text with '?' parameter markers
+    * @return a prepared statement for the SQL text
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public synchronized PreparedStatement prepare (String sql) throws SQLException {
+      PreparedStatement stmt = this._statements.get (sql);
+      if (stmt != null) {
+         ++this._hits;
+         return stmt;
+      }//end if
+      ++this._misses;
+      stmt = this._connection.prepareStatement (sql);
+      this._statements.put (sql, stmt);
+
+      // evict the least recently used statements past the capacity.
+      Iterator<Map.Entry<String, PreparedStatement>> it = this._statements.entrySet ().iterator ();
+      while (this._statements.size () > this._capacity && it.hasNext ()) {
+         PreparedStatement eldest = it.next ().getValue ();
+         it.remove ();
+         ++this._evictions;
+         closeQuietly (eldest);
+      }//end while
+      return stmt;
+   }//end prepare
+
+   public synchronized long getHits () {
+      return this._hits;
+   }
+
+   public synchronized long getMisses () {
+      return this._misses;
+   }
+
+   public synchronized long getEvictions () {
+      return this._evictions;
+   }
+
+   public synchronized int size () {
+      return this._statements.size ();
+   }
+
+   /**
+    * Closes every cached statement.  The connection itself is left open.
+    */
+   public synchronized void close () {
+      for (PreparedStatement stmt : this._statements.values ())
+         closeQuietly (stmt);
+      this._statements.clear ();
+   }//end close
+
+   private static void closeQuietly (PreparedStatement stmt) {
+      try{
+         stmt.close ();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }
+
+}//end StatementCache
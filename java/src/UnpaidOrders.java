@@ -0,0 +1,237 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class keeps the unpaid orders of the last 24 hours in memory, for
+ * the staff list of orders waiting to be paid.
+ *
+ * The orders are kept in a skip list ordered by (timeStampRecieved,
+ * orderid), so orders that grow older than the window are cut off the head
+ * of the list as it is read, and by order id so a paid or deleted order is
+ * found directly.  Orders placed, paid or deleted through this program are
+ * applied as they are committed.  The whole set is read from the database
+ * when first used and again at most once per resync interval, which picks
+ * up changes made by other processes.
+ *
+ * Order times are stamped by the database and expired against the clock
+ * of this machine, so the two should agree to within a second or so.
+ *
+ */
+public class UnpaidOrders {
+
+   // position of an order in the time-ordered list.
+   private static final class Key implements Comparable<Key> {
+      final long timeStampRecieved;
+      final int orderid;
+
+      Key(long timeStampRecieved, int orderid) {
+         this.timeStampRecieved = timeStampRecieved;
+         this.orderid = orderid;
+      }
+
+      public int compareTo (Key other) {
+         if (this.timeStampRecieved != other.timeStampRecieved)
+            return this.timeStampRecieved < other.timeStampRecieved ? -1 : 1;
+         return this.orderid < other.orderid ? -1 : this.orderid == other.orderid ? 0 : 1;
+      }
+   }//end Key
+
+   // columns of the Orders table, as Cafe.UNPAID_ORDERS_QUERY returns them.
+   private static final int ORDERID = 0, LOGIN = 1, TIME = 3, TOTAL = 4;
+
+   private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+   private final Cafe _esql;
+   private final long _windowMillis;
+   private final long _resyncMillis;
+
+   private volatile ConcurrentSkipListMap<Key, Order> _byTime = new ConcurrentSkipListMap<Key, Order>();
+   private volatile ConcurrentHashMap<Integer, Key> _byId = new ConcurrentHashMap<Integer, Key>();
+   private volatile long _loadedAt = 0;
+
+   // changes take the read lock and may run together, since both maps are
+   // concurrent; a reload takes the write lock so no change committed
+   // while it reads is lost when it swaps in the maps it read.
+   private final ReadWriteLock _lock = new ReentrantReadWriteLock();
+
+   /**
+    * Creates a new, empty index; the orders are read on first use.
+    *
+    * @param esql the database
+    * @param resyncMillis how often the orders are read again from the
+    *        database; 0 to read them only once
+    */
+   public UnpaidOrders(Cafe esql, long resyncMillis) {
+      this(esql, DAY_MILLIS, resyncMillis);
+   }
+
+   UnpaidOrders(Cafe esql, long windowMillis, long resyncMillis) {
+      this._esql = esql;
+      this._windowMillis = windowMillis;
+      this._resyncMillis = resyncMillis;
+   }//end UnpaidOrders
+
+   /**
+    * Returns the unpaid orders of the last 24 hours, oldest first.
+    */
+   public List<Order> orders () throws SQLException {
+      current ();
+      return new ArrayList<Order>(expire ().values ());
+   }//end orders
+
+   /**
+    * Returns the number of unpaid orders of the last 24 hours.
+    */
+   public int size () throws SQLException {
+      current ();
+      return expire ().size ();
+   }//end size
+
+   /**
+    * Records a committed new order.
+    */
+   public void placed (Order order) {
+      if (order.paid)
+         return;
+      this._lock.readLock ().lock ();
+      try{
+         Key key = new Key(order.timeStampRecieved, order.orderid);
+         this._byTime.put (key, order);
+         this._byId.put (order.orderid, key);
+      }finally{
+         this._lock.readLock ().unlock ();
+      }//end try
+   }//end placed
+
+   /**
+    * Records that an order was paid or deleted.
+    */
+   public void removed (int orderid) {
+      this._lock.readLock ().lock ();
+      try{
+         Key key = this._byId.remove (orderid);
+         if (key != null)
+            this._byTime.remove (key);
+      }finally{
+         this._lock.readLock ().unlock ();
+      }//end try
+   }//end removed
+
+   /**
+    * Reads the orders again from the database.
+    *
+    * @return the number of unpaid orders read
+    */
+   public int reload () throws SQLException {
+      this._lock.writeLock ().lock ();
+      try{
+         ResultTable rows = this._esql.executeQueryAndReturnResult (Cafe.UNPAID_ORDERS_QUERY);
+         ConcurrentSkipListMap<Key, Order> byTime = new ConcurrentSkipListMap<Key, Order>();
+         ConcurrentHashMap<Integer, Key> byId = new ConcurrentHashMap<Integer, Key>();
+         for (ResultTable.Row row : rows) {
+            Order order = new Order(row.getInt (ORDERID), row.getString (LOGIN), false,
+               row.getTimestamp (TIME), row.getDouble (TOTAL));
+            Key key = new Key(order.timeStampRecieved, order.orderid);
+            byTime.put (key, order);
+            byId.put (order.orderid, key);
+         }//end for
+         this._byTime = byTime;
+         this._byId = byId;
+         this._loadedAt = System.currentTimeMillis ();
+         return byTime.size ();
+      }finally{
+         this._lock.writeLock ().unlock ();
+      }//end try
+   }//end reload
+
+   /**
+    * Compares the orders in memory with the same lookup run in the
+    * database and prints any difference.  Orders within a few seconds of
+    * the end of the window are left out, since the two clocks cut them off
+    * at slightly different times.
+    *
+    * @return true if both hold the same orders
+    */
+   public boolean verify () throws SQLException {
+      long now = System.currentTimeMillis ();
+      long slack = 5000;
+      Set<Integer> memory = new HashSet<Integer>();
+      for (Order order : orders ())
+         if (order.timeStampRecieved > now - this._windowMillis + slack)
+            memory.add (order.orderid);
+
+      ResultTable rows = this._esql.executeQueryAndReturnResult (Cafe.UNPAID_ORDERS_QUERY);
+      Set<Integer> database = new HashSet<Integer>();
+      for (ResultTable.Row row : rows)
+         if (row.getTimestamp (TIME) > now - this._windowMillis + slack)
+            database.add (row.getInt (ORDERID));
+
+      Set<Integer> missing = new HashSet<Integer>(database);
+      missing.removeAll (memory);
+      Set<Integer> extra = new HashSet<Integer>(memory);
+      extra.removeAll (database);
+      System.out.println (memory.size () + " unpaid orders in memory, " + database.size () + " in the database");
+      if (!missing.isEmpty ())
+         System.out.println ("Missing from memory: " + missing);
+      if (!extra.isEmpty ())
+         System.out.println ("Not unpaid in the database: " + extra);
+      return missing.isEmpty () && extra.isEmpty ();
+   }//end verify
+
+   /**
+    * Writes orders in the columns of the Orders table.
+    *
+    * @param writer where the orders are written; flushed before returning
+    * @param orders the orders
+    * @return the number of orders written
+    */
+   public static int print (Writer writer, List<Order> orders) throws IOException {
+      StringBuilder line = new StringBuilder(128);
+      if (!orders.isEmpty ())
+         writer.write ("orderid\tlogin\tpaid\ttimestamprecieved\ttotal\t\n");
+      for (Order order : orders) {
+         line.setLength (0);
+         line.append (order.orderid).append ('\t')
+             .append (order.login).append ('\t')
+             .append (order.paid ? 't' : 'f').append ('\t')
+             .append (new Timestamp(order.timeStampRecieved)).append ('\t')
+             .append (order.total).append ('\t').append ('\n');
+         writer.append (line);
+      }//end for
+      writer.flush ();
+      return orders.size ();
+   }//end print
+
+   // reads the orders if they were never read or the resync interval passed.
+   private void current () throws SQLException {
+      long loadedAt = this._loadedAt;
+      if (loadedAt == 0
+          || (this._resyncMillis > 0 && System.currentTimeMillis () - loadedAt >= this._resyncMillis))
+         reload ();
+   }//end current
+
+   // drops the orders that left the window and returns what is left.
+   private ConcurrentNavigableMap<Key, Order> expire () {
+      ConcurrentSkipListMap<Key, Order> byTime = this._byTime;
+      ConcurrentHashMap<Integer, Key> byId = this._byId;
+      Key cutoff = new Key(System.currentTimeMillis () - this._windowMillis, Integer.MAX_VALUE);
+      for (Map.Entry<Key, Order> old; (old = byTime.firstEntry ()) != null && old.getKey ().compareTo (cutoff) <= 0;) {
+         if (byTime.remove (old.getKey ()) != null)
+            byId.remove (old.getKey ().orderid, old.getKey ());
+      }//end for
+      return byTime;
+   }//end expire
+
+}//end UnpaidOrders
@@ -17,6 +17,7 @@ CREATE INDEX menu_desc_ind ON Menu USING BTREE (description);
 
 CREATE INDEX orders_orderid_ind ON Orders USING BTREE (orderid); 
 CREATE INDEX orders_login_ind ON Orders USING BTREE (login); 
+CREATE INDEX orders_login_time_ind ON Orders USING BTREE (login, timeStampRecieved, orderid); 
 CREATE INDEX orders_paid_ind ON Orders USING BTREE (paid); 
 CREATE INDEX orders_timerecieved_ind ON Orders USING BTREE (timestampRecieved);
 CREATE INDEX orders_total_ind ON Orders USING BTREE (total); 
@@ -25,3 +26,4 @@ CREATE INDEX itemstatus_orderid_ind ON ItemStatus USING BTREE (orderid);
 CREATE INDEX itemstatus_itemname_ind ON ItemStatus USING BTREE (itemName); 
 CREATE INDEX itemstatus_lastupdated_ind ON ItemStatus USING BTREE (lastUpdated); 
 CREATE INDEX itemstatus_comments_ind ON ItemStatus USING BTREE (comments); 
+CREATE INDEX itemstatus_queue_ind ON ItemStatus USING BTREE (status, lastUpdated); 
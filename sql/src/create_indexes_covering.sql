@@ -0,0 +1,10 @@
+-- Indexes shaped after the application queries instead of one per column.
+
+-- order history: rows of one user in time order
+CREATE INDEX orders_login_time_ind ON Orders USING BTREE (login, timeStampRecieved, orderid); 
+
+-- staff view of recent unpaid orders; paid orders are never indexed
+CREATE INDEX orders_unpaid_time_ind ON Orders USING BTREE (timeStampRecieved) WHERE paid = false; 
+
+-- kitchen queue: the oldest items of a status, claimed in lastUpdated order
+CREATE INDEX itemstatus_queue_ind ON ItemStatus USING BTREE (status, lastUpdated); 
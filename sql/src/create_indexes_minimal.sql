@@ -0,0 +1,7 @@
+-- Only the indexes the application queries need beyond the primary keys.
+-- Users, Menu and ItemStatus lookups are served by their primary keys
+-- (ItemStatus by the orderid prefix of its key).  Order history pages by
+-- (timeStampRecieved, orderid) within a login, so the login index carries
+-- both.
+
+CREATE INDEX orders_login_time_ind ON Orders USING BTREE (login, timeStampRecieved, orderid); 
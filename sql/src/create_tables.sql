@@ -2,6 +2,10 @@ DROP TABLE Users CASCADE;
 DROP TABLE Orders CASCADE;
 DROP TABLE Menu CASCADE;
 DROP TABLE ItemStatus;
+DROP TABLE MenuVersion;
+DROP TABLE SalesByHour;
+DROP TABLE SalesByItemHour;
+DROP TABLE SalesByCustomer;
 
 CREATE TABLE Users(
 	login char(50) UNIQUE NOT NULL, 
@@ -36,3 +40,212 @@ CREATE TABLE ItemStatus(
 	PRIMARY KEY(orderid,itemName),
 	FOREIGN KEY(orderid) REFERENCES Orders(orderid),
 	FOREIGN KEY(itemName) REFERENCES Menu(itemName));
+
+-- Bumped by a trigger on every write to Menu so that clients holding an
+-- in-memory copy of the menu can tell when it changed.
+CREATE TABLE MenuVersion(
+	version bigint NOT NULL);
+INSERT INTO MenuVersion VALUES (0);
+
+CREATE OR REPLACE FUNCTION bump_menu_version() RETURNS trigger AS $$
+BEGIN
+	UPDATE MenuVersion SET version = version + 1;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER menu_version_trg
+	AFTER INSERT OR UPDATE OR DELETE ON Menu
+	FOR EACH STATEMENT EXECUTE PROCEDURE bump_menu_version();
+
+-- Sends a notification on the item_status channel whenever the status of
+-- an ordered item changes, so clients can be told instead of querying
+-- ItemStatus again.  The payload is a JSON object with the orderid, the
+-- login of the order, the itemName, the status and the time of the change.
+CREATE OR REPLACE FUNCTION notify_item_status() RETURNS trigger AS $$
+BEGIN
+	IF NEW.status IS NOT DISTINCT FROM OLD.status THEN
+		RETURN NULL;
+	END IF;
+	PERFORM pg_notify('item_status', json_build_object(
+		'orderid', NEW.orderid,
+		'login', (SELECT rtrim(login) FROM Orders WHERE orderid = NEW.orderid),
+		'itemName', rtrim(NEW.itemName),
+		'status', rtrim(NEW.status),
+		'lastUpdated', NEW.lastUpdated)::text);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER item_status_notify_trg
+	AFTER UPDATE OF status ON ItemStatus
+	FOR EACH ROW EXECUTE PROCEDURE notify_item_status();
+
+-- Newly ordered items send one notification per statement with an empty
+-- payload, which has listeners read the new rows themselves, so loading
+-- millions of rows with COPY sends one notification and not millions.
+CREATE OR REPLACE FUNCTION notify_item_status_inserted() RETURNS trigger AS $$
+BEGIN
+	PERFORM pg_notify('item_status', '');
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER item_status_notify_insert_trg
+	AFTER INSERT ON ItemStatus
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_item_status_inserted();
+
+-- Sales rollups for the reports, kept up to date by the triggers below as
+-- orders are placed, paid and deleted, so a report reads a few rows per
+-- hour instead of scanning Orders and ItemStatus.  Each hour is split into
+-- stripes by orderid so orders placed at the same time do not wait on the
+-- same row; reports add the stripes up.  Item revenue is counted at the
+-- menu price when the item is ordered.  rebuild-analytics recomputes the
+-- rollups from the base tables.
+CREATE TABLE SalesByHour(
+	hour timestamp NOT NULL,
+	stripe smallint NOT NULL,
+	orders bigint NOT NULL,
+	items bigint NOT NULL,
+	revenue double precision NOT NULL,
+	paidOrders bigint NOT NULL,
+	paidRevenue double precision NOT NULL,
+	PRIMARY KEY(hour, stripe));
+
+CREATE TABLE SalesByItemHour(
+	hour timestamp NOT NULL,
+	itemName char(50) NOT NULL,
+	stripe smallint NOT NULL,
+	quantity bigint NOT NULL,
+	revenue double precision NOT NULL,
+	PRIMARY KEY(hour, itemName, stripe));
+
+CREATE TABLE SalesByCustomer(
+	login char(50) NOT NULL,
+	orders bigint NOT NULL,
+	items bigint NOT NULL,
+	revenue double precision NOT NULL,
+	paidRevenue double precision NOT NULL,
+	PRIMARY KEY(login));
+
+-- One trigger per statement and event, with the changed rows as
+-- transition tables; an update takes the old rows away and adds the new.
+-- Rows are aggregated per key straight from the transition tables and
+-- locked in key order, so a COPY of many orders costs one statement per
+-- rollup, holds no copy of the rows and cannot deadlock with single
+-- orders.
+CREATE OR REPLACE FUNCTION orders_sales_rollup() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		INSERT INTO SalesByHour AS s
+		SELECT date_trunc('hour', o.timeStampRecieved), o.orderid % 16, -COUNT(*), 0,
+			-SUM(CAST(o.total AS double precision)),
+			-COUNT(*) FILTER (WHERE o.paid),
+			-COALESCE(SUM(CAST(o.total AS double precision)) FILTER (WHERE o.paid), 0)
+		FROM old_rows o GROUP BY 1, 2 ORDER BY 1, 2
+		ON CONFLICT (hour, stripe) DO UPDATE SET
+			orders = s.orders + EXCLUDED.orders,
+			revenue = s.revenue + EXCLUDED.revenue,
+			paidOrders = s.paidOrders + EXCLUDED.paidOrders,
+			paidRevenue = s.paidRevenue + EXCLUDED.paidRevenue;
+		INSERT INTO SalesByCustomer AS s
+		SELECT o.login, -COUNT(*), 0,
+			-SUM(CAST(o.total AS double precision)),
+			-COALESCE(SUM(CAST(o.total AS double precision)) FILTER (WHERE o.paid), 0)
+		FROM old_rows o WHERE o.login IS NOT NULL GROUP BY 1 ORDER BY 1
+		ON CONFLICT (login) DO UPDATE SET
+			orders = s.orders + EXCLUDED.orders,
+			revenue = s.revenue + EXCLUDED.revenue,
+			paidRevenue = s.paidRevenue + EXCLUDED.paidRevenue;
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		INSERT INTO SalesByHour AS s
+		SELECT date_trunc('hour', o.timeStampRecieved), o.orderid % 16, COUNT(*), 0,
+			SUM(CAST(o.total AS double precision)),
+			COUNT(*) FILTER (WHERE o.paid),
+			COALESCE(SUM(CAST(o.total AS double precision)) FILTER (WHERE o.paid), 0)
+		FROM new_rows o GROUP BY 1, 2 ORDER BY 1, 2
+		ON CONFLICT (hour, stripe) DO UPDATE SET
+			orders = s.orders + EXCLUDED.orders,
+			revenue = s.revenue + EXCLUDED.revenue,
+			paidOrders = s.paidOrders + EXCLUDED.paidOrders,
+			paidRevenue = s.paidRevenue + EXCLUDED.paidRevenue;
+		INSERT INTO SalesByCustomer AS s
+		SELECT o.login, COUNT(*), 0,
+			SUM(CAST(o.total AS double precision)),
+			COALESCE(SUM(CAST(o.total AS double precision)) FILTER (WHERE o.paid), 0)
+		FROM new_rows o WHERE o.login IS NOT NULL GROUP BY 1 ORDER BY 1
+		ON CONFLICT (login) DO UPDATE SET
+			orders = s.orders + EXCLUDED.orders,
+			revenue = s.revenue + EXCLUDED.revenue,
+			paidRevenue = s.paidRevenue + EXCLUDED.paidRevenue;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER orders_sales_insert_trg
+	AFTER INSERT ON Orders REFERENCING NEW TABLE AS new_rows
+	FOR EACH STATEMENT EXECUTE PROCEDURE orders_sales_rollup();
+CREATE TRIGGER orders_sales_update_trg
+	AFTER UPDATE ON Orders REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+	FOR EACH STATEMENT EXECUTE PROCEDURE orders_sales_rollup();
+CREATE TRIGGER orders_sales_delete_trg
+	AFTER DELETE ON Orders REFERENCING OLD TABLE AS old_rows
+	FOR EACH STATEMENT EXECUTE PROCEDURE orders_sales_rollup();
+
+-- Changed ItemStatus rows; their orders are still in Orders, as
+-- ItemStatus references them; deleted rows are taken away, inserted added.
+CREATE OR REPLACE FUNCTION item_status_sales_rollup() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		INSERT INTO SalesByItemHour AS s
+		SELECT date_trunc('hour', o.timeStampRecieved), i.itemName, i.orderid % 16, -COUNT(*),
+			-COALESCE(SUM(CAST(m.price AS double precision)), 0)
+		FROM old_rows i JOIN Orders o ON o.orderid = i.orderid
+			LEFT JOIN Menu m ON m.itemName = i.itemName
+		GROUP BY 1, 2, 3 ORDER BY 1, 2, 3
+		ON CONFLICT (hour, itemName, stripe) DO UPDATE SET
+			quantity = s.quantity + EXCLUDED.quantity,
+			revenue = s.revenue + EXCLUDED.revenue;
+		INSERT INTO SalesByHour AS s
+		SELECT date_trunc('hour', o.timeStampRecieved), i.orderid % 16, 0, -COUNT(*), 0, 0, 0
+		FROM old_rows i JOIN Orders o ON o.orderid = i.orderid
+		GROUP BY 1, 2 ORDER BY 1, 2
+		ON CONFLICT (hour, stripe) DO UPDATE SET items = s.items + EXCLUDED.items;
+		INSERT INTO SalesByCustomer AS s
+		SELECT o.login, 0, -COUNT(*), 0, 0
+		FROM old_rows i JOIN Orders o ON o.orderid = i.orderid
+		WHERE o.login IS NOT NULL GROUP BY 1 ORDER BY 1
+		ON CONFLICT (login) DO UPDATE SET items = s.items + EXCLUDED.items;
+	ELSE
+		INSERT INTO SalesByItemHour AS s
+		SELECT date_trunc('hour', o.timeStampRecieved), i.itemName, i.orderid % 16, COUNT(*),
+			COALESCE(SUM(CAST(m.price AS double precision)), 0)
+		FROM new_rows i JOIN Orders o ON o.orderid = i.orderid
+			LEFT JOIN Menu m ON m.itemName = i.itemName
+		GROUP BY 1, 2, 3 ORDER BY 1, 2, 3
+		ON CONFLICT (hour, itemName, stripe) DO UPDATE SET
+			quantity = s.quantity + EXCLUDED.quantity,
+			revenue = s.revenue + EXCLUDED.revenue;
+		INSERT INTO SalesByHour AS s
+		SELECT date_trunc('hour', o.timeStampRecieved), i.orderid % 16, 0, COUNT(*), 0, 0, 0
+		FROM new_rows i JOIN Orders o ON o.orderid = i.orderid
+		GROUP BY 1, 2 ORDER BY 1, 2
+		ON CONFLICT (hour, stripe) DO UPDATE SET items = s.items + EXCLUDED.items;
+		INSERT INTO SalesByCustomer AS s
+		SELECT o.login, 0, COUNT(*), 0, 0
+		FROM new_rows i JOIN Orders o ON o.orderid = i.orderid
+		WHERE o.login IS NOT NULL GROUP BY 1 ORDER BY 1
+		ON CONFLICT (login) DO UPDATE SET items = s.items + EXCLUDED.items;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER item_status_sales_insert_trg
+	AFTER INSERT ON ItemStatus REFERENCING NEW TABLE AS new_rows
+	FOR EACH STATEMENT EXECUTE PROCEDURE item_status_sales_rollup();
+CREATE TRIGGER item_status_sales_delete_trg
+	AFTER DELETE ON ItemStatus REFERENCING OLD TABLE AS old_rows
+	FOR EACH STATEMENT EXECUTE PROCEDURE item_status_sales_rollup();
@@ -0,0 +1,24 @@
+-- Drops every secondary index created by the create_indexes*.sql profiles,
+-- leaving the primary key and unique constraint indexes.
+
+DROP INDEX IF EXISTS index1;
+DROP INDEX IF EXISTS index2;
+DROP INDEX IF EXISTS user_login_ind;
+DROP INDEX IF EXISTS user_phonenum_ind;
+DROP INDEX IF EXISTS user_type_ind;
+DROP INDEX IF EXISTS menu_itemname_ind;
+DROP INDEX IF EXISTS menu_type_ind;
+DROP INDEX IF EXISTS menu_price_ind;
+DROP INDEX IF EXISTS menu_desc_ind;
+DROP INDEX IF EXISTS orders_orderid_ind;
+DROP INDEX IF EXISTS orders_login_ind;
+DROP INDEX IF EXISTS orders_paid_ind;
+DROP INDEX IF EXISTS orders_timerecieved_ind;
+DROP INDEX IF EXISTS orders_total_ind;
+DROP INDEX IF EXISTS itemstatus_orderid_ind;
+DROP INDEX IF EXISTS itemstatus_itemname_ind;
+DROP INDEX IF EXISTS itemstatus_lastupdated_ind;
+DROP INDEX IF EXISTS itemstatus_comments_ind;
+DROP INDEX IF EXISTS orders_login_time_ind;
+DROP INDEX IF EXISTS orders_unpaid_time_ind;
+DROP INDEX IF EXISTS itemstatus_queue_ind;
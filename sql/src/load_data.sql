@@ -9,7 +9,7 @@ WITH DELIMITER ';';
 COPY ORDERS
 FROM '/extra/vmeno003/cs166project/data/orders.csv'
 WITH DELIMITER ';';
-ALTER SEQUENCE orders_orderid_seq RESTART 87257;
+SELECT setval('orders_orderid_seq', (SELECT MAX(orderid) FROM Orders));
 
 COPY ITEMSTATUS
 FROM '/extra/vmeno003/cs166project/data/itemStatus.csv'